@@ -17,6 +17,7 @@ import javax.crypto.SecretKey;
 import java.util.Scanner;
 import java.util.HashMap;
 
+import com.google.protobuf.ByteString;
 import pt.ulisboa.tecnico.sec.crypto.Crypto;
 
 public class Client {
@@ -367,9 +368,9 @@ public class Client {
 
             byte[] decrypted =cipher.doFinal(digest);
 			
-			KeyFactory kf = KeyFactory.getInstance("RSA"); // or "EC" or whatever
-			this.privKey = kf.generatePrivate(new PKCS8EncodedKeySpec(decrypted));
-			this.pubKey= kf.generatePublic(new X509EncodedKeySpec(filePublic));
+			// the scheme is recorded in the encodings, see SignatureScheme
+			this.privKey = Crypto.getPrivateKey(ByteString.copyFrom(decrypted));
+			this.pubKey = Crypto.getPublicKey(ByteString.copyFrom(filePublic));
 
 		}
 		catch(Exception e){}
@@ -1,6 +1,5 @@
 package pt.ulisboa.tecnico.sec.client;
 
-import com.google.common.primitives.Longs;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.GeneratedMessageV3;
 import io.grpc.ManagedChannel;
@@ -10,13 +9,20 @@ import io.grpc.StatusRuntimeException;
 import pt.ulisboa.tecnico.sec.server.grpc.ServerServiceGrpc.ServerServiceBlockingStub;
 import pt.ulisboa.tecnico.sec.server.grpc.*;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import pt.ulisboa.tecnico.sec.crypto.Crypto;
+import pt.ulisboa.tecnico.sec.crypto.CryptoEngine;
+import pt.ulisboa.tecnico.sec.crypto.MerkleTree;
+import pt.ulisboa.tecnico.sec.crypto.ProofOfWork;
+import pt.ulisboa.tecnico.sec.crypto.ReplicaKeyCache;
+import pt.ulisboa.tecnico.sec.crypto.SessionKeys;
 
 public class ClientAPI {
 	private static float MIN_QUORUM;
@@ -25,6 +31,23 @@ public class ClientAPI {
 	private static int numServers;
 	private static int numFaults;
 	private static long wts;
+	private static CryptoEngine crypto = CryptoEngine.getDefault();
+	private static boolean useSessions = Boolean.getBoolean("bftb.session"); // HMAC sessions with each replica instead of signing every message
+	private static final Map<ServerServiceBlockingStub, Map<ByteString, Session>> sessions = new HashMap<>();
+	private static ReplicaKeyCache replicaKeys;
+	private static ExecutorService executor; // runs the calls to each replica, see QuorumCall
+	private static final int MAX_DIFFICULTY = Integer.getInteger("bftb.pow.limit", 20); // a replica asking for more is treated as faulty
+
+	// a nonce and the proof-of-work difficulty the replica announced with it
+	private static class Nonce {
+		final long value;
+		final int difficulty;
+
+		Nonce(long value, int difficulty) {
+			this.value = value;
+			this.difficulty = difficulty == 0 ? ProofOfWork.DEFAULT_BITS : difficulty;
+		}
+	}
 
 	public static ArrayList<ServerServiceBlockingStub> init(String host, int basePort, int N, int f) {
 		numServers = N;
@@ -44,6 +67,27 @@ public class ClientAPI {
 			channels.add(channel);
 			servers.add(stub);
 		}
+		synchronized (sessions) {
+			sessions.clear();
+		}
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(r -> {
+				Thread thread = new Thread(r, "quorum-call");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		// replica keys are fetched once here, a replica that is not up yet or answers late is asked on first use
+		try {
+			replicaKeys = ReplicaKeyCache.create(N, replica -> servers.get(replica).getServerKey(ServerKeyRequest.newBuilder().build()).getPublicKey());
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot read the replica key pins", e);
+		}
+		QuorumCall.Outcome<PublicKey> keys = QuorumCall.start(servers, executor, server -> replicaKeys.get(servers.indexOf(server)))
+				.await(MIN_QUORUM, key -> true);
+		for (StatusRuntimeException e : keys.exceptions)
+			System.out.println("Could not get the key of a replica: " + e.getMessage());
 		return servers; // useful for ByzantineAPITests
 	}
 
@@ -55,54 +99,193 @@ public class ClientAPI {
 	public static void validateSignature(PublicKey encodedPubKey, byte[] signedMessage, byte[] message)
 			throws NoSuchAlgorithmException, SignatureException,InvalidKeyException{
 
-		if(!Crypto.verifySignature(encodedPubKey, signedMessage, message))
+		if(!crypto.verify(encodedPubKey, signedMessage, message))
 			throw new SignatureException();
 	}
 
+	// a server signing in batches signs the root of a Merkle tree of responses, rebuilt here from the response and its path
+	public static void validateSignature(PublicKey encodedPubKey, byte[] signedMessage, byte[] message, MerkleProof proof)
+			throws NoSuchAlgorithmException, SignatureException,InvalidKeyException{
+
+		if(proof.getLeaves() == 0) {
+			validateSignature(encodedPubKey, signedMessage, message);
+			return;
+		}
+		try {
+			validateSignature(encodedPubKey, signedMessage, MerkleTree.rootOf(message, proof.getIndex(), proof.getLeaves(), proof.getPathList()));
+		} catch (IllegalArgumentException e) {
+			throw new SignatureException(e.getMessage());
+		}
+	}
+
+	/* ---------------------- */
+	/* ------ sessions ------ */
+	/* ---------------------- */
+
+	// session of a client key with one replica, see SessionKeys
+	private static class Session {
+		final long id;
+		final SessionKeys keys;
+
+		Session(long id, SessionKeys keys) {
+			this.id = id;
+			this.keys = keys;
+		}
+	}
+
+	// the session of the key with server, opened on first use; null when sessions are off
+	private static Session getSession(PublicKey pubKey, PrivateKey privKey, ServerServiceBlockingStub server)
+			throws StatusRuntimeException, NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException, SignatureException {
+		if (!useSessions) return null;
+		ByteString encodedKey = Crypto.getEncodedKey(pubKey);
+		synchronized (sessions) {
+			Session session = sessions.computeIfAbsent(server, s -> new HashMap<>()).get(encodedKey);
+			if (session != null) return session;
+		}
+
+		// the nonce is asked for with a signature, there is no session to ask on yet
+		long nonce = request_nonce(pubKey, privKey, server, null).value;
+		KeyPair ephemeral = SessionKeys.generateEphemeralKeyPair();
+		ByteString ephemeralKey = Crypto.getEncodedKey(ephemeral.getPublic());
+		SessionRequest.Data data = SessionRequest.Data.newBuilder().setAccKey(encodedKey).setEphemeralKey(ephemeralKey).setNonce(nonce).build();
+		SessionRequest request = SessionRequest.newBuilder().setData(data).setSignature(crypto.sign(privKey, data.toByteArray())).build();
+		SessionResponse response = server.openSession(request);
+
+		validateReplicaSignature(server, response.getSignature().toByteArray(), response.getData().toByteArray(), response.getProof());
+		if (!response.getData().getClientEphemeralKey().equals(ephemeralKey))
+			throw new SignatureException("Session response does not answer this request");
+		Session session = new Session(response.getData().getSession(),
+				SessionKeys.derive(ephemeral.getPrivate(), ephemeralKey, response.getData().getEphemeralKey(), true));
+		synchronized (sessions) {
+			sessions.get(server).put(encodedKey, session);
+		}
+		return session;
+	}
+
+	private static void closeSession(PublicKey pubKey, ServerServiceBlockingStub server) {
+		synchronized (sessions) {
+			Map<ByteString, Session> open = sessions.get(server);
+			if (open != null) open.remove(Crypto.getEncodedKey(pubKey));
+		}
+	}
+
+	private static long sessionId(Session session) {
+		return session == null ? 0 : session.id;
+	}
+
+	// an HMAC on a session, a signature by the client key otherwise
+	private static ByteString authenticate(Session session, PrivateKey privKey, byte[] data)
+			throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+		return session == null ? crypto.sign(privKey, data) : session.keys.macRequest(data);
+	}
+
+	private static void validateResponse(ServerServiceBlockingStub server, Session session, byte[] tag, byte[] message, MerkleProof proof)
+			throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, InvalidKeySpecException {
+		if (session == null) validateReplicaSignature(server, tag, message, proof);
+		else if (!session.keys.verifyResponse(tag, message)) throw new SignatureException();
+	}
+
+	// every operation starts here, so this is also where a session the server no longer knows is replaced
 	public static long get_nonce(PublicKey pubKey, PrivateKey privKey, ServerServiceBlockingStub server) throws StatusRuntimeException, NoSuchAlgorithmException,InvalidKeySpecException, InvalidKeyException, SignatureException  {
-		PublicKey server_key = getServerKey(server);
+		return fetch_nonce(pubKey, privKey, server).value;
+	}
 
+	private static Nonce fetch_nonce(PublicKey pubKey, PrivateKey privKey, ServerServiceBlockingStub server) throws StatusRuntimeException, NoSuchAlgorithmException,InvalidKeySpecException, InvalidKeyException, SignatureException  {
+		try {
+			return request_nonce(pubKey, privKey, server);
+		} catch (StatusRuntimeException e) {
+			if (e.getStatus().getCode() != Status.Code.UNAUTHENTICATED) throw e;
+			closeSession(pubKey, server);
+			return request_nonce(pubKey, privKey, server);
+		}
+	}
+
+	private static Nonce request_nonce(PublicKey pubKey, PrivateKey privKey, ServerServiceBlockingStub server) throws StatusRuntimeException, NoSuchAlgorithmException,InvalidKeySpecException, InvalidKeyException, SignatureException  {
+		return request_nonce(pubKey, privKey, server, getSession(pubKey, privKey, server));
+	}
+
+	private static Nonce request_nonce(PublicKey pubKey, PrivateKey privKey, ServerServiceBlockingStub server, Session session) throws StatusRuntimeException, NoSuchAlgorithmException,InvalidKeySpecException, InvalidKeyException, SignatureException  {
 		NonceRequest.Data data = NonceRequest.Data.newBuilder().setAccKey(Crypto.getEncodedKey(pubKey)).build();
-		ByteString signature = Crypto.signMessage(privKey, data.toByteArray());
-		NonceRequest request = NonceRequest.newBuilder().setData(data).setSignature(signature).build();
+		ByteString signature = authenticate(session, privKey, data.toByteArray());
+		NonceRequest request = NonceRequest.newBuilder().setData(data).setSignature(signature).setSession(sessionId(session)).build();
 
 		
 		NonceResponse response = server.generateNonce(request);
 
-		validateSignature(server_key,response.getSignature().toByteArray(), response.getData().toByteArray());
+		validateResponse(server, session, response.getSignature().toByteArray(), response.getData().toByteArray(), response.getProof());
+
+		return new Nonce(response.getData().getValue(), response.getData().getDifficulty());
+	}
+
+	// a nonce from every replica, so a write can be solved once for all of them
+	private static QuorumCall<Nonce> fetch_nonces(PublicKey pubKey, PrivateKey privKey) {
+		return QuorumCall.start(servers, executor, server -> {
+			Nonce nonce = fetch_nonce(pubKey, privKey, server);
+			if (nonce.difficulty > MAX_DIFFICULTY)
+				throw new StatusRuntimeException(Status.RESOURCE_EXHAUSTED.withDescription("Replica asks for a " + nonce.difficulty + "-bit proof of work."));
+			return nonce;
+		});
+	}
+
+	// the (f+1)-th highest difficulty among the first quorum of replicas to hand out a nonce, so up to f
+	// faulty replicas cannot make the client solve a harder puzzle than a correct one asked for; the ones
+	// asking for more fail checkDifficulty and count as failed replicas
+	private static int getDifficulty(QuorumCall<Nonce> nonces) {
+		List<Integer> bits = new ArrayList<>();
+		for (Nonce nonce : nonces.peek(MIN_QUORUM, nonce -> true).responses.values())
+			bits.add(nonce.difficulty);
+		if (bits.isEmpty()) return 0;
+		bits.sort(Collections.reverseOrder());
+		return bits.get(Math.min(numFaults, bits.size() - 1));
+	}
 
-		return response.getData().getValue();
+	// a replica answering later than the quorum may have asked for more than the proof of work has
+	private static long checkDifficulty(Nonce nonce, int bits) {
+		if (nonce.difficulty > bits)
+			throw new StatusRuntimeException(Status.FAILED_PRECONDITION.withDescription("Replica asks for a harder proof of work than the quorum."));
+		return nonce.value;
 	}
+
+	// checks a signature by the replica behind server, fetching its key again once if it fails under the cached one
+	public static void validateReplicaSignature(ServerServiceBlockingStub server, byte[] signedMessage, byte[] message, MerkleProof proof)
+			throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, InvalidKeySpecException {
+		int replica = servers.indexOf(server);
+		PublicKey key = replicaKeys.get(replica);
+		try {
+			validateSignature(key, signedMessage, message, proof);
+		} catch (SignatureException e) {
+			PublicKey fresh = replicaKeys.refresh(replica, key);
+			if (fresh.equals(key)) throw e;
+			validateSignature(fresh, signedMessage, message, proof);
+		}
+	}
+
+	// asks the replica for its key, trusted as it comes; use validateReplicaSignature to check a replica's signatures
 	public static PublicKey getServerKey(ServerServiceBlockingStub server) throws StatusRuntimeException, NoSuchAlgorithmException, InvalidKeySpecException {
 
 		ServerKeyRequest request = ServerKeyRequest.newBuilder().build();
 		ServerKeyResponse response = server.getServerKey(request);
 
-		return Crypto.getPublicKey(response.getPublicKey());
+		return crypto.getPublicKey(response.getPublicKey());
 	}
 
 	public static PublicKey get_public_key(long userID) throws StatusRuntimeException, NoSuchAlgorithmException, InvalidKeySpecException, SignatureException, InvalidKeyException{
-		PublicKey server_key = getServerKey(servers.get(0));
-
 		PublicKeyRequest request = PublicKeyRequest.newBuilder().setAccountID(userID).build();
 		PublicKeyResponse response = servers.get(0).getPublicKeyByID(request);
 
-		validateSignature(server_key,response.getSignature().toByteArray(), response.getData().toByteArray());
+		validateReplicaSignature(servers.get(0), response.getSignature().toByteArray(), response.getData().toByteArray(), response.getProof());
 
-		return Crypto.getPublicKey(response.getData().getPublicKey());
+		return crypto.getPublicKey(response.getData().getPublicKey());
 	}
 
-	public static long computeProofOfWork(byte[] message) throws IOException, NoSuchAlgorithmException {
-		for(long pow = 0L;; pow++) {
-			ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
-			byteArray.write(message);
-			byteArray.write(Longs.toByteArray(pow));
-			byte[] digest = Crypto.hash(byteArray.toByteArray());
+	// a valid proof of work makes the digest of the request data without its nonce start with 16 zero bits, see ProofOfWork
+	public static long computeProofOfWork(byte[] message) {
+		return ProofOfWork.getDefault().solve(message);
+	}
 
-			// a valide proof of works contains first two bytes set to 0 (2 byte = 16 bits = 2^16 possible values)
-			if (digest[0] == 0x0 && digest[1] == 0x0)
-				return pow;
-		}
+	// the same with as many zero bits as the replicas asked for
+	public static long computeProofOfWork(byte[] message, int bits) {
+		return ProofOfWork.getDefault().solve(message, bits);
 	}
 
 	/* ---------------------------------- */
@@ -120,29 +303,27 @@ public class ClientAPI {
 
 		// Authenticated-Data Byzantine Quorum with (1, N) Byzantine Atomic Register
 		update_wts(pubKey, privKey);
-		HashMap<Long, ArrayList<Long>> readlist = new HashMap<>();
-		ArrayList<StatusRuntimeException> exceptions = new ArrayList<>();
-		for (ServerServiceBlockingStub server : servers) { // would be a good idea to asynchronously run this
-			try {
-				long nonce = get_nonce(pubKey, privKey, server);
-				OpenAccountRequest.Data data = OpenAccountRequest.Data.newBuilder().setKey(encodedKey).setTimestamp(wts).setNonce(nonce).build();
-				ByteString signature = Crypto.signMessage(privKey, data.toByteArray());
-				long pow = computeProofOfWork(data.toByteArray());
-				OpenAccountRequest request = OpenAccountRequest.newBuilder().setData(data).setSignature(signature).setProofOfWork(pow).build();
-
-				OpenAccountResponse response = server.openAccount(request);
-
-				PublicKey server_key = getServerKey(server);
-				validateSignature(server_key,response.getSignature().toByteArray(), response.getData().toByteArray());
-				addToReadlist(readlist, response.getData().getAccountID(), response.getData().getTimestamp());
-			} catch (StatusRuntimeException e) {
-				exceptions.add(e);
-			} catch (InvalidKeySpecException | IOException e) {
-				exceptions.add(new StatusRuntimeException(Status.UNKNOWN.withDescription(e.getMessage())));
-			}
-		}
+		// the proof of work leaves out the nonce, so one solution serves every replica
+		OpenAccountRequest.Data puzzle = OpenAccountRequest.Data.newBuilder().setKey(encodedKey).setTimestamp(wts).build();
+		QuorumCall<Nonce> nonces = fetch_nonces(pubKey, privKey);
+		int bits = getDifficulty(nonces);
+		long pow = computeProofOfWork(puzzle.toByteArray(), bits);
+		QuorumCall.Outcome<OpenAccountResponse.Data> outcome = nonces.then((server, nonce) -> {
+			OpenAccountRequest.Data data = puzzle.toBuilder().setNonce(checkDifficulty(nonce, bits)).build();
+			Session session = getSession(pubKey, privKey, server);
+			ByteString signature = authenticate(session, privKey, data.toByteArray());
+			OpenAccountRequest request = OpenAccountRequest.newBuilder().setData(data).setSignature(signature).setSession(sessionId(session)).setProofOfWork(pow).build();
+
+			OpenAccountResponse response = server.openAccount(request);
+
+			validateResponse(server, session, response.getSignature().toByteArray(), response.getData().toByteArray(), response.getProof());
+			return response.getData();
+		}).awaitWrite(MIN_QUORUM, data -> Arrays.asList(data.getTimestamp(), data.getAccountID()));
 
-		return getQuorumResponse(readlist, exceptions);
+		HashMap<Long, ArrayList<Long>> readlist = new HashMap<>();
+		for (OpenAccountResponse.Data data : outcome.responses.values())
+			addToReadlist(readlist, data.getAccountID(), data.getTimestamp());
+		return getQuorumResponse(readlist, outcome.exceptions);
 	}
 
 
@@ -160,29 +341,26 @@ public class ClientAPI {
 
 		// Authenticated-Data Byzantine Quorum with (1, N) Byzantine Atomic Register
 		update_wts(srcPublicKey, privKey);
-		HashMap<Long, ArrayList<Long>> readlist = new HashMap<>();
-		ArrayList<StatusRuntimeException> exceptions = new ArrayList<>();
-		for (ServerServiceBlockingStub server : servers) { // would be a good idea to asynchronously run this
-			try {
-				long nonce = get_nonce(srcPublicKey, privKey, server);
-				SendAmountRequest.Data data = SendAmountRequest.Data.newBuilder().setSrcKey(encodedSrcKey)
-						.setDestKey(encodedDestKey).setAmount(amount).setTimestamp(wts).setNonce(nonce).build();
-				ByteString signature = Crypto.signMessage(privKey, data.toByteArray());
-				long pow = computeProofOfWork(data.toByteArray());
-				SendAmountRequest request = SendAmountRequest.newBuilder().setData(data).setSignature(signature).setProofOfWork(pow).build();
-				SendAmountResponse response = server.sendAmount(request);
-
-				PublicKey server_key = getServerKey(server);
-				validateSignature(server_key,response.getSignature().toByteArray(), response.getData().toByteArray());
-				addToReadlist(readlist, response.getData().getTID(), response.getData().getTimestamp());
-			} catch (StatusRuntimeException e) {
-				exceptions.add(e);
-			} catch (InvalidKeySpecException | IOException e) {
-				exceptions.add(new StatusRuntimeException(Status.UNKNOWN.withDescription(e.getMessage())));
-			}
-		}
+		SendAmountRequest.Data puzzle = SendAmountRequest.Data.newBuilder().setSrcKey(encodedSrcKey)
+				.setDestKey(encodedDestKey).setAmount(amount).setTimestamp(wts).build();
+		QuorumCall<Nonce> nonces = fetch_nonces(srcPublicKey, privKey);
+		int bits = getDifficulty(nonces);
+		long pow = computeProofOfWork(puzzle.toByteArray(), bits);
+		QuorumCall.Outcome<SendAmountResponse.Data> outcome = nonces.then((server, nonce) -> {
+			SendAmountRequest.Data data = puzzle.toBuilder().setNonce(checkDifficulty(nonce, bits)).build();
+			Session session = getSession(srcPublicKey, privKey, server);
+			ByteString signature = crypto.sign(privKey, data.toByteArray());
+			SendAmountRequest request = SendAmountRequest.newBuilder().setData(data).setSignature(signature).setSession(sessionId(session)).setProofOfWork(pow).build();
+			SendAmountResponse response = server.sendAmount(request);
+
+			validateResponse(server, session, response.getSignature().toByteArray(), response.getData().toByteArray(), response.getProof());
+			return response.getData();
+		}).awaitWrite(MIN_QUORUM, data -> Arrays.asList(data.getTimestamp(), data.getTID()));
 
-		return getQuorumResponse(readlist, exceptions);
+		HashMap<Long, ArrayList<Long>> readlist = new HashMap<>();
+		for (SendAmountResponse.Data data : outcome.responses.values())
+			addToReadlist(readlist, data.getTID(), data.getTimestamp());
+		return getQuorumResponse(readlist, outcome.exceptions);
 	}
 
 	/*
@@ -197,41 +375,28 @@ public class ClientAPI {
 		acc_info.put("pendingTransfers", pendingTransfers);
 
 		// Authenticated-Data Byzantine Quorum with (1, N) Byzantine Atomic Register
+		QuorumCall.Outcome<CheckAccountResponse> outcome = QuorumCall.start(servers, executor, server -> {
+			long nonce = get_nonce(key, privKey, server);
+
+			CheckAccountRequest.Data data = CheckAccountRequest.Data.newBuilder().setAccKey(encodedKey).setNonce(nonce).build();
+			Session session = getSession(key, privKey, server);
+			ByteString signature = authenticate(session, privKey, data.toByteArray());
+			CheckAccountRequest request = CheckAccountRequest.newBuilder().setData(data).setSignature(signature).setSession(sessionId(session)).build();
+			CheckAccountResponse response = server.checkAccount(request);
+
+			validateResponse(server, session, response.getSignature().toByteArray(), response.getData().toByteArray(), response.getProof());
+			return response;
+		}).await(MIN_QUORUM, response -> Arrays.asList(response.getData().getTimestamp(), response.getData().getBalance(), response.getData().getTransactionsList()));
+
 		HashMap<Long, ArrayList<CheckAccountResponse>> readlist = new HashMap<>();
-		HashMap<ServerServiceBlockingStub, Long> serverTS = new HashMap<>();
-		ArrayList<StatusRuntimeException> exceptions = new ArrayList<>();
-		for (ServerServiceBlockingStub server : servers) {
-			try {
-				long nonce = get_nonce(key, privKey, server);
-
-				CheckAccountRequest.Data data = CheckAccountRequest.Data.newBuilder().setAccKey(encodedKey).setNonce(nonce).build();
-				ByteString signature = Crypto.signMessage(privKey, data.toByteArray());
-				CheckAccountRequest request = CheckAccountRequest.newBuilder().setData(data).setSignature(signature).build();
-				CheckAccountResponse response = server.checkAccount(request);
-
-				PublicKey server_key = getServerKey(server);
-				validateSignature(server_key,response.getSignature().toByteArray(), response.getData().toByteArray());
-
-				long ts = response.getData().getTimestamp();
-				if(readlist.containsKey(ts)) {
-					readlist.get(ts).add(response);
-				}
-				else{
-					ArrayList<CheckAccountResponse> list = new ArrayList<>();
-					list.add(response);
-					readlist.put(ts, list);
-				}
-				serverTS.put(server, response.getData().getTimestamp());
-			} catch (StatusRuntimeException e) {
-				exceptions.add(e);
-			} catch (InvalidKeySpecException e) {
-				exceptions.add(new StatusRuntimeException(Status.UNKNOWN.withDescription(e.getMessage())));
-			} finally {
-				serverTS.put(server, -1L);
-			}
+		HashMap<ServerServiceBlockingStub, Long> serverTS = getServerTimestamps(outcome.responses.keySet());
+		for (Map.Entry<ServerServiceBlockingStub, CheckAccountResponse> entry : outcome.responses.entrySet()) {
+			long ts = entry.getValue().getData().getTimestamp();
+			readlist.computeIfAbsent(ts, t -> new ArrayList<>()).add(entry.getValue());
+			serverTS.put(entry.getKey(), ts);
 		}
 
-		CheckAccountResponse response = getCheckAccountQuorumResponse(readlist, serverTS, exceptions, key, privKey);
+		CheckAccountResponse response = getCheckAccountQuorumResponse(readlist, serverTS, outcome.exceptions, key, privKey);
 		writeBackCheckAccount(key, privKey, response, serverTS);
 
 		acc_info.put("balance", response.getData().getBalance());
@@ -251,30 +416,26 @@ public class ClientAPI {
 
 		// Authenticated-Data Byzantine Quorum with Byzantine Atomic Register
 		update_wts(key, privKey);
-		HashMap<Long, ArrayList<Long>> readlist = new HashMap<>();
-		ArrayList<StatusRuntimeException> exceptions = new ArrayList<>();
-		for (ServerServiceBlockingStub server : servers) { // would be a good idea to asynchronously run this
-			try {
-				long nonce = get_nonce(key, privKey, server);
-				ReceiveAmountRequest.Data data = ReceiveAmountRequest.Data.newBuilder().setAccKey(encodedKey)
-						.setTID(TID).setTimestamp(wts).setNonce(nonce).build();
-				ByteString signature = Crypto.signMessage(privKey, data.toByteArray());
-				long pow = computeProofOfWork(data.toByteArray());
-				ReceiveAmountRequest request = ReceiveAmountRequest.newBuilder().setData(data).setSignature(signature).setProofOfWork(pow).build();
-				ReceiveAmountResponse response = server.receiveAmount(request);
-
-				PublicKey server_key = getServerKey(server);
-				validateSignature(server_key,response.getSignature().toByteArray(), response.getData().toByteArray());
-				addToReadlist(readlist, (long) response.getData().getAmount(), response.getData().getTimestamp());
-
-			} catch (StatusRuntimeException e) {
-				exceptions.add(e);
-			} catch (InvalidKeySpecException | IOException e) {
-				exceptions.add(new StatusRuntimeException(Status.UNKNOWN.withDescription(e.getMessage())));
-			}
-		}
+		ReceiveAmountRequest.Data puzzle = ReceiveAmountRequest.Data.newBuilder().setAccKey(encodedKey)
+				.setTID(TID).setTimestamp(wts).build();
+		QuorumCall<Nonce> nonces = fetch_nonces(key, privKey);
+		int bits = getDifficulty(nonces);
+		long pow = computeProofOfWork(puzzle.toByteArray(), bits);
+		QuorumCall.Outcome<ReceiveAmountResponse.Data> outcome = nonces.then((server, nonce) -> {
+			ReceiveAmountRequest.Data data = puzzle.toBuilder().setNonce(checkDifficulty(nonce, bits)).build();
+			Session session = getSession(key, privKey, server);
+			ByteString signature = crypto.sign(privKey, data.toByteArray());
+			ReceiveAmountRequest request = ReceiveAmountRequest.newBuilder().setData(data).setSignature(signature).setSession(sessionId(session)).setProofOfWork(pow).build();
+			ReceiveAmountResponse response = server.receiveAmount(request);
+
+			validateResponse(server, session, response.getSignature().toByteArray(), response.getData().toByteArray(), response.getProof());
+			return response.getData();
+		}).awaitWrite(MIN_QUORUM, data -> Arrays.asList(data.getTimestamp(), data.getAmount()));
 
-		return (int) getQuorumResponse(readlist, exceptions);
+		HashMap<Long, ArrayList<Long>> readlist = new HashMap<>();
+		for (ReceiveAmountResponse.Data data : outcome.responses.values())
+			addToReadlist(readlist, (long) data.getAmount(), data.getTimestamp());
+		return (int) getQuorumResponse(readlist, outcome.exceptions);
 	}
 
 	/*
@@ -287,40 +448,28 @@ public class ClientAPI {
 		ArrayList<Transfer> acc_trans = new ArrayList<Transfer>();
 
 		// Authenticated-Data Byzantine Quorum with (1, N) Byzantine Atomic Register
-		HashMap<Long, ArrayList<AuditResponse>> readlist = new HashMap<>();
-		HashMap<ServerServiceBlockingStub, Long> serverTS = new HashMap<>();
-		ArrayList<StatusRuntimeException> exceptions = new ArrayList<>();
-		for (ServerServiceBlockingStub server : servers) { // would be a good idea to asynchronously run this
-			try {
-				long nonce = get_nonce(key, privKey, server);
-
-				AuditRequest.Data data = AuditRequest.Data.newBuilder().setAccKey(encodedKey).setNonce(nonce).build();
-				ByteString signature = Crypto.signMessage(privKey, data.toByteArray());
-				AuditRequest request = AuditRequest.newBuilder().setData(data).setSignature(signature).build();
-				AuditResponse response = server.audit(request);
-
-				PublicKey server_key = getServerKey(server);
-				validateSignature(server_key,response.getSignature().toByteArray(), response.getData().toByteArray());
-
-				long ts = response.getData().getTimestamp();
-				if(readlist.containsKey(ts)) {
-					readlist.get(ts).add(response);
-				}
-				else{
-					ArrayList<AuditResponse> list = new ArrayList<>();
-					list.add(response);
-					readlist.put(ts, list);
-				}
-				serverTS.put(server, response.getData().getTimestamp());
+		QuorumCall.Outcome<AuditResponse> outcome = QuorumCall.start(servers, executor, server -> {
+			long nonce = get_nonce(key, privKey, server);
 
-			} catch (StatusRuntimeException e) {
-				exceptions.add(e);
-			} catch (InvalidKeySpecException e) {
-				exceptions.add(new StatusRuntimeException(Status.UNKNOWN.withDescription(e.getMessage())));
-			}
+			AuditRequest.Data data = AuditRequest.Data.newBuilder().setAccKey(encodedKey).setNonce(nonce).build();
+			Session session = getSession(key, privKey, server);
+			ByteString signature = authenticate(session, privKey, data.toByteArray());
+			AuditRequest request = AuditRequest.newBuilder().setData(data).setSignature(signature).setSession(sessionId(session)).build();
+			AuditResponse response = server.audit(request);
+
+			validateResponse(server, session, response.getSignature().toByteArray(), response.getData().toByteArray(), response.getProof());
+			return response;
+		}).await(MIN_QUORUM, response -> Arrays.asList(response.getData().getTimestamp(), response.getData().getTransactionsList()));
+
+		HashMap<Long, ArrayList<AuditResponse>> readlist = new HashMap<>();
+		HashMap<ServerServiceBlockingStub, Long> serverTS = getServerTimestamps(outcome.responses.keySet());
+		for (Map.Entry<ServerServiceBlockingStub, AuditResponse> entry : outcome.responses.entrySet()) {
+			long ts = entry.getValue().getData().getTimestamp();
+			readlist.computeIfAbsent(ts, t -> new ArrayList<>()).add(entry.getValue());
+			serverTS.put(entry.getKey(), ts);
 		}
 
-		AuditResponse response = getAuditQuorumResponse(readlist, exceptions);
+		AuditResponse response = getAuditQuorumResponse(readlist, outcome.exceptions);
 		writeBackAudit(key, privKey, response, serverTS);
 
 		for (TransactionMessage m: response.getData().getTransactionsList()){
@@ -337,29 +486,35 @@ public class ClientAPI {
 	public static  long update_wts(PublicKey pubKey, PrivateKey privKey) {
 		long highestTS = 0;
 
-		for (ServerServiceBlockingStub server : servers) {
-			try {
-				long nonce = get_nonce(pubKey, privKey, server);
-				TimestampRequest.Data data = TimestampRequest.Data.newBuilder().setAccKey(Crypto.getEncodedKey(pubKey)).setNonce(nonce).build();
-				ByteString signature = Crypto.signMessage(privKey, data.toByteArray());
-				TimestampRequest request = TimestampRequest.newBuilder().setData(data).setSignature(signature).build();
+		// any quorum holds the latest timestamp; replicas that fail or answer late are ignored
+		QuorumCall.Outcome<Long> outcome = QuorumCall.start(servers, executor, server -> {
+			long nonce = get_nonce(pubKey, privKey, server);
+			TimestampRequest.Data data = TimestampRequest.Data.newBuilder().setAccKey(Crypto.getEncodedKey(pubKey)).setNonce(nonce).build();
+			Session session = getSession(pubKey, privKey, server);
+			ByteString signature = authenticate(session, privKey, data.toByteArray());
+			TimestampRequest request = TimestampRequest.newBuilder().setData(data).setSignature(signature).setSession(sessionId(session)).build();
 
-				TimestampResponse response = server.getTimestamp(request);
+			TimestampResponse response = server.getTimestamp(request);
 
-				PublicKey server_key = getServerKey(server);
-				validateSignature(server_key,response.getSignature().toByteArray(), response.getData().toByteArray());
+			validateResponse(server, session, response.getSignature().toByteArray(), response.getData().toByteArray(), response.getProof());
+			return response.getData().getValue();
+		}).await(MIN_QUORUM, ts -> true);
 
-				long ts = response.getData().getValue();
-				if (ts > highestTS) highestTS = ts;
-			} catch (Exception e) {
-				// ignore if request is unavailable
-			}
-		}
+		for (long ts : outcome.responses.values())
+			if (ts > highestTS) highestTS = ts;
 		if(highestTS > wts) wts = highestTS;
 		wts++;
 		return wts; // useful for ByzantineAPITests
 	}
 
+	// -1 for the replicas that did not answer in time, so they are written back as well
+	private static HashMap<ServerServiceBlockingStub, Long> getServerTimestamps(Set<ServerServiceBlockingStub> answered) {
+		HashMap<ServerServiceBlockingStub, Long> serverTS = new HashMap<>();
+		for (ServerServiceBlockingStub server : servers)
+			if (!answered.contains(server)) serverTS.put(server, -1L);
+		return serverTS;
+	}
+
 	public static HashMap<Long, ArrayList<Long>> addToReadlist(HashMap<Long, ArrayList<Long>> readlist, Long value, long ts){
 		if(readlist.containsKey(ts)) {
 			readlist.get(ts).add(value);
@@ -473,22 +628,21 @@ public class ClientAPI {
 		List<TransactionMessage> transactions = response.getData().getTransactionsList();
 		ByteString encodedKey = Crypto.getEncodedKey(pubKey);
 
+		List<ServerServiceBlockingStub> outdated = new ArrayList<>();
 		for(Map.Entry<ServerServiceBlockingStub, Long> entry: serverTS.entrySet()){
-			if(entry.getValue() < ts){
-				try {
-					ServerServiceBlockingStub server = entry.getKey();
-					long nonce = get_nonce(pubKey, privKey, server);
-
-					WriteBackCheckAccountRequest.Data data = WriteBackCheckAccountRequest.Data.newBuilder().setKey(encodedKey).addAllTransactions(transactions)
-							.setTimestamp(ts).setNonce(nonce).build();
-					ByteString signature = Crypto.signMessage(privKey, data.toByteArray());
-					WriteBackCheckAccountRequest request = WriteBackCheckAccountRequest.newBuilder().setData(data).setSignature(signature).build();
-					server.writeBackCheckAccount(request);
-				} catch(Exception e){
-					// api doesn't care if it wasn't successful. it will try again later for a new request
-				}
-			}
+			if(entry.getValue() < ts) outdated.add(entry.getKey());
 		}
+		// not waited for, api doesn't care if it wasn't successful. it will try again later for a new request
+		QuorumCall.start(outdated, executor, server -> {
+			long nonce = get_nonce(pubKey, privKey, server);
+
+			WriteBackCheckAccountRequest.Data data = WriteBackCheckAccountRequest.Data.newBuilder().setKey(encodedKey).addAllTransactions(transactions)
+					.setTimestamp(ts).setNonce(nonce).build();
+			Session session = getSession(pubKey, privKey, server);
+			ByteString signature = authenticate(session, privKey, data.toByteArray());
+			WriteBackCheckAccountRequest request = WriteBackCheckAccountRequest.newBuilder().setData(data).setSignature(signature).setSession(sessionId(session)).build();
+			return server.writeBackCheckAccount(request);
+		});
 	}
 
 	public static void writeBackAudit(PublicKey pubKey, PrivateKey privKey, AuditResponse response, HashMap<ServerServiceBlockingStub, Long> serverTS){
@@ -496,21 +650,20 @@ public class ClientAPI {
 		List<TransactionMessage> transactions = response.getData().getTransactionsList();
 		ByteString encodedKey = Crypto.getEncodedKey(pubKey);
 
+		List<ServerServiceBlockingStub> outdated = new ArrayList<>();
 		for(Map.Entry<ServerServiceBlockingStub, Long> entry: serverTS.entrySet()){
-			if(entry.getValue() < ts){
-				try {
-					ServerServiceBlockingStub server = entry.getKey();
-					long nonce = get_nonce(pubKey, privKey, server);
-
-					WriteBackAuditRequest.Data data = WriteBackAuditRequest.Data.newBuilder().setKey(encodedKey).addAllTransactions(transactions)
-							.setTimestamp(ts).setNonce(nonce).build();
-					ByteString signature = Crypto.signMessage(privKey, data.toByteArray());
-					WriteBackAuditRequest request = WriteBackAuditRequest.newBuilder().setData(data).setSignature(signature).build();
-					server.writeBackAudit(request);
-				} catch(Exception e){
-					// api doesn't care if it wasn't successful. it will try again later for a new request
-				}
-			}
+			if(entry.getValue() < ts) outdated.add(entry.getKey());
 		}
+		// not waited for, api doesn't care if it wasn't successful. it will try again later for a new request
+		QuorumCall.start(outdated, executor, server -> {
+			long nonce = get_nonce(pubKey, privKey, server);
+
+			WriteBackAuditRequest.Data data = WriteBackAuditRequest.Data.newBuilder().setKey(encodedKey).addAllTransactions(transactions)
+					.setTimestamp(ts).setNonce(nonce).build();
+			Session session = getSession(pubKey, privKey, server);
+			ByteString signature = authenticate(session, privKey, data.toByteArray());
+			WriteBackAuditRequest request = WriteBackAuditRequest.newBuilder().setData(data).setSignature(signature).setSession(sessionId(session)).build();
+			return server.writeBackAudit(request);
+		});
 	}
 }
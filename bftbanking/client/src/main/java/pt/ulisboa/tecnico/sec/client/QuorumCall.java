@@ -0,0 +1,193 @@
+package pt.ulisboa.tecnico.sec.client;
+
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import pt.ulisboa.tecnico.sec.server.grpc.ServerServiceGrpc.ServerServiceBlockingStub;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/*
+ * One step of an operation sent to every replica at once. Each replica runs its own
+ * chain of steps on the client's executor (nonce, request, response check), so a slow
+ * replica only delays itself and the operation waits for the quorum-th fastest one.
+ *
+ * await returns as soon as more than the quorum threshold of replicas agree, on a
+ * response or on an error, or when no outcome can reach the threshold anymore. The calls
+ * still running at the other replicas are then cancelled and their steps that have not
+ * started are skipped, as if those replicas had not answered in time. That is only right
+ * for calls that change nothing at the replicas, nonces, timestamps and reads. A write
+ * uses awaitWrite, which returns at the same point but lets the slower replicas finish
+ * their steps, so a correct replica behind the quorum still applies the write instead
+ * of missing it for good. peek waits the same way and leaves every replica running, for
+ * a step that is followed by another one.
+ *
+ * Each step at a replica runs in a gRPC context that is a child of the one shared by the
+ * whole call, under a deadline of bftb.deadline seconds, so the calls of a replica that
+ * stopped answering are cancelled instead of piling up.
+ *
+ * Whatever goes wrong with a replica is recorded as a StatusRuntimeException, with
+ * status UNKNOWN when the replica did not answer with one, e.g. a bad signature.
+ */
+class QuorumCall<T> {
+    private static final long DEADLINE_MILLIS = Long.getLong("bftb.deadline", 30) * 1000;
+    private static final ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "quorum-deadline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    interface Call<T> {
+        T call(ServerServiceBlockingStub server) throws Exception;
+    }
+
+    interface Step<T, R> {
+        R call(ServerServiceBlockingStub server, T previous) throws Exception;
+    }
+
+    private interface Attempt<T> {
+        T run() throws Exception;
+    }
+
+    // what the replicas had answered when await returned
+    static class Outcome<T> {
+        final Map<ServerServiceBlockingStub, T> responses;
+        final ArrayList<StatusRuntimeException> exceptions;
+
+        Outcome(Map<ServerServiceBlockingStub, T> responses, ArrayList<StatusRuntimeException> exceptions) {
+            this.responses = responses;
+            this.exceptions = exceptions;
+        }
+    }
+
+    private final List<ServerServiceBlockingStub> servers;
+    private final List<CompletableFuture<T>> futures;
+    private final Executor executor;
+    private final Context.CancellableContext scope; // parent of the context of every step, cancelled by await
+
+    QuorumCall(List<ServerServiceBlockingStub> servers, List<CompletableFuture<T>> futures, Executor executor, Context.CancellableContext scope) {
+        this.servers = servers;
+        this.futures = futures;
+        this.executor = executor;
+        this.scope = scope;
+    }
+
+    static <T> QuorumCall<T> start(List<ServerServiceBlockingStub> servers, Executor executor, Call<T> call) {
+        Context.CancellableContext scope = Context.current().withCancellation();
+        List<CompletableFuture<T>> futures = new ArrayList<>(servers.size());
+        for (ServerServiceBlockingStub server : servers)
+            futures.add(CompletableFuture.supplyAsync(() -> invoke(scope, () -> call.call(server)), executor));
+        return new QuorumCall<>(servers, futures, executor, scope);
+    }
+
+    // the next step at each replica, started as soon as that replica finished this one
+    <R> QuorumCall<R> then(Step<T, R> step) {
+        List<CompletableFuture<R>> next = new ArrayList<>(this.servers.size());
+        for (int i = 0; i < this.servers.size(); i++) {
+            ServerServiceBlockingStub server = this.servers.get(i);
+            next.add(this.futures.get(i).thenApplyAsync(previous -> invoke(this.scope, () -> step.call(server, previous)), this.executor));
+        }
+        return new QuorumCall<>(this.servers, next, this.executor, this.scope);
+    }
+
+    // waits like peek, then cancels whatever the other replicas are still doing, this step and any later one
+    Outcome<T> await(float threshold, Function<? super T, ?> match) {
+        try {
+            return this.peek(threshold, match);
+        } finally {
+            for (CompletableFuture<T> future : this.futures)
+                future.cancel(false);
+            this.scope.cancel(null);
+        }
+    }
+
+    // waits like peek, the other replicas finish this step and the scope is only released after the last of them
+    Outcome<T> awaitWrite(float threshold, Function<? super T, ?> match) {
+        try {
+            return this.peek(threshold, match);
+        } finally {
+            CompletableFuture.allOf(this.futures.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> this.scope.cancel(null));
+        }
+    }
+
+    // waits until more than threshold replicas answered with responses of equal match, or failed with the same error
+    Outcome<T> peek(float threshold, Function<? super T, ?> match) {
+        Map<ServerServiceBlockingStub, T> responses = new LinkedHashMap<>();
+        ArrayList<StatusRuntimeException> exceptions = new ArrayList<>();
+        Map<Object, Integer> agreeing = new HashMap<>(); // replicas per response match
+        Map<String, Integer> failing = new HashMap<>();  // replicas per error message
+        Object lock = new Object();
+
+        for (int i = 0; i < this.servers.size(); i++) {
+            ServerServiceBlockingStub server = this.servers.get(i);
+            this.futures.get(i).whenComplete((response, error) -> {
+                synchronized (lock) {
+                    if (error == null) {
+                        responses.put(server, response);
+                        agreeing.merge(match.apply(response), 1, Integer::sum);
+                    } else {
+                        StatusRuntimeException exception = status(error);
+                        exceptions.add(exception);
+                        failing.merge(exception.getMessage(), 1, Integer::sum);
+                    }
+                    lock.notifyAll();
+                }
+            });
+        }
+
+        synchronized (lock) {
+            while (!decided(agreeing, failing, this.servers.size() - responses.size() - exceptions.size(), threshold)) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new StatusRuntimeException(Status.CANCELLED.withDescription("Interrupted while waiting for a quorum"));
+                }
+            }
+            return new Outcome<>(new LinkedHashMap<>(responses), new ArrayList<>(exceptions));
+        }
+    }
+
+    // replicas per response match and per error, remaining have not answered yet
+    static boolean decided(Map<?, Integer> agreeing, Map<?, Integer> failing, int remaining, float threshold) {
+        if (remaining == 0) return true;
+        int best = 0;
+        for (int count : agreeing.values())
+            best = Math.max(best, count);
+        for (int count : failing.values())
+            best = Math.max(best, count);
+        // a quorum was reached, or none can be reached even if every remaining replica agrees with the largest group
+        return best > threshold || best + remaining <= threshold;
+    }
+
+    // blocking stubs called from the attempt inherit the deadline of the context
+    private static <T> T invoke(Context.CancellableContext scope, Attempt<T> attempt) {
+        Context.CancellableContext context = scope.withDeadlineAfter(DEADLINE_MILLIS, TimeUnit.MILLISECONDS, deadlines);
+        try {
+            return context.call(attempt::run);
+        } catch (StatusRuntimeException e) {
+            throw new CompletionException(e);
+        } catch (Exception e) {
+            throw new CompletionException(new StatusRuntimeException(Status.UNKNOWN.withDescription(e.getMessage())));
+        } finally {
+            context.cancel(null);
+        }
+    }
+
+    private static StatusRuntimeException status(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+        if (error instanceof StatusRuntimeException) return (StatusRuntimeException) error;
+        return new StatusRuntimeException(Status.UNKNOWN.withDescription(error.getMessage()));
+    }
+}
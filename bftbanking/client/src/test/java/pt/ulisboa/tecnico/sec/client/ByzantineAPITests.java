@@ -8,10 +8,12 @@ import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import pt.ulisboa.tecnico.sec.crypto.Crypto;
+import pt.ulisboa.tecnico.sec.crypto.SessionKeys;
 import pt.ulisboa.tecnico.sec.server.grpc.OpenAccountRequest;
 import pt.ulisboa.tecnico.sec.server.grpc.OpenAccountResponse;
 import pt.ulisboa.tecnico.sec.server.grpc.ServerServiceGrpc;
 import pt.ulisboa.tecnico.sec.server.grpc.ServerServiceGrpc.ServerServiceBlockingStub;
+import pt.ulisboa.tecnico.sec.server.grpc.SessionRequest;
 
 import java.security.*;
 import java.util.ArrayList;
@@ -60,6 +62,15 @@ public class ByzantineAPITests {
         Assert.assertTrue(e.getMessage().contains("Invalid nonce."));
     }
 
+    @Test
+    public void replayOpenSessionTest() {
+        Exception e = Assert.assertThrows(StatusRuntimeException.class, () -> {
+            replayOpenSession(pubKey, privKey);
+        });
+        Assert.assertTrue(e.getMessage().contains(Status.INVALID_ARGUMENT.getCode().toString()));
+        Assert.assertTrue(e.getMessage().contains("Invalid nonce."));
+    }
+
     @Test
     public void invalidProofOfWorkOpenAccountTest(){
         Exception e = Assert.assertThrows(StatusRuntimeException.class, () -> {
@@ -72,8 +83,8 @@ public class ByzantineAPITests {
     public long tamperedOpenAccount(PublicKey pubKey, PrivateKey privKey) throws StatusRuntimeException, NoSuchAlgorithmException {
         ByteString encodedKey = Crypto.getEncodedKey(pubKey);
 
-        KeyPair keyPair = Crypto.generateKeyPair();
-        ByteString random_key = Crypto.getEncodedKey(keyPair.getPublic());
+        // the request is well formed, live and paid for, only its signature is by someone else
+        PrivateKey otherKey = Crypto.generateKeyPair().getPrivate();
 
         // Authenticated-Data Byzantine Quorum with (N, N) Byzantine Atomic Register
         wts = ClientAPI.update_wts(pubKey, privKey);
@@ -82,11 +93,10 @@ public class ByzantineAPITests {
         for (ServerServiceGrpc.ServerServiceBlockingStub server : servers) { // would be a good idea to asynchronously run this
             try {
                 long nonce = ClientAPI.get_nonce(pubKey, privKey, server);
-                OpenAccountRequest.Data original_data = OpenAccountRequest.Data.newBuilder().setKey(encodedKey).setTimestamp(wts).setNonce(nonce).build();
-                ByteString signature = Crypto.signMessage(privKey, original_data.toByteArray());
-                OpenAccountRequest.Data tampered_data = OpenAccountRequest.Data.newBuilder().setKey(random_key).setTimestamp(5).setNonce(5).build();
-                long pow = ClientAPI.computeProofOfWork(tampered_data.toByteArray());
-                OpenAccountRequest request = OpenAccountRequest.newBuilder().setData(tampered_data).setSignature(signature).setProofOfWork(pow).build();
+                OpenAccountRequest.Data data = OpenAccountRequest.Data.newBuilder().setKey(encodedKey).setTimestamp(wts).setNonce(nonce).build();
+                ByteString signature = Crypto.signMessage(otherKey, data.toByteArray());
+                long pow = ClientAPI.computeProofOfWork(data.toBuilder().clearNonce().build().toByteArray());
+                OpenAccountRequest request = OpenAccountRequest.newBuilder().setData(data).setSignature(signature).setProofOfWork(pow).build();
 
                 OpenAccountResponse response = server.openAccount(request);
                 ClientAPI.addToReadlist(readlist, response.getData().getAccountID(), response.getData().getTimestamp());
@@ -113,7 +123,7 @@ public class ByzantineAPITests {
                 long nonce = ClientAPI.get_nonce(pubKey, privKey, server);
                 OpenAccountRequest.Data data = OpenAccountRequest.Data.newBuilder().setKey(encodedKey).setTimestamp(wts).setNonce(nonce).build();
                 ByteString signature = Crypto.signMessage(privKey, data.toByteArray());
-                long pow = ClientAPI.computeProofOfWork(data.toByteArray());
+                long pow = ClientAPI.computeProofOfWork(data.toBuilder().clearNonce().build().toByteArray());
                 OpenAccountRequest request = OpenAccountRequest.newBuilder().setData(data).setSignature(signature).setProofOfWork(pow).build();
                 server.openAccount(request);
 
@@ -131,6 +141,21 @@ public class ByzantineAPITests {
         return ClientAPI.getQuorumResponse(readlist, exceptions);
     }
 
+    // a captured session request is refused the second time, on every replica
+    public void replayOpenSession(PublicKey pubKey, PrivateKey privKey) throws Exception {
+        ByteString encodedKey = Crypto.getEncodedKey(pubKey);
+        for (ServerServiceGrpc.ServerServiceBlockingStub server : servers) {
+            long nonce = ClientAPI.get_nonce(pubKey, privKey, server);
+            ByteString ephemeralKey = Crypto.getEncodedKey(SessionKeys.generateEphemeralKeyPair().getPublic());
+            SessionRequest.Data data = SessionRequest.Data.newBuilder().setAccKey(encodedKey).setEphemeralKey(ephemeralKey).setNonce(nonce).build();
+            SessionRequest request = SessionRequest.newBuilder().setData(data).setSignature(Crypto.signMessage(privKey, data.toByteArray())).build();
+            server.openSession(request);
+
+            // replay message
+            server.openSession(request);
+        }
+    }
+
     public long invalidProofOfWorkOpenAccount(PublicKey pubKey, PrivateKey privKey) throws StatusRuntimeException, NoSuchAlgorithmException, SignatureException, InvalidKeyException {
         ByteString encodedKey = Crypto.getEncodedKey(pubKey);
 
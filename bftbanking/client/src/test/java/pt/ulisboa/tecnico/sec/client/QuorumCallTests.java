@@ -0,0 +1,199 @@
+package pt.ulisboa.tecnico.sec.client;
+
+import io.grpc.Context;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import pt.ulisboa.tecnico.sec.server.grpc.ServerServiceGrpc;
+import pt.ulisboa.tecnico.sec.server.grpc.ServerServiceGrpc.ServerServiceBlockingStub;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class QuorumCallTests {
+    private static final int N = 4;
+    private static final float THRESHOLD = 2.5f; // more than (N + f) / 2 with f = 1
+
+    private static ManagedChannel channel;
+    private static List<ServerServiceBlockingStub> servers;
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void setup() {
+        // the stubs only tell the replicas apart, the channel never connects
+        channel = ManagedChannelBuilder.forAddress("localhost", 1).usePlaintext().build();
+        servers = new ArrayList<>();
+        for (int i = 0; i < N; i++)
+            servers.add(ServerServiceGrpc.newBlockingStub(channel));
+        executor = Executors.newFixedThreadPool(N);
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        executor.shutdownNow();
+        channel.shutdownNow();
+    }
+
+    private static Map<Object, Integer> counts(int... counts) {
+        Map<Object, Integer> map = new HashMap<>();
+        for (int i = 0; i < counts.length; i++)
+            map.put(i, counts[i]);
+        return map;
+    }
+
+    private static List<CompletableFuture<String>> pending() {
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < N; i++)
+            futures.add(new CompletableFuture<>());
+        return futures;
+    }
+
+    private static CompletionException failure(String message) {
+        return new CompletionException(new StatusRuntimeException(Status.FAILED_PRECONDITION.withDescription(message)));
+    }
+
+    @Test
+    public void decidedTest() {
+        // three replicas agreeing are a quorum, on a response or on an error
+        Assert.assertTrue(QuorumCall.decided(counts(3), counts(), 1, THRESHOLD));
+        Assert.assertTrue(QuorumCall.decided(counts(), counts(3), 1, THRESHOLD));
+        // two agree and two have not answered, they may still join them
+        Assert.assertFalse(QuorumCall.decided(counts(2), counts(), 2, THRESHOLD));
+        Assert.assertFalse(QuorumCall.decided(counts(1, 1), counts(), 2, THRESHOLD));
+        // with only one replica left, no group can grow past two
+        Assert.assertTrue(QuorumCall.decided(counts(1, 1), counts(1), 1, THRESHOLD));
+        Assert.assertFalse(QuorumCall.decided(counts(2), counts(1), 1, THRESHOLD));
+        // everyone answered without a quorum
+        Assert.assertTrue(QuorumCall.decided(counts(2), counts(2), 0, THRESHOLD));
+        Assert.assertTrue(QuorumCall.decided(counts(), counts(), 0, THRESHOLD));
+    }
+
+    @Test
+    public void awaitCollectsResponsesAndErrorsTest() {
+        List<CompletableFuture<String>> futures = pending();
+        Context.CancellableContext scope = Context.current().withCancellation();
+        QuorumCall<String> call = new QuorumCall<>(servers, futures, executor, scope);
+        futures.get(0).complete("a");
+        futures.get(1).completeExceptionally(failure("slow"));
+        futures.get(2).complete("a");
+        futures.get(3).complete("a");
+
+        QuorumCall.Outcome<String> outcome = call.await(THRESHOLD, response -> response);
+        Assert.assertEquals(3, outcome.responses.size());
+        Assert.assertEquals(1, outcome.exceptions.size());
+        Assert.assertTrue(scope.isCancelled());
+    }
+
+    @Test
+    public void awaitDoesNotWaitForStragglersTest() {
+        List<CompletableFuture<String>> futures = pending();
+        Context.CancellableContext scope = Context.current().withCancellation();
+        QuorumCall<String> call = new QuorumCall<>(servers, futures, executor, scope);
+        for (int i = 0; i < 3; i++)
+            futures.get(i).complete("a");
+
+        QuorumCall.Outcome<String> outcome = call.await(THRESHOLD, response -> response);
+        Assert.assertEquals(3, outcome.responses.size());
+        Assert.assertTrue(outcome.exceptions.isEmpty());
+        Assert.assertTrue(futures.get(3).isCancelled());
+        Assert.assertTrue(scope.isCancelled());
+    }
+
+    @Test
+    public void awaitGivesUpWhenNoQuorumIsLeftTest() {
+        List<CompletableFuture<String>> futures = pending();
+        QuorumCall<String> call = new QuorumCall<>(servers, futures, executor, Context.current().withCancellation());
+        futures.get(0).complete("a");
+        futures.get(1).complete("b");
+        futures.get(2).completeExceptionally(failure("no"));
+
+        // the last replica cannot make any group reach three
+        QuorumCall.Outcome<String> outcome = call.await(THRESHOLD, response -> response);
+        Assert.assertEquals(2, outcome.responses.size());
+        Assert.assertEquals(1, outcome.exceptions.size());
+        Assert.assertTrue(futures.get(3).isCancelled());
+    }
+
+    @Test
+    public void peekLeavesTheRestRunningTest() {
+        List<CompletableFuture<String>> futures = pending();
+        Context.CancellableContext scope = Context.current().withCancellation();
+        QuorumCall<String> call = new QuorumCall<>(servers, futures, executor, scope);
+        for (int i = 0; i < 3; i++)
+            futures.get(i).complete("a");
+
+        Assert.assertEquals(3, call.peek(THRESHOLD, response -> response).responses.size());
+        Assert.assertFalse(futures.get(3).isDone());
+        Assert.assertFalse(scope.isCancelled());
+        scope.cancel(null);
+    }
+
+    @Test
+    public void awaitCancelsRunningCallsAndLaterStepsTest() throws Exception {
+        CountDownLatch cancelled = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        boolean[] stepRan = new boolean[N];
+        QuorumCall<Integer> first = QuorumCall.start(servers, executor, server -> {
+            int index = servers.indexOf(server);
+            if (index == N - 1) {
+                // a replica that stopped answering, a blocking stub call here would see the context cancelled
+                Context.current().addListener(context -> cancelled.countDown(), Runnable::run);
+                release.await(10, TimeUnit.SECONDS);
+            }
+            return index;
+        });
+        QuorumCall<Integer> second = first.then((server, index) -> {
+            stepRan[index] = true;
+            return 0;
+        });
+
+        QuorumCall.Outcome<Integer> outcome = second.await(THRESHOLD, response -> response);
+        Assert.assertEquals(3, outcome.responses.size());
+        Assert.assertTrue(cancelled.await(10, TimeUnit.SECONDS));
+        release.countDown();
+
+        // the straggler's next step never starts
+        Thread.sleep(50);
+        Assert.assertFalse(stepRan[N - 1]);
+    }
+
+    @Test
+    public void awaitWriteLetsStragglersFinishTest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch stepRan = new CountDownLatch(1);
+        boolean[] cancelled = new boolean[1];
+        QuorumCall<Integer> first = QuorumCall.start(servers, executor, server -> {
+            int index = servers.indexOf(server);
+            if (index == N - 1) {
+                release.await(10, TimeUnit.SECONDS);
+                cancelled[0] = Context.current().isCancelled();
+            }
+            return index;
+        });
+        QuorumCall<Integer> second = first.then((server, index) -> {
+            if (index == N - 1) stepRan.countDown();
+            return 0;
+        });
+
+        QuorumCall.Outcome<Integer> outcome = second.awaitWrite(THRESHOLD, response -> response);
+        Assert.assertEquals(3, outcome.responses.size());
+        release.countDown();
+
+        // the straggler still gets the write, its call was left running
+        Assert.assertTrue(stepRan.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(cancelled[0]);
+    }
+}
@@ -1,6 +1,5 @@
 package pt.ulisboa.tecnico.sec.crypto;
 
-import com.google.common.primitives.Longs;
 import com.google.protobuf.ByteString;
 
 import java.io.ByteArrayOutputStream;
@@ -9,7 +8,6 @@ import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
-import java.security.spec.X509EncodedKeySpec;
 
 public class Crypto {
 
@@ -23,50 +21,43 @@ public class Crypto {
     }
 
     public static byte[] hash(byte[] value) throws NoSuchAlgorithmException {
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        return md.digest(value);
+        return CryptoEngine.getDefault().digest(value);
     }
 
+    // a key pair of the scheme selected with -Dbftb.crypto.scheme, see SignatureScheme
     public static KeyPair generateKeyPair() throws NoSuchAlgorithmException {
-        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-        keyGen.initialize(4096);
-        return keyGen.generateKeyPair();
+        return SignatureScheme.getDefault().generateKeyPair();
     }
     public static ByteString getEncodedKey(Key key) {
         return ByteString.copyFrom(key.getEncoded());
     }
 
     public static PublicKey getPublicKey(ByteString encodedKey) throws NoSuchAlgorithmException, InvalidKeySpecException {
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-        X509EncodedKeySpec keySpec = new X509EncodedKeySpec(encodedKey.toByteArray());
-        return keyFactory.generatePublic(keySpec);
+        return CryptoEngine.getDefault().getPublicKey(encodedKey);
     }
 
+    // tries the schemes in turn, private keys are only ever read from local files
     public static PrivateKey getPrivateKey(ByteString encodedKey) throws NoSuchAlgorithmException, InvalidKeySpecException {
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
         PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(encodedKey.toByteArray());
-        return keyFactory.generatePrivate(keySpec);
+        InvalidKeySpecException failure = null;
+        for (SignatureScheme scheme : SignatureScheme.values()) {
+            try {
+                return KeyFactory.getInstance(scheme.getKeyAlgorithm()).generatePrivate(keySpec);
+            } catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
+                failure = new InvalidKeySpecException(e.getMessage());
+            }
+        }
+        throw failure;
     }
 
-    /* Utils for Signatures with SHA256 */
+    /* Utils for Signatures with SHA256, see CryptoEngine */
 
     public static ByteString signMessage(PrivateKey key, byte[] message) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
-        byte[] digest = MessageDigest.getInstance("SHA-256").digest(message);
-
-        Signature signer = Signature.getInstance("SHA256withRSA");
-        signer.initSign(key);
-        signer.update(digest);
-        return ByteString.copyFrom(signer.sign());
+        return CryptoEngine.getDefault().sign(key, message);
     }
 
     public static boolean verifySignature(PublicKey key, byte[] signedMessage, byte[] message) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
-        byte[] digest = MessageDigest.getInstance("SHA-256").digest(message);
-
-        Signature signer = Signature.getInstance("SHA256withRSA");
-        signer.initVerify(key);
-        signer.update(digest);
-
-        return signer.verify(signedMessage);
+        return CryptoEngine.getDefault().verify(key, signedMessage, message);
     }
 
    private static String bytesToHex(byte[] hash) {
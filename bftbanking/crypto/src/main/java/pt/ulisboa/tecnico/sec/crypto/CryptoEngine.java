@@ -0,0 +1,183 @@
+package pt.ulisboa.tecnico.sec.crypto;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Reusable signing, verification and hashing. Compared to creating the JCA objects on
+ * every call, as Crypto used to do:
+ *
+ *   - KeyFactory, MessageDigest and Signature instances are kept per thread and reused
+ *   - decoded public keys are kept in a bounded concurrent cache, keyed by their
+ *     encoding; lookups take no lock, and when it is full arbitrary entries are
+ *     dropped, as in the server's KeyRegistry
+ *   - messages can be given as ByteString or ByteBuffer and are fed to the digest
+ *     straight from their backing buffers, with no copy into a byte array
+ *
+ * The signature algorithm follows the key, see SignatureScheme. Signatures have always
+ * been made over the SHA-256 digest of the message, so the message ends up hashed
+ * twice. DOUBLE keeps that scheme and is the default, so signatures stay compatible
+ * with peers that still use it. SINGLE signs the message itself and skips one digest;
+ * every client and replica must then use it. The mode of the default engine is chosen
+ * with -Dbftb.crypto.digest=double|single.
+ */
+public class CryptoEngine {
+    public enum Digest { DOUBLE, SINGLE }
+
+    private static final String DIGEST = "SHA-256";
+
+    private static final CryptoEngine DEFAULT = new CryptoEngine(
+            System.getProperty("bftb.crypto.digest", "double").equals("single") ? Digest.SINGLE : Digest.DOUBLE,
+            Integer.getInteger("bftb.crypto.keys", 1024));
+
+    private final Digest mode;
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<>();
+    private final ThreadLocal<EnumMap<SignatureScheme, Signature>> signatures = ThreadLocal.withInitial(() -> new EnumMap<>(SignatureScheme.class));
+    private final ThreadLocal<EnumMap<SignatureScheme, KeyFactory>> keyFactories = ThreadLocal.withInitial(() -> new EnumMap<>(SignatureScheme.class));
+    private final ConcurrentHashMap<ByteString, PublicKey> keys = new ConcurrentHashMap<>();
+    private final int keyCacheSize;
+
+    public CryptoEngine(Digest mode, int keyCacheSize) {
+        this.mode = mode;
+        this.keyCacheSize = Math.max(keyCacheSize, 1);
+    }
+
+    public static CryptoEngine getDefault() {
+        return DEFAULT;
+    }
+
+    public Digest getMode() {
+        return this.mode;
+    }
+
+    /* ------------------ */
+    /* ------ keys ------ */
+    /* ------------------ */
+
+    // decodes the key once and serves it from the cache afterwards; public keys are immutable, so sharing them is safe
+    public PublicKey getPublicKey(ByteString encoded) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        PublicKey key = this.keys.get(encoded);
+        if (key != null) return key;
+
+        // two threads may decode the same key, either copy will do
+        key = this.decodePublicKey(encoded);
+        PublicKey previous = this.keys.putIfAbsent(encoded, key);
+        if (previous != null) return previous;
+        if (this.keys.size() > this.keyCacheSize) this.evict(encoded);
+        return key;
+    }
+
+    // drops entries in the iteration order of the map, which has nothing to do with their age
+    private void evict(ByteString keep) {
+        Iterator<ByteString> it = this.keys.keySet().iterator();
+        while (this.keys.size() > this.keyCacheSize && it.hasNext()) {
+            if (!it.next().equals(keep)) it.remove();
+        }
+    }
+
+    // for callers that keep decoded keys themselves; the algorithm is the one named in the encoding
+    public PublicKey decodePublicKey(ByteString encoded) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        SignatureScheme scheme = SignatureScheme.of(encoded);
+        KeyFactory factory = this.keyFactories.get().get(scheme);
+        if (factory == null) {
+            factory = KeyFactory.getInstance(scheme.getKeyAlgorithm());
+            this.keyFactories.get().put(scheme, factory);
+        }
+        return factory.generatePublic(new X509EncodedKeySpec(encoded.toByteArray()));
+    }
+
+    /* -------------------- */
+    /* ------ digest ------ */
+    /* -------------------- */
+
+    public byte[] digest(byte[] message) throws NoSuchAlgorithmException {
+        return this.messageDigest().digest(message);
+    }
+
+    public byte[] digest(ByteString message) throws NoSuchAlgorithmException {
+        MessageDigest md = this.messageDigest();
+        for (ByteBuffer buffer : message.asReadOnlyByteBufferList())
+            md.update(buffer);
+        return md.digest();
+    }
+
+    public byte[] digest(ByteBuffer message) throws NoSuchAlgorithmException {
+        MessageDigest md = this.messageDigest();
+        md.update(message.duplicate());
+        return md.digest();
+    }
+
+    /* ------------------------ */
+    /* ------ signatures ------ */
+    /* ------------------------ */
+
+    public ByteString sign(PrivateKey key, byte[] message) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Signature signer = this.signature(key);
+        signer.initSign(key);
+        if (this.mode == Digest.DOUBLE) signer.update(this.digest(message));
+        else signer.update(message);
+        return ByteString.copyFrom(signer.sign());
+    }
+
+    public ByteString sign(PrivateKey key, ByteString message) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Signature signer = this.signature(key);
+        signer.initSign(key);
+        this.update(signer, message);
+        return ByteString.copyFrom(signer.sign());
+    }
+
+    public boolean verify(PublicKey key, byte[] signature, byte[] message) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Signature verifier = this.signature(key);
+        verifier.initVerify(key);
+        if (this.mode == Digest.DOUBLE) verifier.update(this.digest(message));
+        else verifier.update(message);
+        return verifier.verify(signature);
+    }
+
+    public boolean verify(PublicKey key, ByteString signature, ByteString message) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Signature verifier = this.signature(key);
+        verifier.initVerify(key);
+        this.update(verifier, message);
+        return verifier.verify(signature.toByteArray());
+    }
+
+    /* --------------------- */
+    /* ------ helpers ------ */
+    /* --------------------- */
+
+    private void update(Signature signature, ByteString message) throws NoSuchAlgorithmException, SignatureException {
+        if (this.mode == Digest.DOUBLE) {
+            signature.update(this.digest(message));
+            return;
+        }
+        for (ByteBuffer buffer : message.asReadOnlyByteBufferList())
+            signature.update(buffer);
+    }
+
+    // digest() and sign()/verify() leave the instances reset, so the next call on the thread starts clean
+    private MessageDigest messageDigest() throws NoSuchAlgorithmException {
+        MessageDigest md = this.digests.get();
+        if (md == null) {
+            md = MessageDigest.getInstance(DIGEST);
+            this.digests.set(md);
+        }
+        return md;
+    }
+
+    private Signature signature(Key key) throws NoSuchAlgorithmException, InvalidKeyException {
+        SignatureScheme scheme = SignatureScheme.of(key);
+        Signature signature = this.signatures.get().get(scheme);
+        if (signature == null) {
+            signature = Signature.getInstance(scheme.getSignatureAlgorithm());
+            this.signatures.get().put(scheme, signature);
+        }
+        return signature;
+    }
+}
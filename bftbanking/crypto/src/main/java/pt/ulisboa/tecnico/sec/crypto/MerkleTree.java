@@ -0,0 +1,102 @@
+package pt.ulisboa.tecnico.sec.crypto;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * SHA-256 Merkle tree over a batch of messages, so one signature over the root covers
+ * all of them. Each message comes with the path of sibling hashes from its leaf up to
+ * the root, which lets the receiver rebuild the root from its own message alone.
+ *
+ * Leaves are hashed as H(0x00 || leaves || index || message) and inner nodes as
+ * H(0x01 || left || right), so a leaf can never be passed off as an inner node, and a
+ * proof only holds for the position and the batch size it was made for: the index and
+ * the number of leaves travel unsigned next to the path. A level with an odd number of
+ * nodes promotes its last node unchanged instead of pairing it with a copy of itself;
+ * that node has no sibling on that level, which the receiver works out from the index
+ * and the number of leaves.
+ */
+public class MerkleTree {
+    private static final String DIGEST = "SHA-256";
+    private static final byte LEAF = 0x00;
+    private static final byte NODE = 0x01;
+
+    private final List<byte[][]> levels = new ArrayList<>(); // levels.get(0) are the leaves, the last level is the root
+
+    public MerkleTree(List<byte[]> messages) throws NoSuchAlgorithmException {
+        if (messages.isEmpty()) throw new IllegalArgumentException("Empty Merkle tree");
+        MessageDigest md = MessageDigest.getInstance(DIGEST);
+        byte[][] level = new byte[messages.size()][];
+        for (int i = 0; i < level.length; i++)
+            level[i] = leaf(md, messages.get(i), i, level.length);
+        this.levels.add(level);
+
+        while (level.length > 1) {
+            byte[][] parent = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parent.length; i++)
+                parent[i] = 2 * i + 1 < level.length ? node(md, level[2 * i], level[2 * i + 1]) : level[2 * i];
+            this.levels.add(parent);
+            level = parent;
+        }
+    }
+
+    public int size() {
+        return this.levels.get(0).length;
+    }
+
+    public byte[] getRoot() {
+        return this.levels.get(this.levels.size() - 1)[0];
+    }
+
+    // sibling hashes from the leaf at index up to the root, skipping levels where the node has none
+    public List<ByteString> getPath(int index) {
+        List<ByteString> path = new ArrayList<>(this.levels.size() - 1);
+        for (int depth = 0; depth < this.levels.size() - 1; depth++) {
+            byte[][] level = this.levels.get(depth);
+            int sibling = index ^ 1;
+            if (sibling < level.length) path.add(ByteString.copyFrom(level[sibling]));
+            index >>= 1;
+        }
+        return path;
+    }
+
+    // root of the tree of the given number of leaves that has message at index, given its path
+    public static byte[] rootOf(byte[] message, int index, int leaves, List<ByteString> path) throws NoSuchAlgorithmException {
+        if (index < 0 || index >= leaves) throw new IllegalArgumentException("Leaf " + index + " out of " + leaves);
+        MessageDigest md = MessageDigest.getInstance(DIGEST);
+        byte[] hash = leaf(md, message, index, leaves);
+        int used = 0;
+        for (int width = leaves; width > 1; width = (width + 1) / 2) {
+            int sibling = index ^ 1;
+            if (sibling < width) {
+                if (used == path.size()) throw new IllegalArgumentException("Merkle path too short");
+                byte[] other = path.get(used++).toByteArray();
+                hash = (index & 1) == 0 ? node(md, hash, other) : node(md, other, hash);
+            }
+            index >>= 1;
+        }
+        if (used != path.size()) throw new IllegalArgumentException("Merkle path too long");
+        return hash;
+    }
+
+    /* --------------------- */
+    /* ------ helpers ------ */
+    /* --------------------- */
+
+    private static byte[] leaf(MessageDigest md, byte[] message, int index, int leaves) {
+        md.update(LEAF);
+        md.update(ByteBuffer.allocate(8).putInt(leaves).putInt(index).array());
+        return md.digest(message);
+    }
+
+    private static byte[] node(MessageDigest md, byte[] left, byte[] right) {
+        md.update(NODE);
+        md.update(left);
+        return md.digest(right);
+    }
+}
@@ -0,0 +1,293 @@
+package pt.ulisboa.tecnico.sec.crypto;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Proof of work of a write request: a value pow such that SHA-256(message || pow), with
+ * pow as 8 big-endian bytes, starts with a given number of zero bits.
+ *
+ * Only the last block or two of the digest depend on pow, so the message is compressed
+ * once into a midstate and each candidate only runs the final blocks, on a block buffer
+ * and message schedule owned by the hasher: the search loop allocates nothing. The
+ * rounds of the first of those blocks that come before pow, and the schedule of the
+ * second when pow is not in it, are computed once along with the midstate. Solving
+ * splits the candidates between the calling thread and bftb.pow.threads - 1 workers,
+ * each taking every threads-th value, and all of them stop once one finds a solution.
+ */
+public class ProofOfWork {
+    public static final int DEFAULT_BITS = 16;
+    public static final long INVALID = 0;
+
+    private static final long NONE = -1;
+    // candidates tried between looks at whether another thread found a solution
+    private static final int CHECK_INTERVAL = 256;
+
+    private static final ProofOfWork DEFAULT = new ProofOfWork(Integer.getInteger("bftb.pow.threads", Runtime.getRuntime().availableProcessors()));
+    private static final ThreadLocal<Checker> checkers = new ThreadLocal<>();
+
+    // a digest and buffers reused by every check on a thread
+    private static class Checker {
+        final MessageDigest digest;
+        final byte[] suffix = new byte[8];
+        final byte[] hash = new byte[32];
+
+        Checker() throws NoSuchAlgorithmException {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        }
+    }
+
+    private final int threads;
+    private final ExecutorService workers;
+
+    public ProofOfWork(int threads) {
+        this.threads = Math.max(1, threads);
+        AtomicInteger count = new AtomicInteger();
+        this.workers = this.threads == 1 ? null : Executors.newFixedThreadPool(this.threads - 1, r -> {
+            Thread thread = new Thread(r, "pow-solver-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static ProofOfWork getDefault() {
+        return DEFAULT;
+    }
+
+    public static boolean isValid(byte[] message, long pow) throws NoSuchAlgorithmException {
+        return check(message, pow, DEFAULT_BITS) != INVALID;
+    }
+
+    public static boolean isValid(byte[] message, long pow, int bits) throws NoSuchAlgorithmException {
+        return check(message, pow, bits) != INVALID;
+    }
+
+    // the last 64 bits of the digest, which tell solutions apart, or INVALID if pow is not a solution;
+    // a single candidate hashes the whole message once anyway, which the JDK digest does faster than the hasher
+    public static long check(byte[] message, long pow, int bits) throws NoSuchAlgorithmException {
+        Checker checker = checkers.get();
+        if (checker == null) {
+            checker = new Checker();
+            checkers.set(checker);
+        }
+        for (int i = 0; i < 8; i++)
+            checker.suffix[i] = (byte) (pow >>> (56 - 8 * i));
+        checker.digest.update(message);
+        checker.digest.update(checker.suffix);
+        try {
+            checker.digest.digest(checker.hash, 0, checker.hash.length);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] hash = checker.hash;
+        for (int i = 0; bits > 0; i++, bits -= 8) {
+            if (bits < 8) {
+                if ((hash[i] & 0xff) >>> (8 - bits) != 0) return INVALID;
+                break;
+            }
+            if (hash[i] != 0) return INVALID;
+        }
+        long id = 0;
+        for (int i = 24; i < 32; i++)
+            id = id << 8 | (hash[i] & 0xff);
+        // a solution whose bits happen to be INVALID is lost, with probability 2^-64
+        return id;
+    }
+
+    public long solve(byte[] message) {
+        return this.solve(message, DEFAULT_BITS);
+    }
+
+    // the solution found first, not necessarily the smallest one
+    public long solve(byte[] message, int bits) {
+        Hasher prefix = new Hasher();
+        prefix.init(message);
+        AtomicLong found = new AtomicLong(NONE);
+        for (int i = 1; i < this.threads; i++) {
+            Hasher hasher = new Hasher(prefix);
+            long first = i;
+            this.workers.execute(() -> search(hasher, first, this.threads, bits, found));
+        }
+        // the caller searches too, so a solve makes progress even when the workers are busy
+        search(prefix, 0, this.threads, bits, found);
+        return found.get();
+    }
+
+    public int getThreads() {
+        return this.threads;
+    }
+
+    private static void search(Hasher hasher, long first, int stride, int bits, AtomicLong found) {
+        long pow = first;
+        while (found.get() == NONE) {
+            for (int i = 0; i < CHECK_INTERVAL; i++, pow += stride) {
+                if (hasher.matches(pow, bits)) {
+                    found.compareAndSet(NONE, pow);
+                    return;
+                }
+            }
+        }
+    }
+
+    /* -------------------- */
+    /* ------ hasher ------ */
+    /* -------------------- */
+
+    // SHA-256 of a fixed message followed by a varying 8 byte suffix
+    static class Hasher {
+        private static final int[] IV = {
+                0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19 };
+
+        private static final int[] K = {
+                0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+                0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+                0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+                0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+                0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+                0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+                0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+                0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2 };
+
+        // state after the full blocks of the message
+        private final int[] midstate = new int[8];
+        // the rest of the message, the suffix at offset, the padding and the length
+        private final byte[] tail = new byte[128];
+        private int offset;
+        private int blocks;
+        // the rounds of the first tail block before the suffix do not depend on it
+        private final int[] early = new int[8];
+        // schedule of the second tail block when the suffix is not in it
+        private final int[] constant = new int[64];
+        private boolean constantSecond;
+
+        private final int[] state = new int[8];
+        private final int[] vars = new int[8];
+        private final int[] schedule = new int[64];
+
+        Hasher() {
+        }
+
+        Hasher(Hasher prefix) {
+            System.arraycopy(prefix.midstate, 0, this.midstate, 0, 8);
+            System.arraycopy(prefix.tail, 0, this.tail, 0, this.tail.length);
+            this.offset = prefix.offset;
+            this.blocks = prefix.blocks;
+            System.arraycopy(prefix.early, 0, this.early, 0, 8);
+            System.arraycopy(prefix.constant, 0, this.constant, 0, 64);
+            this.constantSecond = prefix.constantSecond;
+        }
+
+        void init(byte[] message) {
+            System.arraycopy(IV, 0, this.midstate, 0, 8);
+            int full = message.length & ~63;
+            for (int i = 0; i < full; i += 64) {
+                load(this.schedule, message, i);
+                System.arraycopy(this.midstate, 0, this.vars, 0, 8);
+                rounds(this.vars, 0, 64, this.schedule);
+                for (int j = 0; j < 8; j++)
+                    this.midstate[j] += this.vars[j];
+            }
+
+            Arrays.fill(this.tail, (byte) 0);
+            this.offset = message.length - full;
+            System.arraycopy(message, full, this.tail, 0, this.offset);
+            this.tail[this.offset + 8] = (byte) 0x80;
+            this.blocks = this.offset + 8 + 1 + 8 <= 64 ? 1 : 2;
+            long bitLength = (message.length + 8L) * 8;
+            for (int i = 0; i < 8; i++)
+                this.tail[this.blocks * 64 - 1 - i] = (byte) (bitLength >>> (8 * i));
+
+            load(this.schedule, this.tail, 0);
+            System.arraycopy(this.midstate, 0, this.early, 0, 8);
+            rounds(this.early, 0, this.offset / 4, this.schedule);
+            this.constantSecond = this.blocks == 2 && this.offset + 8 <= 64;
+            if (this.constantSecond) load(this.constant, this.tail, 64);
+        }
+
+        boolean matches(long pow, int bits) {
+            this.hash(pow);
+            for (int i = 0; bits > 0; i++, bits -= 32) {
+                if (bits < 32) return this.state[i] >>> (32 - bits) == 0;
+                if (this.state[i] != 0) return false;
+            }
+            return true;
+        }
+
+        // for checking the hasher against MessageDigest
+        byte[] digest(long pow) {
+            this.hash(pow);
+            byte[] digest = new byte[32];
+            for (int i = 0; i < 32; i++)
+                digest[i] = (byte) (this.state[i / 4] >>> (24 - 8 * (i % 4)));
+            return digest;
+        }
+
+        private void hash(long pow) {
+            for (int i = 0; i < 8; i++)
+                this.tail[this.offset + i] = (byte) (pow >>> (56 - 8 * i));
+
+            load(this.schedule, this.tail, 0);
+            System.arraycopy(this.early, 0, this.vars, 0, 8);
+            rounds(this.vars, this.offset / 4, 64, this.schedule);
+            for (int i = 0; i < 8; i++)
+                this.state[i] = this.midstate[i] + this.vars[i];
+            if (this.blocks == 1) return;
+
+            int[] w = this.constant;
+            if (!this.constantSecond) {
+                w = this.schedule;
+                load(w, this.tail, 64);
+            }
+            System.arraycopy(this.state, 0, this.vars, 0, 8);
+            rounds(this.vars, 0, 64, w);
+            for (int i = 0; i < 8; i++)
+                this.state[i] += this.vars[i];
+        }
+
+        // the message schedule of the block at from
+        private static void load(int[] w, byte[] block, int from) {
+            for (int t = 0; t < 16; t++, from += 4)
+                w[t] = block[from] << 24 | (block[from + 1] & 0xff) << 16 | (block[from + 2] & 0xff) << 8 | (block[from + 3] & 0xff);
+            for (int t = 16; t < 64; t++) {
+                int s0 = Integer.rotateRight(w[t - 15], 7) ^ Integer.rotateRight(w[t - 15], 18) ^ (w[t - 15] >>> 3);
+                int s1 = Integer.rotateRight(w[t - 2], 17) ^ Integer.rotateRight(w[t - 2], 19) ^ (w[t - 2] >>> 10);
+                w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+            }
+        }
+
+        // rounds from (inclusive) to to (exclusive) of the compression function on the working variables
+        private static void rounds(int[] vars, int from, int to, int[] w) {
+            int a = vars[0], b = vars[1], c = vars[2], d = vars[3];
+            int e = vars[4], f = vars[5], g = vars[6], h = vars[7];
+            for (int t = from; t < to; t++) {
+                int t1 = h + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25))
+                        + ((e & f) ^ (~e & g)) + K[t] + w[t];
+                int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22))
+                        + ((a & b) ^ (a & c) ^ (b & c));
+                h = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+            vars[0] = a;
+            vars[1] = b;
+            vars[2] = c;
+            vars[3] = d;
+            vars[4] = e;
+            vars[5] = f;
+            vars[6] = g;
+            vars[7] = h;
+        }
+    }
+}
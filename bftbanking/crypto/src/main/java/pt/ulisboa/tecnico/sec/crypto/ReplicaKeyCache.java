@@ -0,0 +1,133 @@
+package pt.ulisboa.tecnico.sec.crypto;
+
+import com.google.protobuf.ByteString;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Public keys of the replicas, fetched once and kept per replica. A key is only fetched
+ * again when a signature made by that replica fails to verify under the cached one,
+ * which is what a replica that changed its key looks like.
+ *
+ * Keys can be pinned with a file given by -Dbftb.replica.pins, one replica per line:
+ *
+ *   <replica id> <SHA-256 of the X.509 encoded key, in hex>
+ *
+ * A pinned replica is only ever trusted with that key, whatever it answers. Replicas
+ * without a pin are trusted with the key they present, as they always were. Replicas
+ * print their fingerprint at startup.
+ */
+public class ReplicaKeyCache {
+    // asks the replica for its encoded public key
+    public interface Fetcher {
+        ByteString fetch(int replica);
+    }
+
+    private final Fetcher fetcher;
+    private final Map<Integer, String> pins;
+    private final AtomicReferenceArray<PublicKey> keys;
+
+    // metrics
+    private final AtomicLong fetches = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    public ReplicaKeyCache(int replicas, Fetcher fetcher, Map<Integer, String> pins) {
+        this.fetcher = fetcher;
+        this.pins = pins;
+        this.keys = new AtomicReferenceArray<>(replicas);
+    }
+
+    // pinned with the file named by -Dbftb.replica.pins, if any
+    public static ReplicaKeyCache create(int replicas, Fetcher fetcher) throws IOException {
+        String path = System.getProperty("bftb.replica.pins");
+        return new ReplicaKeyCache(replicas, fetcher, path == null ? new HashMap<>() : loadPins(path));
+    }
+
+    public static Map<Integer, String> loadPins(String path) throws IOException {
+        Map<Integer, String> pins = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] fields = line.split("\\s+");
+                if (fields.length != 2) throw new IOException("Malformed pin: " + line);
+                pins.put(Integer.parseInt(fields[0]), fields[1].toLowerCase());
+            }
+        }
+        return pins;
+    }
+
+    public static String fingerprint(ByteString encoded) throws NoSuchAlgorithmException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(encoded.toByteArray());
+        StringBuilder hex = new StringBuilder(2 * digest.length);
+        for (byte b : digest)
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return hex.toString();
+    }
+
+    // the cached key of the replica, fetched on first use; fetch failures propagate and leave nothing cached
+    public PublicKey get(int replica) throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException {
+        PublicKey key = this.keys.get(replica);
+        return key != null ? key : this.fetch(replica, null);
+    }
+
+    // fetches the key again unless someone already replaced stale, returns the key now cached
+    public PublicKey refresh(int replica, PublicKey stale) throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException {
+        PublicKey key = this.keys.get(replica);
+        if (key != null && !key.equals(stale)) return key;
+        this.refreshes.incrementAndGet();
+        return this.fetch(replica, stale);
+    }
+
+    // a key known without asking, such as a replica's own
+    public void put(int replica, ByteString encoded) throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException {
+        this.keys.set(replica, this.check(replica, encoded));
+    }
+
+    public boolean has(int replica) {
+        return this.keys.get(replica) != null;
+    }
+
+    public int size() {
+        return this.keys.length();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d replicas, %d pinned, %d fetches, %d refreshes after a failed signature",
+                this.keys.length(), this.pins.size(), this.fetches.get(), this.refreshes.get());
+    }
+
+    /* --------------------- */
+    /* ------ helpers ------ */
+    /* --------------------- */
+
+    private PublicKey fetch(int replica, PublicKey stale) throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException {
+        this.fetches.incrementAndGet();
+        PublicKey key = this.check(replica, this.fetcher.fetch(replica));
+        // keep a key another thread fetched meanwhile
+        if (!this.keys.compareAndSet(replica, stale, key)) return this.keys.get(replica);
+        return key;
+    }
+
+    private PublicKey check(int replica, ByteString encoded) throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException {
+        String pin = this.pins.get(replica);
+        if (pin != null && !pin.equals(fingerprint(encoded)))
+            throw new InvalidKeyException("Replica " + replica + " presented a key that does not match its pin");
+        return CryptoEngine.getDefault().decodePublicKey(encoded);
+    }
+}
@@ -0,0 +1,103 @@
+package pt.ulisboa.tecnico.sec.crypto;
+
+import com.google.protobuf.ByteString;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+
+/*
+ * Symmetric keys of a session between a client key and one replica. Both sides send an
+ * ephemeral X25519 public key in a message signed with their long-term key, and derive
+ * from the shared secret
+ *
+ *   requestKey  = HMAC-SHA256(secret, "bftb request"  || clientKey || serverKey)
+ *   responseKey = HMAC-SHA256(secret, "bftb response" || clientKey || serverKey)
+ *
+ * Requests are then authenticated with HMAC-SHA256 under requestKey and responses under
+ * responseKey, so a request can never be reflected back as a response. A MAC only
+ * convinces the two ends of the session, so data that must be non-repudiable keeps its
+ * signature.
+ */
+public class SessionKeys {
+    private static final String AGREEMENT = "X25519";
+    private static final String MAC = "HmacSHA256";
+
+    private static final ThreadLocal<Mac> macs = new ThreadLocal<>();
+
+    private final SecretKeySpec requestKey;
+    private final SecretKeySpec responseKey;
+
+    private SessionKeys(SecretKeySpec requestKey, SecretKeySpec responseKey) {
+        this.requestKey = requestKey;
+        this.responseKey = responseKey;
+    }
+
+    public static KeyPair generateEphemeralKeyPair() throws NoSuchAlgorithmException {
+        return KeyPairGenerator.getInstance(AGREEMENT).generateKeyPair();
+    }
+
+    // own is the ephemeral private key of this side, the two public keys are as sent on the wire
+    public static SessionKeys derive(PrivateKey own, ByteString clientKey, ByteString serverKey, boolean client)
+            throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException {
+        PublicKey peer = KeyFactory.getInstance(AGREEMENT).generatePublic(new X509EncodedKeySpec((client ? serverKey : clientKey).toByteArray()));
+        KeyAgreement agreement = KeyAgreement.getInstance(AGREEMENT);
+        agreement.init(own);
+        agreement.doPhase(peer, true);
+        byte[] secret = agreement.generateSecret();
+
+        return new SessionKeys(expand(secret, "bftb request", clientKey, serverKey), expand(secret, "bftb response", clientKey, serverKey));
+    }
+
+    public ByteString macRequest(byte[] message) throws NoSuchAlgorithmException, InvalidKeyException {
+        return ByteString.copyFrom(mac(this.requestKey, message));
+    }
+
+    public ByteString macResponse(byte[] message) throws NoSuchAlgorithmException, InvalidKeyException {
+        return ByteString.copyFrom(mac(this.responseKey, message));
+    }
+
+    public boolean verifyRequest(byte[] tag, byte[] message) throws NoSuchAlgorithmException, InvalidKeyException {
+        return MessageDigest.isEqual(tag, mac(this.requestKey, message));
+    }
+
+    public boolean verifyResponse(byte[] tag, byte[] message) throws NoSuchAlgorithmException, InvalidKeyException {
+        return MessageDigest.isEqual(tag, mac(this.responseKey, message));
+    }
+
+    /* --------------------- */
+    /* ------ helpers ------ */
+    /* --------------------- */
+
+    private static SecretKeySpec expand(byte[] secret, String label, ByteString clientKey, ByteString serverKey)
+            throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = instance();
+        mac.init(new SecretKeySpec(secret, MAC));
+        mac.update(label.getBytes(StandardCharsets.US_ASCII));
+        for (ByteBuffer buffer : clientKey.asReadOnlyByteBufferList())
+            mac.update(buffer);
+        for (ByteBuffer buffer : serverKey.asReadOnlyByteBufferList())
+            mac.update(buffer);
+        return new SecretKeySpec(mac.doFinal(), MAC);
+    }
+
+    private static byte[] mac(SecretKeySpec key, byte[] message) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = instance();
+        mac.init(key);
+        return mac.doFinal(message);
+    }
+
+    private static Mac instance() throws NoSuchAlgorithmException {
+        Mac mac = macs.get();
+        if (mac == null) {
+            mac = Mac.getInstance(MAC);
+            macs.set(mac);
+        }
+        return mac;
+    }
+}
@@ -0,0 +1,124 @@
+package pt.ulisboa.tecnico.sec.crypto;
+
+import com.google.protobuf.ByteString;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.InvalidKeySpecException;
+
+/*
+ * Key and signature algorithms a client or replica may use. Peers never agree on one
+ * up front: every key travels X.509 encoded, and its algorithm identifier tells the
+ * receiver how to decode it and check signatures made with it, so keys of different
+ * schemes can be used side by side.
+ *
+ *   RSA      RSA-4096 with SHA256withRSA, what every release so far used
+ *   EC       ECDSA on P-256 with SHA256withECDSA, keys on any other curve are refused
+ *   ED25519  Ed25519, only available on JDK 15 and later
+ *
+ * New keys use the scheme given by -Dbftb.crypto.scheme=rsa|ec|ed25519, RSA by default.
+ */
+public enum SignatureScheme {
+    RSA("RSA", "SHA256withRSA", new byte[] { 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01 }),
+    EC("EC", "SHA256withECDSA", new byte[] { 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x02, 0x01 }),
+    ED25519("Ed25519", "Ed25519", new byte[] { 0x2b, 0x65, 0x70 });
+
+    // secp256r1, 1.2.840.10045.3.1.7, the named curve EC keys must have
+    private static final byte[] P256 = { 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x03, 0x01, 0x07 };
+
+    private final String keyAlgorithm;
+    private final String signatureAlgorithm;
+    private final byte[] oid; // DER contents of the algorithm identifier in the encoded key
+
+    SignatureScheme(String keyAlgorithm, String signatureAlgorithm, byte[] oid) {
+        this.keyAlgorithm = keyAlgorithm;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.oid = oid;
+    }
+
+    public static SignatureScheme getDefault() {
+        return valueOf(System.getProperty("bftb.crypto.scheme", "rsa").toUpperCase());
+    }
+
+    public String getKeyAlgorithm() {
+        return this.keyAlgorithm;
+    }
+
+    public String getSignatureAlgorithm() {
+        return this.signatureAlgorithm;
+    }
+
+    public KeyPair generateKeyPair() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(this.keyAlgorithm);
+        try {
+            if (this == RSA) generator.initialize(4096);
+            else if (this == EC) generator.initialize(new ECGenParameterSpec("secp256r1"));
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new NoSuchAlgorithmException("P-256 is not supported: " + e.getMessage());
+        }
+        return generator.generateKeyPair();
+    }
+
+    public static SignatureScheme of(Key key) throws InvalidKeyException {
+        switch (key.getAlgorithm()) {
+            case "RSA":
+                return RSA;
+            case "EC":
+                return EC;
+            case "Ed25519":
+            case "EdDSA":
+                return ED25519;
+            default:
+                throw new InvalidKeyException("Unsupported key algorithm " + key.getAlgorithm());
+        }
+    }
+
+    // scheme of the key given by the algorithm identifier of its X.509 SubjectPublicKeyInfo; EC keys must be on P-256
+    public static SignatureScheme of(ByteString encoded) throws InvalidKeySpecException {
+        // SEQUENCE { SEQUENCE { OBJECT IDENTIFIER, parameters }, BIT STRING }
+        int[] info = element(encoded, 0, encoded.size(), 0x30);
+        int[] algorithm = element(encoded, info[0], info[1], 0x30);
+        int[] oid = element(encoded, algorithm[0], algorithm[1], 0x06);
+        for (SignatureScheme scheme : values()) {
+            if (!equals(encoded, oid, scheme.oid)) continue;
+            if (scheme == EC && !equals(encoded, element(encoded, oid[1], algorithm[1], 0x06), P256))
+                throw new InvalidKeySpecException("Unsupported elliptic curve, only P-256 is accepted");
+            return scheme;
+        }
+        throw new InvalidKeySpecException("Unsupported public key algorithm");
+    }
+
+    // start and end of the contents of the DER element at position, which must have the given tag and end by limit
+    private static int[] element(ByteString encoded, int position, int limit, int tag) throws InvalidKeySpecException {
+        if (position + 2 > limit || (encoded.byteAt(position) & 0xff) != tag)
+            throw new InvalidKeySpecException("Malformed X.509 public key");
+        int first = encoded.byteAt(position + 1) & 0xff;
+        int start = position + 2;
+        long length = first;
+        if (first >= 0x80) {
+            // long form, at most four length bytes; 0x80 alone is the indefinite form, not DER
+            int bytes = first & 0x7f;
+            if (bytes == 0 || bytes > 4 || start + bytes > limit)
+                throw new InvalidKeySpecException("Malformed X.509 public key");
+            length = 0;
+            for (int i = 0; i < bytes; i++)
+                length = (length << 8) | (encoded.byteAt(start + i) & 0xff);
+            start += bytes;
+        }
+        if (length > limit - start)
+            throw new InvalidKeySpecException("Malformed X.509 public key");
+        return new int[] { start, start + (int) length };
+    }
+
+    private static boolean equals(ByteString encoded, int[] element, byte[] expected) {
+        if (element[1] - element[0] != expected.length) return false;
+        for (int i = 0; i < expected.length; i++)
+            if (encoded.byteAt(element[0] + i) != expected[i]) return false;
+        return true;
+    }
+}
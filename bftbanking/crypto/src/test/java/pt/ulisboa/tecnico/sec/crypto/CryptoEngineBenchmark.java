@@ -0,0 +1,93 @@
+package pt.ulisboa.tecnico.sec.crypto;
+
+import com.google.protobuf.ByteString;
+
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Random;
+
+/*
+ * Per-request crypto work of a replica, with the JCA objects created on every call (as
+ * Crypto did) and with the engine, run with
+ *
+ *   mvn test-compile exec:java -Dexec.mainClass=pt.ulisboa.tecnico.sec.crypto.CryptoEngineBenchmark -Dexec.classpathScope=test
+ *
+ * Each row is the best of several rounds, in microseconds per operation.
+ */
+public class CryptoEngineBenchmark {
+    private static final int ROUNDS = 5;
+
+    interface Task {
+        Object run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        KeyPair pair = Crypto.generateKeyPair();
+        ByteString encoded = Crypto.getEncodedKey(pair.getPublic());
+        byte[] message = new byte[512];
+        new Random(1).nextBytes(message);
+        ByteString messageString = ByteString.copyFrom(message);
+
+        CryptoEngine compatible = new CryptoEngine(CryptoEngine.Digest.DOUBLE, 1024);
+        CryptoEngine single = new CryptoEngine(CryptoEngine.Digest.SINGLE, 1024);
+        byte[] signature = compatible.sign(pair.getPrivate(), message).toByteArray();
+        byte[] singleSignature = single.sign(pair.getPrivate(), message).toByteArray();
+
+        if (!compatible.verify(pair.getPublic(), signature, message) || !legacyVerify(pair.getPublic(), signature, message))
+            throw new IllegalStateException("Compatible signatures do not match the legacy scheme");
+
+        System.out.println("operation                      per call    engine");
+        report("decode key", 20000,
+                () -> legacyDecode(encoded),
+                () -> compatible.getPublicKey(encoded));
+        report("sha-256 of 512 bytes", 200000,
+                () -> MessageDigest.getInstance("SHA-256").digest(message),
+                () -> compatible.digest(messageString));
+        report("verify (double digest)", 5000,
+                () -> legacyVerify(legacyDecode(encoded), signature, message),
+                () -> compatible.verify(compatible.getPublicKey(encoded), signature, message));
+        report("verify (single digest)", 5000,
+                () -> legacyVerify(legacyDecode(encoded), signature, message),
+                () -> single.verify(single.getPublicKey(encoded), ByteString.copyFrom(singleSignature), messageString));
+        report("sign (double digest)", 100,
+                () -> legacySign(pair.getPrivate(), message),
+                () -> compatible.sign(pair.getPrivate(), message));
+    }
+
+    private static void report(String name, int iterations, Task legacy, Task engine) throws Exception {
+        System.out.printf("%-28s %9.2f %9.2f%n", name, best(iterations, legacy), best(iterations, engine));
+    }
+
+    private static double best(int iterations, Task task) throws Exception {
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                if (task.run() == null) throw new IllegalStateException();
+            best = Math.min(best, (System.nanoTime() - start) / 1e3 / iterations);
+        }
+        return best;
+    }
+
+    /* ------ the scheme as Crypto implemented it before the engine ------ */
+
+    private static PublicKey legacyDecode(ByteString encoded) throws Exception {
+        return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded.toByteArray()));
+    }
+
+    private static ByteString legacySign(PrivateKey key, byte[] message) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(message);
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(key);
+        signer.update(digest);
+        return ByteString.copyFrom(signer.sign());
+    }
+
+    private static boolean legacyVerify(PublicKey key, byte[] signature, byte[] message) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(message);
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initVerify(key);
+        signer.update(digest);
+        return signer.verify(signature);
+    }
+}
@@ -0,0 +1,141 @@
+package pt.ulisboa.tecnico.sec.crypto;
+
+import com.google.protobuf.ByteString;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class MerkleTreeTests {
+    private static final int MAX_LEAVES = 33;
+
+    private static List<byte[]> messages(int count, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] message = new byte[1 + random.nextInt(100)];
+            random.nextBytes(message);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    // whether the proof leads to the signed root, a malformed one counts as not
+    private static boolean verifies(MerkleTree tree, byte[] message, int index, int leaves, List<ByteString> path) throws Exception {
+        try {
+            return MessageDigest.isEqual(tree.getRoot(), MerkleTree.rootOf(message, index, leaves, path));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static List<ByteString> flipped(List<ByteString> path, int at) {
+        List<ByteString> forged = new ArrayList<>(path);
+        byte[] sibling = forged.get(at).toByteArray();
+        sibling[sibling.length - 1] ^= 1;
+        forged.set(at, ByteString.copyFrom(sibling));
+        return forged;
+    }
+
+    // every leaf count up to a few levels, odd ones included, where the last node of a level has no sibling
+    @Test
+    public void pathsRebuildTheRootTest() throws Exception {
+        for (int leaves = 1; leaves <= MAX_LEAVES; leaves++) {
+            List<byte[]> messages = messages(leaves, leaves);
+            MerkleTree tree = new MerkleTree(messages);
+            Assert.assertEquals(leaves, tree.size());
+            for (int i = 0; i < leaves; i++)
+                Assert.assertArrayEquals(leaves + " leaves, leaf " + i, tree.getRoot(), MerkleTree.rootOf(messages.get(i), i, leaves, tree.getPath(i)));
+        }
+    }
+
+    @Test
+    public void tamperedMessageOrSiblingIsRejectedTest() throws Exception {
+        for (int leaves = 1; leaves <= MAX_LEAVES; leaves++) {
+            List<byte[]> messages = messages(leaves, leaves);
+            MerkleTree tree = new MerkleTree(messages);
+            for (int i = 0; i < leaves; i++) {
+                byte[] message = messages.get(i);
+                List<ByteString> path = tree.getPath(i);
+                String where = leaves + " leaves, leaf " + i;
+
+                byte[] changed = message.clone();
+                changed[0] ^= 1;
+                Assert.assertFalse(where, verifies(tree, changed, i, leaves, path));
+                for (int j = 0; j < path.size(); j++)
+                    Assert.assertFalse(where + ", sibling " + j, verifies(tree, message, i, leaves, flipped(path, j)));
+            }
+        }
+    }
+
+    @Test
+    public void tamperedIndexIsRejectedTest() throws Exception {
+        for (int leaves = 1; leaves <= MAX_LEAVES; leaves++) {
+            List<byte[]> messages = messages(leaves, leaves);
+            MerkleTree tree = new MerkleTree(messages);
+            for (int i = 0; i < leaves; i++) {
+                for (int other = -1; other <= leaves; other++) {
+                    if (other == i) continue;
+                    Assert.assertFalse(leaves + " leaves, leaf " + i + " claimed at " + other,
+                            verifies(tree, messages.get(i), other, leaves, tree.getPath(i)));
+                }
+            }
+        }
+    }
+
+    // a proof cannot be moved to a batch of another size, even where the shape of the path would allow it
+    @Test
+    public void tamperedLeafCountIsRejectedTest() throws Exception {
+        for (int leaves = 1; leaves <= MAX_LEAVES; leaves++) {
+            List<byte[]> messages = messages(leaves, leaves);
+            MerkleTree tree = new MerkleTree(messages);
+            for (int i = 0; i < leaves; i++) {
+                for (int other = 0; other <= 2 * leaves; other++) {
+                    if (other == leaves) continue;
+                    Assert.assertFalse(leaves + " leaves claimed as " + other + ", leaf " + i,
+                            verifies(tree, messages.get(i), i, other, tree.getPath(i)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tamperedPathLengthIsRejectedTest() throws Exception {
+        for (int leaves = 1; leaves <= MAX_LEAVES; leaves++) {
+            List<byte[]> messages = messages(leaves, leaves);
+            MerkleTree tree = new MerkleTree(messages);
+            for (int i = 0; i < leaves; i++) {
+                List<ByteString> path = tree.getPath(i);
+                if (!path.isEmpty()) {
+                    try {
+                        MerkleTree.rootOf(messages.get(i), i, leaves, path.subList(0, path.size() - 1));
+                        Assert.fail();
+                    } catch (IllegalArgumentException e) {
+                        Assert.assertEquals("Merkle path too short", e.getMessage());
+                    }
+                }
+                List<ByteString> longer = new ArrayList<>(path);
+                longer.add(ByteString.copyFrom(tree.getRoot()));
+                try {
+                    MerkleTree.rootOf(messages.get(i), i, leaves, longer);
+                    Assert.fail();
+                } catch (IllegalArgumentException e) {
+                    Assert.assertEquals("Merkle path too long", e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void emptyTreeIsRefusedTest() throws Exception {
+        try {
+            new MerkleTree(new ArrayList<>());
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("Empty Merkle tree", e.getMessage());
+        }
+    }
+}
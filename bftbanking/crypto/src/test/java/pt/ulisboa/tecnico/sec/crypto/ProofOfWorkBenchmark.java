@@ -0,0 +1,103 @@
+package pt.ulisboa.tecnico.sec.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/*
+ * Proof-of-work solutions per second with the loop ClientAPI used before ProofOfWork
+ * and with the midstate hasher on one and on all cores, run with
+ *
+ *   mvn test-compile exec:java -Dexec.mainClass=pt.ulisboa.tecnico.sec.crypto.ProofOfWorkBenchmark -Dexec.classpathScope=test
+ *
+ * Messages are the size of a signed SendAmount request. Each row is the best of several
+ * rounds; the last column is the rate relative to the old loop. The parallel solver uses
+ * every core, or as many threads as the first argument says.
+ */
+public class ProofOfWorkBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int MESSAGES = 64;
+    private static final int MESSAGE_SIZE = 1200;
+
+    interface Solver {
+        long solve(byte[] message) throws Exception;
+    }
+
+    interface Check {
+        boolean valid(byte[] message, long pow) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(1);
+        byte[][] messages = new byte[MESSAGES][MESSAGE_SIZE];
+        for (byte[] message : messages)
+            random.nextBytes(message);
+
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        ProofOfWork single = new ProofOfWork(1);
+        ProofOfWork parallel = new ProofOfWork(threads);
+
+        System.out.println("solver                       solutions/s   speedup");
+        double legacy = report("old loop", messages, ProofOfWorkBenchmark::legacySolve, 0);
+        report("midstate, 1 thread", messages, single::solve, legacy);
+        report("midstate, " + threads + " threads", messages, parallel::solve, legacy);
+
+        long[] solutions = new long[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++)
+            solutions[i] = single.solve(messages[i]);
+        System.out.println();
+        System.out.println("check                        checks/s      speedup");
+        double legacyChecks = reportChecks("old check", messages, solutions, ProofOfWorkBenchmark::legacyValid, 0);
+        reportChecks("ProofOfWork.isValid", messages, solutions, ProofOfWork::isValid, legacyChecks);
+    }
+
+    private static double reportChecks(String name, byte[][] messages, long[] solutions, Check check, double baseline) throws Exception {
+        double best = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int repeat = 0; repeat < 1000; repeat++) {
+                for (int i = 0; i < messages.length; i++)
+                    if (!check.valid(messages[i], solutions[i]) || check.valid(messages[i], solutions[i] + 1) && !legacyValid(messages[i], solutions[i] + 1))
+                        throw new IllegalStateException(name + " disagrees with the old check");
+            }
+            best = Math.max(best, 2000.0 * messages.length / ((System.nanoTime() - start) / 1e9));
+        }
+        System.out.printf("%-28s %11.0f %9s%n", name, best, baseline == 0 ? "" : String.format("%.1fx", best / baseline));
+        return best;
+    }
+
+    private static double report(String name, byte[][] messages, Solver solver, double baseline) throws Exception {
+        double best = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (byte[] message : messages) {
+                long pow = solver.solve(message);
+                if (!legacyValid(message, pow)) throw new IllegalStateException(name + " found an invalid solution");
+            }
+            best = Math.max(best, messages.length / ((System.nanoTime() - start) / 1e9));
+        }
+        System.out.printf("%-28s %11.1f %9s%n", name, best, baseline == 0 ? "" : String.format("%.1fx", best / baseline));
+        return best;
+    }
+
+    /* ------ the loop ClientAPI and Server used before ProofOfWork ------ */
+
+    private static long legacySolve(byte[] message) throws Exception {
+        for (long pow = 0L;; pow++) {
+            if (legacyValid(message, pow)) return pow;
+        }
+    }
+
+    private static boolean legacyValid(byte[] message, long pow) throws Exception {
+        byte[] digest = legacyDigest(message, pow);
+        return digest[0] == 0x0 && digest[1] == 0x0;
+    }
+
+    private static byte[] legacyDigest(byte[] message, long pow) throws Exception {
+        ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
+        byteArray.write(message);
+        byteArray.write(ByteBuffer.allocate(8).putLong(pow).array());
+        return MessageDigest.getInstance("SHA-256").digest(byteArray.toByteArray());
+    }
+}
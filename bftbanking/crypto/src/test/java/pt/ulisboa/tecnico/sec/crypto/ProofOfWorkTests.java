@@ -0,0 +1,65 @@
+package pt.ulisboa.tecnico.sec.crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+public class ProofOfWorkTests {
+
+    private static byte[] digest(byte[] message, long pow) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(message);
+        md.update(ByteBuffer.allocate(8).putLong(pow).array());
+        return md.digest();
+    }
+
+    // one tail block up to 47 bytes, two from 48, and the suffix crossing into the second block from 57 to 63
+    @Test
+    public void hasherAgreesWithMessageDigestTest() throws Exception {
+        Random random = new Random(2);
+        ProofOfWork.Hasher hasher = new ProofOfWork.Hasher();
+        for (int length = 0; length <= 130; length++) {
+            byte[] message = new byte[length];
+            random.nextBytes(message);
+            hasher.init(message);
+            for (long pow : new long[] { 0, 1, random.nextLong(), Long.MIN_VALUE, -1 })
+                Assert.assertArrayEquals("length " + length + ", suffix " + pow, digest(message, pow), hasher.digest(pow));
+        }
+    }
+
+    @Test
+    public void copiedHasherAgreesWithPrefixTest() throws Exception {
+        Random random = new Random(3);
+        for (int length : new int[] { 0, 55, 60, 64, 120, 1200 }) {
+            byte[] message = new byte[length];
+            random.nextBytes(message);
+            ProofOfWork.Hasher prefix = new ProofOfWork.Hasher();
+            prefix.init(message);
+            ProofOfWork.Hasher copy = new ProofOfWork.Hasher(prefix);
+            long pow = random.nextLong();
+            Assert.assertArrayEquals(digest(message, pow), copy.digest(pow));
+            Assert.assertArrayEquals(digest(message, pow), prefix.digest(pow));
+        }
+    }
+
+    @Test
+    public void solutionsPassTheCheckTest() throws Exception {
+        Random random = new Random(4);
+        ProofOfWork pow = new ProofOfWork(2);
+        for (int length : new int[] { 0, 59, 600 }) {
+            byte[] message = new byte[length];
+            random.nextBytes(message);
+            long solution = pow.solve(message, 10);
+            Assert.assertTrue(ProofOfWork.isValid(message, solution, 10));
+
+            // the hasher and the check look at the same leading bits
+            ProofOfWork.Hasher hasher = new ProofOfWork.Hasher();
+            hasher.init(message);
+            for (long candidate = 0; candidate < 2000; candidate++)
+                Assert.assertEquals(ProofOfWork.isValid(message, candidate, 10), hasher.matches(candidate, 10));
+        }
+    }
+}
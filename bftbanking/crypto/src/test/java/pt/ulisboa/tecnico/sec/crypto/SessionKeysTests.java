@@ -0,0 +1,74 @@
+package pt.ulisboa.tecnico.sec.crypto;
+
+import com.google.protobuf.ByteString;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+
+public class SessionKeysTests {
+    private static final byte[] MESSAGE = "transfer 10 to 2".getBytes(StandardCharsets.UTF_8);
+
+    private KeyPair clientEphemeral;
+    private KeyPair serverEphemeral;
+    private SessionKeys client;
+    private SessionKeys server;
+
+    private static ByteString encoded(KeyPair pair) {
+        return ByteString.copyFrom(pair.getPublic().getEncoded());
+    }
+
+    @Before
+    public void setup() throws Exception {
+        this.clientEphemeral = SessionKeys.generateEphemeralKeyPair();
+        this.serverEphemeral = SessionKeys.generateEphemeralKeyPair();
+        ByteString clientKey = encoded(this.clientEphemeral);
+        ByteString serverKey = encoded(this.serverEphemeral);
+        this.client = SessionKeys.derive(this.clientEphemeral.getPrivate(), clientKey, serverKey, true);
+        this.server = SessionKeys.derive(this.serverEphemeral.getPrivate(), clientKey, serverKey, false);
+    }
+
+    @Test
+    public void bothEndsDeriveTheSameKeysTest() throws Exception {
+        Assert.assertTrue(this.server.verifyRequest(this.client.macRequest(MESSAGE).toByteArray(), MESSAGE));
+        Assert.assertTrue(this.client.verifyResponse(this.server.macResponse(MESSAGE).toByteArray(), MESSAGE));
+        Assert.assertEquals(this.client.macRequest(MESSAGE), this.server.macRequest(MESSAGE));
+        Assert.assertEquals(this.client.macResponse(MESSAGE), this.server.macResponse(MESSAGE));
+    }
+
+    // a request cannot be reflected back to the client as a response, nor the other way round
+    @Test
+    public void requestAndResponseKeysDifferTest() throws Exception {
+        byte[] request = this.client.macRequest(MESSAGE).toByteArray();
+        byte[] response = this.server.macResponse(MESSAGE).toByteArray();
+        Assert.assertFalse(this.client.verifyResponse(request, MESSAGE));
+        Assert.assertFalse(this.server.verifyResponse(request, MESSAGE));
+        Assert.assertFalse(this.server.verifyRequest(response, MESSAGE));
+        Assert.assertFalse(this.client.verifyRequest(response, MESSAGE));
+    }
+
+    @Test
+    public void tamperedMessageOrTagIsRejectedTest() throws Exception {
+        byte[] tag = this.client.macRequest(MESSAGE).toByteArray();
+        byte[] changed = MESSAGE.clone();
+        changed[changed.length - 1] ^= 1;
+        Assert.assertFalse(this.server.verifyRequest(tag, changed));
+        tag[0] ^= 1;
+        Assert.assertFalse(this.server.verifyRequest(tag, MESSAGE));
+        Assert.assertFalse(this.server.verifyRequest(new byte[0], MESSAGE));
+    }
+
+    // keys are bound to both ephemeral keys as sent, so another session or a swapped pair gives other keys
+    @Test
+    public void keysAreBoundToTheSessionTest() throws Exception {
+        KeyPair otherServer = SessionKeys.generateEphemeralKeyPair();
+        SessionKeys other = SessionKeys.derive(otherServer.getPrivate(), encoded(this.clientEphemeral), encoded(otherServer), false);
+        Assert.assertFalse(other.verifyRequest(this.client.macRequest(MESSAGE).toByteArray(), MESSAGE));
+
+        // same shared secret, labelled with the keys in the other order
+        SessionKeys swapped = SessionKeys.derive(this.serverEphemeral.getPrivate(), encoded(this.serverEphemeral), encoded(this.clientEphemeral), true);
+        Assert.assertFalse(swapped.verifyRequest(this.client.macRequest(MESSAGE).toByteArray(), MESSAGE));
+    }
+}
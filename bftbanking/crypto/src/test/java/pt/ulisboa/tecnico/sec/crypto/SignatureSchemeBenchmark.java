@@ -0,0 +1,66 @@
+package pt.ulisboa.tecnico.sec.crypto;
+
+import com.google.protobuf.ByteString;
+
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/*
+ * Cost of each signature scheme for one request, run with
+ *
+ *   mvn test-compile exec:java -Dexec.mainClass=pt.ulisboa.tecnico.sec.crypto.SignatureSchemeBenchmark -Dexec.classpathScope=test
+ *
+ * Times are the best of several rounds. Key and signature sizes are what every request
+ * and response carries on the wire.
+ */
+public class SignatureSchemeBenchmark {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        CryptoEngine engine = new CryptoEngine(CryptoEngine.Digest.DOUBLE, 16);
+        byte[] message = new byte[512];
+        new Random(1).nextBytes(message);
+
+        System.out.println("scheme    keygen ms   sign us  verify us  public key B  signature B");
+        for (SignatureScheme scheme : SignatureScheme.values()) {
+            KeyPair pair;
+            try {
+                pair = scheme.generateKeyPair();
+            } catch (NoSuchAlgorithmException e) {
+                System.out.printf("%-8s  not available on this JDK%n", scheme);
+                continue;
+            }
+            int keygens = scheme == SignatureScheme.RSA ? 3 : 200;
+            int signs = scheme == SignatureScheme.RSA ? 50 : 2000;
+            int verifies = 2000;
+
+            double keygen = Double.MAX_VALUE, sign = Double.MAX_VALUE, verify = Double.MAX_VALUE;
+            ByteString signature = null;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < keygens; i++)
+                    scheme.generateKeyPair();
+                keygen = Math.min(keygen, (System.nanoTime() - start) / 1e6 / keygens);
+
+                start = System.nanoTime();
+                for (int i = 0; i < signs; i++)
+                    signature = engine.sign(pair.getPrivate(), message);
+                sign = Math.min(sign, (System.nanoTime() - start) / 1e3 / signs);
+
+                byte[] signed = signature.toByteArray();
+                start = System.nanoTime();
+                for (int i = 0; i < verifies; i++)
+                    if (!engine.verify(pair.getPublic(), signed, message)) throw new IllegalStateException("Signature rejected");
+                verify = Math.min(verify, (System.nanoTime() - start) / 1e3 / verifies);
+            }
+
+            // the key must come back as the same scheme from its encoding alone
+            ByteString encoded = Crypto.getEncodedKey(pair.getPublic());
+            if (SignatureScheme.of(encoded) != scheme || !engine.decodePublicKey(encoded).equals(pair.getPublic()))
+                throw new IllegalStateException("Key of scheme " + scheme + " does not decode back");
+
+            System.out.printf("%-8s %10.2f %9.1f %10.1f %13d %12d%n", scheme, keygen, sign, verify, encoded.size(), signature.size());
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package pt.ulisboa.tecnico.sec.crypto;
+
+import com.google.protobuf.ByteString;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Random;
+
+public class SignatureSchemeTests {
+    private static ByteString rsa;      // 2048 bits, lengths in the two-byte long form
+    private static ByteString shortRsa; // 512 bits, every length in the short form
+    private static ByteString ec;
+    private static ByteString ed25519;
+    private static ByteString p384;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        rsa = ByteString.copyFrom(generator.generateKeyPair().getPublic().getEncoded());
+        generator.initialize(512);
+        shortRsa = ByteString.copyFrom(generator.generateKeyPair().getPublic().getEncoded());
+        ec = ByteString.copyFrom(SignatureScheme.EC.generateKeyPair().getPublic().getEncoded());
+        ed25519 = ByteString.copyFrom(SignatureScheme.ED25519.generateKeyPair().getPublic().getEncoded());
+        generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp384r1"));
+        p384 = ByteString.copyFrom(generator.generateKeyPair().getPublic().getEncoded());
+    }
+
+    private static void assertRejected(String why, ByteString encoded) {
+        try {
+            SignatureScheme.of(encoded);
+            Assert.fail(why);
+        } catch (InvalidKeySpecException e) {
+            // refused as it should be
+        }
+    }
+
+    private static ByteString bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            bytes[i] = (byte) values[i];
+        return ByteString.copyFrom(bytes);
+    }
+
+    @Test
+    public void encodedKeysAreRecognisedTest() throws Exception {
+        Assert.assertEquals(0x82, rsa.byteAt(1) & 0xff);
+        Assert.assertEquals(SignatureScheme.RSA, SignatureScheme.of(rsa));
+        Assert.assertTrue((shortRsa.byteAt(1) & 0xff) < 0x80);
+        Assert.assertEquals(SignatureScheme.RSA, SignatureScheme.of(shortRsa));
+        Assert.assertEquals(SignatureScheme.EC, SignatureScheme.of(ec));
+        Assert.assertEquals(SignatureScheme.ED25519, SignatureScheme.of(ed25519));
+    }
+
+    @Test
+    public void otherCurvesAreRejectedTest() {
+        assertRejected("P-384", p384);
+
+        // P-256's OID with its last arc changed
+        byte[] other = ec.toByteArray();
+        ByteString p256 = bytes(0x2a, 0x86, 0x48, 0xce, 0x3d, 0x03, 0x01, 0x07);
+        int curve = 0;
+        while (curve + p256.size() <= ec.size() && !ec.substring(curve, curve + p256.size()).equals(p256))
+            curve++;
+        Assert.assertTrue(curve + p256.size() <= ec.size());
+        other[curve + 7] = 0x08;
+        assertRejected("another named curve", ByteString.copyFrom(other));
+
+        // no named curve where the parameters should be, e.g. explicit or absent ones
+        byte[] explicit = ec.toByteArray();
+        explicit[curve - 2] = 0x30;
+        assertRejected("explicit parameters", ByteString.copyFrom(explicit));
+    }
+
+    // every cut short encoding is refused without reading past its end
+    @Test
+    public void truncatedKeysAreRejectedTest() {
+        for (ByteString encoded : new ByteString[] { rsa, shortRsa, ec, ed25519 })
+            for (int length = 0; length < encoded.size(); length++)
+                assertRejected("cut at " + length + " of " + encoded.size(), encoded.substring(0, length));
+    }
+
+    @Test
+    public void malformedLengthsAreRejectedTest() {
+        // indefinite length, which DER does not allow
+        assertRejected("indefinite", bytes(0x30, 0x80, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x00, 0x00));
+        // five length bytes, or four that do not fit in an int
+        assertRejected("five length bytes", bytes(0x30, 0x85, 0x00, 0x00, 0x00, 0x00, 0x07, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70));
+        assertRejected("overflowing length", bytes(0x30, 0x84, 0xff, 0xff, 0xff, 0xff, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70));
+        // an inner element longer than the one holding it
+        assertRejected("inner too long", bytes(0x30, 0x07, 0x30, 0x06, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x00));
+        assertRejected("oid too long", bytes(0x30, 0x07, 0x30, 0x05, 0x06, 0x04, 0x2b, 0x65, 0x70, 0x00, 0x00));
+        // the long form gives the same answer as the short one
+        ByteString longForm = bytes(0x30, 0x81, 0x08, 0x30, 0x81, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70);
+        try {
+            Assert.assertEquals(SignatureScheme.ED25519, SignatureScheme.of(longForm));
+        } catch (InvalidKeySpecException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void wrongTagsAreRejectedTest() {
+        for (int at : new int[] { 0, 2, 4 }) {
+            byte[] wrong = ed25519.toByteArray();
+            wrong[at] = 0x04;
+            assertRejected("tag at " + at, ByteString.copyFrom(wrong));
+        }
+        assertRejected("empty", ByteString.EMPTY);
+        assertRejected("unknown algorithm", bytes(0x30, 0x07, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x71));
+    }
+
+    // random corruption never gets anything but InvalidKeySpecException out of the parser
+    @Test
+    public void corruptedKeysFailCleanlyTest() {
+        Random random = new Random(6);
+        for (ByteString encoded : new ByteString[] { rsa, ec, ed25519 }) {
+            for (int i = 0; i < 2000; i++) {
+                byte[] corrupted = encoded.toByteArray();
+                corrupted[random.nextInt(Math.min(corrupted.length, 32))] = (byte) random.nextInt();
+                try {
+                    SignatureScheme.of(ByteString.copyFrom(corrupted));
+                } catch (InvalidKeySpecException e) {
+                    // refused
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package pt.ulisboa.tecnico.sec.server;
+
+import pt.ulisboa.tecnico.sec.server.domain.Account;
+import pt.ulisboa.tecnico.sec.server.exceptions.AmountOfWorkExceededException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Writes each account may make, so a single abusive account cannot keep a replica busy
+ * verifying its signatures. Every account has a token bucket holding up to burst writes
+ * and refilled with one every intervalMillis. Writes are admitted before their signature
+ * is waited for, once their nonce is known to be live, and a write finding the bucket
+ * empty is refused and withdraws its signature from the verifier.
+ *
+ * A bucket is kept as the time it is full again, in a table keyed by account id rather
+ * than in the Account, which the disk store drops from memory and reads back at will.
+ * Taking a token is a compare-and-set on that entry. A bucket that is full again is the
+ * same as no entry at all, so those are swept out once the table grows.
+ *
+ * Accounts that do not exist yet are not limited, opening one is paid with its proof of
+ * work. The buckets live in memory only and start full after a restart.
+ */
+public class AdmissionControl {
+    private static final int MIN_SWEEP = 4096;
+
+    private final int burst;
+    private final long intervalMillis;
+    private final ConcurrentHashMap<Long, Long> buckets = new ConcurrentHashMap<>();
+    private volatile int sweepAt = MIN_SWEEP;
+
+    // metrics
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AdmissionControl(int burst, long intervalMillis) {
+        this.burst = burst;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void admit(Account account) throws AmountOfWorkExceededException {
+        if (account == null || this.burst <= 0) return;
+        if (!this.tryAdmit(account.getID(), System.currentTimeMillis())) {
+            this.rejected.incrementAndGet();
+            throw new AmountOfWorkExceededException();
+        }
+        this.admitted.incrementAndGet();
+    }
+
+    // takes a token from the account's bucket, a rejected write takes nothing
+    boolean tryAdmit(long id, long now) {
+        if (this.buckets.size() > this.sweepAt) this.sweep(now);
+        while (true) {
+            Long full = this.buckets.get(id);
+            long next = Math.max(full == null ? now : full, now) + this.intervalMillis;
+            if (next - now > this.intervalMillis * this.burst)
+                return false;
+            if (full == null ? this.buckets.putIfAbsent(id, next) == null : this.buckets.replace(id, full, next))
+                return true;
+        }
+    }
+
+    // an entry only goes if it is still the full one, a token taken meanwhile keeps it
+    private synchronized void sweep(long now) {
+        if (this.buckets.size() <= this.sweepAt) return;
+        this.buckets.values().removeIf(full -> full <= now);
+        this.sweepAt = Math.max(MIN_SWEEP, this.buckets.size() * 2);
+    }
+
+    int getBuckets() {
+        return this.buckets.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d writes admitted, %d refused, up to %d per account and one more every %d ms, %d buckets tracked",
+                this.admitted.get(), this.rejected.get(), this.burst, this.intervalMillis, this.buckets.size());
+    }
+}
@@ -9,26 +9,23 @@ import pt.ulisboa.tecnico.sec.server.grpc.ServerServiceGrpc.ServerServiceBlockin
 import pt.ulisboa.tecnico.sec.server.grpc.*;
 
 import pt.ulisboa.tecnico.sec.crypto.Crypto;
+import pt.ulisboa.tecnico.sec.crypto.ReplicaKeyCache;
 
+import java.io.IOException;
 import java.security.*;
 import java.lang.InterruptedException;
-import java.lang.Integer;
 import java.lang.Thread;
 import java.util.ArrayList;
 
 public class BroadcastService {
 
-    class IntegerWrapper{
-        public Integer value;
-        public IntegerWrapper(int value) {this.value = new Integer(value);}
-    }
-
     private static float MIN_QUORUM;
     private static ArrayList<ServerServiceBlockingStub> servers;
     private static ArrayList<ManagedChannel> channels;
     private static int numServers;
     private static int numFaults;
     private static Server server;
+    private static ReplicaKeyCache replicaKeys;
 
     public BroadcastService(Server s, int basePort, int N, int f) {
         server = s;
@@ -50,72 +47,52 @@ public class BroadcastService {
         }
     }
 
+    // replica keys go through the same pinned cache clients use, see ReplicaKeyCache
     public void populateKeys(){
+        try {
+            replicaKeys = ReplicaKeyCache.create(numServers, replica -> servers.get(replica)
+                    .getPublicKeyByID(PublicKeyRequest.newBuilder().setAccountID(-1).build()).getData().getPublicKey());
+            replicaKeys.put(server.getId(), Crypto.getEncodedKey(server.getPubKey()));
+        } catch (IOException | GeneralSecurityException e) {
+            System.out.println("ERROR: Cannot load replica keys: " + e.getMessage());
+            return;
+        }
 
-        class Call extends Thread {
-            private PublicKey[] keys;
-            private int id;
-            private IntegerWrapper nReceivedKeys;
-
-            public Call(PublicKey[] keys, int id, IntegerWrapper nReceivedKeys){
-                this.keys = keys;
-                this.id = id;
-                this.nReceivedKeys = nReceivedKeys;
-            }
-
-            public void run(){
+        // replicas may still be starting, keep asking the ones that did not answer
+        while (true) {
+            boolean missing = false;
+            for (int i = 0; i < numServers; i++) {
+                if (replicaKeys.has(i)) continue;
                 try {
-                    // SimplePubKeyExchangeRequest req = SimplePubKeyExchangeRequest.newBuilder().setSelfPubKey(Crypto.getEncodedKey(selfPubKey)).build();
-                    PublicKeyRequest req = PublicKeyRequest.newBuilder().setAccountID(-1).build();
-                    PublicKeyResponse response = servers.get(id).getPublicKeyByID(req);
-                    keys[this.id] = Crypto.getPublicKey(response.getData().getPublicKey());
-                    this.nReceivedKeys.value = this.nReceivedKeys.value + 1;
-                } catch (Exception e) {
+                    System.out.println("Fetching " + i + "'s key..");
+                    replicaKeys.get(i);
+                } catch (StatusRuntimeException | GeneralSecurityException e) {
                     System.out.println(e.getMessage());
+                    missing = true;
                 }
             }
+            if (!missing) break;
+            try {
+                System.out.println("Waiting to receive Public Keys..");
+                Thread.sleep(400);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
 
-        PublicKey selfPubKey = server.getPubKey();
-        IntegerWrapper nReceivedKeys = new IntegerWrapper(1); // this is a fault if, for some reason, the server fails to generate its own keyPair
         PublicKey[] replicaPubKeys = new PublicKey[numServers];
-        replicaPubKeys[server.getId()] = selfPubKey;
-        ArrayList<Call> threads = new ArrayList<Call>();
-
         for (int i = 0; i < numServers; i++) {
-            if (replicaPubKeys[i] != null){
-                continue;
-            }
-            System.out.println("Fetching " + i + "'s key..");
-            Call t = new Call(replicaPubKeys, i, nReceivedKeys);
-            threads.add(t);
-            t.start();
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e){}
-        }
-        int hasKeys;
-        while (nReceivedKeys.value < numServers){
-            hasKeys = 1;
-            for(PublicKey k: replicaPubKeys){
-                if (k == null)
-                    hasKeys = 0;
-            }
-            if (hasKeys == 1)
-                break;
             try {
-                System.out.println("Waiting to receive Public Keys..");
-                Thread.sleep(400);
-            } catch (InterruptedException e){}
+                replicaPubKeys[i] = replicaKeys.get(i);
+                System.out.println("\n # # # replica " + i + "'s pubKey:" + ReplicaKeyCache.fingerprint(Crypto.getEncodedKey(replicaPubKeys[i])));
+            } catch (GeneralSecurityException e) {}
         }
         server.setReplicaPubKeys(replicaPubKeys);
-        for (int i = 0; i < numServers; i++){
-            try {
-                System.out.println("\n # # # replica " + i + "'s pubKey:" + Crypto.hashMyKey(replicaPubKeys[i].toString()));
-            } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e){}
-        }
     }
 
+    public ReplicaKeyCache getReplicaKeys() { return replicaKeys; }
+
     public void shutdown(){ for(ManagedChannel channel:channels) channel.shutdown();}
 
 }
\ No newline at end of file
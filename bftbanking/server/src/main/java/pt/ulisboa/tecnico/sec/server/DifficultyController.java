@@ -0,0 +1,91 @@
+package pt.ulisboa.tecnico.sec.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/*
+ * Proof-of-work difficulty this replica asks for, in leading zero bits, following its load.
+ *
+ * Every intervalMillis the controller looks at the signature verification queue and at
+ * the CPU used by the process. When either is over its mark the difficulty goes up one
+ * bit, doubling the work of the next writes; when both are well under their marks it
+ * goes down one bit, back to min when the replica is idle. Moving one bit per interval
+ * keeps a short burst from locking clients out.
+ *
+ * The difficulty is announced with each nonce, in the signed nonce response, and the
+ * write spending the nonce is checked against it, see NonceStore.
+ */
+public class DifficultyController {
+    private final int min;
+    private final int max;
+    private final int queueMark;
+    private final double cpuMark;
+    private final IntSupplier queueDepth;
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final ScheduledExecutorService timer;
+    private volatile int bits;
+
+    // metrics
+    private final AtomicLong raised = new AtomicLong();
+    private final AtomicLong lowered = new AtomicLong();
+    private volatile int highest; // written by the timer, read by toString
+
+    public DifficultyController(int min, int max, int queueMark, double cpuMark, long intervalMillis, IntSupplier queueDepth) {
+        this.min = Math.max(1, min);
+        this.max = Math.min(Math.max(this.min, max), 64);
+        this.queueMark = queueMark;
+        this.cpuMark = cpuMark;
+        this.queueDepth = queueDepth;
+        this.bits = this.min;
+        this.highest = this.min;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "difficulty-controller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.scheduleAtFixedRate(this::adjust, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public int getBits() {
+        return this.bits;
+    }
+
+    public void close() {
+        this.timer.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d bits now, %d to %d allowed, raised %d times, lowered %d times, highest %d",
+                this.bits, this.min, this.max, this.raised.get(), this.lowered.get(), this.highest);
+    }
+
+    private void adjust() {
+        int queued = this.queueDepth.getAsInt();
+        double cpu = this.cpuLoad();
+
+        if ((queued >= this.queueMark || cpu >= this.cpuMark) && this.bits < this.max) {
+            this.bits++;
+            this.raised.incrementAndGet();
+            this.highest = Math.max(this.highest, this.bits);
+        } else if (queued < this.queueMark / 4 && cpu < this.cpuMark / 2 && this.bits > this.min) {
+            this.bits--;
+            this.lowered.incrementAndGet();
+        }
+    }
+
+    // share of all cores used by this process, or the load average per core where that is not available
+    private double cpuLoad() {
+        if (this.os instanceof com.sun.management.OperatingSystemMXBean) {
+            double load = ((com.sun.management.OperatingSystemMXBean) this.os).getProcessCpuLoad();
+            if (load >= 0) return load;
+        }
+        double average = this.os.getSystemLoadAverage();
+        return average < 0 ? 0 : average / this.os.getAvailableProcessors();
+    }
+}
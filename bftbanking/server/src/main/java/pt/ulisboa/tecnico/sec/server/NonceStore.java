@@ -0,0 +1,142 @@
+package pt.ulisboa.tecnico.sec.server;
+
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Outstanding nonces handed out by generateNonce, in a fixed amount of memory.
+ *
+ * Entries are [key fingerprint][nonce][expiry] held in flat arrays and grouped in
+ * buckets of BUCKET_SIZE entries; a key only ever uses the bucket its fingerprint
+ * selects. Each key may hold up to window nonces at a time, so a client can have that
+ * many requests in flight, and issuing one more replaces the oldest. An expired entry
+ * is free, and when a bucket has no free entry the one closest to expiring is evicted.
+ * Issuing and consuming allocate nothing and only lock the stripe of the bucket.
+ *
+ * Each nonce also carries the proof-of-work difficulty announced with it, so the write
+ * spending it is checked against the bits the client was asked for even if the
+ * difficulty moved in between.
+ *
+ * Keys are identified by the 64-bit fingerprint of their handle. Two keys sharing a
+ * fingerprint only share nonces, a nonce still cannot be consumed twice.
+ */
+public class NonceStore {
+    private static final int BUCKET_SIZE = 8;
+    private static final int STRIPES = 256;
+
+    private final long[] fingerprints;
+    private final long[] nonces;
+    private final long[] expiries; // 0 for a free entry
+    private final byte[] difficulties;
+    private final int bucketMask;
+    private final Object[] stripes = new Object[STRIPES];
+    private final int window;
+    private final long ttlMillis;
+
+    // metrics
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public NonceStore(int capacity, int window, long ttlMillis) {
+        int buckets = Integer.highestOneBit(Math.max(capacity / BUCKET_SIZE, 1) * 2 - 1); // next power of two
+        this.fingerprints = new long[buckets * BUCKET_SIZE];
+        this.nonces = new long[buckets * BUCKET_SIZE];
+        this.expiries = new long[buckets * BUCKET_SIZE];
+        this.difficulties = new byte[buckets * BUCKET_SIZE];
+        this.bucketMask = buckets - 1;
+        this.window = Math.max(1, Math.min(window, BUCKET_SIZE));
+        this.ttlMillis = ttlMillis;
+        for (int i = 0; i < STRIPES; i++)
+            this.stripes[i] = new Object();
+    }
+
+    public long issue(KeyHandle key, int difficulty) {
+        long fingerprint = key.getFingerprint();
+        int bucket = this.bucket(fingerprint);
+        long nonce = ThreadLocalRandom.current().nextLong();
+        long now = System.currentTimeMillis();
+
+        synchronized (this.stripes[bucket & (STRIPES - 1)]) {
+            int start = bucket * BUCKET_SIZE;
+            int free = -1;          // first free or expired entry
+            int oldestOwn = -1;     // oldest nonce of this key
+            int oldest = start;     // entry closest to expiring
+            int own = 0;
+            for (int i = start; i < start + BUCKET_SIZE; i++) {
+                if (this.expiries[i] <= now) {
+                    if (free < 0) free = i;
+                    continue;
+                }
+                if (this.fingerprints[i] == fingerprint) {
+                    own++;
+                    if (oldestOwn < 0 || this.expiries[i] < this.expiries[oldestOwn]) oldestOwn = i;
+                }
+                if (this.expiries[i] < this.expiries[oldest] || this.expiries[oldest] <= now) oldest = i;
+            }
+
+            int slot;
+            if (own >= this.window) {
+                slot = oldestOwn;
+            } else if (free >= 0) {
+                slot = free;
+            } else {
+                slot = oldest;
+                this.evicted.incrementAndGet();
+            }
+            this.fingerprints[slot] = fingerprint;
+            this.nonces[slot] = nonce;
+            this.expiries[slot] = now + this.ttlMillis;
+            this.difficulties[slot] = (byte) difficulty;
+        }
+        this.issued.incrementAndGet();
+        return nonce;
+    }
+
+    // the difficulty the nonce was issued with, or -1 if it is unknown or expired; does not consume it
+    public int difficulty(KeyHandle key, long nonce) {
+        long fingerprint = key.getFingerprint();
+        int bucket = this.bucket(fingerprint);
+        long now = System.currentTimeMillis();
+
+        synchronized (this.stripes[bucket & (STRIPES - 1)]) {
+            int start = bucket * BUCKET_SIZE;
+            for (int i = start; i < start + BUCKET_SIZE; i++) {
+                if (this.fingerprints[i] == fingerprint && this.nonces[i] == nonce && this.expiries[i] > now)
+                    return this.difficulties[i];
+            }
+        }
+        this.rejected.incrementAndGet();
+        return -1;
+    }
+
+    // true if the nonce was issued to the key and is still valid, it can never be consumed again
+    public boolean consume(KeyHandle key, long nonce) {
+        long fingerprint = key.getFingerprint();
+        int bucket = this.bucket(fingerprint);
+        long now = System.currentTimeMillis();
+
+        synchronized (this.stripes[bucket & (STRIPES - 1)]) {
+            int start = bucket * BUCKET_SIZE;
+            for (int i = start; i < start + BUCKET_SIZE; i++) {
+                if (this.fingerprints[i] == fingerprint && this.nonces[i] == nonce && this.expiries[i] > now) {
+                    this.expiries[i] = 0;
+                    return true;
+                }
+            }
+        }
+        this.rejected.incrementAndGet();
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d issued, %d evicted before use, %d rejected", this.issued.get(), this.evicted.get(), this.rejected.get());
+    }
+
+    private int bucket(long fingerprint) {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & this.bucketMask;
+    }
+}
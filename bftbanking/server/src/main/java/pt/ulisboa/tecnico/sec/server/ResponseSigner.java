@@ -0,0 +1,195 @@
+package pt.ulisboa.tecnico.sec.server;
+
+import com.google.protobuf.ByteString;
+import pt.ulisboa.tecnico.sec.crypto.CryptoEngine;
+import pt.ulisboa.tecnico.sec.crypto.MerkleTree;
+import pt.ulisboa.tecnico.sec.server.grpc.MerkleProof;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Signs responses with the server key. Without batching every response gets its own
+ * signature. With batching, responses are handed to a single signer thread, which
+ * closes a batch when it holds maxBatchSize responses or its oldest one has waited
+ * maxWaitMicros, builds a Merkle tree over the response data and signs only the root.
+ * Each response then carries the root signature and its path in the tree, so one
+ * private key operation pays for the whole batch.
+ *
+ * While the signer is busy with one batch the next one keeps filling, so under load
+ * batches grow with no extra wait; maxWaitMicros only adds latency when traffic is light.
+ */
+public class ResponseSigner {
+    public static class Signed {
+        private final ByteString signature;
+        private final MerkleProof proof;
+
+        Signed(ByteString signature, MerkleProof proof) {
+            this.signature = signature;
+            this.proof = proof;
+        }
+
+        public ByteString getSignature() {
+            return this.signature;
+        }
+
+        // the default instance when the signature is over the response data itself
+        public MerkleProof getProof() {
+            return this.proof;
+        }
+    }
+
+    private static class Pending {
+        final byte[] data;
+        Signed result = null;
+        Exception failure = null;
+
+        Pending(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    private final PrivateKey key;
+    private final CryptoEngine crypto = CryptoEngine.getDefault();
+    private final boolean batching;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private Thread signer = null;
+
+    private final Object lock = new Object();
+    private List<Pending> pending = new ArrayList<>();
+    private long firstPendingTime = 0;
+    private boolean running = true;
+
+    // metrics
+    private long signatures = 0;
+    private long responses = 0;
+    private int maxBatch = 0;
+
+    public ResponseSigner(PrivateKey key, boolean batching, int maxBatchSize, long maxWaitMicros) {
+        this.key = key;
+        this.batching = batching;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        if (batching) {
+            this.signer = new Thread(this::signLoop, "response-signer");
+            this.signer.setDaemon(true);
+            this.signer.start();
+        }
+    }
+
+    public Signed sign(byte[] data) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        if (!this.batching) {
+            ByteString signature = this.crypto.sign(this.key, data);
+            synchronized (lock) {
+                signatures++;
+                responses++;
+            }
+            return new Signed(signature, MerkleProof.getDefaultInstance());
+        }
+
+        Pending request = new Pending(data);
+        synchronized (lock) {
+            if (!running) throw new SignatureException("Response signer is closed");
+            pending.add(request);
+            // wake the signer to open a new batch or because the current one is full
+            if (pending.size() == 1) {
+                firstPendingTime = System.nanoTime();
+                lock.notifyAll();
+            } else if (pending.size() >= maxBatchSize) {
+                lock.notifyAll();
+            }
+            try {
+                while (request.result == null && request.failure == null)
+                    lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SignatureException("Interrupted while waiting for the response signature");
+            }
+        }
+
+        if (request.failure instanceof NoSuchAlgorithmException) throw (NoSuchAlgorithmException) request.failure;
+        if (request.failure instanceof InvalidKeyException) throw (InvalidKeyException) request.failure;
+        if (request.failure != null) throw new SignatureException(request.failure);
+        return request.result;
+    }
+
+    private void signLoop() {
+        while (true) {
+            List<Pending> batch;
+            synchronized (lock) {
+                try {
+                    while (running && pending.isEmpty())
+                        lock.wait();
+                    long remaining = firstPendingTime + maxWaitNanos - System.nanoTime();
+                    while (running && pending.size() < maxBatchSize && remaining > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                        remaining = firstPendingTime + maxWaitNanos - System.nanoTime();
+                    }
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+                if (pending.isEmpty() && !running) return;
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+
+            List<byte[]> leaves = new ArrayList<>(batch.size());
+            for (Pending request : batch)
+                leaves.add(request.data);
+            List<Signed> results = new ArrayList<>(batch.size());
+            Exception failure = null;
+            try {
+                MerkleTree tree = new MerkleTree(leaves);
+                ByteString signature = this.crypto.sign(this.key, tree.getRoot());
+                for (int i = 0; i < batch.size(); i++) {
+                    MerkleProof proof = MerkleProof.newBuilder().setIndex(i).setLeaves(batch.size()).addAllPath(tree.getPath(i)).build();
+                    results.add(new Signed(signature, proof));
+                }
+            } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e) {
+                failure = e;
+            }
+
+            synchronized (lock) {
+                for (int i = 0; i < batch.size(); i++) {
+                    if (failure != null) batch.get(i).failure = failure;
+                    else batch.get(i).result = results.get(i);
+                }
+                if (failure == null) {
+                    signatures++;
+                    responses += batch.size();
+                    maxBatch = Math.max(maxBatch, batch.size());
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // signs whatever is pending and stops the signer thread
+    public void close() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        if (this.signer == null) return;
+        try {
+            this.signer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            if (!batching) return String.format("%d responses, one signature each", responses);
+            return String.format("%d responses under %d signatures (avg batch %.1f, max %d)",
+                    responses, signatures, signatures == 0 ? 0.0 : (double) responses / signatures, maxBatch);
+        }
+    }
+}
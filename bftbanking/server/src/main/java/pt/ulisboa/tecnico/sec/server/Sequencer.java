@@ -0,0 +1,279 @@
+package pt.ulisboa.tecnico.sec.server;
+
+import pt.ulisboa.tecnico.sec.server.domain.OperationLog;
+import pt.ulisboa.tecnico.sec.server.persistence.Checkpointer;
+import pt.ulisboa.tecnico.sec.server.persistence.Journal;
+import pt.ulisboa.tecnico.sec.server.persistence.JournalEntry;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongFunction;
+
+/*
+ * Single-writer execution of the bank operations, the alternative to locking selected
+ * with -Dbftb.execution=sequencer.
+ *
+ * RPC threads do everything that needs no shared state (decoding, signature, proof of
+ * work and nonce checks) and then publish the operation into a pre-allocated ring.
+ * Two threads follow the ring in order:
+ *
+ *   applier  the only thread that touches the bank, runs every operation with no locks
+ *   journal  writes the entries of the applied operations and forces the journal once
+ *            for everything it found applied, then releases their slots
+ *
+ * The RPC thread of an operation waits for its slot to be released and signs the reply
+ * itself, so signing still runs on all cores. The bank goes through the operations in
+ * ring order and the journal records them in that same order, which keeps the replica
+ * a deterministic state machine. A producer finding the ring full waits for the
+ * journal to catch up.
+ *
+ * Checkpoints are cut by the applier between two operations, the one place where no
+ * operation is in flight, and handed to the journal thread with the operation they
+ * follow, so the journal is rolled right after that operation's entry.
+ *
+ * A journal write or sync that fails stops the sequencer for good: the bank may already
+ * hold operations the journal lost, and every later entry would be out of sequence. The
+ * operations of that batch and every one after it fail without being applied, and new
+ * operations are refused, so the replica must be restarted to recover from the journal.
+ */
+public class Sequencer {
+    public interface Operation<T> {
+        T apply(OperationLog log) throws Exception;
+    }
+
+    // a checked exception thrown by an operation, turned back into one of the types the caller declares
+    public static class OperationException extends Exception {
+        OperationException(Exception cause) {
+            super(cause.getMessage(), cause);
+        }
+
+        public <X extends Exception> OperationException rethrowIf(Class<X> type) throws X {
+            if (type.isInstance(this.getCause())) throw type.cast(this.getCause());
+            return this;
+        }
+
+        // for a cause the operation was not expected to throw
+        public IllegalStateException unexpected() {
+            return new IllegalStateException("Unexpected failure of a bank operation", this.getCause());
+        }
+    }
+
+    // IOExceptions and unchecked exceptions go through as they are, other checked ones are wrapped
+    static OperationException wrap(Exception e) throws IOException {
+        if (e instanceof IOException) throw (IOException) e;
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        return new OperationException(e);
+    }
+
+    private static class Command<T> {
+        private final Operation<T> operation;
+        private final LongFunction<JournalEntry> record; // null for reads
+        private volatile long sequence = -1;
+
+        // set by the applier
+        private T result;
+        private Exception failure;
+        private JournalEntry entry;
+        private long journalSequence;
+        private Checkpointer.Cut cut;
+
+        private Command(Operation<T> operation, LongFunction<JournalEntry> record) {
+            this.operation = operation;
+            this.record = record;
+        }
+    }
+
+    private final Server server;
+    private final Journal journal;
+    private final AtomicReferenceArray<Command<?>> ring;
+    private final int mask;
+    private final Thread applier;
+    private final Thread journaler;
+
+    private final AtomicLong claimed = new AtomicLong(0);
+    private volatile long applied = 0;      // operations applied to the bank
+    private long journaled = 0;             // operations durable and released, guarded by done
+    private long expectedSequence;          // journal sequence of the last entry the applier produced
+    private final Object done = new Object();
+    private volatile boolean running = true;
+    private volatile IOException failed = null; // the journal failure that stopped the sequencer
+
+    // metrics
+    private long batches = 0;
+    private long maxBatch = 0;
+
+    public Sequencer(Server server, Journal journal, int size) {
+        this.server = server;
+        this.journal = journal;
+        int capacity = Integer.highestOneBit(Math.max(size, 2) * 2 - 1); // next power of two
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.expectedSequence = journal.getLastSequence();
+
+        this.applier = new Thread(this::applyLoop, "sequencer-applier");
+        this.journaler = new Thread(this::journalLoop, "sequencer-journal");
+        this.applier.setDaemon(true);
+        this.journaler.setDaemon(true);
+        this.applier.start();
+        this.journaler.start();
+    }
+
+    // runs the operation on the applier and returns once it is durable; a checked failure of the operation comes wrapped
+    public <T> T execute(Operation<T> operation, LongFunction<JournalEntry> record) throws OperationException, IOException {
+        // a claimed sequence must be published, or the applier would wait for it forever
+        IOException failed = this.failed;
+        if (failed != null) throw new IOException("Sequencer stopped after a journal failure: " + failed.getMessage());
+        if (!this.running) throw new IOException("Server is shutting down");
+        Command<T> command = new Command<>(operation, record);
+        long sequence = this.claimed.getAndIncrement();
+
+        synchronized (this.done) {
+            while (sequence >= this.journaled + this.ring.length()) {
+                if (!this.running) throw new IOException("Server is shutting down");
+                this.awaitDone();
+            }
+        }
+        command.sequence = sequence;
+        this.ring.set((int) sequence & this.mask, command);
+        LockSupport.unpark(this.applier);
+
+        synchronized (this.done) {
+            while (this.journaled <= sequence) {
+                // claimed after close() saw every claimed operation through, nothing will run it
+                if (!this.running) throw new IOException("Server is shutting down");
+                this.awaitDone();
+            }
+        }
+        if (command.failure != null)
+            throw wrap(command.failure);
+        return command.result;
+    }
+
+    // waits until every published operation is durable and stops both threads
+    public void close() {
+        synchronized (this.done) {
+            while (this.journaled < this.claimed.get()) {
+                try {
+                    this.done.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            this.running = false;
+            this.done.notifyAll();
+        }
+        LockSupport.unpark(this.applier);
+        LockSupport.unpark(this.journaler);
+    }
+
+    @Override
+    public String toString() {
+        synchronized (this.done) {
+            return String.format("%d operations in %d journal batches (max %d per batch)",
+                    this.journaled, this.batches, this.maxBatch);
+        }
+    }
+
+    /* --------------------- */
+    /* ------ applier ------ */
+    /* --------------------- */
+
+    private void applyLoop() {
+        long next = 0;
+        while (this.running) {
+            Command<?> command = this.ring.get((int) next & this.mask);
+            if (command == null || command.sequence != next) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            // after a journal failure the operations are released by the journal thread without being applied
+            if (this.failed == null)
+                this.apply(command);
+            next++;
+            this.applied = next;
+            LockSupport.unpark(this.journaler);
+        }
+    }
+
+    private <T> void apply(Command<T> command) {
+        try {
+            command.result = command.operation.apply(id -> {
+                if (command.record == null) return;
+                command.entry = command.record.apply(id);
+                command.journalSequence = ++this.expectedSequence;
+            });
+        } catch (Exception e) {
+            command.failure = e;
+        }
+        if (command.entry != null)
+            command.cut = this.server.cutCheckpointIfNeeded(this.expectedSequence);
+    }
+
+    /* --------------------- */
+    /* ------ journal ------ */
+    /* --------------------- */
+
+    private void journalLoop() {
+        long next = 0;
+        while (this.running) {
+            long end = this.applied;
+            if (next == end) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            // once stopped, whatever the applier still went through is failed without touching the journal
+            IOException failure = this.failed;
+            if (failure == null) {
+                try {
+                    this.write(next, end);
+                } catch (IOException e) {
+                    // the rest of the batch is not in the journal and later entries would not follow it
+                    System.out.println("Could not write journal, no further operation is accepted: " + e.getMessage());
+                    failure = e;
+                    this.failed = e;
+                }
+            }
+
+            synchronized (this.done) {
+                for (long sequence = next; sequence < end; sequence++) {
+                    Command<?> command = this.ring.get((int) sequence & this.mask);
+                    if (failure != null && command.failure == null)
+                        command.failure = failure;
+                }
+                this.batches++;
+                this.maxBatch = Math.max(this.maxBatch, end - next);
+                this.journaled = end;
+                this.done.notifyAll();
+            }
+            next = end;
+        }
+    }
+
+    private void write(long next, long end) throws IOException {
+        for (long sequence = next; sequence < end; sequence++) {
+            Command<?> command = this.ring.get((int) sequence & this.mask);
+            if (command.entry != null) {
+                long written = this.journal.write(command.entry);
+                if (written != command.journalSequence)
+                    throw new IOException("Journal sequence " + written + " does not match the applied operation " + command.journalSequence);
+            }
+            if (command.cut != null)
+                this.server.startCheckpoint(command.cut, this.journal.roll());
+        }
+        this.journal.sync();
+    }
+
+    private void awaitDone() throws IOException {
+        try {
+            this.done.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the sequencer");
+        }
+    }
+}
@@ -1,25 +1,67 @@
 package pt.ulisboa.tecnico.sec.server;
 
-import com.google.common.primitives.Longs;
 import com.google.protobuf.ByteString;
 import pt.ulisboa.tecnico.sec.server.domain.Account;
 import pt.ulisboa.tecnico.sec.server.domain.Bank;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+import pt.ulisboa.tecnico.sec.server.domain.KeyRegistry;
+import pt.ulisboa.tecnico.sec.server.domain.OperationLog;
 import pt.ulisboa.tecnico.sec.server.domain.Transaction;
+import pt.ulisboa.tecnico.sec.server.Sequencer.OperationException;
+import pt.ulisboa.tecnico.sec.server.ValidationPipeline.Stage;
 import pt.ulisboa.tecnico.sec.server.exceptions.*;
+import pt.ulisboa.tecnico.sec.server.persistence.Checkpointer;
+import pt.ulisboa.tecnico.sec.server.persistence.CommitLog;
+import pt.ulisboa.tecnico.sec.server.persistence.DiskAccountStore;
+import pt.ulisboa.tecnico.sec.server.persistence.FileJournal;
+import pt.ulisboa.tecnico.sec.server.persistence.GroupCommitter;
+import pt.ulisboa.tecnico.sec.server.persistence.HistoryArchive;
+import pt.ulisboa.tecnico.sec.server.persistence.IdentityKeyStore;
+import pt.ulisboa.tecnico.sec.server.persistence.Journal;
+import pt.ulisboa.tecnico.sec.server.persistence.JournalEntry;
+import pt.ulisboa.tecnico.sec.server.persistence.MappedJournal;
 
 import pt.ulisboa.tecnico.sec.crypto.Crypto;
+import pt.ulisboa.tecnico.sec.crypto.CryptoEngine;
+import pt.ulisboa.tecnico.sec.crypto.ProofOfWork;
+import pt.ulisboa.tecnico.sec.crypto.ReplicaKeyCache;
+import pt.ulisboa.tecnico.sec.crypto.SessionKeys;
 
 import java.io.*;
+import java.nio.file.Paths;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongFunction;
 
 public class Server {
-    private String backupFilepath;
-    private String tmpBackupFilepath;
+    private Journal journal;
+    private CommitLog commitLog;
+    private Checkpointer checkpointer;
+    private HistoryArchive history = null;
+    private DiskAccountStore accountStore = null;
+    private volatile long checkpointSequence = 0;
+    private int checkpointInterval;
+    private ExecutorService checkpointWriter = null;
+    private volatile boolean checkpointRunning = false;
+    // operations share it, cutting a checkpoint takes it alone
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private Sequencer sequencer = null;
     private int port;
     private Bank bank;
-    private HashMap<PublicKey, Long> nonces;
+    private NonceStore nonces;
+    private SignatureVerifier verifier;
+    private SessionStore sessions;
+    private SolvedPuzzles puzzles;
+    private DifficultyController difficulty;
+    private AdmissionControl admission;
+    private final ValidationPipeline validation = new ValidationPipeline();
     private int nServers;
     private int nFaults;
     private int id;
@@ -28,34 +70,84 @@ public class Server {
     private PrivateKey privKey = null;
     private PublicKey[] replicaPubKeys;
 
-    public Server(int port, int numServers, int numFaults, int id) throws NoSuchAlgorithmException{
+    public Server(int port, int numServers, int numFaults, int id) throws NoSuchAlgorithmException, IOException {
         this.bank = new Bank();
         this.port = port;
-        this.nonces = new HashMap<>();
+        KeyRegistry.setCapacity(ServerConfig.getInt("keys.cache", 100000));
+        this.nonces = new NonceStore(ServerConfig.getInt("nonce.capacity", 65536), ServerConfig.getInt("nonce.window", 4),
+                ServerConfig.getLong("nonce.ttl", 60) * 1000);
+        this.verifier = new SignatureVerifier(ServerConfig.getInt("verify.threads", Runtime.getRuntime().availableProcessors()),
+                ServerConfig.getInt("verify.queue", 1024));
+        this.puzzles = new SolvedPuzzles(ServerConfig.getInt("pow.capacity", 65536), ServerConfig.getLong("pow.ttl", 300) * 1000);
+        this.difficulty = new DifficultyController(ServerConfig.getInt("pow.min", ProofOfWork.DEFAULT_BITS), ServerConfig.getInt("pow.max", 20),
+                ServerConfig.getInt("pow.load", 64), Double.parseDouble(ServerConfig.get("pow.cpu", "0.85")),
+                ServerConfig.getLong("pow.interval", 1000), this.verifier::getQueueDepth);
+        this.admission = new AdmissionControl(ServerConfig.getInt("work.burst", 10), ServerConfig.getLong("work.interval", 4000));
+        this.sessions = new SessionStore(ServerConfig.getInt("session.capacity", 100000), ServerConfig.getLong("session.ttl", 600) * 1000);
         this.nServers = numServers;
         this.nFaults = numFaults;
         this.id = id;
 
-        try {
-            KeyPair keyPair = Crypto.generateKeyPair();
-            this.pubKey = keyPair.getPublic();
-            this.privKey = keyPair.getPrivate();
-        } catch (NoSuchAlgorithmException e) {
-            System.out.println(e.getMessage());
-        }
-
-        KeyPair keyPair = Crypto.generateKeyPair();
+        // the identity key survives restarts, so pins and cached copies of it stay valid
+        long start = System.nanoTime();
+        IdentityKeyStore keyStore = new IdentityKeyStore(Paths.get(ServerConfig.get("keystore", "backups/" + this.port + "_identity.key")),
+                IdentityKeyStore.defaultPassword());
+        boolean existed = keyStore.exists();
+        KeyPair keyPair = keyStore.loadOrCreate();
 		this.pubKey = keyPair.getPublic();
 		this.privKey = keyPair.getPrivate();
-
-        this.backupFilepath = "backups/" + this.port + '_' + "bank.ser";
-        this.tmpBackupFilepath ="backups/" + this.port + '_' + "bank_tmp.ser";
+        System.out.printf("Identity key %s in %d ms, fingerprint %s%n", existed ? "loaded" : "generated",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), ReplicaKeyCache.fingerprint(Crypto.getEncodedKey(this.pubKey)));
+
+        this.checkpointer = new Checkpointer("backups", this.port + "_checkpoint", ServerConfig.getInt("checkpoint.deltas", 8));
+        this.checkpointInterval = ServerConfig.getInt("checkpoint.interval", 1000);
+        if (ServerConfig.get("checkpoint.async", "true").equals("true")) {
+            this.checkpointWriter = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "checkpoint-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
 
     }
 
     public void initBroadcastService(int basePort){ brb = new BroadcastService(this, basePort, nServers , nFaults);}
     public void populateKeys(){ brb.populateKeys();}
-    public void shutdown(){ brb.shutdown();}
+    public void shutdown(){
+        brb.shutdown();
+        System.out.println("Nonces: " + nonces);
+        verifier.close();
+        System.out.println("Signature verification: " + verifier);
+        System.out.println("Sessions: " + sessions);
+        System.out.println("Proofs of work: " + puzzles);
+        difficulty.close();
+        System.out.println("Proof-of-work difficulty: " + difficulty);
+        System.out.println("Admission control: " + admission);
+        System.out.println("Validation: " + validation);
+        if (sequencer != null) {
+            sequencer.close();
+            System.out.println("Sequencer: " + sequencer);
+        }
+        try {
+            if (checkpointWriter != null) {
+                checkpointWriter.shutdown();
+                checkpointWriter.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (commitLog instanceof GroupCommitter) {
+                ((GroupCommitter) commitLog).close();
+                System.out.println("Group commit: " + commitLog);
+            }
+            if (journal != null) journal.close();
+            if (history != null) history.close();
+            if (accountStore != null) accountStore.close();
+        } catch (IOException e) {
+            System.out.println("Could not close journal: " + e.getMessage());
+        }
+    }
     public PublicKey getPubKey() { return pubKey;}
     public int getId(){ return id;}
     public void setReplicaPubKeys(PublicKey[] keys){ this.replicaPubKeys = keys;}
@@ -66,64 +158,162 @@ public class Server {
     /* ------ dependability ensurances ------ */
     /* -------------------------------------- */
 
-    public void recoverState() throws IOException, ClassNotFoundException {
-        FileInputStream fis = null;
-        File file = new File(this.backupFilepath);
-        File tmpFile = new File(this.tmpBackupFilepath);
-
-        if(file.exists()){
-            System.out.println("Recovering bank data from backup file " + this.backupFilepath);
-            fis = new FileInputStream(this.backupFilepath);
+    public void recoverState() throws IOException {
+        long start = System.nanoTime();
+        // memory: every account lives on the heap, disk: accounts are loaded on demand into a bounded cache
+        if (ServerConfig.get("store", "memory").equals("disk")) {
+            this.accountStore = new DiskAccountStore("backups", this.port + "_accounts", ServerConfig.getInt("store.cache", 100000));
+            this.bank = new Bank(this.accountStore);
         }
-        else if(!file.exists() && tmpFile.exists()){
-            System.out.println("Recovering bank data from backup file " + this.tmpBackupFilepath);
-            fis = new FileInputStream(this.tmpBackupFilepath);
+        // accounts keep their latest transactions in memory and the older ones in history segments
+        int hotHistory = ServerConfig.getInt("history.hot", 256);
+        if (hotHistory > 0) {
+            this.history = new HistoryArchive("backups", this.port + "_history", (long) ServerConfig.getInt("history.segment", 64) << 20);
+            this.bank.setHistoryStore(this.history, hotHistory);
         }
+        this.checkpointSequence = this.checkpointer.recover(this.bank);
+        if (this.history != null)
+            this.history.restore(this.bank);
+        long checkpointLoaded = System.nanoTime();
+
+        // replay operations logged after the last checkpoint and fold them into a new one
+        // file: one write per record, mmap: records are copied into memory-mapped segments
+        if (ServerConfig.get("journal", "file").equals("mmap"))
+            this.journal = new MappedJournal("backups", this.port + "_journal", ServerConfig.getInt("journal.segment", 64) << 20);
         else
-            return;
+            this.journal = new FileJournal("backups", this.port + "_journal");
+        int replayed = this.journal.replay(this.bank, this.checkpointSequence);
+        long journalReplayed = System.nanoTime();
+        if (replayed > 0) {
+            System.out.println("Replayed " + replayed + " operations from the journal");
+            this.checkpoint();
+        }
+
+        // sync: every write forces the journal itself, group: writes share one fsync per batch
+        if (ServerConfig.get("commit", "sync").equals("group"))
+            this.commitLog = new GroupCommitter(this.journal, ServerConfig.getInt("commit.batch", 64), ServerConfig.getLong("commit.wait", 2000));
+        else
+            this.commitLog = this.journal;
+
+        // locking: RPC threads run the operations themselves, sequencer: a single applier thread runs them in order
+        if (ServerConfig.get("execution", "locking").equals("sequencer")) {
+            this.bank.setSingleWriter();
+            this.sequencer = new Sequencer(this, this.journal, ServerConfig.getInt("sequencer.ring", 1024));
+        }
+        System.out.println("Execution mode: " + (this.sequencer != null ? "sequencer" : "locking"));
 
-        ObjectInputStream in = new ObjectInputStream(fis);
-        this.bank = (Bank) in.readObject();
-        fis.close();
-        in.close();
         System.out.println("Total number of bank accounts recovered = " + this.bank.getNumberAccounts());
         System.out.println("Current server timestamp = " + this.bank.getTimestamp());
+        System.out.printf("Recovered state in %d ms (checkpoints %d ms, journal %d ms)%n",
+                (System.nanoTime() - start) / 1000000, (checkpointLoaded - start) / 1000000, (journalReplayed - checkpointLoaded) / 1000000);
     }
 
-    public synchronized boolean doBackup() throws IOException {
-        boolean success = true;
+    // must be called with no operation running, so none sneaks in between the checkpoint and the reset
+    private void checkpoint() throws IOException {
+        long sequence = this.journal.getLastSequence();
+        this.checkpointer.checkpoint(this.bank, sequence);
+        this.journal.reset();
+        this.checkpointSequence = sequence;
+    }
 
-        // create temporary backup
-        FileOutputStream fos = new FileOutputStream(this.tmpBackupFilepath);
-        ObjectOutputStream oos = new ObjectOutputStream(fos);
-        oos.writeObject(this.bank);
-        fos.close();
-        oos.close();
+    // only the cut happens here, with every operation held off; the checkpoint is written by the checkpoint writer
+    private void checkpointIfNeeded() throws IOException {
+        if (this.checkpointRunning || this.journal.getLastSequence() - this.checkpointSequence < this.checkpointInterval)
+            return;
+        this.checkpointLock.writeLock().lock();
+        try {
+            // another request may have taken it while this one waited for the lock
+            if (this.checkpointRunning || this.journal.getLastSequence() - this.checkpointSequence < this.checkpointInterval)
+                return;
+            if (this.checkpointWriter == null) {
+                this.checkpoint();
+                return;
+            }
+
+            long firstKept = this.journal.roll();
+            Checkpointer.Cut cut = this.checkpointer.begin(this.bank, this.journal.getLastSequence());
+            this.checkpointRunning = true;
+            this.checkpointWriter.execute(() -> this.writeCheckpoint(cut, firstKept));
+        } finally {
+            this.checkpointLock.writeLock().unlock();
+        }
+    }
 
-        // delete old backup
-        File old_backup = new File(this.backupFilepath);
-        if (old_backup.exists())
-            success = old_backup.delete();
+    // sequencer mode: called by the applier between two operations, with the journal sequence of the last one
+    Checkpointer.Cut cutCheckpointIfNeeded(long journalSequence) {
+        if (this.checkpointRunning || journalSequence - this.checkpointSequence < this.checkpointInterval)
+            return null;
+        this.checkpointRunning = true;
+        return this.checkpointer.begin(this.bank, journalSequence);
+    }
+
+    // sequencer mode: called by the journal thread once the journal holds everything up to the cut and has been rolled
+    void startCheckpoint(Checkpointer.Cut cut, long firstKept) {
+        if (this.checkpointWriter != null)
+            this.checkpointWriter.execute(() -> this.writeCheckpoint(cut, firstKept));
+        else
+            this.writeCheckpoint(cut, firstKept);
+    }
+
+    private void writeCheckpoint(Checkpointer.Cut cut, long firstKept) {
+        try {
+            this.checkpointer.write(cut);
+            this.journal.discardBefore(firstKept);
+            this.checkpointSequence = cut.getJournalSequence();
+        } catch (IOException e) {
+            System.out.println("Could not write checkpoint: " + e.getMessage());
+        } finally {
+            this.checkpointRunning = false;
+        }
+    }
+
+    /* --------------------------------- */
+    /* ------ operation execution ------ */
+    /* --------------------------------- */
 
-        // make temporary backup definitive
-        if (success) {
-            File new_backup = new File(this.tmpBackupFilepath);
-            success = new_backup.renameTo(new File(this.backupFilepath));
+    // runs a bank operation and returns once it is durable; record turns the id the operation hands out into its journal entry
+    // a checked failure of the operation comes wrapped, the public method running it unwraps the ones it declares
+    private <T> T execute(Sequencer.Operation<T> operation, LongFunction<JournalEntry> record) throws OperationException, IOException {
+        if (this.sequencer != null)
+            return this.sequencer.execute(operation, record);
+
+        T result;
+        long[] seq = {-1};
+        this.checkpointLock.readLock().lock();
+        try {
+            result = operation.apply(id -> seq[0] = this.commitLog.append(record.apply(id)));
+        } catch (Exception e) {
+            throw Sequencer.wrap(e);
+        } finally {
+            this.checkpointLock.readLock().unlock();
         }
+        this.checkpointIfNeeded();
+        this.commitLog.awaitDurable(seq[0]);
+        return result;
+    }
 
-        return success;
+    // reads go through the applier as well in sequencer mode, the bank takes no locks there
+    private <T> T read(Sequencer.Operation<T> operation) throws OperationException, IOException {
+        if (this.sequencer != null)
+            return this.sequencer.execute(operation, null);
+        try {
+            return operation.apply(OperationLog.NONE);
+        } catch (Exception e) {
+            throw Sequencer.wrap(e);
+        }
     }
 
     public long getBankTimestamp(){
         return this.bank.getTimestamp();
     }
 
-    public long getTimestamp(ByteString encodedPubKey, long nonce, byte[] signature, byte[] message)
+    public long getTimestamp(ByteString encodedPubKey, long nonce, long session, byte[] signature, byte[] message)
             throws InvalidSignatureException, NoSuchAlgorithmException, SignatureException, InvalidKeySpecException,
-            InvalidKeyException, InvalidNonceException {
+            InvalidKeyException, InvalidNonceException, InvalidSessionException {
 
-        this.validateSignature(encodedPubKey, signature, message);
-        this.validateNonce(encodedPubKey, nonce);
+        KeyHandle key = KeyRegistry.get(encodedPubKey);
+        this.authenticate(key, session, signature, message);
+        this.validateNonce(key, nonce);
         return getBankTimestamp();
     }
 
@@ -131,79 +321,114 @@ public class Server {
     /* ------ main operations ------ */
     /* ----------------------------- */
 
-    public long openAccount(ByteString encodedKey, long ts, long nonce, long pow, byte[] signature, byte[] data)
+    public long openAccount(ByteString encodedKey, long ts, long nonce, byte[] puzzle, long pow, long session, byte[] signature, byte[] data)
             throws NoSuchAlgorithmException, InvalidKeySpecException, AccountAlreadyExistsException, IOException,
             InvalidNonceException, InvalidSignatureException, SignatureException, InvalidKeyException,
-            InvalidTimestampException, InvalidProofOfWorkException{
-
-        this.validateWriteRequest(encodedKey, signature, data, nonce, ts, pow);
-        PublicKey key = Crypto.getPublicKey(encodedKey);
-        long id = this.bank.openAccount(key);
+            InvalidTimestampException, InvalidProofOfWorkException, InvalidSessionException, AmountOfWorkExceededException {
 
-        this.doBackup();
+        KeyHandle key = KeyRegistry.get(encodedKey);
+        this.validateWriteRequest(key, session, signature, data, ts, nonce, puzzle, pow);
+        long id;
+        try {
+            id = this.execute(log -> {
+                this.validateTimestamp(ts);
+                return this.bank.openAccount(key, -1, log);
+            }, accountId -> JournalEntry.openAccount(ts, encodedKey, accountId));
+        } catch (OperationException e) {
+            throw e.rethrowIf(InvalidTimestampException.class).rethrowIf(AccountAlreadyExistsException.class).unexpected();
+        }
         System.out.println("[Open Account] Create account with public key hash value " + key.hashCode());
         return id;
     }
 
-    public long sendAmount(ByteString encodedSrcKey, ByteString encodedDestKey, int amount, long ts, long nonce, long pow, byte[] signature, byte[] data)
+    public long sendAmount(ByteString encodedSrcKey, ByteString encodedDestKey, int amount, long ts, long nonce, byte[] puzzle, long pow, byte[] signature, byte[] data)
             throws NoSuchAlgorithmException, InvalidKeySpecException, NonExistentAccountException, InvalidAmountException,
             InsufficientBalanceException, EqualSourceAndDestinationException, IOException, InvalidNonceException,
             InvalidSignatureException, SignatureException, InvalidKeyException, InvalidTimestampException,
-            InvalidProofOfWorkException {
-
-        this.validateWriteRequest(encodedSrcKey, signature, data, nonce, ts, pow);
-        PublicKey srcKey =  Crypto.getPublicKey(encodedSrcKey);
-        PublicKey destKey =  Crypto.getPublicKey(encodedDestKey);
-        long id = this.bank.sendAmount(srcKey, destKey, amount);
+            InvalidProofOfWorkException, InvalidSessionException, AmountOfWorkExceededException {
 
-        this.doBackup();
+        KeyHandle srcKey = KeyRegistry.get(encodedSrcKey);
+        KeyHandle destKey = KeyRegistry.get(encodedDestKey);
+        // transfers are always signed so they stay non-repudiable
+        this.validateWriteRequest(srcKey, SessionStore.NONE, signature, data, ts, nonce, puzzle, pow);
+        long id;
+        try {
+            id = this.execute(log -> {
+                this.validateTimestamp(ts);
+                return this.bank.sendAmount(srcKey, destKey, amount, -1, log);
+            }, TID -> JournalEntry.sendAmount(ts, encodedSrcKey, encodedDestKey, amount, TID));
+        } catch (OperationException e) {
+            throw e.rethrowIf(InvalidTimestampException.class).rethrowIf(NonExistentAccountException.class)
+                    .rethrowIf(EqualSourceAndDestinationException.class).rethrowIf(InsufficientBalanceException.class)
+                    .rethrowIf(InvalidAmountException.class).unexpected();
+        }
         System.out.println("[Send amount] Create pending transfer (TID=" + id + ") of " + amount + " euros from " + srcKey.hashCode() + " to " + destKey.hashCode());
         return id;
     }
 
-    public long checkAccountBalance(ByteString encodedKey, long nonce, byte[] signature, byte[] data)
+    public long checkAccountBalance(ByteString encodedKey, long nonce, long session, byte[] signature, byte[] data)
             throws NoSuchAlgorithmException, InvalidKeySpecException, NonExistentAccountException, IOException,
-            InvalidNonceException, InvalidSignatureException, InvalidTimestampException, SignatureException, InvalidKeyException {
+            InvalidNonceException, InvalidSignatureException, InvalidTimestampException, SignatureException, InvalidKeyException,
+            InvalidSessionException {
 
-        this.validateReadRequest(encodedKey, signature, data, nonce);
-        PublicKey srcKey =  Crypto.getPublicKey(encodedKey);
-        long balance = this.bank.checkAccountBalance(srcKey);
+        KeyHandle srcKey = KeyRegistry.get(encodedKey);
+        this.validateReadRequest(srcKey, session, signature, data, nonce);
+        long balance = this.readBalance(srcKey);
 
         System.out.println("[Check Account] Account Key: " + srcKey.hashCode() + ", balance: " + balance);
         return balance;
     }
 
     public Collection<Transaction> checkAccountCredits(ByteString encodedKey)
-            throws NoSuchAlgorithmException, InvalidKeySpecException, NonExistentAccountException {
+            throws NoSuchAlgorithmException, InvalidKeySpecException, NonExistentAccountException, IOException {
 
         // validation was previously done
-        Account acc = this.getAccount(encodedKey);
-        Collection<Transaction> credits = acc.getPendingCredits();
-        System.out.println("[Check Account] Account Key: " + acc.getKey().hashCode() + ", credits: " + credits);
+        KeyHandle key = KeyRegistry.get(encodedKey);
+        Collection<Transaction> credits;
+        try {
+            credits = this.read(log -> this.bank.getPendingCredits(key));
+        } catch (OperationException e) {
+            throw e.rethrowIf(NonExistentAccountException.class).unexpected();
+        }
+        System.out.println("[Check Account] Account Key: " + key.hashCode() + ", credits: " + credits);
         return credits;
     }
 
-    public int receiveAmount(ByteString encodedKey, long TID, long ts, long nonce, long pow, byte[] signature, byte[] data)
+    public int receiveAmount(ByteString encodedKey, long TID, long ts, long nonce, byte[] puzzle, long pow, byte[] signature, byte[] data)
             throws NonExistentAccountException, NoSuchAlgorithmException, InvalidKeySpecException,
             NonExistentTransactionException, IOException, InvalidNonceException, InvalidSignatureException,
-            SignatureException, InvalidKeyException, InvalidTimestampException, InvalidProofOfWorkException {
+            SignatureException, InvalidKeyException, InvalidTimestampException, InvalidProofOfWorkException,
+            InvalidSessionException, AmountOfWorkExceededException {
 
-        this.validateWriteRequest(encodedKey, signature, data, nonce, ts, pow);
-        PublicKey key =  Crypto.getPublicKey(encodedKey);
-        int amount = this.bank.receiveAmount(key,TID);
-
-        this.doBackup();
+        KeyHandle key = KeyRegistry.get(encodedKey);
+        this.validateWriteRequest(key, SessionStore.NONE, signature, data, ts, nonce, puzzle, pow);
+        int amount;
+        try {
+            amount = this.execute(log -> {
+                this.validateTimestamp(ts);
+                return this.bank.receiveAmount(key, TID, log);
+            }, id -> JournalEntry.receiveAmount(ts, encodedKey, TID));
+        } catch (OperationException e) {
+            throw e.rethrowIf(InvalidTimestampException.class).rethrowIf(NonExistentAccountException.class)
+                    .rethrowIf(NonExistentTransactionException.class).unexpected();
+        }
         System.out.println("[Receive Amount] Account key: " + key.hashCode() + " received a credit of " + amount);
         return amount;
     }
 
-    public Iterable<Transaction> audit(ByteString encodedKey, long nonce, byte[] signature, byte[] data)
+    public Iterable<Transaction> audit(ByteString encodedKey, long nonce, long session, byte[] signature, byte[] data)
             throws NoSuchAlgorithmException, InvalidKeySpecException, NonExistentAccountException, InvalidNonceException,
-            InvalidSignatureException, InvalidTimestampException, SignatureException, InvalidKeyException {
+            InvalidSignatureException, InvalidTimestampException, SignatureException, InvalidKeyException, IOException,
+            InvalidSessionException {
 
-        this.validateReadRequest(encodedKey, signature, data, nonce);
-        PublicKey key =  Crypto.getPublicKey(encodedKey);
-        Iterable<Transaction> trans = this.bank.audit(key);
+        KeyHandle key = KeyRegistry.get(encodedKey);
+        this.validateReadRequest(key, session, signature, data, nonce);
+        Iterable<Transaction> trans;
+        try {
+            trans = this.read(log -> this.bank.audit(key));
+        } catch (OperationException e) {
+            throw e.rethrowIf(NonExistentAccountException.class).unexpected();
+        }
 
         System.out.println("[Audit] Account Key: " + key.hashCode());
         return trans;
@@ -215,12 +440,18 @@ public class Server {
 
     public long getAccountBalance(ByteString encodedKey)
             throws NoSuchAlgorithmException, InvalidKeySpecException, NonExistentAccountException, IOException, InvalidNonceException {
-        Account acc = this.getAccount(encodedKey);
-        long balance = acc.getBalance();
-        return balance;
+        return this.readBalance(KeyRegistry.get(encodedKey));
     }
 
-    public PublicKey getPublicKeyByID(long userID) throws NonExistentAccountException {
+    private long readBalance(KeyHandle key) throws NonExistentAccountException, IOException {
+        try {
+            return this.read(log -> this.bank.checkAccountBalance(key));
+        } catch (OperationException e) {
+            throw e.rethrowIf(NonExistentAccountException.class).unexpected();
+        }
+    }
+
+    public KeyHandle getPublicKeyByID(long userID) throws NonExistentAccountException {
         Account acc = this.bank.getAccountByID(userID);
         if(acc == null) throw new NonExistentAccountException();
         return acc.getKey();
@@ -228,9 +459,7 @@ public class Server {
 
     public Account getAccount(ByteString encodedKey)
             throws NoSuchAlgorithmException, InvalidKeySpecException, NonExistentAccountException {
-        PublicKey accKey =  Crypto.getPublicKey(encodedKey);
-
-        Account acc = this.bank.getAccount(accKey);
+        Account acc = this.bank.getAccount(KeyRegistry.get(encodedKey));
         if (acc == null) throw new NonExistentAccountException();
 
         return acc;
@@ -240,96 +469,216 @@ public class Server {
     /* ------ requests validation ------ */
     /* --------------------------------- */
 
-    public long generateNonce(ByteString encodedPubKey, byte[] signature, byte[] message)
-            throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidSignatureException, SignatureException, InvalidKeyException {
+    public ValidationPipeline getValidation() {
+        return this.validation;
+    }
+
+    // the current proof-of-work difficulty, announced with the nonce issued by generateNonce
+    public int getDifficulty() {
+        return this.difficulty.getBits();
+    }
 
-        this.validateSignature(encodedPubKey, signature, message);
+    public long generateNonce(ByteString encodedPubKey, long session, byte[] signature, byte[] message, int difficulty)
+            throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidSignatureException, SignatureException, InvalidKeyException,
+            InvalidSessionException {
 
-        Random random = new Random();
-        long nonce = random.nextLong();
-        this.nonces.put(Crypto.getPublicKey(encodedPubKey), nonce);
-        return nonce;
+        KeyHandle key = KeyRegistry.get(encodedPubKey);
+        this.authenticate(key, session, signature, message);
+        return this.nonces.issue(key, difficulty);
     }
 
-    public void validateNonce(ByteString encodedPubKey, long nonce) throws InvalidNonceException, NoSuchAlgorithmException, InvalidKeySpecException {
-        PublicKey key = Crypto.getPublicKey(encodedPubKey);
-        if(!this.nonces.containsKey(key)) throw new InvalidNonceException();
-        long saved_nonce = this.nonces.get(key);
-        if (Long.valueOf(saved_nonce) == null | Long.valueOf(nonce) == null | saved_nonce != nonce)
+    // message is signed by the client key and carries the client's ephemeral key, see SessionKeys,
+    // and a nonce it spends so the request cannot be replayed to open sessions in the client's name
+    public long openSession(ByteString encodedPubKey, ByteString clientEphemeralKey, long nonce, KeyPair ephemeral, byte[] signature, byte[] message)
+            throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidSignatureException, SignatureException, InvalidKeyException,
+            InvalidNonceException {
+
+        KeyHandle key = KeyRegistry.get(encodedPubKey);
+        this.getRequiredDifficulty(key, nonce);
+        this.validateSignature(key, signature, message);
+        this.validateNonce(key, nonce);
+        SessionKeys keys = SessionKeys.derive(ephemeral.getPrivate(), clientEphemeralKey, Crypto.getEncodedKey(ephemeral.getPublic()), false);
+        return this.sessions.open(key, keys);
+    }
+
+    public SessionKeys getSessionKeys(long session, ByteString encodedPubKey)
+            throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidSessionException {
+        return this.sessions.get(session, KeyRegistry.get(encodedPubKey));
+    }
+
+    public void validateNonce(KeyHandle key, long nonce) throws InvalidNonceException {
+        // consumed to avoid message replay with same nonce, only one of two concurrent requests gets it
+        if (!this.nonces.consume(key, nonce))
             throw new InvalidNonceException();
-        this.nonces.remove(key); // remove from hashmap to avoid message replay with same nonce
     }
 
     public void validateTimestamp(long ts) throws InvalidTimestampException {
-        if (ts <= this.getBankTimestamp()) throw new InvalidTimestampException();
-        this.bank.setTimestamp(ts);
+        if (!this.bank.advanceTimestamp(ts)) throw new InvalidTimestampException();
     }
 
-    public void validateReadRequest(ByteString encodedKey, byte[] signature, byte[] data, long nonce)
+    public void validateReadRequest(KeyHandle key, long session, byte[] signature, byte[] data, long nonce)
             throws InvalidSignatureException, NoSuchAlgorithmException, SignatureException, InvalidKeySpecException,
-            InvalidKeyException, InvalidNonceException, InvalidTimestampException {
-        this.validateSignature(encodedKey, signature, data);
-        this.validateNonce(encodedKey, nonce);
+            InvalidKeyException, InvalidNonceException, InvalidTimestampException, InvalidSessionException {
+        Stage stage = Stage.STRUCTURE;
+        try {
+            this.checkStructure(key, signature);
+            stage = Stage.NONCE;
+            this.getRequiredDifficulty(key, nonce);
+            stage = Stage.SIGNATURE;
+            if (session != SessionStore.NONE) this.authenticate(key, session, signature, data);
+            else this.awaitSignature(this.submitSignature(key, signature, data));
+            stage = Stage.COMMIT;
+            this.validateNonce(key, nonce);
+        } catch (Exception e) {
+            this.validation.reject(stage);
+            throw e;
+        }
+        this.validation.pass();
     }
 
-    public void validateWriteRequest(ByteString encodedKey, byte[] signature, byte[] data, long nonce, long ts, long pow)
+    // checks in the order of their cost, see ValidationPipeline. The signature is handed to the verifier
+    // once the table lookups passed and is checked while the proof of work is hashed; a request failing
+    // after that withdraws it, and a verification still queued is then skipped. The timestamp is only
+    // compared here, it is taken by the operation itself, in the same order the operations are applied
+    public void validateWriteRequest(KeyHandle key, long session, byte[] signature, byte[] data, long ts, long nonce, byte[] puzzle, long pow)
             throws InvalidSignatureException, NoSuchAlgorithmException, SignatureException, InvalidKeySpecException,
-            InvalidKeyException, InvalidNonceException, InvalidTimestampException, IOException, InvalidProofOfWorkException {
-        this.validateSignature(encodedKey, signature, data);
-        this.validateProofOfWork(data, pow);
-        this.validateNonce(encodedKey, nonce);
-        this.validateTimestamp(ts);
+            InvalidKeyException, InvalidNonceException, InvalidTimestampException, InvalidProofOfWorkException,
+            InvalidSessionException, AmountOfWorkExceededException {
+        Stage stage = Stage.STRUCTURE;
+        CompletableFuture<Boolean> signatureValid = null;
+        try {
+            this.checkStructure(key, signature);
+            stage = Stage.NONCE;
+            int bits = this.getRequiredDifficulty(key, nonce);
+            stage = Stage.TIMESTAMP;
+            if (ts <= this.bank.getTimestamp()) throw new InvalidTimestampException();
+            if (session == SessionStore.NONE) signatureValid = this.submitSignature(key, signature, data);
+            stage = Stage.PROOF_OF_WORK;
+            long solution = this.validateProofOfWork(puzzle, pow, bits);
+            stage = Stage.ADMISSION;
+            this.admission.admit(this.bank.getAccount(key));
+            stage = Stage.SIGNATURE;
+            if (signatureValid != null) this.awaitSignature(signatureValid);
+            else this.authenticate(key, session, signature, data);
+            stage = Stage.COMMIT;
+            this.validateNonce(key, nonce);
+            this.acceptProofOfWork(solution);
+        } catch (Exception e) {
+            if (signatureValid != null) signatureValid.cancel(false);
+            this.validation.reject(stage);
+            throw e;
+        }
+        this.validation.pass();
+    }
+
+    private void checkStructure(KeyHandle key, byte[] signature) throws InvalidKeySpecException, InvalidSignatureException {
+        int size = key.getEncoded().size();
+        if (size == 0 || size > ValidationPipeline.MAX_KEY_SIZE) throw new InvalidKeySpecException("Malformed public key.");
+        if (signature.length == 0 || signature.length > ValidationPipeline.MAX_SIGNATURE_SIZE) throw new InvalidSignatureException();
+    }
+
+    // the difficulty the nonce was issued with; an unknown nonce fails here, before any signature is checked
+    private int getRequiredDifficulty(KeyHandle key, long nonce) throws InvalidNonceException {
+        int bits = this.nonces.difficulty(key, nonce);
+        if (bits < 0) throw new InvalidNonceException();
+        return bits;
     }
 
-    public void validateSignature(ByteString encodedPubKey, byte[] signedMessage, byte[] message)
+    // a MAC under the session's request key if the request came on a session, a signature by the client key otherwise
+    public void authenticate(KeyHandle key, long session, byte[] tag, byte[] message)
+            throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, InvalidSignatureException, InvalidKeySpecException,
+            InvalidSessionException {
+        if (session == SessionStore.NONE) this.validateSignature(key, tag, message);
+        else if (!this.sessions.get(session, key).verifyRequest(tag, message)) throw new InvalidSignatureException();
+    }
+
+    public void validateSignature(KeyHandle key, byte[] signedMessage, byte[] message)
             throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, InvalidSignatureException, InvalidKeySpecException {
 
-        if(!Crypto.verifySignature(Crypto.getPublicKey(encodedPubKey), signedMessage, message))
+        if(!CryptoEngine.getDefault().verify(key.getPublicKey(), signedMessage, message))
             throw new InvalidSignatureException();
     }
 
-    public void validateProofOfWork(byte[] message, long pow) throws NoSuchAlgorithmException, InvalidProofOfWorkException, IOException {
-        ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
-        byteArray.write(message);
-        byteArray.write(Longs.toByteArray(pow));
-        byte[] digest = Crypto.hash(byteArray.toByteArray());
+    private CompletableFuture<Boolean> submitSignature(KeyHandle key, byte[] signature, byte[] message) throws SignatureException {
+        try {
+            return this.verifier.submit(key, signature, message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SignatureException("Interrupted while queueing the signature");
+        }
+    }
+
+    private void awaitSignature(CompletableFuture<Boolean> signatureValid)
+            throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, InvalidSignatureException, InvalidKeySpecException {
+        boolean valid;
+        try {
+            valid = signatureValid.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SignatureException("Interrupted while verifying the signature");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NoSuchAlgorithmException) throw (NoSuchAlgorithmException) cause;
+            if (cause instanceof InvalidKeySpecException) throw (InvalidKeySpecException) cause;
+            if (cause instanceof InvalidKeyException) throw (InvalidKeyException) cause;
+            if (cause instanceof SignatureException) throw (SignatureException) cause;
+            throw new SignatureException(cause);
+        }
+        if (!valid) throw new InvalidSignatureException();
+    }
 
-        // a valide proof of works contains a first byte set to 0 (1 byte = 16 bits = 2^16 possible values)
-        if(digest[0] != 0x0 || digest[1] != 0x0)
+    // the puzzle is the request without its nonce, so one solution serves every replica; returns the solution's id
+    public long validateProofOfWork(byte[] puzzle, long pow, int bits) throws NoSuchAlgorithmException, InvalidProofOfWorkException {
+        // a valid proof of work makes the digest of the puzzle start with bits zero bits
+        long solution = ProofOfWork.check(puzzle, pow, bits);
+        if (solution == ProofOfWork.INVALID)
             throw new InvalidProofOfWorkException();
+        if (this.puzzles.contains(solution))
+            throw new InvalidProofOfWorkException("Proof of work already used.");
+        return solution;
+    }
+
+    // only authenticated requests use up a solution, so a copied one cannot deny the client its request
+    public void acceptProofOfWork(long solution) throws InvalidProofOfWorkException {
+        if (!this.puzzles.add(solution))
+            throw new InvalidProofOfWorkException("Proof of work already used.");
     }
 
     /* ----------------------------------- */
     /* ------ atomicy of operations ------ */
     /* ----------------------------------- */
 
-    public void writeBackCheckAccount(ByteString encodedKey, ArrayList<Transaction> transactions, long ts, long nonce, byte[] signature, byte[] message) throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidNonceException, InvalidSignatureException, SignatureException, InvalidKeyException, InvalidTimestampException, NonExistentAccountException {
-        PublicKey key =  Crypto.getPublicKey(encodedKey);
+    public void writeBackCheckAccount(ByteString encodedKey, ArrayList<Transaction> transactions, long ts, long nonce, long session, byte[] signature, byte[] message) throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidNonceException, InvalidSignatureException, SignatureException, InvalidKeyException, InvalidTimestampException, NonExistentAccountException, IOException, InvalidSessionException {
+        KeyHandle key = KeyRegistry.get(encodedKey);
         System.out.println("WriteBack Check Account: Received timestamp " + ts + ". Current server ts = " + this.getBankTimestamp());
-        this.validateSignature(encodedKey, signature, message);
-        this.validateNonce(encodedKey, nonce);
-        this.validateTimestamp(ts);
-
-        Account acc = this.getAccount(encodedKey);
+        this.authenticate(key, session, signature, message);
+        this.validateNonce(key, nonce);
 
-        for(Transaction t : transactions){
-            bank.addPendingTransaction(acc, t);
+        try {
+            this.execute(log -> {
+                this.validateTimestamp(ts);
+                bank.writeBackPendingTransactions(key, transactions, log);
+                return null;
+            }, id -> JournalEntry.writeBackCheckAccount(ts, encodedKey, transactions));
+        } catch (OperationException e) {
+            throw e.rethrowIf(InvalidTimestampException.class).rethrowIf(NonExistentAccountException.class).unexpected();
         }
     }
 
-    public void writeBackAudit(ByteString encodedKey, ArrayList<Transaction> transactions, long balance, long ts, long nonce, byte[] signature, byte[] message) throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidNonceException, InvalidSignatureException, SignatureException, InvalidKeyException, InvalidTimestampException, NonExistentAccountException {
-        PublicKey key =  Crypto.getPublicKey(encodedKey);
+    public void writeBackAudit(ByteString encodedKey, ArrayList<Transaction> transactions, long balance, long ts, long nonce, long session, byte[] signature, byte[] message) throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidNonceException, InvalidSignatureException, SignatureException, InvalidKeyException, InvalidTimestampException, NonExistentAccountException, IOException, InvalidSessionException {
+        KeyHandle key = KeyRegistry.get(encodedKey);
         System.out.println("WriteBack Audit: Received timestamp " + ts + ". Current server ts = " + this.getBankTimestamp());
-        this.validateSignature(encodedKey, signature, message);
-        this.validateNonce(encodedKey, nonce);
-        this.validateTimestamp(ts);
+        this.authenticate(key, session, signature, message);
+        this.validateNonce(key, nonce);
 
-        Account acc = this.getAccount(encodedKey);
-
-        long latestTID = acc.getLastestTransactionID();
-        for(Transaction t : transactions){
-            if(t.getId() > latestTID)
-                bank.addTransaction(acc, t);
+        try {
+            this.execute(log -> {
+                this.validateTimestamp(ts);
+                bank.writeBackTransactions(key, transactions, log);
+                return null;
+            }, id -> JournalEntry.writeBackAudit(ts, encodedKey, transactions));
+        } catch (OperationException e) {
+            throw e.rethrowIf(InvalidTimestampException.class).rethrowIf(NonExistentAccountException.class).unexpected();
         }
     }
 }
@@ -0,0 +1,23 @@
+package pt.ulisboa.tecnico.sec.server;
+
+/*
+ * Tunables of the replica, read from system properties prefixed with "bftb."
+ * e.g. mvn exec:java -Dexec.args="0 3 1" -Dbftb.commit=group
+ */
+public class ServerConfig {
+    private static final String PREFIX = "bftb.";
+
+    public static String get(String name, String defaultValue) {
+        return System.getProperty(PREFIX + name, defaultValue);
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+}
@@ -49,9 +49,11 @@ public class ServerMain {
 		System.out.println(">>> " + ServerMain.class.getSimpleName() + " (id= " + id + ") <<<");
 
 		try {
+			long start = System.nanoTime();
 			impl = new ServerServiceImpl(port, basePort, numServers, numFaults, id);
 			server = ServerBuilder.forPort(port).addService(impl).build();
 			server.start();
+			System.out.println("Started in " + (System.nanoTime() - start) / 1000000 + " ms");
 			System.out.println("Press Enter ONLY WHEN all servers are up and running to gather publicKeys");
 			String input = scanner.nextLine();
 			impl.populateKeys();
@@ -61,13 +63,13 @@ public class ServerMain {
 			server.awaitTermination();
 		} catch (InterruptedException e) {
 			System.out.println("ERROR: Server aborted.");
-		} catch (IOException | ClassNotFoundException e) {
-			System.out.println("ERROR: Could not start server.");
+		} catch (IOException e) {
+			System.out.println("ERROR: Could not start server: " + e.getMessage());
 		} catch (NoSuchAlgorithmException e) {
 			System.out.println("ERROR: Could not start server due to error in key pairs.");
 		} finally {
-			impl.shutdown();
-			server.shutdown();
+			if (impl != null) impl.shutdown();
+			if (server != null) server.shutdown();
 		}
 	}
 }
@@ -4,13 +4,17 @@ import com.google.protobuf.ByteString;
 import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import pt.ulisboa.tecnico.sec.crypto.Crypto;
+import pt.ulisboa.tecnico.sec.crypto.SessionKeys;
 import pt.ulisboa.tecnico.sec.server.exceptions.*;
 import pt.ulisboa.tecnico.sec.server.grpc.*;
 
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+import pt.ulisboa.tecnico.sec.server.domain.KeyRegistry;
 import pt.ulisboa.tecnico.sec.server.domain.Transaction; //prob shouldn't know about domain. very convenient though
 
 import java.io.IOException;
 import java.security.InvalidKeyException;
+import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.PrivateKey;
@@ -25,14 +29,19 @@ public class ServerServiceImpl  extends ServerServiceGrpc.ServerServiceImplBase
 	static int port;
 	static PrivateKey privKey;
 	static PublicKey pubKey;
+	static ByteString encodedPubKey;
+	static ResponseSigner signer;
 
-	public ServerServiceImpl(int port, int basePort, int numServers, int numFaults, int id) throws IOException, ClassNotFoundException, NoSuchAlgorithmException {
+	public ServerServiceImpl(int port, int basePort, int numServers, int numFaults, int id) throws IOException, NoSuchAlgorithmException {
 		server = new Server(port, numServers, numFaults, id);
 		ServerServiceImpl.port = port;
 		server.recoverState();
 		server.initBroadcastService(basePort); //prob can send other arguments here but i'll have server save them for now just in case
 		privKey = server.getPrivateKey();
 		pubKey = server.getPublicKey();
+		encodedPubKey = Crypto.getEncodedKey(pubKey);
+		signer = new ResponseSigner(privKey, ServerConfig.get("sign", "single").equals("batch"),
+				ServerConfig.getInt("sign.batch", 64), ServerConfig.getLong("sign.wait", 500));
 	}
 
 	public void populateKeys(){
@@ -41,21 +50,48 @@ public class ServerServiceImpl  extends ServerServiceGrpc.ServerServiceImplBase
 
 	public void shutdown(){
 		server.shutdown();
+		signer.close();
+		System.out.println("Response signing: " + signer);
 	}
 
 	@Override
 	public void generateNonce(NonceRequest request, StreamObserver<NonceResponse> responseObserver) {
 		NonceResponse.Builder builder = NonceResponse.newBuilder();
 		try {
-			long nonce = server.generateNonce(request.getData().getAccKey(), request.getSignature().toByteArray(), request.getData().toByteArray());
+			int difficulty = server.getDifficulty();
+			long nonce = server.generateNonce(request.getData().getAccKey(), request.getSession(), request.getSignature().toByteArray(), request.getData().toByteArray(), difficulty);
 
-			NonceResponse.Data data = NonceResponse.Data.newBuilder().setValue(nonce).build();
-			builder.setData(data).setSignature(Crypto.signMessage(privKey,data.toByteArray()));
+			NonceResponse.Data data = NonceResponse.Data.newBuilder().setValue(nonce).setDifficulty(difficulty).build();
+			ResponseSigner.Signed signed = authenticate(request.getSession(), request.getData().getAccKey(), data.toByteArray());
+			builder.setData(data).setSignature(signed.getSignature()).setProof(signed.getProof());
 
 			responseObserver.onNext(builder.build());
 			responseObserver.onCompleted();
 		} catch(NoSuchAlgorithmException | InvalidKeySpecException | InvalidSignatureException | SignatureException | InvalidKeyException e) {
 			responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+		} catch(InvalidSessionException e) {
+			responseObserver.onError(Status.UNAUTHENTICATED.withDescription(e.getMessage()).asRuntimeException());
+		}
+	}
+
+	@Override
+	public void openSession(SessionRequest request, StreamObserver<SessionResponse> responseObserver) {
+		SessionResponse.Builder builder = SessionResponse.newBuilder();
+		try {
+			KeyPair ephemeral = SessionKeys.generateEphemeralKeyPair();
+			long session = server.openSession(request.getData().getAccKey(), request.getData().getEphemeralKey(), request.getData().getNonce(), ephemeral,
+					request.getSignature().toByteArray(), request.getData().toByteArray());
+
+			SessionResponse.Data data = SessionResponse.Data.newBuilder().setSession(session)
+					.setEphemeralKey(Crypto.getEncodedKey(ephemeral.getPublic())).setClientEphemeralKey(request.getData().getEphemeralKey()).build();
+			ResponseSigner.Signed signed = signer.sign(data.toByteArray());
+			builder.setData(data).setSignature(signed.getSignature()).setProof(signed.getProof());
+
+			responseObserver.onNext(builder.build());
+			responseObserver.onCompleted();
+		} catch(NoSuchAlgorithmException | InvalidKeySpecException | InvalidSignatureException | SignatureException | InvalidKeyException |
+				InvalidNonceException e) {
+			responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
 		}
 	}
 
@@ -66,7 +102,8 @@ public class ServerServiceImpl  extends ServerServiceGrpc.ServerServiceImplBase
 				PublicKey key = server.getPubKey();
 
 				PublicKeyResponse.Data data = PublicKeyResponse.Data.newBuilder().setPublicKey(Crypto.getEncodedKey(key)).build();
-				builder.setData(data).setSignature(Crypto.signMessage(privKey,data.toByteArray()));
+				ResponseSigner.Signed signed = signer.sign(data.toByteArray());
+				builder.setData(data).setSignature(signed.getSignature()).setProof(signed.getProof());
 
 				responseObserver.onNext(builder.build());
 				responseObserver.onCompleted();
@@ -76,10 +113,11 @@ public class ServerServiceImpl  extends ServerServiceGrpc.ServerServiceImplBase
 		}
 		else {
 			try {
-				PublicKey key = server.getPublicKeyByID(request.getAccountID());
+				KeyHandle key = server.getPublicKeyByID(request.getAccountID());
 	
-				PublicKeyResponse.Data data = PublicKeyResponse.Data.newBuilder().setPublicKey(Crypto.getEncodedKey(key)).build();
-				builder.setData(data).setSignature(Crypto.signMessage(privKey,data.toByteArray()));
+				PublicKeyResponse.Data data = PublicKeyResponse.Data.newBuilder().setPublicKey(key.getEncoded()).build();
+				ResponseSigner.Signed signed = signer.sign(data.toByteArray());
+				builder.setData(data).setSignature(signed.getSignature()).setProof(signed.getProof());
 	
 				responseObserver.onNext(builder.build());
 				responseObserver.onCompleted();
@@ -107,15 +145,18 @@ public class ServerServiceImpl  extends ServerServiceGrpc.ServerServiceImplBase
 		TimestampResponse.Builder builder = TimestampResponse.newBuilder();
 		try{
 			long ts = server.getTimestamp(request.getData().getAccKey(), request.getData().getNonce(),
-					request.getSignature().toByteArray(), request.getData().toByteArray());
+					request.getSession(), request.getSignature().toByteArray(), request.getData().toByteArray());
 
 			TimestampResponse.Data data = TimestampResponse.Data.newBuilder().setValue(ts).build();
-			builder.setData(data).setSignature(Crypto.signMessage(privKey,data.toByteArray()));
+			ResponseSigner.Signed signed = authenticate(request.getSession(), request.getData().getAccKey(), data.toByteArray());
+			builder.setData(data).setSignature(signed.getSignature()).setProof(signed.getProof());
 
 			responseObserver.onNext(builder.build());
 			responseObserver.onCompleted();
 		} catch(NoSuchAlgorithmException | InvalidKeySpecException | SignatureException | InvalidKeyException | InvalidSignatureException | InvalidNonceException e) {
 			responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+		} catch(InvalidSessionException e) {
+			responseObserver.onError(Status.UNAUTHENTICATED.withDescription(e.getMessage()).asRuntimeException());
 		}
 	}
 
@@ -124,18 +165,24 @@ public class ServerServiceImpl  extends ServerServiceGrpc.ServerServiceImplBase
 		OpenAccountResponse.Builder builder = OpenAccountResponse.newBuilder();
 		try {
 			long accountID = server.openAccount(request.getData().getKey(), request.getData().getTimestamp(), request.getData().getNonce(),
-					request.getProofOfWork(), request.getSignature().toByteArray(), request.getData().toByteArray());
+					request.getData().toBuilder().clearNonce().build().toByteArray(), request.getProofOfWork(), request.getSession(),
+					request.getSignature().toByteArray(), request.getData().toByteArray());
 
 			long ts = server.getBankTimestamp();
 
 			OpenAccountResponse.Data data = OpenAccountResponse.Data.newBuilder().setAccountID(accountID).setTimestamp(ts).build();
-			builder.setData(data).setSignature(Crypto.signMessage(privKey,data.toByteArray())).setKey(ByteString.copyFrom(server.getPubKey().getEncoded()));
+			ResponseSigner.Signed signed = authenticate(request.getSession(), request.getData().getKey(), data.toByteArray());
+			builder.setData(data).setSignature(signed.getSignature()).setProof(signed.getProof()).setKey(encodedPubKey);
 			responseObserver.onNext(builder.build());
 			responseObserver.onCompleted();
 
 		} catch(NoSuchAlgorithmException | InvalidKeySpecException | SignatureException | InvalidKeyException | InvalidSignatureException |
 				InvalidNonceException | InvalidTimestampException | InvalidProofOfWorkException e) {
 			responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+		} catch(InvalidSessionException e) {
+			responseObserver.onError(Status.UNAUTHENTICATED.withDescription(e.getMessage()).asRuntimeException());
+		} catch(AmountOfWorkExceededException e) {
+			responseObserver.onError(Status.PERMISSION_DENIED.withDescription(e.getMessage()).asRuntimeException());
 		} catch(AccountAlreadyExistsException e) {
 			responseObserver.onError(Status.ALREADY_EXISTS.withDescription(e.getMessage()).asRuntimeException());
 		} catch (IOException e) {
@@ -148,18 +195,24 @@ public class ServerServiceImpl  extends ServerServiceGrpc.ServerServiceImplBase
 		SendAmountResponse.Builder builder = SendAmountResponse.newBuilder();
 		try {
 			long id = server.sendAmount(request.getData().getSrcKey(), request.getData().getDestKey(), request.getData().getAmount(),
-					request.getData().getTimestamp(), request.getData().getNonce(), request.getProofOfWork(),
+					request.getData().getTimestamp(), request.getData().getNonce(),
+					request.getData().toBuilder().clearNonce().build().toByteArray(), request.getProofOfWork(),
 					request.getSignature().toByteArray(), request.getData().toByteArray());
 			long ts = server.getBankTimestamp();
 
 			SendAmountResponse.Data data = SendAmountResponse.Data.newBuilder().setTID(id).setTimestamp(ts).build();
-			builder.setData(data).setSignature(Crypto.signMessage(privKey,data.toByteArray())).setKey(ByteString.copyFrom(server.getPubKey().getEncoded()));
+			ResponseSigner.Signed signed = authenticate(request.getSession(), request.getData().getSrcKey(), data.toByteArray());
+			builder.setData(data).setSignature(signed.getSignature()).setProof(signed.getProof()).setKey(encodedPubKey);
 
 			responseObserver.onNext(builder.build());
 			responseObserver.onCompleted();
 		} catch(InvalidAmountException | NoSuchAlgorithmException | InvalidKeySpecException | SignatureException | InvalidKeyException |
 				InvalidSignatureException | InvalidNonceException | InvalidTimestampException | InvalidProofOfWorkException e) {
 			responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+		} catch(InvalidSessionException e) {
+			responseObserver.onError(Status.UNAUTHENTICATED.withDescription(e.getMessage()).asRuntimeException());
+		} catch(AmountOfWorkExceededException e) {
+			responseObserver.onError(Status.PERMISSION_DENIED.withDescription(e.getMessage()).asRuntimeException());
 		} catch(NonExistentAccountException e) {
 			responseObserver.onError(Status.NOT_FOUND.withDescription(e.getMessage()).asRuntimeException());
 		} catch(InsufficientBalanceException | EqualSourceAndDestinationException e) {
@@ -175,25 +228,28 @@ public class ServerServiceImpl  extends ServerServiceGrpc.ServerServiceImplBase
 		ArrayList<TransactionMessage> transList = new ArrayList();
 		try {
 			long balance = server.checkAccountBalance(request.getData().getAccKey(), request.getData().getNonce(),
-					request.getSignature().toByteArray(), request.getData().toByteArray());
+					request.getSession(), request.getSignature().toByteArray(), request.getData().toByteArray());
 			Collection<Transaction> credits = server.checkAccountCredits(request.getData().getAccKey());
 			long ts = server.getBankTimestamp();
 			for (Transaction t: credits){
 				transList.add(TransactionMessage.newBuilder()
-						.setSrcKey(Crypto.getEncodedKey(t.getSrcKey()))
-						.setDestKey(Crypto.getEncodedKey(t.getDestKey()))
+						.setSrcKey(t.getSrcKey().getEncoded())
+						.setDestKey(t.getDestKey().getEncoded())
 						.setAmount(t.getAmount())
 						.setId(t.getId())
 						.build());
 			}
 
 			CheckAccountResponse.Data data = CheckAccountResponse.Data.newBuilder().setBalance(balance).addAllTransactions(transList).setTimestamp(ts).build();
-			responseBuilder.setData(data).setSignature(Crypto.signMessage(privKey,data.toByteArray())).setKey(ByteString.copyFrom(server.getPubKey().getEncoded()));
+			ResponseSigner.Signed signed = authenticate(request.getSession(), request.getData().getAccKey(), data.toByteArray());
+			responseBuilder.setData(data).setSignature(signed.getSignature()).setProof(signed.getProof()).setKey(encodedPubKey);
 
 			responseObserver.onNext(responseBuilder.build());
 			responseObserver.onCompleted();
 		} catch(NoSuchAlgorithmException | InvalidKeySpecException | InvalidNonceException | InvalidKeyException | SignatureException | InvalidSignatureException | InvalidTimestampException e) {
 			responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+		} catch(InvalidSessionException e) {
+			responseObserver.onError(Status.UNAUTHENTICATED.withDescription(e.getMessage()).asRuntimeException());
 		} catch(NonExistentAccountException e) {
 			responseObserver.onError(Status.NOT_FOUND.withDescription(e.getMessage()).asRuntimeException());
 		} catch (IOException e) {
@@ -206,17 +262,23 @@ public class ServerServiceImpl  extends ServerServiceGrpc.ServerServiceImplBase
 		ReceiveAmountResponse.Builder responseBuilder = ReceiveAmountResponse.newBuilder();
 		try {
 			int amount = server.receiveAmount(request.getData().getAccKey(), request.getData().getTID(), request.getData().getTimestamp(),
-					request.getData().getNonce(), request.getProofOfWork(), request.getSignature().toByteArray(), request.getData().toByteArray());
+					request.getData().getNonce(), request.getData().toBuilder().clearNonce().build().toByteArray(), request.getProofOfWork(),
+					request.getSignature().toByteArray(), request.getData().toByteArray());
 			long ts = server.getBankTimestamp();
 
 			ReceiveAmountResponse.Data data = ReceiveAmountResponse.Data.newBuilder().setAmount(amount).setTimestamp(ts).build();
-			responseBuilder.setData(data).setSignature(Crypto.signMessage(privKey,data.toByteArray())).setKey(ByteString.copyFrom(server.getPubKey().getEncoded()));
+			ResponseSigner.Signed signed = authenticate(request.getSession(), request.getData().getAccKey(), data.toByteArray());
+			responseBuilder.setData(data).setSignature(signed.getSignature()).setProof(signed.getProof()).setKey(encodedPubKey);
 
 			responseObserver.onNext(responseBuilder.build());
 			responseObserver.onCompleted();
 		} catch (NoSuchAlgorithmException | InvalidKeySpecException | SignatureException | InvalidKeyException | InvalidSignatureException |
 				InvalidNonceException | InvalidTimestampException | InvalidProofOfWorkException e) {
 			responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+		} catch(InvalidSessionException e) {
+			responseObserver.onError(Status.UNAUTHENTICATED.withDescription(e.getMessage()).asRuntimeException());
+		} catch(AmountOfWorkExceededException e) {
+			responseObserver.onError(Status.PERMISSION_DENIED.withDescription(e.getMessage()).asRuntimeException());
 		} catch (NonExistentAccountException | NonExistentTransactionException e) {
 			responseObserver.onError(Status.NOT_FOUND.withDescription(e.getMessage()).asRuntimeException());
 		} catch (IOException e) {
@@ -231,33 +293,37 @@ public class ServerServiceImpl  extends ServerServiceGrpc.ServerServiceImplBase
 		ArrayList<TransactionMessage> transList = new ArrayList();
 		try {
 			Iterable<Transaction> acc_trans = server.audit(request.getData().getAccKey(), request.getData().getNonce(),
-					request.getSignature().toByteArray(), request.getData().toByteArray());
+					request.getSession(), request.getSignature().toByteArray(), request.getData().toByteArray());
 			long ts = server.getBankTimestamp();
 			for (Transaction t: acc_trans){
 				transList.add(TransactionMessage.newBuilder()
-						.setSrcKey(Crypto.getEncodedKey(t.getSrcKey()))
-						.setDestKey(Crypto.getEncodedKey(t.getDestKey()))
+						.setSrcKey(t.getSrcKey().getEncoded())
+						.setDestKey(t.getDestKey().getEncoded())
 						.setAmount(t.getAmount())
 						.setId(t.getId())
 						.build());
 			}
 			AuditResponse.Data dataBuilder = AuditResponse.Data.newBuilder().addAllTransactions(transList).setTimestamp(ts).build();
-			ByteString signature = Crypto.signMessage(privKey, dataBuilder.toByteArray());
-			responseBuilder.setData(dataBuilder).setSignature(signature).setKey(ByteString.copyFrom(server.getPubKey().getEncoded()));
+			ResponseSigner.Signed signed = authenticate(request.getSession(), request.getData().getAccKey(), dataBuilder.toByteArray());
+			responseBuilder.setData(dataBuilder).setSignature(signed.getSignature()).setProof(signed.getProof()).setKey(encodedPubKey);
 
 			responseObserver.onNext(responseBuilder.build());
 			responseObserver.onCompleted();
 		} catch(NoSuchAlgorithmException | InvalidKeySpecException | InvalidNonceException | InvalidKeyException | SignatureException | InvalidSignatureException | InvalidTimestampException e) {
 			responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+		} catch(InvalidSessionException e) {
+			responseObserver.onError(Status.UNAUTHENTICATED.withDescription(e.getMessage()).asRuntimeException());
 		} catch(NonExistentAccountException e) {
 			responseObserver.onError(Status.NOT_FOUND.withDescription(e.getMessage()).asRuntimeException());
+		} catch(IOException e) {
+			responseObserver.onError(Status.UNAVAILABLE.withDescription(e.getMessage()).asRuntimeException());
 		}
 	}
 
 	public ArrayList<Transaction> getTransactionsList(List<TransactionMessage> list) throws NoSuchAlgorithmException, InvalidKeySpecException {
 		ArrayList<Transaction> transactions = new ArrayList<>();
 		for(TransactionMessage tm : list){
-			Transaction t = new Transaction(Crypto.getPublicKey(tm.getSrcKey()), Crypto.getPublicKey(tm.getDestKey()), (int) tm.getAmount());
+			Transaction t = new Transaction(KeyRegistry.get(tm.getSrcKey()), KeyRegistry.get(tm.getDestKey()), (int) tm.getAmount());
 			transactions.add(t);
 		}
 		return transactions;
@@ -269,13 +335,17 @@ public class ServerServiceImpl  extends ServerServiceGrpc.ServerServiceImplBase
 		try {
 			ArrayList<Transaction> transactions = this.getTransactionsList(request.getData().getTransactionsList());
 			server.writeBackCheckAccount(request.getData().getKey(), transactions, request.getData().getTimestamp(),
-					request.getData().getNonce(), request.getSignature().toByteArray(), request.getData().toByteArray());
+					request.getData().getNonce(), request.getSession(), request.getSignature().toByteArray(), request.getData().toByteArray());
 			responseObserver.onNext(responseBuilder.build());
 			responseObserver.onCompleted();
 		} catch (NoSuchAlgorithmException | InvalidKeySpecException | SignatureException | InvalidKeyException | InvalidSignatureException | InvalidNonceException | InvalidTimestampException e) {
 			responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+		} catch(InvalidSessionException e) {
+			responseObserver.onError(Status.UNAUTHENTICATED.withDescription(e.getMessage()).asRuntimeException());
 		} catch(NonExistentAccountException e) {
 			responseObserver.onError(Status.NOT_FOUND.withDescription(e.getMessage()).asRuntimeException());
+		} catch (IOException e) {
+			responseObserver.onError(Status.UNAVAILABLE.withDescription(e.getMessage()).asRuntimeException());
 		}
 	}
 
@@ -285,13 +355,24 @@ public class ServerServiceImpl  extends ServerServiceGrpc.ServerServiceImplBase
 		try {
 			ArrayList<Transaction> transactions = this.getTransactionsList(request.getData().getTransactionsList());
 			server.writeBackAudit(request.getData().getKey(), transactions, request.getData().getBalance(), request.getData().getTimestamp(),
-					request.getData().getNonce(), request.getSignature().toByteArray(), request.getData().toByteArray());
+					request.getData().getNonce(), request.getSession(), request.getSignature().toByteArray(), request.getData().toByteArray());
 			responseObserver.onNext(responseBuilder.build());
 			responseObserver.onCompleted();
 		} catch (NoSuchAlgorithmException | InvalidKeySpecException | SignatureException | InvalidKeyException | InvalidSignatureException | InvalidNonceException | InvalidTimestampException e) {
 			responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+		} catch(InvalidSessionException e) {
+			responseObserver.onError(Status.UNAUTHENTICATED.withDescription(e.getMessage()).asRuntimeException());
 		} catch(NonExistentAccountException e) {
 			responseObserver.onError(Status.NOT_FOUND.withDescription(e.getMessage()).asRuntimeException());
+		} catch (IOException e) {
+			responseObserver.onError(Status.UNAVAILABLE.withDescription(e.getMessage()).asRuntimeException());
 		}
 	}
+
+	// an HMAC under the session's response key for a request made on a session, the server signature otherwise
+	private static ResponseSigner.Signed authenticate(long session, ByteString encodedKey, byte[] data)
+			throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException, SignatureException, InvalidSessionException {
+		if (session == SessionStore.NONE) return signer.sign(data);
+		return new ResponseSigner.Signed(server.getSessionKeys(session, encodedKey).macResponse(data), MerkleProof.getDefaultInstance());
+	}
 }
@@ -0,0 +1,109 @@
+package pt.ulisboa.tecnico.sec.server;
+
+import pt.ulisboa.tecnico.sec.crypto.SessionKeys;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+import pt.ulisboa.tecnico.sec.server.exceptions.InvalidSessionException;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Open sessions, see SessionKeys. A session belongs to the client key that opened it and
+ * is only accepted with requests made on behalf of that key. Sessions expire after
+ * ttlMillis without use; when capacity is reached, expired sessions are dropped first
+ * and then arbitrary ones, whose clients simply open a new session.
+ *
+ * Session ids are not secret, a session can only be used by whoever holds its keys.
+ */
+public class SessionStore {
+    public static final long NONE = 0;
+
+    private static class Session {
+        final KeyHandle key;
+        final SessionKeys keys;
+        volatile long lastUsed;
+
+        Session(KeyHandle key, SessionKeys keys, long now) {
+            this.key = key;
+            this.keys = keys;
+            this.lastUsed = now;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final int capacity;
+    private final long ttlMillis;
+
+    // metrics
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public SessionStore(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public long open(KeyHandle key, SessionKeys keys) {
+        return this.open(key, keys, System.currentTimeMillis());
+    }
+
+    long open(KeyHandle key, SessionKeys keys, long now) {
+        if (this.sessions.size() >= this.capacity) this.makeRoom(now);
+        Session session = new Session(key, keys, now);
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == NONE || this.sessions.putIfAbsent(id, session) != null);
+        this.opened.incrementAndGet();
+        return id;
+    }
+
+    // keys of the session, which must have been opened by key and still be live
+    public SessionKeys get(long id, KeyHandle key) throws InvalidSessionException {
+        return this.get(id, key, System.currentTimeMillis());
+    }
+
+    SessionKeys get(long id, KeyHandle key, long now) throws InvalidSessionException {
+        Session session = this.sessions.get(id);
+        if (session == null || !session.key.equals(key)) {
+            this.rejected.incrementAndGet();
+            throw new InvalidSessionException();
+        }
+        if (session.lastUsed + this.ttlMillis < now) {
+            this.sessions.remove(id, session);
+            this.rejected.incrementAndGet();
+            throw new InvalidSessionException();
+        }
+        session.lastUsed = now;
+        return session.keys;
+    }
+
+    public int size() {
+        return this.sessions.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d open, %d opened, %d dropped to make room, %d requests on unknown or expired sessions",
+                this.sessions.size(), this.opened.get(), this.dropped.get(), this.rejected.get());
+    }
+
+    /* --------------------- */
+    /* ------ helpers ------ */
+    /* --------------------- */
+
+    // drops expired sessions, then arbitrary ones down to 90% of capacity so the next inserts do not scan again
+    private synchronized void makeRoom(long now) {
+        if (this.sessions.size() < this.capacity) return;
+        this.sessions.values().removeIf(session -> session.lastUsed + this.ttlMillis < now);
+        Iterator<Session> it = this.sessions.values().iterator();
+        while (this.sessions.size() >= this.capacity * 0.9 && it.hasNext()) {
+            it.next();
+            it.remove();
+            this.dropped.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package pt.ulisboa.tecnico.sec.server;
+
+import pt.ulisboa.tecnico.sec.crypto.CryptoEngine;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Checks request signatures on a dedicated work-stealing pool, so a burst of requests
+ * landing on a few RPC threads is still spread over every core. A write submits its
+ * signature once its nonce and timestamp passed and checks its proof of work while the
+ * signature is verified, then waits for the result, see Server.validateWriteRequest.
+ * A request failing in the meantime cancels its future, and a verification whose future
+ * is already done when a thread picks it up is skipped.
+ *
+ * submitAll takes a batch of signatures for the slots of all of them at once.
+ *
+ * At most maxQueued verifications are queued or running; a submitter finding the queue
+ * full blocks until one finishes, which pushes back on the RPC threads instead of
+ * letting a backlog grow without bound.
+ */
+public class SignatureVerifier {
+    public static class Request {
+        private final KeyHandle key;
+        private final byte[] signature;
+        private final byte[] message;
+
+        public Request(KeyHandle key, byte[] signature, byte[] message) {
+            this.key = key;
+            this.signature = signature;
+            this.message = message;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final Semaphore slots;
+    private final int maxQueued;
+    private final CryptoEngine crypto = CryptoEngine.getDefault();
+
+    // metrics
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final long started = System.nanoTime();
+
+    public SignatureVerifier(int threads, int maxQueued) {
+        AtomicInteger index = new AtomicInteger();
+        this.pool = new ForkJoinPool(threads, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("signature-verifier-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }, null, true);
+        this.maxQueued = maxQueued;
+        this.slots = new Semaphore(maxQueued);
+    }
+
+    // completes with whether the signature is valid, or exceptionally if the key or signature cannot be used
+    public CompletableFuture<Boolean> submit(KeyHandle key, byte[] signature, byte[] message) throws InterruptedException {
+        this.acquire(1);
+        return this.start(new Request(key, signature, message), true);
+    }
+
+    // one future per request, in the same order
+    public List<CompletableFuture<Boolean>> submitAll(List<Request> requests) throws InterruptedException {
+        int held = this.acquire(requests.size());
+        List<CompletableFuture<Boolean>> results = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++)
+            results.add(this.start(requests.get(i), i < held));
+        return results;
+    }
+
+    public int getQueueDepth() {
+        return this.queued.get();
+    }
+
+    public long getVerified() {
+        return this.verified.get();
+    }
+
+    public long getSkipped() {
+        return this.skipped.get();
+    }
+
+    public void close() {
+        this.pool.shutdown();
+        try {
+            this.pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        double seconds = (System.nanoTime() - this.started) / 1e9;
+        return String.format("%d signatures verified (%.0f/s), %d skipped, queue depth %d (max %d of %d), %d submitters blocked on a full queue",
+                this.verified.get(), this.verified.get() / seconds, this.skipped.get(), this.queued.get(), this.maxDepth.get(), this.maxQueued, this.blocked.get());
+    }
+
+    /* --------------------- */
+    /* ------ helpers ------ */
+    /* --------------------- */
+
+    // returns the slots taken; a batch larger than the whole queue takes all of them and goes through alone
+    private int acquire(int count) throws InterruptedException {
+        count = Math.min(count, this.maxQueued);
+        if (!this.slots.tryAcquire(count)) {
+            this.blocked.incrementAndGet();
+            this.slots.acquire(count);
+        }
+        this.maxDepth.accumulateAndGet(this.queued.addAndGet(count), Math::max);
+        return count;
+    }
+
+    private CompletableFuture<Boolean> start(Request request, boolean holdsSlot) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        try {
+            this.pool.execute(() -> {
+                try {
+                    // cancelled by a request that failed another check while this one was queued
+                    if (result.isDone()) {
+                        this.skipped.incrementAndGet();
+                        return;
+                    }
+                    try {
+                        result.complete(this.crypto.verify(request.key.getPublicKey(), request.signature, request.message));
+                    } catch (Exception e) {
+                        result.completeExceptionally(e);
+                    }
+                    this.verified.incrementAndGet();
+                } finally {
+                    if (holdsSlot) this.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the pool is shut down, the slot is given back as the task will never run
+            if (holdsSlot) this.release();
+            result.completeExceptionally(new SignatureException("Signature verifier is closed"));
+        }
+        return result;
+    }
+
+    private void release() {
+        this.queued.decrementAndGet();
+        this.slots.release();
+    }
+}
@@ -0,0 +1,99 @@
+package pt.ulisboa.tecnico.sec.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Proofs of work this replica accepted, so each one pays for a single request. The proof
+ * of a write covers the request without its nonce, which is the same at every replica,
+ * so a client solves it once and sends it to all of them; without this table it could
+ * also send it here again and again, with fresh nonces.
+ *
+ * Solutions are identified by 64 bits of their digest, see ProofOfWork.check, and held
+ * in flat arrays grouped in buckets of BUCKET_SIZE entries, as in NonceStore. An entry is
+ * forgotten after ttlMillis, when the global timestamp has long moved past the write it
+ * paid for. When a bucket has no free entry the one closest to expiring is evicted.
+ */
+public class SolvedPuzzles {
+    private static final int BUCKET_SIZE = 8;
+    private static final int STRIPES = 256;
+
+    private final long[] ids;
+    private final long[] expiries; // 0 for a free entry
+    private final int bucketMask;
+    private final Object[] stripes = new Object[STRIPES];
+    private final long ttlMillis;
+
+    // metrics
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+
+    public SolvedPuzzles(int capacity, long ttlMillis) {
+        int buckets = Integer.highestOneBit(Math.max(capacity / BUCKET_SIZE, 1) * 2 - 1); // next power of two
+        this.ids = new long[buckets * BUCKET_SIZE];
+        this.expiries = new long[buckets * BUCKET_SIZE];
+        this.bucketMask = buckets - 1;
+        this.ttlMillis = ttlMillis;
+        for (int i = 0; i < STRIPES; i++)
+            this.stripes[i] = new Object();
+    }
+
+    // true if the solution was already accepted, a cheap look before the request is authenticated
+    public boolean contains(long id) {
+        int bucket = this.bucket(id);
+        long now = System.currentTimeMillis();
+
+        synchronized (this.stripes[bucket & (STRIPES - 1)]) {
+            int start = bucket * BUCKET_SIZE;
+            for (int i = start; i < start + BUCKET_SIZE; i++) {
+                if (this.ids[i] == id && this.expiries[i] > now) {
+                    this.replayed.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // records the solution, false if it was already accepted
+    public boolean add(long id) {
+        int bucket = this.bucket(id);
+        long now = System.currentTimeMillis();
+
+        synchronized (this.stripes[bucket & (STRIPES - 1)]) {
+            int start = bucket * BUCKET_SIZE;
+            int free = -1;
+            int oldest = start;
+            for (int i = start; i < start + BUCKET_SIZE; i++) {
+                if (this.expiries[i] <= now) {
+                    if (free < 0) free = i;
+                    continue;
+                }
+                if (this.ids[i] == id) {
+                    this.replayed.incrementAndGet();
+                    return false;
+                }
+                if (this.expiries[i] < this.expiries[oldest] || this.expiries[oldest] <= now) oldest = i;
+            }
+
+            int slot = free;
+            if (slot < 0) {
+                slot = oldest;
+                this.evicted.incrementAndGet();
+            }
+            this.ids[slot] = id;
+            this.expiries[slot] = now + this.ttlMillis;
+        }
+        this.accepted.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d accepted, %d evicted before expiring, %d replays rejected", this.accepted.get(), this.evicted.get(), this.replayed.get());
+    }
+
+    private int bucket(long id) {
+        return (int) (id ^ (id >>> 32)) & this.bucketMask;
+    }
+}
@@ -0,0 +1,52 @@
+package pt.ulisboa.tecnico.sec.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Stages a request goes through before the server acts on it, cheapest first, and how
+ * many requests each one turned away. See Server.validateWriteRequest for the order:
+ * everything that costs a table lookup runs before the signature is even submitted, so
+ * a request that would fail on those never gets to the asymmetric crypto, and its key is
+ * never decoded, see KeyHandle. The proof of work is hashed while the signature is
+ * verified, and a request failing it withdraws the signature, see SignatureVerifier.
+ */
+public class ValidationPipeline {
+    public enum Stage {
+        STRUCTURE,      // sizes of the key and the signature
+        NONCE,          // issued to this key and not used or expired yet
+        TIMESTAMP,      // ahead of the bank's timestamp, writes only
+        PROOF_OF_WORK,  // solves the puzzle at the nonce's difficulty and was not used before, writes only
+        ADMISSION,      // the account's token bucket, writes only, see AdmissionControl
+        SIGNATURE,      // signature, or MAC on a session
+        COMMIT          // nonce and proof of work taken, loses only to a concurrent copy of the request
+    }
+
+    // an X.509 RSA-4096 key is 550 bytes and its signature 512, these leave room for larger keys
+    static final int MAX_KEY_SIZE = 2048;
+    static final int MAX_SIGNATURE_SIZE = 1024;
+
+    private final AtomicLongArray rejected = new AtomicLongArray(Stage.values().length);
+    private final AtomicLong passed = new AtomicLong();
+
+    public void reject(Stage stage) {
+        this.rejected.incrementAndGet(stage.ordinal());
+    }
+
+    public void pass() {
+        this.passed.incrementAndGet();
+    }
+
+    public long getRejected(Stage stage) {
+        return this.rejected.get(stage.ordinal());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(this.passed.get()).append(" passed, rejected at");
+        for (Stage stage : Stage.values())
+            builder.append(' ').append(stage.name().toLowerCase()).append('=').append(this.getRejected(stage));
+        return builder.toString();
+    }
+}
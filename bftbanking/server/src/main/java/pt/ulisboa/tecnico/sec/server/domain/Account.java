@@ -1,26 +1,25 @@
 package pt.ulisboa.tecnico.sec.server.domain;
 
 import java.io.Serializable;
-import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Collection;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class Account implements Serializable {
     private static final long serialVersionUID = 1L;
-    private PublicKey key;
+    private KeyHandle key;
     private long balance;
-    private List<Transaction> transactions;
+    private List<Transaction> transactions; // most recent part of the history, the rest is in the bank's HistoryStore
+    private long coldCount = 0;             // transactions handed over to the HistoryStore
     private HashMap<Long, Transaction> pendingWithdrawals;
     private HashMap<Long, Transaction> pendingCredits;
     private long id;
 
-    private AtomicLong work;
-    private AtomicLong timestamp; // work related
+    private transient long captureEpoch = 0;        // snapshot still waiting for this account, see BankSnapshot
+    private transient volatile long dirtyEpoch = 0; // first snapshot holding the latest change, see DurableAccountStore
 
-    public Account(PublicKey key, long id, long balance, long timestamp) {
+    public Account(KeyHandle key, long id, long balance, long timestamp) {
         this.key = key;
         this.id = id;
         this.balance = balance;
@@ -29,22 +28,6 @@ public class Account implements Serializable {
         this.pendingCredits = new HashMap<>();
     }
 
-    public long getWork(){
-        return this.work.get();
-    }
-
-    public long getTimestamp(){
-        return this.timestamp.get();
-    }
-
-    public void setWork(long work){
-        this.work.set(work);
-    }
-
-    public void setTimestamp(long ts){
-        this.timestamp.set(ts);
-    }
-
     public long getID() {
         return this.id;
     }
@@ -56,11 +39,20 @@ public class Account implements Serializable {
     public long getBalance() {
         return this.balance;
     }
-    public PublicKey getKey(){
+    public KeyHandle getKey(){
         return this.key;
     }
-    public Iterable<Transaction> getTransactions(){ return this.transactions; }
+    public List<Transaction> getRecentTransactions(){ return this.transactions; }
 
+    public long getColdCount(){
+        return this.coldCount;
+    }
+
+    public long getHistorySize(){
+        return this.coldCount + this.transactions.size();
+    }
+
+    // the history is only spilled down to a non-empty tail, so the latest transaction is always in memory
     public long getLastestTransactionID(){
         if(this.transactions.isEmpty())
             return -1;
@@ -88,6 +80,9 @@ public class Account implements Serializable {
     public Collection<Transaction> getPendingCredits(){
         return this.pendingCredits.values();
     }
+    public Collection<Transaction> getPendingWithdrawals(){
+        return this.pendingWithdrawals.values();
+    }
 
     public boolean hasPendingWithdrawal(long id) {
         return pendingWithdrawals.containsKey(id);
@@ -107,6 +102,49 @@ public class Account implements Serializable {
         transactions.add(t);
     }
 
+    // the oldest in-memory transactions, to be handed over to the HistoryStore
+    public List<Transaction> getOldestTransactions(int count){
+        return new ArrayList<>(this.transactions.subList(0, count));
+    }
+
+    public void dropOldestTransactions(int count){
+        this.transactions.subList(0, count).clear();
+        this.coldCount += count;
+    }
+
+    // rebuilds the account as saved in a checkpoint, the balance is restored as is
+    public void restore(long coldCount, List<Transaction> transactions, Collection<Transaction> pendingWithdrawals, Collection<Transaction> pendingCredits){
+        this.coldCount = coldCount;
+        this.transactions.addAll(transactions);
+        for(Transaction t : pendingWithdrawals)
+            this.pendingWithdrawals.put(t.getId(), t);
+        for(Transaction t : pendingCredits)
+            this.pendingCredits.put(t.getId(), t);
+    }
+
+    // point-in-time copy for a snapshot, transactions themselves are immutable and shared
+    public Account copy(){
+        Account copy = new Account(this.key, this.id, this.balance, 0);
+        copy.restore(this.coldCount, this.transactions, this.pendingWithdrawals.values(), this.pendingCredits.values());
+        return copy;
+    }
+
+    public long getDirtyEpoch(){
+        return this.dirtyEpoch;
+    }
+
+    void setDirtyEpoch(long epoch){
+        this.dirtyEpoch = epoch;
+    }
+
+    long getCaptureEpoch(){
+        return this.captureEpoch;
+    }
+
+    void setCaptureEpoch(long epoch){
+        this.captureEpoch = epoch;
+    }
+
     public void addTransaction(Transaction t, boolean source){
         if(source)
             this.balance -= t.getAmount();
@@ -0,0 +1,56 @@
+package pt.ulisboa.tecnico.sec.server.domain;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Accounts by id. Ids are handed out by the bank counter starting at 0, so the index is
+ * a dense array, split in fixed-size chunks so that growing it never copies accounts.
+ * A lookup is two array reads with no hashing and no boxing of the id.
+ *
+ * Readers never lock: the chunk directory is only ever replaced by a larger copy and
+ * slots are published through the atomic arrays. Writers of different ids only share
+ * the monitor when a new chunk is needed.
+ */
+class AccountIdIndex {
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private volatile AtomicReferenceArray<Account>[] chunks = newDirectory(16);
+
+    // null if there is no such account
+    Account get(long id) {
+        if (id < 0) return null;
+        AtomicReferenceArray<Account>[] chunks = this.chunks;
+        long chunk = id >>> CHUNK_BITS;
+        if (chunk >= chunks.length || chunks[(int) chunk] == null) return null;
+        return chunks[(int) chunk].get((int) id & (CHUNK_SIZE - 1));
+    }
+
+    void put(long id, Account account) {
+        if (id < 0) throw new IllegalArgumentException("Account without an id");
+        AtomicReferenceArray<Account>[] chunks = this.chunks;
+        int chunk = (int) (id >>> CHUNK_BITS);
+        if (chunk >= chunks.length || chunks[chunk] == null)
+            chunks = this.addChunk(chunk);
+        chunks[chunk].set((int) id & (CHUNK_SIZE - 1), account);
+    }
+
+    private synchronized AtomicReferenceArray<Account>[] addChunk(int chunk) {
+        AtomicReferenceArray<Account>[] chunks = this.chunks;
+        if (chunk >= chunks.length) {
+            AtomicReferenceArray<Account>[] larger = newDirectory(Math.max(chunks.length * 2, chunk + 1));
+            System.arraycopy(chunks, 0, larger, 0, chunks.length);
+            chunks = larger;
+        }
+        if (chunks[chunk] == null)
+            chunks[chunk] = new AtomicReferenceArray<>(CHUNK_SIZE);
+        // a reader seeing the new directory sees the chunk in it
+        this.chunks = chunks;
+        return chunks;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AtomicReferenceArray<Account>[] newDirectory(int length) {
+        return (AtomicReferenceArray<Account>[]) new AtomicReferenceArray[length];
+    }
+}
@@ -0,0 +1,76 @@
+package pt.ulisboa.tecnico.sec.server.domain;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Striped locks guarding the accounts of the bank. An account is guarded by the stripe
+ * of its id and not by the Account object, since a store may hold more than one object
+ * for the same account over time (see DurableAccountStore). Operations on several
+ * accounts take all their stripes at once, in ascending stripe order, so they can
+ * never wait on each other in a cycle.
+ */
+class AccountLocks {
+    // for a bank only ever used by one thread
+    static final AccountLocks NONE = new AccountLocks(0);
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    AccountLocks(int stripes) {
+        if (stripes == 0) {
+            this.stripes = new ReentrantLock[0];
+            this.mask = 0;
+            return;
+        }
+        int size = Integer.highestOneBit(stripes * 2 - 1); // next power of two
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++)
+            this.stripes[i] = new ReentrantLock();
+        this.mask = size - 1;
+    }
+
+    int stripe(long accountId) {
+        return (int) (accountId ^ (accountId >>> 32)) & this.mask;
+    }
+
+    // guards the creation of an account for the key, so two requests cannot open the same one
+    int stripe(KeyHandle key) {
+        return this.stripe(key.getFingerprint());
+    }
+
+    Held lock(int... stripes) {
+        if (this.stripes.length == 0) return new Held(new int[0]);
+        int[] sorted = stripes.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++)
+            if (i == 0 || sorted[i] != sorted[i - 1]) sorted[count++] = sorted[i];
+        sorted = Arrays.copyOf(sorted, count);
+
+        for (int i = 0; i < sorted.length; i++)
+            this.stripes[sorted[i]].lock();
+        return new Held(sorted);
+    }
+
+    Held lockAccounts(long... accountIds) {
+        int[] ids = new int[accountIds.length];
+        for (int i = 0; i < accountIds.length; i++)
+            ids[i] = this.stripe(accountIds[i]);
+        return this.lock(ids);
+    }
+
+    class Held implements AutoCloseable {
+        private final int[] held;
+
+        private Held(int[] held) {
+            this.held = held;
+        }
+
+        @Override
+        public void close() {
+            for (int i = this.held.length - 1; i >= 0; i--)
+                stripes[this.held[i]].unlock();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package pt.ulisboa.tecnico.sec.server.domain;
+
+/*
+ * Where the bank keeps its accounts. Account objects handed out are live: the bank
+ * changes them in place and calls the store back for nothing but new accounts, so a
+ * store must return the same object for an account for as long as it may be changed.
+ */
+public interface AccountStore {
+    // null if there is no such account
+    Account get(KeyHandle key);
+
+    Account getByID(long id);
+
+    boolean contains(KeyHandle key);
+
+    // adds a new account or replaces one restored from a checkpoint
+    void put(Account account);
+
+    // called by the bank before it changes an account, which must then stay resident until it is persisted
+    void pin(Account account);
+
+    long size();
+}
@@ -2,27 +2,80 @@ package pt.ulisboa.tecnico.sec.server.domain;
 
 import pt.ulisboa.tecnico.sec.server.exceptions.*;
 
+import java.io.IOException;
 import java.io.Serializable;
-import java.security.PublicKey;
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
+/*
+ * The bank is safe to use from any number of threads.
+ *
+ * Every account is guarded by a striped lock chosen by its id (see AccountLocks), and
+ * each operation holds the locks of all the accounts it reads or changes for its whole
+ * duration, taken at once in stripe order. Transfers between unrelated accounts never
+ * contend, and an operation that needs an account it has not locked yet (a reception
+ * only learns the source account from the pending credit) drops its locks and takes
+ * them again together. Account objects are looked up again once their locks are held.
+ *
+ * Account and transaction ids come from atomic counters and the timestamp only moves
+ * forward through compare-and-set. The account store itself is a concurrent map, or
+ * does its own locking. Taking a consistent cut of the whole bank (beginSnapshot) is
+ * up to the caller, who must keep every operation out while it runs.
+ *
+ * Operations check everything that can fail and record themselves in the OperationLog
+ * before changing any account, so an operation the log could not take leaves the bank
+ * as it was.
+ *
+ * A bank switched to single-writer mode skips the account locks altogether; every
+ * operation, reads included, must then come from the same thread (see Sequencer).
+ *
+ * History is spilled to the HistoryStore after an operation released its locks: the
+ * oldest transactions are copied under the account lock, written without it, and only
+ * dropped from memory once the account is locked again and nobody spilled it meanwhile.
+ */
+// the AccountLocks.Held resources are only there to release the locks
+@SuppressWarnings("try")
 public class Bank implements Serializable {
     private static final long serialVersionUID = 1L;
-    private HashMap<PublicKey, Account> accounts;
+    private AccountStore accounts;
 
     private AtomicLong numTransactions;
     private AtomicLong numAccounts;
 
     private AtomicLong timestamp;
 
+    // accounts changed since the last checkpoint
+    private transient Set<Account> dirtyAccounts;
+    private transient volatile BankSnapshot snapshot;
+    private transient volatile long snapshotEpoch = 0;
+
+    private transient AccountLocks locks;
+
+    // cold tier of the histories, none keeps every transaction in memory
+    private transient HistoryStore historyStore = null;
+    private transient int hotHistory = Integer.MAX_VALUE;
+    // accounts with a spill in progress, another spill of the same account waits for the next operation
+    private transient Set<Long> spilling;
+
     public Bank(){
-        this.accounts = new HashMap<>();
+        this(new InMemoryAccountStore());
+    }
+
+    public Bank(AccountStore store){
+        this.accounts = store;
         this.numTransactions = new AtomicLong(0);
         this.numAccounts = new AtomicLong(0);
         this.timestamp = new AtomicLong(0);
-
+        this.dirtyAccounts = ConcurrentHashMap.newKeySet();
+        this.spilling = ConcurrentHashMap.newKeySet();
+        this.locks = new AccountLocks(1024);
     }
 
     public long getTimestamp(){
@@ -33,57 +86,191 @@ public class Bank implements Serializable {
         this.timestamp.set(ts);
     }
 
+    // moves the timestamp forward to ts, returns false if it is already there or past it
+    public boolean advanceTimestamp(long ts){
+        long current;
+        do {
+            current = this.timestamp.get();
+            if (ts <= current) return false;
+        } while (!this.timestamp.compareAndSet(current, ts));
+        return true;
+    }
+
     public int getNumberAccounts() {
-        return this.accounts.size();
+        return (int) this.accounts.size();
     }
 
-    public Account getAccount(PublicKey key) {
+    public long getAccountCounter() {
+        return this.numAccounts.get();
+    }
+
+    public long getTransactionCounter() {
+        return this.numTransactions.get();
+    }
+
+    // from now on every operation comes from a single thread and no account is locked
+    public void setSingleWriter() {
+        this.locks = AccountLocks.NONE;
+    }
+
+    public AccountStore getStore() {
+        return this.accounts;
+    }
+
+    /* ----------------------------------- */
+    /* ------ checkpointing support ------ */
+    /* ----------------------------------- */
+
+    // must be called before the account is changed, with its lock held
+    private void markDirty(Account acc) {
+        if (acc == null) return;
+        this.dirtyAccounts.add(acc);
+        acc.setDirtyEpoch(this.snapshotEpoch + 1);
+        this.accounts.pin(acc);
+        BankSnapshot view = this.snapshot;
+        if (view != null) view.beforeWrite(acc);
+    }
+
+    // returns the accounts changed since the previous call, with no operation running
+    public List<Account> drainDirtyAccounts() {
+        List<Account> dirty = new ArrayList<>(this.dirtyAccounts);
+        this.dirtyAccounts.clear();
+        return dirty;
+    }
+
+    // opens a copy-on-write view of the given accounts, with no operation running
+    public BankSnapshot beginSnapshot(List<Account> accounts) {
+        if (this.snapshot != null) throw new IllegalStateException("A snapshot is already open");
+        BankSnapshot view = new BankSnapshot(this, ++this.snapshotEpoch, accounts);
+        this.snapshot = view;
+        return view;
+    }
+
+    void endSnapshot(BankSnapshot view) {
+        if (this.snapshot == view) this.snapshot = null;
+    }
+
+    public void restoreAccount(Account account) {
+        this.accounts.put(account);
+    }
+
+    public void restoreCounters(long numAccounts, long numTransactions) {
+        this.numAccounts.set(numAccounts);
+        this.numTransactions.set(numTransactions);
+    }
+
+    /* ---------------------------- */
+    /* ------ tiered history ------ */
+    /* ---------------------------- */
+
+    // accounts keep at most hotHistory transactions in memory, at least 2 so a non-empty tail is left after a spill
+    public void setHistoryStore(HistoryStore store, int hotHistory) {
+        this.historyStore = store;
+        this.hotHistory = Math.max(hotHistory, 2);
+    }
+
+    // hands the oldest transactions of the accounts over to the history store, keeping the most recent half of the tail
+    private void spillIfNeeded(Collection<KeyHandle> keys) {
+        if (this.historyStore == null) return;
+        for (KeyHandle key : keys)
+            this.spillIfNeeded(key);
+    }
+
+    // called with no account lock held, the history store is written in between the two locked parts
+    private void spillIfNeeded(KeyHandle key) {
+        Account acc = this.getAccount(key);
+        if (acc == null || !this.spilling.add(acc.getID())) return;
+        try {
+            long coldCount;
+            List<Transaction> oldest;
+            try (AccountLocks.Held held = this.locks.lockAccounts(acc.getID())) {
+                acc = this.getAccount(key);
+                int size = acc.getRecentTransactions().size();
+                if (size <= this.hotHistory) return;
+                coldCount = acc.getColdCount();
+                oldest = acc.getOldestTransactions(size - this.hotHistory / 2);
+            }
+
+            this.historyStore.append(acc.getID(), coldCount, oldest);
+
+            try (AccountLocks.Held held = this.locks.lockAccounts(acc.getID())) {
+                acc = this.getAccount(key);
+                // only drop what was written, the account may have been restored meanwhile
+                if (acc.getColdCount() != coldCount) return;
+                this.markDirty(acc);
+                acc.dropOldestTransactions(oldest.size());
+            }
+        } catch (IOException e) {
+            // keep them in memory and try again on the next transaction
+            System.out.println("Could not spill history of account " + acc.getID() + ": " + e.getMessage());
+        } finally {
+            this.spilling.remove(acc.getID());
+        }
+    }
+
+    public Account getAccount(KeyHandle key) {
         return this.accounts.get(key);
     }
 
     public Account getAccountByID(long userID) {
-        for(Account acc : this.accounts.values()) {
-            if(acc.hasID(userID))
-                return acc;
-        }
-        return null;
+        return this.accounts.getByID(userID);
     }
 
-    public boolean hasAccount(PublicKey key) {
-        return this.accounts.containsKey(key);
+    public boolean hasAccount(KeyHandle key) {
+        return this.accounts.contains(key);
     }
 
-    public long addAccount(PublicKey key) {
-        long id = this.numAccounts.getAndIncrement();
+    /* ------------------------------------------------------- */
+    /* ------ mutations, callers hold the account locks ------ */
+    /* ------------------------------------------------------- */
+
+    private Account addAccount(KeyHandle key, long id, OperationLog log) throws IOException {
+        if (id < 0)
+            id = this.numAccounts.getAndIncrement();
+        else
+            this.numAccounts.accumulateAndGet(id + 1, Math::max);
         long timestamp = Instant.now().getEpochSecond();
         Account account = new Account(key, id,50, timestamp);
-        this.accounts.put(key, account);
-        return id;
+        log.record(id);
+        this.markDirty(account);
+        this.accounts.put(account);
+        return account;
     }
 
+    // id is the recorded one when replaying, otherwise the next free one
+    private long takeTransactionId(long id) {
+        if (id < 0)
+            return this.numTransactions.getAndIncrement();
+        this.numTransactions.accumulateAndGet(id + 1, Math::max);
+        return id;
+    }
 
-    public long addTransaction(Account srcAccount, Account destAccount, int amount) {
-        long id = this.numTransactions.getAndIncrement();
+    private long addTransaction(Account srcAccount, Account destAccount, int amount, long id) {
         Transaction t = new Transaction(id, srcAccount.getKey(), destAccount.getKey(), amount);
+        this.markDirty(srcAccount);
+        this.markDirty(destAccount);
         srcAccount.addPendingWithdrawal(t);
         destAccount.addPendingCredit(t);
         return t.getId();
     }
 
     // write back transaction in check account request
-    public void addPendingTransaction(Account acc, Transaction t){
+    private void addPendingTransaction(Account acc, Transaction t){
         Account acc2;
 
         // ensure the account is associated with the transaction and find the second one
         if(acc.getKey().equals(t.getDestKey()) && !acc.hasPendingCredit(t.getId())) {
             acc2 = this.getAccount(t.getSrcKey());
+            if (acc2 == null) return; // byzantine action
+            this.markDirty(acc);
+            this.markDirty(acc2);
             acc.addPendingCredit(t);
             acc2.addPendingWithdrawal(t);
         }
     }
 
-    // write back transaction in audit request
-    public void addTransaction(Account acc, Transaction t){
+    // write back transaction in audit request, returns the other account or null if nothing was added
+    private Account addTransaction(Account acc, Transaction t){
         Account acc2;
         boolean is_source;
 
@@ -97,63 +284,187 @@ public class Bank implements Serializable {
             is_source = false;
         }
         else
-            return; // byzantine action
+            return null; // byzantine action
+        if (acc2 == null) return null;
 
+        this.markDirty(acc);
+        this.markDirty(acc2);
         acc.addTransaction(t, is_source);
         acc2.addTransaction(t, !is_source);
+        return acc2;
     }
 
-    public void completeTransfer(Account srcAccount, Account destAccount, long TID) {
+    private void completeTransfer(Account srcAccount, Account destAccount, long TID) {
+        this.markDirty(srcAccount);
+        this.markDirty(destAccount);
         destAccount.completePendingCredit(TID);
         srcAccount.completePendingWithdrawal(TID);
     }
 
+    // locks the account and every existing account on the other end of the transactions
+    private AccountLocks.Held lockCounterparts(Account acc, List<Transaction> transactions) {
+        List<Long> ids = new ArrayList<>();
+        ids.add(acc.getID());
+        for (Transaction t : transactions) {
+            KeyHandle other = acc.getKey().equals(t.getSrcKey()) ? t.getDestKey() : t.getSrcKey();
+            Account acc2 = this.getAccount(other);
+            if (acc2 != null) ids.add(acc2.getID());
+        }
+        long[] accountIds = new long[ids.size()];
+        for (int i = 0; i < accountIds.length; i++)
+            accountIds[i] = ids.get(i);
+        return this.locks.lockAccounts(accountIds);
+    }
+
     /* ----------------------------- */
     /* ------ main operations ------ */
     /* ----------------------------- */
 
-    public long openAccount(PublicKey key) throws AccountAlreadyExistsException {
-        if(this.hasAccount(key)) throw new AccountAlreadyExistsException();
-        return this.addAccount(key);
+    public long openAccount(KeyHandle key) throws AccountAlreadyExistsException {
+        try {
+            return this.openAccount(key, -1, OperationLog.NONE);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // OperationLog.NONE does not throw
+        }
+    }
+
+    // id is the one recorded when replaying the operation, or -1 to take the next one
+    public long openAccount(KeyHandle key, long id, OperationLog log) throws AccountAlreadyExistsException, IOException {
+        try (AccountLocks.Held held = this.locks.lock(this.locks.stripe(key))) {
+            if(this.hasAccount(key)) throw new AccountAlreadyExistsException();
+            return this.addAccount(key, id, log).getID();
+        }
+    }
+
+    public long sendAmount(KeyHandle srcKey, KeyHandle destKey, int amount) throws NonExistentAccountException, EqualSourceAndDestinationException, InsufficientBalanceException, InvalidAmountException {
+        try {
+            return this.sendAmount(srcKey, destKey, amount, -1, OperationLog.NONE);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
-    public long sendAmount(PublicKey srcKey, PublicKey destKey, int amount) throws NonExistentAccountException, EqualSourceAndDestinationException, InsufficientBalanceException, InvalidAmountException {
+    // TID is the one recorded when replaying the operation, or -1 to take the next one
+    public long sendAmount(KeyHandle srcKey, KeyHandle destKey, int amount, long TID, OperationLog log) throws NonExistentAccountException, EqualSourceAndDestinationException, InsufficientBalanceException, InvalidAmountException, IOException {
         if (amount <= 0) throw new InvalidAmountException();
 
         Account srcAccount = this.getAccount(srcKey);
         Account destAccount = this.getAccount(destKey);
 
         if (srcAccount == null || destAccount == null) throw new NonExistentAccountException();
-        if (srcAccount.equals(destAccount)) throw new EqualSourceAndDestinationException();
-        if (srcAccount.getBalance() - amount < 0) throw new InsufficientBalanceException();
+        if (srcAccount.getID() == destAccount.getID()) throw new EqualSourceAndDestinationException();
+
+        try (AccountLocks.Held held = this.locks.lockAccounts(srcAccount.getID(), destAccount.getID())) {
+            srcAccount = this.getAccount(srcKey);
+            destAccount = this.getAccount(destKey);
+            if (srcAccount.getBalance() - amount < 0) throw new InsufficientBalanceException();
 
-        return this.addTransaction(srcAccount, destAccount, amount);
+            long id = this.takeTransactionId(TID);
+            log.record(id);
+            return this.addTransaction(srcAccount, destAccount, amount, id);
+        }
+    }
 
+    public long checkAccountBalance(KeyHandle key) throws NonExistentAccountException {
+        Account acc = this.getAccount(key);
+        if (acc == null) throw new NonExistentAccountException();
+        try (AccountLocks.Held held = this.locks.lockAccounts(acc.getID())) {
+            return this.getAccount(key).getBalance();
+        }
     }
 
-    public long checkAccountBalance(PublicKey key) throws NonExistentAccountException {
+    public List<Transaction> getPendingCredits(KeyHandle key) throws NonExistentAccountException {
         Account acc = this.getAccount(key);
         if (acc == null) throw new NonExistentAccountException();
-        return acc.getBalance();
+        try (AccountLocks.Held held = this.locks.lockAccounts(acc.getID())) {
+            return new ArrayList<>(this.getAccount(key).getPendingCredits());
+        }
+    }
+
+    public int receiveAmount(KeyHandle key, long TID) throws NonExistentAccountException, NonExistentTransactionException {
+        try {
+            return this.receiveAmount(key, TID, OperationLog.NONE);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
-    public int receiveAmount(PublicKey key, long TID) throws NonExistentAccountException, NonExistentTransactionException {
+    public int receiveAmount(KeyHandle key, long TID, OperationLog log) throws NonExistentAccountException, NonExistentTransactionException, IOException {
         Account acc = this.getAccount(key);
         if (acc == null) throw new NonExistentAccountException();
 
-        Transaction t = acc.getPendingCredit(TID);
+        // the source account is only known once the credit is found
+        Transaction t;
+        try (AccountLocks.Held held = this.locks.lockAccounts(acc.getID())) {
+            t = this.getAccount(key).getPendingCredit(TID);
+        }
         if (t == null) throw new NonExistentTransactionException();
 
         Account srcAcc = this.getAccount(t.getSrcKey());
         if (srcAcc == null) throw new NonExistentAccountException();
-        if (!srcAcc.hasPendingWithdrawal(TID)) throw new NonExistentTransactionException();
 
-        this.completeTransfer(srcAcc, acc, TID);
+        try (AccountLocks.Held held = this.locks.lockAccounts(acc.getID(), srcAcc.getID())) {
+            acc = this.getAccount(key);
+            srcAcc = this.getAccount(t.getSrcKey());
+            // a concurrent reception may have completed it in between
+            if (!acc.hasPendingCredit(TID) || !srcAcc.hasPendingWithdrawal(TID)) throw new NonExistentTransactionException();
+
+            log.record(TID);
+            this.completeTransfer(srcAcc, acc, TID);
+        }
+        this.spillIfNeeded(Arrays.asList(key, t.getSrcKey()));
         return t.getAmount();
     }
 
-    public Iterable<Transaction> audit(PublicKey key){
+    public void writeBackPendingTransactions(KeyHandle key, List<Transaction> transactions, OperationLog log) throws NonExistentAccountException, IOException {
+        Account acc = this.getAccount(key);
+        if (acc == null) throw new NonExistentAccountException();
+
+        try (AccountLocks.Held held = this.lockCounterparts(acc, transactions)) {
+            acc = this.getAccount(key);
+            log.record(-1);
+            for(Transaction t : transactions){
+                this.addPendingTransaction(acc, t);
+            }
+        }
+    }
+
+    public void writeBackTransactions(KeyHandle key, List<Transaction> transactions, OperationLog log) throws NonExistentAccountException, IOException {
+        Account acc = this.getAccount(key);
+        if (acc == null) throw new NonExistentAccountException();
+
+        Set<KeyHandle> changed = new LinkedHashSet<>();
+        try (AccountLocks.Held held = this.lockCounterparts(acc, transactions)) {
+            acc = this.getAccount(key);
+            log.record(-1);
+            long latestTID = acc.getLastestTransactionID();
+            for(Transaction t : transactions){
+                if(t.getId() > latestTID) {
+                    Account acc2 = this.addTransaction(acc, t);
+                    if (acc2 != null) changed.add(acc2.getKey());
+                }
+            }
+        }
+        if (!changed.isEmpty()) {
+            changed.add(key);
+            this.spillIfNeeded(changed);
+        }
+    }
+
+    // whole history, the cold part read back from the history store
+    public List<Transaction> audit(KeyHandle key) throws NonExistentAccountException, IOException {
         Account acc = this.getAccount(key);
-        return acc.getTransactions();
+        if (acc == null) throw new NonExistentAccountException();
+        long coldCount;
+        List<Transaction> history = new ArrayList<>();
+        try (AccountLocks.Held held = this.locks.lockAccounts(acc.getID())) {
+            acc = this.getAccount(key);
+            coldCount = acc.getColdCount();
+            history.addAll(acc.getRecentTransactions());
+        }
+        // cold blocks never change once written
+        if (coldCount > 0)
+            history.addAll(0, this.historyStore.read(acc.getID(), 0, coldCount));
+        return history;
     }
 }
@@ -0,0 +1,89 @@
+package pt.ulisboa.tecnico.sec.server.domain;
+
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Point-in-time view of a set of accounts, taken with copy-on-write. Opening the view
+ * only records the accounts and the bank counters; the accounts are copied later,
+ * either by the snapshot writer when it gets to them or, if a request is about to
+ * change one first, by that request just before the change. Either way every account
+ * is copied at most once and read as it was when the view was opened, while the bank
+ * keeps applying new operations.
+ */
+public class BankSnapshot {
+    private final Bank bank;
+    private final long epoch;
+    private final long timestamp;
+    private final long numAccounts;
+    private final long numTransactions;
+    private final List<Account> accounts;
+
+    // copies made by writers before changing an account the snapshot has not read yet
+    private final HashMap<Account, Account> preimages = new HashMap<>();
+
+    BankSnapshot(Bank bank, long epoch, List<Account> accounts) {
+        this.bank = bank;
+        this.epoch = epoch;
+        this.timestamp = bank.getTimestamp();
+        this.numAccounts = bank.getAccountCounter();
+        this.numTransactions = bank.getTransactionCounter();
+        this.accounts = accounts;
+        for (Account acc : accounts)
+            acc.setCaptureEpoch(epoch);
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getAccountCounter() {
+        return numAccounts;
+    }
+
+    public long getTransactionCounter() {
+        return numTransactions;
+    }
+
+    // the live accounts in the view, only their id and key may be read directly
+    public List<Account> getAccounts() {
+        return accounts;
+    }
+
+    // the account as it was when the view was opened, to be called once per account
+    public Account capture(Account live) {
+        synchronized (this) {
+            Account copy = this.preimages.remove(live);
+            if (copy != null) return copy;
+            live.setCaptureEpoch(0);
+            return live.copy();
+        }
+    }
+
+    // called by the bank before changing an account
+    void beforeWrite(Account live) {
+        synchronized (this) {
+            if (live.getCaptureEpoch() != this.epoch) return;
+            live.setCaptureEpoch(0);
+            this.preimages.put(live, live.copy());
+        }
+    }
+
+    public Account getAccount(KeyHandle key) {
+        return this.bank.getAccount(key);
+    }
+
+    // drops the copies nobody asked for, once the snapshot has been written or abandoned
+    public void close() {
+        this.bank.endSnapshot(this);
+        synchronized (this) {
+            for (Account acc : this.accounts)
+                if (acc.getCaptureEpoch() == this.epoch) acc.setCaptureEpoch(0);
+            this.preimages.clear();
+        }
+    }
+}
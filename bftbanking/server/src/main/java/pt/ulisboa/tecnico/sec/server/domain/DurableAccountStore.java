@@ -0,0 +1,22 @@
+package pt.ulisboa.tecnico.sec.server.domain;
+
+import java.io.IOException;
+import java.util.List;
+
+/*
+ * Account store that keeps the accounts on disk and is its own checkpoint: a commit
+ * writes the accounts of a snapshot view together with the journal sequence they
+ * reflect, and recovery resumes from the last complete commit.
+ *
+ * Accounts changed since the last commit are only in memory, so such a store must
+ * keep them resident until a commit holding them is durable.
+ */
+public interface DurableAccountStore extends AccountStore {
+    // sets the bank counters and timestamp of the last commit and returns its journal sequence
+    long recover(Bank bank) throws IOException;
+
+    void commit(BankSnapshot view, long journalSequence) throws IOException;
+
+    // resident accounts changed after the last successful commit
+    List<Account> getUnsavedAccounts();
+}
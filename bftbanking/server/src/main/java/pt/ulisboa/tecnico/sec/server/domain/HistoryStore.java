@@ -0,0 +1,17 @@
+package pt.ulisboa.tecnico.sec.server.domain;
+
+import java.io.IOException;
+import java.util.List;
+
+/*
+ * Cold tier of the account histories. An account keeps its most recent transactions
+ * in memory and hands older ones over in blocks; position is the index of the first
+ * transaction of the block in the account's whole history.
+ */
+public interface HistoryStore {
+    // must be durable once it returns, checkpoints only remember how many transactions were handed over
+    void append(long accountId, long position, List<Transaction> transactions) throws IOException;
+
+    // transactions [from, to) of the account's history
+    List<Transaction> read(long accountId, long from, long to) throws IOException;
+}
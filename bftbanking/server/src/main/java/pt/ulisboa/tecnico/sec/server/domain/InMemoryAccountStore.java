@@ -0,0 +1,49 @@
+package pt.ulisboa.tecnico.sec.server.domain;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Every account on the heap, persisted only through the journal and checkpoints.
+ */
+public class InMemoryAccountStore implements AccountStore {
+    // concurrent so that a snapshot being written can resolve keys while accounts are opened
+    private ConcurrentHashMap<KeyHandle, Account> accounts = new ConcurrentHashMap<>();
+    private AccountIdIndex accountsById = new AccountIdIndex();
+
+    @Override
+    public Account get(KeyHandle key) {
+        return this.accounts.get(key);
+    }
+
+    @Override
+    public Account getByID(long id) {
+        return this.accountsById.get(id);
+    }
+
+    @Override
+    public boolean contains(KeyHandle key) {
+        return this.accounts.containsKey(key);
+    }
+
+    @Override
+    public void put(Account account) {
+        this.accounts.put(account.getKey(), account);
+        this.accountsById.put(account.getID(), account);
+    }
+
+    @Override
+    public void pin(Account account) {
+        // never evicted
+    }
+
+    @Override
+    public long size() {
+        return this.accounts.size();
+    }
+
+    // every account, for full checkpoints
+    public Collection<Account> values() {
+        return this.accounts.values();
+    }
+}
@@ -0,0 +1,83 @@
+package pt.ulisboa.tecnico.sec.server.domain;
+
+import com.google.protobuf.ByteString;
+import pt.ulisboa.tecnico.sec.crypto.Crypto;
+import pt.ulisboa.tecnico.sec.crypto.CryptoEngine;
+
+import java.io.Serializable;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+
+/*
+ * A client public key as the server works with it: the encoded bytes the key arrived
+ * in, a 64-bit fingerprint of them computed once, and the decoded key, only parsed
+ * the first time a signature has to be checked with it.
+ *
+ * Handles come from the KeyRegistry, which hands out the same handle for the same
+ * bytes while it remembers them, so comparing two handles is usually a reference
+ * check. Handles of the same key obtained at different times are still equal.
+ */
+public final class KeyHandle implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final ByteString encoded;
+    private final long fingerprint;
+    private transient volatile PublicKey key;
+
+    KeyHandle(ByteString encoded) {
+        this.encoded = encoded;
+        this.fingerprint = fingerprint(encoded);
+    }
+
+    KeyHandle(PublicKey key) {
+        this(Crypto.getEncodedKey(key));
+        this.key = key;
+    }
+
+    public ByteString getEncoded() {
+        return this.encoded;
+    }
+
+    public long getFingerprint() {
+        return this.fingerprint;
+    }
+
+    // two threads may both decode a new key, they get equal keys; the handle is the cache, so the engine's is skipped
+    public PublicKey getPublicKey() throws NoSuchAlgorithmException, InvalidKeySpecException {
+        PublicKey key = this.key;
+        if (key == null) {
+            key = CryptoEngine.getDefault().decodePublicKey(this.encoded);
+            this.key = key;
+        }
+        return key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof KeyHandle)) return false;
+        KeyHandle other = (KeyHandle) o;
+        return this.fingerprint == other.fingerprint && this.encoded.equals(other.encoded);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (this.fingerprint ^ (this.fingerprint >>> 32));
+    }
+
+    // 64-bit FNV-1a over the encoded key, finished with the murmur3 mixer so every bit depends on every byte
+    static long fingerprint(ByteString encoded) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0, size = encoded.size(); i < size; i++) {
+            hash ^= encoded.byteAt(i) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,55 @@
+package pt.ulisboa.tecnico.sec.server.domain;
+
+import com.google.protobuf.ByteString;
+
+import java.security.PublicKey;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Interns client keys: the encoded bytes of a key are looked up once per request and
+ * every later use of the key (signature, nonce, account and transaction lookups)
+ * goes through the returned handle, which already holds the hash and decoded key.
+ *
+ * The registry is bounded, since anyone can send a key and the disk store may hold far
+ * more accounts than fit in memory. When it is full an arbitrary entry is dropped;
+ * objects still holding that handle keep working, the key is only hashed and decoded
+ * again the next time it arrives.
+ */
+public final class KeyRegistry {
+    private static volatile int capacity = 100000;
+    private static final ConcurrentHashMap<ByteString, KeyHandle> handles = new ConcurrentHashMap<>();
+
+    private KeyRegistry() {}
+
+    public static void setCapacity(int entries) {
+        capacity = Math.max(entries, 1);
+    }
+
+    public static KeyHandle get(ByteString encoded) {
+        KeyHandle handle = handles.get(encoded);
+        if (handle != null) return handle;
+
+        handle = new KeyHandle(encoded);
+        KeyHandle previous = handles.putIfAbsent(encoded, handle);
+        if (previous != null) return previous;
+        if (handles.size() > capacity) evict(encoded);
+        return handle;
+    }
+
+    public static KeyHandle get(PublicKey key) {
+        KeyHandle handle = new KeyHandle(key);
+        KeyHandle previous = handles.putIfAbsent(handle.getEncoded(), handle);
+        if (previous != null) return previous;
+        if (handles.size() > capacity) evict(handle.getEncoded());
+        return handle;
+    }
+
+    // drops entries in the iteration order of the map, which has nothing to do with their age
+    private static void evict(ByteString keep) {
+        Iterator<ByteString> it = handles.keySet().iterator();
+        while (handles.size() > capacity && it.hasNext()) {
+            if (!it.next().equals(keep)) it.remove();
+        }
+    }
+}
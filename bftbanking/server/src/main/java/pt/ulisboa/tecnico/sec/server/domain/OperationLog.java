@@ -0,0 +1,16 @@
+package pt.ulisboa.tecnico.sec.server.domain;
+
+import java.io.IOException;
+
+/*
+ * Called by the bank once an operation has passed its checks and before it changes any
+ * account, while the accounts it touches are locked. Operations sharing an account are
+ * therefore recorded in the same order they are applied, which is all a journal needs
+ * to replay them, and an operation that could not be recorded is not applied at all.
+ */
+public interface OperationLog {
+    OperationLog NONE = id -> {};
+
+    // id is the account id for openings, the transaction id for transfers and receptions, and -1 otherwise
+    void record(long id) throws IOException;
+}
@@ -1,24 +1,23 @@
 package pt.ulisboa.tecnico.sec.server.domain;
 
 import java.io.Serializable;
-import java.security.PublicKey;
 
 public class Transaction implements Serializable {
     private static final long serialVersionUID = 1L;
     private long id;
     private long timestamp;
-    private PublicKey srcKey;
-    private PublicKey destKey;
+    private KeyHandle srcKey;
+    private KeyHandle destKey;
     private int amount;
 
-    public Transaction(long id, PublicKey srcKey, PublicKey destKey, int amount){
+    public Transaction(long id, KeyHandle srcKey, KeyHandle destKey, int amount){
         this.id = id;
         this.srcKey = srcKey;
         this.destKey = destKey;
         this.amount = amount;
     }
 
-    public Transaction(PublicKey srcKey, PublicKey destKey, int amount){
+    public Transaction(KeyHandle srcKey, KeyHandle destKey, int amount){
         this.srcKey = srcKey;
         this.destKey = destKey;
         this.amount = amount;
@@ -28,11 +27,11 @@ public class Transaction implements Serializable {
         return id;
     }
 
-    public PublicKey getSrcKey() {
+    public KeyHandle getSrcKey() {
         return this.srcKey;
     }
 
-    public PublicKey getDestKey() {
+    public KeyHandle getDestKey() {
         return this.destKey;
     }
 
@@ -0,0 +1,14 @@
+package pt.ulisboa.tecnico.sec.server.exceptions;
+
+public class InvalidSessionException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public InvalidSessionException() {
+        super("Unknown or expired session.");
+    }
+
+    public InvalidSessionException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,170 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import pt.ulisboa.tecnico.sec.server.domain.Account;
+import pt.ulisboa.tecnico.sec.server.domain.Bank;
+import pt.ulisboa.tecnico.sec.server.domain.BankSnapshot;
+import pt.ulisboa.tecnico.sec.server.domain.DurableAccountStore;
+import pt.ulisboa.tecnico.sec.server.domain.InMemoryAccountStore;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Chain of checkpoint files <prefix>_<n>.full and <prefix>_<n>.delta. Recovery loads
+ * the newest full checkpoint and every delta written after it. After maxDeltas deltas
+ * the next checkpoint is a full one and the files it supersedes are deleted.
+ *
+ * A checkpoint is taken in two steps: begin() cuts a copy-on-write view of the bank and
+ * must run under the mutation lock, write() then saves that view and can run on any
+ * thread while the bank keeps changing. Only one checkpoint may be in progress.
+ *
+ * When the bank keeps its accounts in a DurableAccountStore the checkpoint files are
+ * not used: every checkpoint commits the changed accounts to the store instead.
+ */
+public class Checkpointer {
+    private Path directory;
+    private String prefix;
+    private int maxDeltas;
+
+    private long lastIndex = -1;
+    private int deltas = 0;
+    private long accountsAtLastCheckpoint = 0;
+
+    public static class Cut {
+        private final BankSnapshot view;
+        private final long index;
+        private final boolean full;
+        private final long firstNewAccount;
+        private final long journalSequence;
+        private final DurableAccountStore store;
+
+        private Cut(BankSnapshot view, long index, boolean full, long firstNewAccount, long journalSequence, DurableAccountStore store) {
+            this.view = view;
+            this.store = store;
+            this.index = index;
+            this.full = full;
+            this.firstNewAccount = firstNewAccount;
+            this.journalSequence = journalSequence;
+        }
+
+        public long getJournalSequence() {
+            return journalSequence;
+        }
+    }
+
+    public Checkpointer(String directory, String prefix, int maxDeltas) {
+        this.directory = Paths.get(directory);
+        this.prefix = prefix;
+        this.maxDeltas = maxDeltas;
+    }
+
+    // loads the checkpoint chain into the bank and returns the last journal sequence it covers
+    public synchronized long recover(Bank bank) throws IOException {
+        if (bank.getStore() instanceof DurableAccountStore) {
+            long sequence = ((DurableAccountStore) bank.getStore()).recover(bank);
+            bank.drainDirtyAccounts();
+            return sequence;
+        }
+
+        TreeMap<Long, Path> fulls = this.listFiles(".full");
+        TreeMap<Long, Path> deltaFiles = this.listFiles(".delta");
+        if (fulls.isEmpty()) return 0;
+
+        HashMap<Long, KeyHandle> keysById = new HashMap<>();
+        long base = fulls.lastKey();
+        long sequence = Snapshot.read(fulls.get(base), bank, keysById).getJournalSequence();
+        this.lastIndex = base;
+        for (Map.Entry<Long, Path> delta : deltaFiles.tailMap(base, false).entrySet()) {
+            sequence = Snapshot.read(delta.getValue(), bank, keysById).getJournalSequence();
+            this.lastIndex = delta.getKey();
+            this.deltas++;
+        }
+        bank.drainDirtyAccounts();
+        this.accountsAtLastCheckpoint = bank.getAccountCounter();
+        System.out.println("Loaded checkpoint " + fulls.get(base).getFileName() + " and " + this.deltas + " incremental checkpoints");
+        return sequence;
+    }
+
+    // takes a checkpoint on the calling thread
+    public void checkpoint(Bank bank, long journalSequence) throws IOException {
+        this.write(this.begin(bank, journalSequence));
+    }
+
+    // opens a view of the accounts changed since the previous checkpoint, or of the whole bank every maxDeltas checkpoints
+    public synchronized Cut begin(Bank bank, long journalSequence) {
+        List<Account> dirty = bank.drainDirtyAccounts();
+        boolean full = this.lastIndex < 0 || this.deltas >= this.maxDeltas;
+        DurableAccountStore store = bank.getStore() instanceof DurableAccountStore ? (DurableAccountStore) bank.getStore() : null;
+        List<Account> accounts;
+        if (store != null)
+            // a full checkpoint of a store only has to catch up on commits that failed
+            accounts = full ? store.getUnsavedAccounts() : dirty;
+        else
+            // any other store is an InMemoryAccountStore, with every account on the heap
+            accounts = full ? new ArrayList<>(((InMemoryAccountStore) bank.getStore()).values()) : dirty;
+        Cut cut = new Cut(bank.beginSnapshot(accounts), this.lastIndex + 1, full, full ? 0 : this.accountsAtLastCheckpoint, journalSequence, store);
+        this.lastIndex = cut.index;
+        this.accountsAtLastCheckpoint = cut.view.getAccountCounter();
+        return cut;
+    }
+
+    public void write(Cut cut) throws IOException {
+        try {
+            if (cut.store != null)
+                cut.store.commit(cut.view, cut.journalSequence);
+            else if (cut.full)
+                Snapshot.write(path(cut.index, ".full"), Snapshot.FULL, cut.view, cut.firstNewAccount, cut.journalSequence);
+            else
+                Snapshot.write(path(cut.index, ".delta"), Snapshot.DELTA, cut.view, cut.firstNewAccount, cut.journalSequence);
+        } catch (IOException e) {
+            synchronized (this) {
+                this.deltas = this.maxDeltas; // the changes in this view are lost to deltas, start over with a full one
+            }
+            throw e;
+        } finally {
+            cut.view.close();
+        }
+
+        if (cut.full && cut.store == null)
+            this.deleteBefore(cut.index);
+        synchronized (this) {
+            this.deltas = cut.full ? 0 : this.deltas + 1;
+        }
+    }
+
+    private void deleteBefore(long index) throws IOException {
+        for (Path file : this.listFiles(".full").headMap(index).values())
+            Files.deleteIfExists(file);
+        for (Path file : this.listFiles(".delta").headMap(index).values())
+            Files.deleteIfExists(file);
+    }
+
+    private TreeMap<Long, Path> listFiles(String extension) {
+        TreeMap<Long, Path> indexed = new TreeMap<>();
+        File[] files = this.directory.toFile().listFiles();
+        if (files == null) return indexed;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(prefix + "_") || !name.endsWith(extension)) continue;
+            try {
+                indexed.put(Long.parseLong(name.substring(prefix.length() + 1, name.length() - extension.length())), file.toPath());
+            } catch (NumberFormatException e) {
+                // not one of ours
+            }
+        }
+        return indexed;
+    }
+
+    private Path path(long index, String extension) {
+        return this.directory.resolve(prefix + "_" + index + extension);
+    }
+}
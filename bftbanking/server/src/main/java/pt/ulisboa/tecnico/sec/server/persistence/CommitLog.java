@@ -0,0 +1,15 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import java.io.IOException;
+
+/*
+ * Durable destination of bank mutations. append() hands out the sequence number of
+ * the record and awaitDurable() blocks until that record survives a crash. Server
+ * appends under the same lock it applies the mutation with, so the log order is the
+ * apply order, and only waits for durability after releasing it.
+ */
+public interface CommitLog {
+    long append(JournalEntry entry) throws IOException;
+
+    void awaitDurable(long sequence) throws IOException;
+}
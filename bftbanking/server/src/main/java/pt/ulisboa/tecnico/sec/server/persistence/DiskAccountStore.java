@@ -0,0 +1,595 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import com.google.protobuf.ByteString;
+import pt.ulisboa.tecnico.sec.server.domain.Account;
+import pt.ulisboa.tecnico.sec.server.domain.Bank;
+import pt.ulisboa.tecnico.sec.server.domain.BankSnapshot;
+import pt.ulisboa.tecnico.sec.server.domain.DurableAccountStore;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+import pt.ulisboa.tecnico.sec.server.domain.KeyRegistry;
+import pt.ulisboa.tecnico.sec.server.domain.Transaction;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/*
+ * Accounts kept on disk, with a bounded LRU cache of live Account objects.
+ *
+ *   <prefix>.dat   append-only account records; the records of a commit are followed
+ *                  by a commit block listing where they are
+ *   <prefix>.loc   dense table, account id -> [record offset][key hash]
+ *   <prefix>.idx   open-addressing hash table, key hash -> account id
+ *   <prefix>.meta  how far into .dat the two tables are up to date, replaced atomically
+ *
+ * A commit forces its records, then its commit block, and only then updates the
+ * tables, so recovery just re-applies every complete commit block after the point
+ * recorded in .meta. An account changed after the last successful commit is never
+ * evicted, since the live object is the only copy of its state.
+ *
+ * The store's monitor only guards the cache, a miss reads the disk outside it. Reads of
+ * the tables share a read lock that a commit takes exclusively while it updates them,
+ * and a loaded account is installed in the cache before that lock is let go, so a commit
+ * cannot slip in between and leave a stale copy cached. Loads of the same id are kept
+ * apart by a striped lock, the second one finds the account the first one cached.
+ */
+public class DiskAccountStore implements DurableAccountStore {
+    private static final int MAGIC = 0x42465441; // "BFTA"
+    private static final int DATA_HEADER = 8;
+    private static final byte RECORD = 1;
+    private static final byte COMMIT = 2;
+    private static final int ENTRY_HEADER = 9; // [type][length][crc32]
+    private static final int LOC_ENTRY = 16;
+    private static final int IDX_HEADER = 16;
+    private static final int IDX_SLOT = 16;
+    private static final long MIN_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.7;
+    private static final int LOAD_STRIPES = 64;
+
+    private Path directory;
+    private String prefix;
+    private int cacheSize;
+
+    private FileChannel data;
+    private FileChannel locations;
+    private FileChannel index;
+    private long dataEnd;
+    private long capacity;
+    private long storedAccounts = 0;   // accounts in the tables
+    private long count = 0;            // including the ones not committed yet
+    private volatile long durableEpoch = 0;
+
+    // state of the last commit applied to the tables
+    private long journalSequence = 0;
+    private long timestamp = 0;
+    private long numTransactions = 0;
+
+    private LinkedHashMap<KeyHandle, Account> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private HashMap<Long, Account> cacheById = new HashMap<>();
+
+    private final ReentrantReadWriteLock tables = new ReentrantReadWriteLock(); // .loc and .idx, and the state of the last commit, taken before the monitor
+    private final Object[] loading = new Object[LOAD_STRIPES];
+
+    public DiskAccountStore(String directory, String prefix, int cacheSize) throws IOException {
+        this.directory = Paths.get(directory);
+        this.prefix = prefix;
+        this.cacheSize = cacheSize;
+
+        this.data = open(".dat");
+        if (this.data.size() < DATA_HEADER) {
+            ByteBuffer header = ByteBuffer.allocate(DATA_HEADER).putInt(MAGIC).putInt(1);
+            header.flip();
+            this.data.write(header, 0);
+            this.data.force(true);
+        }
+        this.locations = open(".loc");
+        this.index = open(".idx");
+        if (this.index.size() < IDX_HEADER)
+            this.initIndex(this.index, MIN_CAPACITY);
+        this.capacity = this.readLong(this.index, 8);
+        for (int i = 0; i < LOAD_STRIPES; i++)
+            this.loading[i] = new Object();
+    }
+
+    /* ---------------------- */
+    /* ------ recovery ------ */
+    /* ---------------------- */
+
+    @Override
+    public long recover(Bank bank) throws IOException {
+        this.tables.writeLock().lock();
+        try {
+            synchronized (this) {
+                return this.recoverTables(bank);
+            }
+        } finally {
+            this.tables.writeLock().unlock();
+        }
+    }
+
+    private long recoverTables(Bank bank) throws IOException {
+        long applied = DATA_HEADER;
+        Path meta = this.path(".meta");
+        if (Files.exists(meta)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(meta)))) {
+                if (in.readInt() != MAGIC) throw new IOException("Not an account store: " + meta);
+                applied = in.readLong();
+                this.journalSequence = in.readLong();
+                this.timestamp = in.readLong();
+                this.storedAccounts = in.readLong();
+                this.numTransactions = in.readLong();
+            }
+        }
+
+        // re-apply the commits that made it to the data file but not to the tables
+        long position = applied;
+        long size = this.data.size();
+        int commits = 0;
+        ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER);
+        while (position + ENTRY_HEADER <= size) {
+            header.clear();
+            this.data.read(header, position);
+            header.flip();
+            byte type = header.get();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if ((type != RECORD && type != COMMIT) || length < 0 || position + ENTRY_HEADER + length > size)
+                break;
+            if (type == COMMIT) {
+                ByteBuffer block = this.read(this.data, position + ENTRY_HEADER, length);
+                if (checksum(block) != checksum)
+                    break;
+                this.applyCommit(block);
+                applied = position + ENTRY_HEADER + length;
+                commits++;
+            }
+            position += ENTRY_HEADER + length;
+        }
+        if (applied < size) {
+            // records of a commit that never got its commit block
+            System.out.println("Discarding " + (size - applied) + " bytes of uncommitted account records");
+            this.data.truncate(applied);
+        }
+        this.dataEnd = applied;
+        if (commits > 0)
+            this.writeMeta();
+
+        this.count = this.storedAccounts;
+        bank.restoreCounters(this.storedAccounts, this.numTransactions);
+        bank.setTimestamp(this.timestamp);
+        System.out.println("Opened account store with " + this.storedAccounts + " accounts, re-applied " + commits + " commits");
+        return this.journalSequence;
+    }
+
+    /* -------------------- */
+    /* ------ commit ------ */
+    /* -------------------- */
+
+    @Override
+    public void commit(BankSnapshot view, long journalSequence) throws IOException {
+        long start = this.dataEnd;
+        List<long[]> entries = new ArrayList<>(); // id, key hash, offset
+        long position = start;
+        boolean committed = false;
+
+        try {
+            for (Account live : view.getAccounts()) {
+                Account acc = view.capture(live);
+                ByteBuffer record = encode(acc);
+                entries.add(new long[]{acc.getID(), hash(acc.getKey().getEncoded()), position});
+                position = this.append(RECORD, record, position);
+            }
+            this.data.force(false);
+
+            ByteBuffer block = ByteBuffer.allocate(8 * 4 + 4 + entries.size() * 24);
+            block.putLong(journalSequence);
+            block.putLong(view.getTimestamp());
+            block.putLong(view.getAccountCounter());
+            block.putLong(view.getTransactionCounter());
+            block.putInt(entries.size());
+            for (long[] entry : entries)
+                block.putLong(entry[0]).putLong(entry[1]).putLong(entry[2]);
+            block.flip();
+            position = this.append(COMMIT, block.duplicate(), position);
+            this.data.force(false);
+            committed = true;
+            this.dataEnd = position;
+
+            this.tables.writeLock().lock();
+            try {
+                this.applyCommit(block);
+                this.locations.force(false);
+                this.index.force(false);
+                this.writeMeta();
+            } finally {
+                this.tables.writeLock().unlock();
+            }
+            synchronized (this) {
+                this.durableEpoch = view.getEpoch();
+                this.evict();
+            }
+        } finally {
+            // an incomplete commit is overwritten by the next one
+            if (!committed) this.data.truncate(start);
+        }
+    }
+
+    private long append(byte type, ByteBuffer payload, long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER);
+        header.put(type).putInt(payload.remaining()).putInt(checksum(payload));
+        header.flip();
+        while (header.hasRemaining())
+            position += this.data.write(header, position);
+        while (payload.hasRemaining())
+            position += this.data.write(payload, position);
+        return position;
+    }
+
+    // points the tables at the records of a commit block, applying one twice is harmless
+    private void applyCommit(ByteBuffer block) throws IOException {
+        block = block.duplicate();
+        this.journalSequence = block.getLong();
+        this.timestamp = block.getLong();
+        long numAccounts = block.getLong();
+        this.numTransactions = block.getLong();
+        int n = block.getInt();
+
+        if (numAccounts > this.capacity * MAX_LOAD)
+            this.resizeIndex(numAccounts);
+
+        ByteBuffer entry = ByteBuffer.allocate(LOC_ENTRY);
+        for (int i = 0; i < n; i++) {
+            long id = block.getLong();
+            long hash = block.getLong();
+            long offset = block.getLong();
+            entry.clear();
+            entry.putLong(offset).putLong(hash);
+            entry.flip();
+            this.locations.write(entry, id * LOC_ENTRY);
+            this.insert(this.index, this.capacity, hash, id);
+        }
+        this.storedAccounts = Math.max(this.storedAccounts, numAccounts);
+    }
+
+    private void writeMeta() throws IOException {
+        Path meta = this.path(".meta");
+        Path tmp = this.path(".meta.tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeLong(this.dataEnd);
+            out.writeLong(this.journalSequence);
+            out.writeLong(this.timestamp);
+            out.writeLong(this.storedAccounts);
+            out.writeLong(this.numTransactions);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp, meta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* --------------------------- */
+    /* ------ account store ------ */
+    /* --------------------------- */
+
+    @Override
+    public Account get(KeyHandle key) {
+        synchronized (this) {
+            Account acc = this.cache.get(key);
+            if (acc != null) return acc;
+        }
+
+        long hash = hash(key.getEncoded());
+        this.tables.readLock().lock();
+        try {
+            long mask = this.capacity - 1;
+            for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+                ByteBuffer entry = this.read(this.index, IDX_HEADER + slot * IDX_SLOT, IDX_SLOT);
+                long slotHash = entry.getLong();
+                long id = entry.getLong() - 1;
+                if (id < 0) return null;
+                if (slotHash != hash) continue;
+                Account acc = this.fetch(id);
+                if (acc != null && acc.getKey().equals(key)) return acc;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read account store", e);
+        } finally {
+            this.tables.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Account getByID(long id) {
+        synchronized (this) {
+            Account acc = this.cacheById.get(id);
+            if (acc != null) return acc;
+        }
+        this.tables.readLock().lock();
+        try {
+            return this.fetch(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read account store", e);
+        } finally {
+            this.tables.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(KeyHandle key) {
+        return this.get(key) != null;
+    }
+
+    @Override
+    public synchronized void put(Account account) {
+        this.cache(account);
+        this.count = Math.max(this.count, account.getID() + 1);
+    }
+
+    // the live object being changed replaces any copy loaded for reading after it was evicted
+    @Override
+    public synchronized void pin(Account account) {
+        if (this.cacheById.get(account.getID()) != account)
+            this.cache(account);
+    }
+
+    @Override
+    public synchronized long size() {
+        return this.count;
+    }
+
+    @Override
+    public synchronized List<Account> getUnsavedAccounts() {
+        List<Account> unsaved = new ArrayList<>();
+        for (Account acc : this.cache.values())
+            if (acc.getDirtyEpoch() > this.durableEpoch) unsaved.add(acc);
+        return unsaved;
+    }
+
+    public void close() throws IOException {
+        this.tables.writeLock().lock();
+        try {
+            this.data.close();
+            this.locations.close();
+            this.index.close();
+        } finally {
+            this.tables.writeLock().unlock();
+        }
+    }
+
+    /* ------------------------------- */
+    /* ------ cache and records ------ */
+    /* ------------------------------- */
+
+    private void cache(Account acc) {
+        Account previous = this.cacheById.put(acc.getID(), acc);
+        if (previous != null) this.cache.remove(previous.getKey());
+        this.cache.put(acc.getKey(), acc);
+        this.evict();
+    }
+
+    private void evict() {
+        Iterator<Account> eldest = this.cache.values().iterator();
+        while (this.cache.size() > this.cacheSize && eldest.hasNext()) {
+            Account acc = eldest.next();
+            if (acc.getDirtyEpoch() > this.durableEpoch) continue;
+            eldest.remove();
+            this.cacheById.remove(acc.getID());
+        }
+    }
+
+    // the cached account or the one read from disk, to be called holding the read lock on the tables
+    private Account fetch(long id) throws IOException {
+        if (id < 0) return null;
+        synchronized (this.loading[(int) (id % LOAD_STRIPES)]) {
+            synchronized (this) {
+                Account cached = this.cacheById.get(id);
+                if (cached != null) return cached;
+            }
+            Account acc = this.load(id);
+            if (acc == null) return null;
+            synchronized (this) {
+                // put or pinned meanwhile, the live object wins
+                Account cached = this.cacheById.get(id);
+                if (cached != null) return cached;
+                this.cache(acc);
+                return acc;
+            }
+        }
+    }
+
+    private Account load(long id) throws IOException {
+        if (id < 0 || id >= this.storedAccounts) return null;
+        long offset = this.read(this.locations, id * LOC_ENTRY, LOC_ENTRY).getLong();
+        if (offset == 0) return null;
+
+        ByteBuffer header = this.read(this.data, offset, ENTRY_HEADER);
+        header.get();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        ByteBuffer record = this.read(this.data, offset + ENTRY_HEADER, length);
+        if (checksum(record) != checksum)
+            throw new IOException("Corrupted record of account " + id);
+
+        long recordId = record.getLong();
+        KeyHandle key = this.getKey(record);
+        long balance = record.getLong();
+        long coldCount = record.getLong();
+        Account acc = new Account(key, recordId, balance, 0);
+        List<Transaction> history = this.getTransactions(record);
+        List<Transaction> withdrawals = this.getTransactions(record);
+        List<Transaction> credits = this.getTransactions(record);
+        acc.restore(coldCount, history, withdrawals, credits);
+        return acc;
+    }
+
+    private static ByteBuffer encode(Account acc) {
+        List<Collection<Transaction>> lists = new ArrayList<>();
+        lists.add(acc.getRecentTransactions());
+        lists.add(acc.getPendingWithdrawals());
+        lists.add(acc.getPendingCredits());
+
+        ByteString key = acc.getKey().getEncoded();
+        int size = 8 + 4 + key.size() + 8 + 8;
+        for (Collection<Transaction> list : lists) {
+            size += 4;
+            for (Transaction t : list)
+                size += 8 + 4 + t.getSrcKey().getEncoded().size() + 4 + t.getDestKey().getEncoded().size() + 4;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.putLong(acc.getID());
+        putBytes(record, key);
+        record.putLong(acc.getBalance());
+        record.putLong(acc.getColdCount());
+        for (Collection<Transaction> list : lists) {
+            record.putInt(list.size());
+            for (Transaction t : list) {
+                record.putLong(t.getId());
+                putBytes(record, t.getSrcKey().getEncoded());
+                putBytes(record, t.getDestKey().getEncoded());
+                record.putInt(t.getAmount());
+            }
+        }
+        record.flip();
+        return record;
+    }
+
+    private List<Transaction> getTransactions(ByteBuffer record) throws IOException {
+        int n = record.getInt();
+        List<Transaction> transactions = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            transactions.add(new Transaction(record.getLong(), this.getKey(record), this.getKey(record), record.getInt()));
+        return transactions;
+    }
+
+    private KeyHandle getKey(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return KeyRegistry.get(ByteString.copyFrom(bytes));
+    }
+
+    private static void putBytes(ByteBuffer buffer, ByteString bytes) {
+        buffer.putInt(bytes.size());
+        bytes.copyTo(buffer);
+    }
+
+    /* ------------------------ */
+    /* ------ hash index ------ */
+    /* ------------------------ */
+
+    private void initIndex(FileChannel channel, long capacity) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(IDX_HEADER).putInt(MAGIC).putInt(0).putLong(capacity);
+        header.flip();
+        channel.write(header, 0);
+        // zeroed slots are empty, extending the file is enough
+        channel.write(ByteBuffer.allocate(1), IDX_HEADER + capacity * IDX_SLOT - 1);
+    }
+
+    // slots hold the key hash and id + 1, so that an all-zero slot is empty
+    private void insert(FileChannel channel, long capacity, long hash, long id) throws IOException {
+        long mask = capacity - 1;
+        for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long position = IDX_HEADER + slot * IDX_SLOT;
+            ByteBuffer entry = this.read(channel, position, IDX_SLOT);
+            entry.getLong();
+            long stored = entry.getLong() - 1;
+            if (stored == id) return;
+            if (stored < 0) {
+                entry.clear();
+                entry.putLong(hash).putLong(id + 1);
+                entry.flip();
+                channel.write(entry, position);
+                return;
+            }
+        }
+    }
+
+    // rebuilds the table with room for the given number of accounts from the hashes kept in .loc
+    private void resizeIndex(long accounts) throws IOException {
+        long capacity = this.capacity;
+        while (accounts > capacity * MAX_LOAD)
+            capacity *= 2;
+
+        Path tmp = this.path(".idx.tmp");
+        try (FileChannel resized = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.initIndex(resized, capacity);
+            ByteBuffer chunk = ByteBuffer.allocate(LOC_ENTRY * 4096);
+            for (long id = 0; id < this.storedAccounts; ) {
+                chunk.clear();
+                int n = this.locations.read(chunk, id * LOC_ENTRY);
+                if (n <= 0) break;
+                chunk.flip();
+                while (chunk.remaining() >= LOC_ENTRY) {
+                    long offset = chunk.getLong();
+                    long hash = chunk.getLong();
+                    if (offset != 0 && id < this.storedAccounts) this.insert(resized, capacity, hash, id);
+                    id++;
+                }
+            }
+            resized.force(true);
+        }
+        this.index.close();
+        Files.move(tmp, this.path(".idx"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.index = open(".idx");
+        this.capacity = capacity;
+    }
+
+    /* --------------------- */
+    /* ------ helpers ------ */
+    /* --------------------- */
+
+    // 64-bit FNV-1a, part of the index format
+    private static long hash(ByteString bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0, size = bytes.size(); i < size; i++) {
+            hash ^= bytes.byteAt(i) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static int checksum(ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                // past the end of a sparse table reads as zeros
+                break;
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private long readLong(FileChannel channel, long position) throws IOException {
+        return this.read(channel, position, 8).getLong();
+    }
+
+    private FileChannel open(String extension) throws IOException {
+        return FileChannel.open(this.path(extension), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path path(String extension) {
+        return this.directory.resolve(prefix + extension);
+    }
+}
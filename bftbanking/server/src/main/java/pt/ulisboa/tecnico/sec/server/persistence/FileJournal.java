@@ -0,0 +1,133 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import pt.ulisboa.tecnico.sec.server.domain.Bank;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Journal kept in files <prefix>_<n>.log and written through a FileChannel: one write()
+ * call per record and one force() per sync.
+ */
+public class FileJournal extends Journal {
+    private long fileIndex;
+    private volatile FileChannel channel;
+
+    public FileJournal(String directory, String prefix) throws IOException {
+        super(Paths.get(directory), prefix, ".log");
+        TreeMap<Long, Path> files = this.listFiles();
+        this.open(files.isEmpty() ? 0 : files.lastKey());
+    }
+
+    @Override
+    public synchronized long write(JournalEntry entry) throws IOException {
+        int length = entry.encodedSize();
+        long sequence = this.lastSequence + 1;
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+        record.position(HEADER_SIZE);
+        entry.encodeTo(record);
+        record.flip();
+        record.putInt(0, length);
+        ByteBuffer payload = record.duplicate();
+        payload.position(HEADER_SIZE);
+        record.putInt(4, checksum(sequence, payload));
+        record.putLong(8, sequence);
+
+        while (record.hasRemaining())
+            this.channel.write(record);
+        this.lastSequence = sequence;
+        return sequence;
+    }
+
+    // not synchronized so that writers can keep appending while the disk flushes
+    @Override
+    public void sync() throws IOException {
+        FileChannel current = this.channel;
+        try {
+            current.force(false);
+        } catch (ClosedChannelException e) {
+            // rolled over meanwhile, roll() forced the old file before closing it
+            if (current == this.channel) throw e;
+        }
+    }
+
+    @Override
+    public synchronized int replay(Bank bank, long snapshotSequence) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long lastSeen = -1;
+        int count = 0;
+
+        for (Map.Entry<Long, Path> file : this.listFiles().entrySet()) {
+            boolean current = file.getKey() == this.fileIndex;
+            try (FileChannel older = current ? null : FileChannel.open(file.getValue(), StandardOpenOption.READ)) {
+                FileChannel channel = current ? this.channel : older;
+                long position = 0;
+                long size = channel.size();
+
+                while (position + HEADER_SIZE <= size) {
+                    header.clear();
+                    channel.read(header, position);
+                    header.flip();
+                    int length = header.getInt();
+                    int checksum = header.getInt();
+                    long sequence = header.getLong();
+                    if (length <= 0 || position + HEADER_SIZE + length > size || (lastSeen >= 0 && sequence != lastSeen + 1))
+                        break;
+
+                    ByteBuffer payload = ByteBuffer.allocate(length);
+                    channel.read(payload, position + HEADER_SIZE);
+                    payload.flip();
+                    if (checksum(sequence, payload) != checksum)
+                        break;
+
+                    if (sequence > snapshotSequence) {
+                        JournalEntry.decode(payload).apply(bank);
+                        count++;
+                    }
+                    position += HEADER_SIZE + length;
+                    lastSeen = sequence;
+                }
+
+                if (position < size) {
+                    // only the file being written when the server stopped can hold a torn record
+                    if (!current) throw new IOException("Corrupted journal file " + file.getValue().getFileName());
+                    System.out.println("Discarding " + (size - position) + " bytes of incomplete journal records");
+                    channel.truncate(position);
+                }
+                if (current) channel.position(position);
+            }
+        }
+
+        this.lastSequence = Math.max(lastSeen, snapshotSequence);
+        return count;
+    }
+
+    @Override
+    public synchronized long roll() throws IOException {
+        FileChannel old = this.channel;
+        old.force(false);
+        this.open(this.fileIndex + 1);
+        old.close();
+        return this.fileIndex;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.channel.close();
+    }
+
+    private void open(long index) throws IOException {
+        FileChannel channel = FileChannel.open(this.filePath(index), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        this.fileIndex = index;
+        this.channel = channel;
+    }
+}
@@ -0,0 +1,183 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Group commit on top of the journal: appends only write the record, and a single
+ * flusher thread forces the journal once per batch. A batch is closed when it holds
+ * maxBatchSize records or when its oldest record has waited maxWaitMicros, and every
+ * caller waiting in awaitDurable() for that batch is released by the same fsync.
+ *
+ * A failed fsync is fatal, as in the Sequencer: after it nothing written since the last
+ * good sync can be trusted to be on disk, and a later sync succeeding would not say which
+ * records made it. The flusher stops, appends are refused and every caller not already
+ * durable fails with the same error.
+ */
+public class GroupCommitter implements CommitLog {
+    private final Journal journal;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final Thread flusher;
+
+    private final Object lock = new Object();
+    private long written = 0;
+    private long durable = 0;
+    private int pending = 0;
+    private long firstPendingTime = 0;
+    private IOException failure = null; // the sync failure that stopped the committer
+    private boolean running = true;
+
+    // metrics
+    private long batches = 0;
+    private long entries = 0;
+    private int maxBatch = 0;
+    private long totalCommitNanos = 0;
+    private long maxCommitNanos = 0;
+
+    public GroupCommitter(Journal journal, int maxBatchSize, long maxWaitMicros) {
+        this.journal = journal;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.durable = journal.getLastSequence();
+        this.written = this.durable;
+        this.flusher = new Thread(this::flushLoop, "journal-group-commit");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    @Override
+    public long append(JournalEntry entry) throws IOException {
+        synchronized (lock) {
+            if (failure != null) throw failed();
+        }
+        long sequence = this.journal.write(entry);
+        synchronized (lock) {
+            pending++;
+            written = Math.max(written, sequence);
+            // wake the flusher to open a new batch or because the current one is full
+            if (pending == 1) {
+                firstPendingTime = System.nanoTime();
+                lock.notifyAll();
+            } else if (pending >= maxBatchSize) {
+                lock.notifyAll();
+            }
+        }
+        return sequence;
+    }
+
+    @Override
+    public void awaitDurable(long sequence) throws IOException {
+        synchronized (lock) {
+            while (durable < sequence) {
+                if (failure != null) throw failed();
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for journal commit");
+                }
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            long target;
+            int batchSize;
+            long batchStart;
+            synchronized (lock) {
+                try {
+                    while (running && pending == 0)
+                        lock.wait();
+                    long remaining = firstPendingTime + maxWaitNanos - System.nanoTime();
+                    while (running && pending < maxBatchSize && remaining > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                        remaining = firstPendingTime + maxWaitNanos - System.nanoTime();
+                    }
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+                if (pending == 0 && !running) return;
+                target = written;
+                batchSize = pending;
+                batchStart = firstPendingTime;
+                pending = 0;
+            }
+
+            try {
+                this.journal.sync();
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    running = false;
+                    lock.notifyAll();
+                }
+                return;
+            }
+
+            long latency = System.nanoTime() - batchStart;
+            synchronized (lock) {
+                durable = Math.max(durable, target);
+                batches++;
+                entries += batchSize;
+                maxBatch = Math.max(maxBatch, batchSize);
+                totalCommitNanos += latency;
+                maxCommitNanos = Math.max(maxCommitNanos, latency);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // flushes whatever is pending and stops the flusher thread
+    public void close() throws IOException {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            this.flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            if (failure != null) throw failed();
+        }
+        this.journal.sync();
+    }
+
+    private IOException failed() {
+        return new IOException("Journal commit failed: " + failure.getMessage(), failure);
+    }
+
+    /* --------------------- */
+    /* ------ metrics ------ */
+    /* --------------------- */
+
+    public long getBatches() {
+        synchronized (lock) { return batches; }
+    }
+
+    public double getAverageBatchSize() {
+        synchronized (lock) { return batches == 0 ? 0 : (double) entries / batches; }
+    }
+
+    public int getMaxBatchSize() {
+        synchronized (lock) { return maxBatch; }
+    }
+
+    // time between the first record of a batch being written and the batch being durable
+    public double getAverageCommitLatencyMicros() {
+        synchronized (lock) { return batches == 0 ? 0 : totalCommitNanos / 1000.0 / batches; }
+    }
+
+    public double getMaxCommitLatencyMicros() {
+        synchronized (lock) { return maxCommitNanos / 1000.0; }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d commits, %.1f entries/batch (max %d), commit latency %.0fus avg / %.0fus max",
+                getBatches(), getAverageBatchSize(), getMaxBatchSize(), getAverageCommitLatencyMicros(), getMaxCommitLatencyMicros());
+    }
+}
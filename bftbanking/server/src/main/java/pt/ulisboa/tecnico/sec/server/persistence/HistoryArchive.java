@@ -0,0 +1,278 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import com.google.protobuf.ByteString;
+import pt.ulisboa.tecnico.sec.server.domain.Account;
+import pt.ulisboa.tecnico.sec.server.domain.Bank;
+import pt.ulisboa.tecnico.sec.server.domain.HistoryStore;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+import pt.ulisboa.tecnico.sec.server.domain.KeyRegistry;
+import pt.ulisboa.tecnico.sec.server.domain.Transaction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/*
+ * Cold tier of the account histories, kept in append-only segment files
+ * <prefix>_<n>.hist. Every block holds a run of transactions of one account:
+ *
+ *   [length][crc32][account id][position][count] transactions...
+ *
+ * Blocks are never changed once written and a segment is never written again once
+ * the next one is started. The in-memory index maps each account to the blocks
+ * holding its history, in position order, and is rebuilt on startup from the block
+ * headers alone. A block written for a position the index already covers (an
+ * operation replayed after a crash spilling again) replaces what it overlaps.
+ */
+public class HistoryArchive implements HistoryStore {
+    private static final int HEADER_SIZE = 28;
+
+    private static class Extent {
+        long position;
+        int count;
+        FileChannel segment;
+        long offset;    // of the block header
+        int length;     // of the block payload
+        int checksum;
+    }
+
+    private Path directory;
+    private String prefix;
+    private long segmentSize;
+
+    private long segmentIndex = -1;
+    private FileChannel current;
+    private List<FileChannel> segments = new ArrayList<>();
+    private HashMap<Long, ArrayList<Extent>> index = new HashMap<>();
+
+    public HistoryArchive(String directory, String prefix, long segmentSize) throws IOException {
+        this.directory = Paths.get(directory);
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+
+        TreeMap<Long, Path> files = this.listFiles();
+        for (Map.Entry<Long, Path> file : files.entrySet())
+            this.load(file.getValue(), file.getKey().equals(files.lastKey()));
+        if (files.isEmpty()) {
+            this.openSegment(0);
+        } else {
+            this.segmentIndex = files.lastKey();
+            this.current = this.segments.get(this.segments.size() - 1);
+        }
+    }
+
+    /* ---------------------- */
+    /* ------ recovery ------ */
+    /* ---------------------- */
+
+    // only the segment written last can end in a torn block, so only that one has its blocks checked in full
+    private void load(Path path, boolean last) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long offset = 0;
+        long size = channel.size();
+
+        while (offset + HEADER_SIZE <= size) {
+            header.clear();
+            channel.read(header, offset);
+            header.flip();
+            Extent extent = new Extent();
+            extent.length = header.getInt();
+            extent.checksum = header.getInt();
+            long account = header.getLong();
+            extent.position = header.getLong();
+            extent.count = header.getInt();
+            extent.segment = channel;
+            extent.offset = offset;
+            if (extent.length < 0 || extent.count <= 0 || offset + HEADER_SIZE + extent.length > size)
+                break;
+            if (last && !this.verify(extent, this.readBlock(extent)))
+                break;
+
+            this.index(account, extent);
+            offset += HEADER_SIZE + extent.length;
+        }
+
+        if (offset < size) {
+            if (!last) throw new IOException("Corrupted history segment " + path.getFileName());
+            System.out.println("Discarding " + (size - offset) + " bytes of incomplete history blocks");
+            channel.truncate(offset);
+        }
+        this.segments.add(channel);
+    }
+
+    // drops what the checkpoint does not know about; blocks spilled after it will be spilled again by the journal replay
+    public synchronized void restore(Bank bank) throws IOException {
+        for (Map.Entry<Long, ArrayList<Extent>> entry : this.index.entrySet()) {
+            Account acc = bank.getAccountByID(entry.getKey());
+            long coldCount = acc == null ? 0 : acc.getColdCount();
+            truncate(entry.getValue(), coldCount);
+            long end = entry.getValue().isEmpty() ? 0 : last(entry.getValue()).position + last(entry.getValue()).count;
+            if (end < coldCount)
+                throw new IOException("History of account " + entry.getKey() + " is missing transactions " + end + " to " + coldCount);
+        }
+    }
+
+    /* --------------------------- */
+    /* ------ history store ------ */
+    /* --------------------------- */
+
+    @Override
+    public synchronized void append(long accountId, long position, List<Transaction> transactions) throws IOException {
+        int length = 0;
+        for (Transaction t : transactions)
+            length += 8 + 4 + t.getSrcKey().getEncoded().size() + 4 + t.getDestKey().getEncoded().size() + 4;
+
+        ByteBuffer block = ByteBuffer.allocate(HEADER_SIZE + length);
+        block.position(8);
+        block.putLong(accountId);
+        block.putLong(position);
+        block.putInt(transactions.size());
+        for (Transaction t : transactions) {
+            block.putLong(t.getId());
+            putBytes(block, t.getSrcKey().getEncoded());
+            putBytes(block, t.getDestKey().getEncoded());
+            block.putInt(t.getAmount());
+        }
+        block.putInt(0, length);
+        block.putInt(4, checksum(block));
+        block.flip();
+
+        if (this.current.size() > 0 && this.current.size() + block.remaining() > this.segmentSize) {
+            this.current.force(false);
+            this.openSegment(this.segmentIndex + 1);
+        }
+
+        Extent extent = new Extent();
+        extent.position = position;
+        extent.count = transactions.size();
+        extent.segment = this.current;
+        extent.offset = this.current.size();
+        extent.length = length;
+        extent.checksum = block.getInt(4);
+        while (block.hasRemaining())
+            this.current.write(block, extent.offset + block.position());
+        this.current.force(false);
+        this.index(accountId, extent);
+    }
+
+    @Override
+    public List<Transaction> read(long accountId, long from, long to) throws IOException {
+        List<Extent> extents = new ArrayList<>();
+        synchronized (this) {
+            for (Extent extent : this.index.getOrDefault(accountId, new ArrayList<>()))
+                if (extent.position < to && extent.position + extent.count > from)
+                    extents.add(extent);
+        }
+
+        List<Transaction> transactions = new ArrayList<>();
+        for (Extent extent : extents) {
+            ByteBuffer block = this.readBlock(extent);
+            if (!this.verify(extent, block))
+                throw new IOException("Corrupted history block of account " + accountId + " at position " + extent.position);
+            block.position(HEADER_SIZE);
+            for (long position = extent.position; position < extent.position + extent.count && position < to; position++) {
+                Transaction t = new Transaction(block.getLong(), this.getKey(block), this.getKey(block), block.getInt());
+                if (position >= from) transactions.add(t);
+            }
+        }
+        if (transactions.size() != to - from)
+            throw new IOException("History of account " + accountId + " is missing transactions in " + from + " to " + to);
+        return transactions;
+    }
+
+    public synchronized void close() throws IOException {
+        for (FileChannel segment : this.segments)
+            segment.close();
+    }
+
+    /* --------------------- */
+    /* ------ helpers ------ */
+    /* --------------------- */
+
+    // a block at a position already covered replaces everything from that position on
+    private void index(long accountId, Extent extent) {
+        ArrayList<Extent> extents = this.index.computeIfAbsent(accountId, id -> new ArrayList<>());
+        truncate(extents, extent.position);
+        extents.add(extent);
+    }
+
+    private static void truncate(ArrayList<Extent> extents, long end) {
+        while (!extents.isEmpty() && last(extents).position >= end)
+            extents.remove(extents.size() - 1);
+        if (!extents.isEmpty() && last(extents).position + last(extents).count > end)
+            last(extents).count = (int) (end - last(extents).position);
+    }
+
+    private static Extent last(ArrayList<Extent> extents) {
+        return extents.get(extents.size() - 1);
+    }
+
+    private ByteBuffer readBlock(Extent extent) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(HEADER_SIZE + extent.length);
+        while (block.hasRemaining()) {
+            if (extent.segment.read(block, extent.offset + block.position()) < 0)
+                throw new IOException("Unexpected end of history segment");
+        }
+        block.flip();
+        return block;
+    }
+
+    private boolean verify(Extent extent, ByteBuffer block) {
+        return checksum(block) == extent.checksum;
+    }
+
+    // crc32 of the block after the checksum field
+    private static int checksum(ByteBuffer block) {
+        ByteBuffer covered = block.duplicate();
+        covered.position(8);
+        covered.limit(block.capacity());
+        CRC32 crc = new CRC32();
+        crc.update(covered);
+        return (int) crc.getValue();
+    }
+
+    private KeyHandle getKey(ByteBuffer block) {
+        byte[] bytes = new byte[block.getInt()];
+        block.get(bytes);
+        return KeyRegistry.get(ByteString.copyFrom(bytes));
+    }
+
+    private static void putBytes(ByteBuffer buffer, ByteString bytes) {
+        buffer.putInt(bytes.size());
+        bytes.copyTo(buffer);
+    }
+
+    private void openSegment(long index) throws IOException {
+        this.current = FileChannel.open(this.directory.resolve(prefix + "_" + index + ".hist"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.segments.add(this.current);
+        this.segmentIndex = index;
+    }
+
+    private TreeMap<Long, Path> listFiles() {
+        TreeMap<Long, Path> indexed = new TreeMap<>();
+        File[] files = this.directory.toFile().listFiles();
+        if (files == null) return indexed;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(prefix + "_") || !name.endsWith(".hist")) continue;
+            try {
+                indexed.put(Long.parseLong(name.substring(prefix.length() + 1, name.length() - 5)), file.toPath());
+            } catch (NumberFormatException e) {
+                // not one of ours
+            }
+        }
+        return indexed;
+    }
+}
@@ -0,0 +1,168 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import com.google.protobuf.ByteString;
+import pt.ulisboa.tecnico.sec.crypto.Crypto;
+import pt.ulisboa.tecnico.sec.crypto.CryptoEngine;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+
+/*
+ * The replica's own key pair, kept across restarts so its identity, and every pin and
+ * cached copy of its public key, stays valid. The pair is generated on first boot only.
+ *
+ *   header   magic, version, whether the private key is encrypted
+ *   public   X.509 encoded public key
+ *   private  PKCS#8 encoded private key, when encrypted preceded by the PBKDF2 salt and
+ *            iteration count and the AES-GCM nonce, and followed by the GCM tag
+ *
+ * The private key is encrypted when a password is given, from the BFTB_KEYSTORE_PASSWORD
+ * environment variable (or -Dbftb.keystore.password, visible to other local users). The
+ * file is written readable by its owner only either way.
+ */
+public class IdentityKeyStore {
+    private static final int MAGIC = 0x4246544b; // "BFTK"
+    private static final byte VERSION = 1;
+    private static final int ITERATIONS = 65536;
+
+    private final Path path;
+    private final char[] password;
+
+    public IdentityKeyStore(Path path, char[] password) {
+        this.path = path;
+        this.password = password;
+    }
+
+    public static char[] defaultPassword() {
+        String password = System.getenv("BFTB_KEYSTORE_PASSWORD");
+        if (password == null) password = System.getProperty("bftb.keystore.password");
+        return password == null || password.isEmpty() ? null : password.toCharArray();
+    }
+
+    public boolean exists() {
+        return Files.exists(this.path);
+    }
+
+    // the stored key pair, or a new one that is stored before being returned
+    public KeyPair loadOrCreate() throws IOException {
+        if (this.exists()) return this.load();
+        KeyPair pair;
+        try {
+            pair = Crypto.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot generate the identity key: " + e.getMessage());
+        }
+        this.store(pair);
+        return pair;
+    }
+
+    public KeyPair load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.path)))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not an identity key file: " + this.path);
+            byte version = in.readByte();
+            if (version != VERSION) throw new IOException("Unsupported identity key version " + version);
+            boolean encrypted = in.readBoolean();
+            byte[] publicKey = readBytes(in);
+
+            byte[] privateKey;
+            if (encrypted) {
+                if (this.password == null) throw new IOException("Identity key " + this.path + " is encrypted and no password was given");
+                byte[] salt = readBytes(in);
+                int iterations = in.readInt();
+                byte[] nonce = readBytes(in);
+                byte[] sealed = readBytes(in);
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.DECRYPT_MODE, this.secret(salt, iterations), new GCMParameterSpec(128, nonce));
+                try {
+                    privateKey = cipher.doFinal(sealed);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Wrong password for identity key " + this.path);
+                }
+            } else {
+                privateKey = readBytes(in);
+            }
+
+            return new KeyPair(CryptoEngine.getDefault().decodePublicKey(ByteString.copyFrom(publicKey)),
+                    Crypto.getPrivateKey(ByteString.copyFrom(privateKey)));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot read identity key " + this.path + ": " + e.getMessage());
+        }
+    }
+
+    public void store(KeyPair pair) throws IOException {
+        Path tmp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        if (this.path.getParent() != null) Files.createDirectories(this.path.getParent());
+        Files.deleteIfExists(tmp);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+            Files.createFile(tmp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeBoolean(this.password != null);
+            writeBytes(out, pair.getPublic().getEncoded());
+
+            if (this.password != null) {
+                SecureRandom random = new SecureRandom();
+                byte[] salt = new byte[16];
+                byte[] nonce = new byte[12];
+                random.nextBytes(salt);
+                random.nextBytes(nonce);
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.ENCRYPT_MODE, this.secret(salt, ITERATIONS), new GCMParameterSpec(128, nonce));
+                writeBytes(out, salt);
+                out.writeInt(ITERATIONS);
+                writeBytes(out, nonce);
+                writeBytes(out, cipher.doFinal(pair.getPrivate().getEncoded()));
+            } else {
+                writeBytes(out, pair.getPrivate().getEncoded());
+            }
+            out.flush();
+            fos.getFD().sync();
+        } catch (GeneralSecurityException e) {
+            Files.deleteIfExists(tmp);
+            throw new IOException("Cannot encrypt the identity key: " + e.getMessage());
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* --------------------- */
+    /* ------ helpers ------ */
+    /* --------------------- */
+
+    private SecretKey secret(byte[] salt, int iterations) throws GeneralSecurityException {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        PBEKeySpec spec = new PBEKeySpec(this.password, salt, iterations, 256);
+        return new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 1 << 20) throw new IOException("Corrupt identity key file");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
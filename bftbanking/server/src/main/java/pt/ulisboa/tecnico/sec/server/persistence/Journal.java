@@ -0,0 +1,111 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import pt.ulisboa.tecnico.sec.server.domain.Bank;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/*
+ * Append-only operation log. Every record is framed as [length][crc32][sequence][entry]
+ * and forced to disk before append() returns, so a write costs one small record no
+ * matter how big the bank is. A torn record at the tail (crash mid-write) fails its
+ * checksum and is cut off on replay. Sequence numbers keep growing across resets, so
+ * a snapshot can tell which records it already covers.
+ *
+ * Records are spread over numbered files <prefix>_<n>. roll() starts a new file, so the
+ * records written so far can be dropped with discardBefore() once a checkpoint holds
+ * them, without stopping writers in the meantime.
+ *
+ * FileJournal writes records through a FileChannel, MappedJournal copies them straight
+ * into memory-mapped segments.
+ */
+public abstract class Journal implements CommitLog {
+    protected static final int HEADER_SIZE = 16;
+
+    protected final Path directory;
+    protected final String prefix;
+    private final String extension;
+
+    protected volatile long lastSequence = 0;
+
+    protected Journal(Path directory, String prefix, String extension) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.extension = extension;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    // append and force in one go, each caller pays for its own fsync
+    @Override
+    public synchronized long append(JournalEntry entry) throws IOException {
+        long sequence = this.write(entry);
+        this.sync();
+        return sequence;
+    }
+
+    @Override
+    public void awaitDurable(long sequence) {
+        // append() only returns once the record is on disk
+    }
+
+    // writes the record without forcing it, see GroupCommitter
+    public abstract long write(JournalEntry entry) throws IOException;
+
+    // forces every record written so far, must not block concurrent write() calls
+    public abstract void sync() throws IOException;
+
+    // replays every intact record newer than the snapshot against the bank and returns how many were applied
+    public abstract int replay(Bank bank, long snapshotSequence) throws IOException;
+
+    // starts a new file and returns its index, every record written so far lives in a file before it
+    public abstract long roll() throws IOException;
+
+    // deletes the files before the given index, to be called once their records are in a checkpoint
+    public void discardBefore(long index) throws IOException {
+        for (Path file : this.listFiles().headMap(index).values())
+            Files.deleteIfExists(file);
+    }
+
+    // drops every record, to be called once their effects are in a checkpoint
+    public synchronized void reset() throws IOException {
+        this.discardBefore(this.roll());
+    }
+
+    public abstract void close() throws IOException;
+
+    protected TreeMap<Long, Path> listFiles() {
+        TreeMap<Long, Path> indexed = new TreeMap<>();
+        File[] files = this.directory.toFile().listFiles();
+        if (files == null) return indexed;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(prefix + "_") || !name.endsWith(extension)) continue;
+            try {
+                indexed.put(Long.parseLong(name.substring(prefix.length() + 1, name.length() - extension.length())), file.toPath());
+            } catch (NumberFormatException e) {
+                // not one of ours
+            }
+        }
+        return indexed;
+    }
+
+    protected Path filePath(long index) {
+        return this.directory.resolve(prefix + "_" + index + extension);
+    }
+
+    // crc32 of the sequence number and the payload, the buffer is read from its position to its limit
+    protected static int checksum(long sequence, ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(0, sequence));
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+}
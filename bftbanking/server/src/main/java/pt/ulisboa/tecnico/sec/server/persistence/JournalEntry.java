@@ -0,0 +1,222 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import com.google.protobuf.ByteString;
+import pt.ulisboa.tecnico.sec.server.domain.Bank;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+import pt.ulisboa.tecnico.sec.server.domain.KeyRegistry;
+import pt.ulisboa.tecnico.sec.server.domain.OperationLog;
+import pt.ulisboa.tecnico.sec.server.domain.Transaction;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A single bank mutation as recorded in the journal. Entries hold what the operation
+ * received (keys, amounts) and the account or transaction id it handed out, since
+ * concurrent operations do not reach the journal in the order they took their ids.
+ * Replaying them in order against the last snapshot rebuilds the exact same bank state.
+ */
+public class JournalEntry {
+    public static final byte RECEIVE_AMOUNT = 3;
+    public static final byte WRITE_BACK_CHECK_ACCOUNT = 4;
+    public static final byte WRITE_BACK_AUDIT = 5;
+    public static final byte OPEN_ACCOUNT = 6;
+    public static final byte SEND_AMOUNT = 7;
+
+    private byte type;
+    private long timestamp;
+    private ByteString key;
+    private ByteString destKey;
+    private long value; // amount in transfers, TID in receptions
+    private long id = -1; // account id in openings, TID in transfers, as handed out when the operation ran
+    private List<Transaction> transactions;
+
+    private JournalEntry(byte type, long timestamp, ByteString key) {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.key = key;
+        this.transactions = new ArrayList<>();
+    }
+
+    public static JournalEntry openAccount(long ts, ByteString key, long accountId) {
+        JournalEntry entry = new JournalEntry(OPEN_ACCOUNT, ts, key);
+        entry.id = accountId;
+        return entry;
+    }
+
+    public static JournalEntry sendAmount(long ts, ByteString srcKey, ByteString destKey, int amount, long TID) {
+        JournalEntry entry = new JournalEntry(SEND_AMOUNT, ts, srcKey);
+        entry.destKey = destKey;
+        entry.value = amount;
+        entry.id = TID;
+        return entry;
+    }
+
+    public static JournalEntry receiveAmount(long ts, ByteString key, long TID) {
+        JournalEntry entry = new JournalEntry(RECEIVE_AMOUNT, ts, key);
+        entry.value = TID;
+        return entry;
+    }
+
+    public static JournalEntry writeBackCheckAccount(long ts, ByteString key, List<Transaction> transactions) {
+        JournalEntry entry = new JournalEntry(WRITE_BACK_CHECK_ACCOUNT, ts, key);
+        entry.transactions = transactions;
+        return entry;
+    }
+
+    public static JournalEntry writeBackAudit(long ts, ByteString key, List<Transaction> transactions) {
+        JournalEntry entry = new JournalEntry(WRITE_BACK_AUDIT, ts, key);
+        entry.transactions = transactions;
+        return entry;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /* ---------------------------- */
+    /* ------ binary encoding ------ */
+    /* ---------------------------- */
+
+    public int encodedSize() {
+        int size = 1 + 8 + 4 + key.size();
+        switch (type) {
+            case OPEN_ACCOUNT:
+                size += 8;
+                break;
+            case SEND_AMOUNT:
+                size += 4 + destKey.size() + 8 + 8;
+                break;
+            case RECEIVE_AMOUNT:
+                size += 8;
+                break;
+            case WRITE_BACK_CHECK_ACCOUNT:
+            case WRITE_BACK_AUDIT:
+                size += 4;
+                for (Transaction t : transactions)
+                    size += 8 + 4 + t.getSrcKey().getEncoded().size() + 4 + t.getDestKey().getEncoded().size() + 4;
+                break;
+        }
+        return size;
+    }
+
+    public byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(this.encodedSize());
+        this.encodeTo(buffer);
+        return buffer.array();
+    }
+
+    // writes the entry at the buffer position, which needs encodedSize() bytes left
+    public void encodeTo(ByteBuffer buffer) {
+        buffer.put(type);
+        buffer.putLong(timestamp);
+        putBytes(buffer, key);
+        switch (type) {
+            case OPEN_ACCOUNT:
+                buffer.putLong(id);
+                break;
+            case SEND_AMOUNT:
+                putBytes(buffer, destKey);
+                buffer.putLong(value);
+                buffer.putLong(id);
+                break;
+            case RECEIVE_AMOUNT:
+                buffer.putLong(value);
+                break;
+            case WRITE_BACK_CHECK_ACCOUNT:
+            case WRITE_BACK_AUDIT:
+                buffer.putInt(transactions.size());
+                for (Transaction t : transactions) {
+                    buffer.putLong(t.getId());
+                    putBytes(buffer, t.getSrcKey().getEncoded());
+                    putBytes(buffer, t.getDestKey().getEncoded());
+                    buffer.putInt(t.getAmount());
+                }
+                break;
+        }
+    }
+
+    public static JournalEntry decode(ByteBuffer buffer) throws IOException {
+        try {
+            JournalEntry entry = new JournalEntry(buffer.get(), buffer.getLong(), getBytes(buffer));
+            switch (entry.type) {
+                case OPEN_ACCOUNT:
+                    entry.id = buffer.getLong();
+                    break;
+                case SEND_AMOUNT:
+                    entry.destKey = getBytes(buffer);
+                    entry.value = buffer.getLong();
+                    entry.id = buffer.getLong();
+                    break;
+                case RECEIVE_AMOUNT:
+                    entry.value = buffer.getLong();
+                    break;
+                case WRITE_BACK_CHECK_ACCOUNT:
+                case WRITE_BACK_AUDIT:
+                    int count = buffer.getInt();
+                    for (int i = 0; i < count; i++) {
+                        long id = buffer.getLong();
+                        KeyHandle srcKey = KeyRegistry.get(getBytes(buffer));
+                        KeyHandle destKey = KeyRegistry.get(getBytes(buffer));
+                        entry.transactions.add(new Transaction(id, srcKey, destKey, buffer.getInt()));
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown journal entry type " + entry.type);
+            }
+            return entry;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Malformed journal entry: " + e.getMessage());
+        }
+    }
+
+    private static void putBytes(ByteBuffer buffer, ByteString bytes) {
+        buffer.putInt(bytes.size());
+        bytes.copyTo(buffer);
+    }
+
+    private static ByteString getBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return ByteString.copyFrom(bytes);
+    }
+
+    /* ---------------------- */
+    /* ------ recovery ------ */
+    /* ---------------------- */
+
+    // re-executes the mutation with the ids it was given, entries touching a common account are in the order they ran
+    public void apply(Bank bank) throws IOException {
+        try {
+            KeyHandle pubKey = KeyRegistry.get(key);
+            switch (type) {
+                case OPEN_ACCOUNT:
+                    bank.openAccount(pubKey, id, OperationLog.NONE);
+                    break;
+                case SEND_AMOUNT:
+                    bank.sendAmount(pubKey, KeyRegistry.get(destKey), (int) value, id, OperationLog.NONE);
+                    break;
+                case RECEIVE_AMOUNT:
+                    bank.receiveAmount(pubKey, value);
+                    break;
+                case WRITE_BACK_CHECK_ACCOUNT:
+                    if (bank.hasAccount(pubKey)) bank.writeBackPendingTransactions(pubKey, transactions, OperationLog.NONE);
+                    break;
+                case WRITE_BACK_AUDIT:
+                    if (bank.hasAccount(pubKey)) bank.writeBackTransactions(pubKey, transactions, OperationLog.NONE);
+                    break;
+            }
+        } catch (Exception e) {
+            throw new IOException("Could not replay journal entry of type " + type + ": " + e.getMessage());
+        }
+        bank.advanceTimestamp(timestamp);
+    }
+}
@@ -0,0 +1,173 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import pt.ulisboa.tecnico.sec.server.domain.Bank;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Journal kept in fixed-size memory-mapped segments <prefix>_<n>.seg. Records are
+ * encoded straight into the mapped pages, so a write is a memory copy with no system
+ * call, and sync() is a single msync of the current segment. Recovery walks the
+ * mapped segments and decodes every record in place.
+ *
+ * A fresh segment is all zeros, so a zero length marks the end of its records. When
+ * a record does not fit in what is left of a segment, that segment is forced and the
+ * record goes to the start of the next one.
+ */
+public class MappedJournal extends Journal {
+    private int segmentSize;
+
+    private long segmentIndex = 0;
+    private MappedByteBuffer segment;   // forced by sync(), never moved
+    private ByteBuffer writer;          // view of the same pages owned by write()
+
+    public MappedJournal(String directory, String prefix, int segmentSize) throws IOException {
+        super(Paths.get(directory), prefix, ".seg");
+        this.segmentSize = segmentSize;
+
+        TreeMap<Long, Path> segments = this.listFiles();
+        this.segmentIndex = segments.isEmpty() ? 0 : segments.lastKey();
+        this.openSegment(this.segmentIndex);
+    }
+
+    @Override
+    public synchronized long write(JournalEntry entry) throws IOException {
+        int length = entry.encodedSize();
+        if (HEADER_SIZE + length > this.segmentSize)
+            throw new IOException("Journal entry of " + length + " bytes does not fit in a " + this.segmentSize + " byte segment");
+        if (this.writer.remaining() < HEADER_SIZE + length)
+            this.nextSegment();
+
+        long sequence = this.lastSequence + 1;
+        int start = this.writer.position();
+
+        this.writer.position(start + HEADER_SIZE);
+        entry.encodeTo(this.writer);
+        ByteBuffer payload = this.writer.duplicate();
+        payload.position(start + HEADER_SIZE);
+        payload.limit(start + HEADER_SIZE + length);
+
+        // length goes in last, a reader never sees a record whose header points at unwritten bytes
+        this.writer.putLong(start + 8, sequence);
+        this.writer.putInt(start + 4, checksum(sequence, payload));
+        this.writer.putInt(start, length);
+        this.lastSequence = sequence;
+        return sequence;
+    }
+
+    @Override
+    public void sync() {
+        MappedByteBuffer current;
+        synchronized (this) {
+            current = this.segment;
+        }
+        current.force();
+    }
+
+    @Override
+    public synchronized int replay(Bank bank, long snapshotSequence) throws IOException {
+        TreeMap<Long, Path> segments = this.listFiles();
+        long lastSeen = -1;
+        int count = 0;
+
+        for (Map.Entry<Long, Path> file : segments.entrySet()) {
+            ByteBuffer buffer = file.getKey() == this.segmentIndex ? this.writer : map(file.getValue(), FileChannel.MapMode.READ_ONLY);
+            int position = 0;
+            boolean torn = false;
+
+            while (position + HEADER_SIZE <= buffer.limit()) {
+                int length = buffer.getInt(position);
+                int checksum = buffer.getInt(position + 4);
+                long sequence = buffer.getLong(position + 8);
+                if (length == 0)
+                    break;
+                if (length < 0 || position + HEADER_SIZE + length > buffer.limit()
+                        || (lastSeen >= 0 && sequence != lastSeen + 1)) {
+                    torn = true;
+                    break;
+                }
+
+                ByteBuffer payload = buffer.duplicate();
+                payload.position(position + HEADER_SIZE);
+                payload.limit(position + HEADER_SIZE + length);
+                if (checksum(sequence, payload) != checksum) {
+                    torn = true;
+                    break;
+                }
+
+                if (sequence > snapshotSequence) {
+                    JournalEntry.decode(payload).apply(bank);
+                    count++;
+                }
+                position += HEADER_SIZE + length;
+                lastSeen = sequence;
+            }
+
+            if (file.getKey() == this.segmentIndex) {
+                if (torn) {
+                    System.out.println("Discarding incomplete journal records after offset " + position + " of " + file.getValue().getFileName());
+                    this.zeroFrom(position);
+                    this.segment.force();
+                }
+                this.writer.position(position);
+            } else if (torn) {
+                // only the segment being written when the server stopped can hold a torn record
+                throw new IOException("Corrupted journal segment " + file.getValue().getFileName());
+            }
+        }
+
+        this.lastSequence = Math.max(lastSeen, snapshotSequence);
+        return count;
+    }
+
+    @Override
+    public synchronized long roll() throws IOException {
+        this.nextSegment();
+        return this.segmentIndex;
+    }
+
+    @Override
+    public synchronized void close() {
+        this.segment.force();
+    }
+
+    // like truncating the file: a shorter record written over a torn one must not leave its bytes behind
+    private void zeroFrom(int position) {
+        ByteBuffer tail = this.writer.duplicate();
+        tail.position(position);
+        byte[] zeros = new byte[Math.min(tail.remaining(), 1 << 16)];
+        while (tail.hasRemaining())
+            tail.put(zeros, 0, Math.min(zeros.length, tail.remaining()));
+    }
+
+    private void nextSegment() throws IOException {
+        this.segment.force();
+        this.openSegment(this.segmentIndex + 1);
+    }
+
+    private void openSegment(long index) throws IOException {
+        this.segment = (MappedByteBuffer) map(this.filePath(index), FileChannel.MapMode.READ_WRITE);
+        this.writer = this.segment.duplicate();
+        this.segmentIndex = index;
+    }
+
+    // the mapping stays valid after the channel is closed
+    private ByteBuffer map(Path path, FileChannel.MapMode mode) throws IOException {
+        if (mode == FileChannel.MapMode.READ_ONLY) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return channel.map(mode, 0, Math.min(channel.size(), this.segmentSize));
+            }
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(mode, 0, this.segmentSize);
+        }
+    }
+}
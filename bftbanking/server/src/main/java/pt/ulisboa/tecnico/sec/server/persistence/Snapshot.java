@@ -0,0 +1,225 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import com.google.protobuf.ByteString;
+import pt.ulisboa.tecnico.sec.server.domain.Account;
+import pt.ulisboa.tecnico.sec.server.domain.Bank;
+import pt.ulisboa.tecnico.sec.server.domain.BankSnapshot;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+import pt.ulisboa.tecnico.sec.server.domain.KeyRegistry;
+import pt.ulisboa.tecnico.sec.server.domain.Transaction;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ * Versioned binary checkpoint of the bank.
+ *
+ *   header   magic, version, kind (full/delta), journal sequence, bank timestamp and counters
+ *   keys     encoded public key of every account created since the previous checkpoint
+ *   accounts id, balance, cold history count, in-memory history, pending withdrawals and
+ *            credits of every account written
+ *   trailer  crc32 of everything above
+ *
+ * Keys are stored once, in the key table, and referenced by account id everywhere
+ * else. A full checkpoint holds every account; a delta only the accounts changed
+ * since the previous checkpoint, applied on top of it.
+ */
+public class Snapshot {
+    private static final int MAGIC = 0x42465442; // "BFTB"
+    private static final byte VERSION = 2; // 2 added the cold history count of every account
+    public static final byte FULL = 0;
+    public static final byte DELTA = 1;
+
+    private static final long INLINE_KEY = -1; // key of no known account, stored in place
+
+    private byte kind;
+    private long journalSequence;
+
+    private Snapshot(byte kind, long journalSequence) {
+        this.kind = kind;
+        this.journalSequence = journalSequence;
+    }
+
+    public byte getKind() {
+        return kind;
+    }
+
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+
+    /* ------------------- */
+    /* ------ write ------ */
+    /* ------------------- */
+
+    // writes every account of the view; accounts with an id >= firstNewAccount get their key written to the key table
+    public static void write(Path path, byte kind, BankSnapshot view, long firstNewAccount, long journalSequence) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        List<Account> accounts = view.getAccounts();
+        HashMap<KeyHandle, Long> ids = new HashMap<>();
+        for (Account acc : accounts)
+            ids.put(acc.getKey(), acc.getID());
+
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(kind);
+            out.writeLong(journalSequence);
+            out.writeLong(view.getTimestamp());
+            out.writeLong(view.getAccountCounter());
+            out.writeLong(view.getTransactionCounter());
+
+            List<Account> created = new ArrayList<>();
+            for (Account acc : accounts)
+                if (acc.getID() >= firstNewAccount) created.add(acc);
+            out.writeInt(created.size());
+            for (Account acc : created) {
+                out.writeLong(acc.getID());
+                writeBytes(out, acc.getKey().getEncoded());
+            }
+
+            out.writeInt(accounts.size());
+            for (Account live : accounts) {
+                Account acc = view.capture(live);
+                out.writeLong(acc.getID());
+                out.writeLong(acc.getBalance());
+                out.writeLong(acc.getColdCount());
+                writeTransactions(out, view, ids, acc.getRecentTransactions());
+                writeTransactions(out, view, ids, acc.getPendingWithdrawals());
+                writeTransactions(out, view, ids, acc.getPendingCredits());
+            }
+
+            out.flush();
+            long crc = checked.getChecksum().getValue();
+            out.writeLong(crc);
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeTransactions(DataOutputStream out, BankSnapshot view, HashMap<KeyHandle, Long> ids, Collection<Transaction> transactions) throws IOException {
+        out.writeInt(transactions.size());
+        for (Transaction t : transactions) {
+            out.writeLong(t.getId());
+            writeKeyRef(out, view, ids, t.getSrcKey());
+            writeKeyRef(out, view, ids, t.getDestKey());
+            out.writeInt(t.getAmount());
+        }
+    }
+
+    private static void writeKeyRef(DataOutputStream out, BankSnapshot view, HashMap<KeyHandle, Long> ids, KeyHandle key) throws IOException {
+        Long id = ids.get(key);
+        if (id == null) {
+            Account acc = view.getAccount(key);
+            id = acc == null ? null : acc.getID();
+        }
+        if (id != null) {
+            out.writeLong(id);
+        } else {
+            out.writeLong(INLINE_KEY);
+            writeBytes(out, key.getEncoded());
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, ByteString bytes) throws IOException {
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    /* ------------------ */
+    /* ------ read ------ */
+    /* ------------------ */
+
+    // applies the checkpoint on top of the bank; keysById carries the key table across a full checkpoint and its deltas
+    public static Snapshot read(Path path, Bank bank, HashMap<Long, KeyHandle> keysById) throws IOException {
+        try (FileInputStream fis = new FileInputStream(path.toFile())) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(fis, 1 << 16), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+
+            if (in.readInt() != MAGIC) throw new IOException("Not a bank checkpoint: " + path);
+            byte version = in.readByte();
+            if (version != VERSION) throw new IOException("Unsupported checkpoint version " + version + ": " + path);
+            Snapshot snapshot = new Snapshot(in.readByte(), in.readLong());
+            long timestamp = in.readLong();
+            long numAccounts = in.readLong();
+            long numTransactions = in.readLong();
+
+            int nKeys = in.readInt();
+            for (int i = 0; i < nKeys; i++) {
+                long id = in.readLong();
+                keysById.put(id, KeyRegistry.get(readBytes(in)));
+            }
+
+            List<Account> accounts = new ArrayList<>();
+            int nAccounts = in.readInt();
+            for (int i = 0; i < nAccounts; i++) {
+                long id = in.readLong();
+                long balance = in.readLong();
+                long coldCount = in.readLong();
+                KeyHandle key = keysById.get(id);
+                if (key == null) throw new IOException("Checkpoint references unknown account " + id + ": " + path);
+                Account acc = new Account(key, id, balance, 0);
+                List<Transaction> history = readTransactions(in, keysById);
+                List<Transaction> withdrawals = readTransactions(in, keysById);
+                List<Transaction> credits = readTransactions(in, keysById);
+                acc.restore(coldCount, history, withdrawals, credits);
+                accounts.add(acc);
+            }
+
+            long crc = checked.getChecksum().getValue();
+            if (in.readLong() != crc) throw new IOException("Corrupted checkpoint: " + path);
+
+            // only touch the bank once the whole file is known to be intact
+            for (Account acc : accounts)
+                bank.restoreAccount(acc);
+            bank.restoreCounters(numAccounts, numTransactions);
+            bank.setTimestamp(timestamp);
+            return snapshot;
+        } catch (EOFException e) {
+            throw new IOException("Truncated checkpoint: " + path);
+        }
+    }
+
+    private static List<Transaction> readTransactions(DataInputStream in, HashMap<Long, KeyHandle> keysById) throws IOException {
+        int count = in.readInt();
+        List<Transaction> transactions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long id = in.readLong();
+            KeyHandle src = readKeyRef(in, keysById);
+            KeyHandle dest = readKeyRef(in, keysById);
+            transactions.add(new Transaction(id, src, dest, in.readInt()));
+        }
+        return transactions;
+    }
+
+    private static KeyHandle readKeyRef(DataInputStream in, HashMap<Long, KeyHandle> keysById) throws IOException {
+        long id = in.readLong();
+        if (id == INLINE_KEY)
+            return KeyRegistry.get(readBytes(in));
+        KeyHandle key = keysById.get(id);
+        if (key == null) throw new IOException("Checkpoint references unknown account " + id);
+        return key;
+    }
+
+    private static ByteString readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return ByteString.copyFrom(bytes);
+    }
+}
@@ -0,0 +1,112 @@
+package pt.ulisboa.tecnico.sec.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+import pt.ulisboa.tecnico.sec.server.domain.Account;
+import pt.ulisboa.tecnico.sec.server.exceptions.AmountOfWorkExceededException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class AdmissionControlTests {
+    private static final int BURST = 5;
+    private static final long INTERVAL = 1000;
+    private static final long NOW = 1_000_000;
+
+    @Test
+    public void burstIsAdmittedThenRefusedTest() {
+        AdmissionControl admission = new AdmissionControl(BURST, INTERVAL);
+        for (int i = 0; i < BURST; i++)
+            Assert.assertTrue(admission.tryAdmit(1, NOW));
+        Assert.assertFalse(admission.tryAdmit(1, NOW));
+        Assert.assertFalse(admission.tryAdmit(1, NOW + INTERVAL - 1));
+
+        // other accounts have buckets of their own
+        Assert.assertTrue(admission.tryAdmit(2, NOW));
+    }
+
+    @Test
+    public void bucketRefillsOverTimeTest() {
+        AdmissionControl admission = new AdmissionControl(BURST, INTERVAL);
+        for (int i = 0; i < BURST; i++)
+            Assert.assertTrue(admission.tryAdmit(1, NOW));
+
+        // one token per interval
+        Assert.assertTrue(admission.tryAdmit(1, NOW + INTERVAL));
+        Assert.assertFalse(admission.tryAdmit(1, NOW + INTERVAL));
+        Assert.assertTrue(admission.tryAdmit(1, NOW + 3 * INTERVAL));
+        Assert.assertTrue(admission.tryAdmit(1, NOW + 3 * INTERVAL));
+        Assert.assertFalse(admission.tryAdmit(1, NOW + 3 * INTERVAL));
+
+        // never more than a burst, however long it stayed idle
+        long later = NOW + 100 * INTERVAL;
+        for (int i = 0; i < BURST; i++)
+            Assert.assertTrue(admission.tryAdmit(1, later));
+        Assert.assertFalse(admission.tryAdmit(1, later));
+    }
+
+    @Test
+    public void bucketOutlivesAccountObjectTest() throws Exception {
+        AdmissionControl admission = new AdmissionControl(1, 60_000);
+        admission.admit(new Account(null, 7, 50, 0));
+
+        // the disk store reads the account back as a new object after dropping it from its cache
+        try {
+            admission.admit(new Account(null, 7, 50, 0));
+            Assert.fail();
+        } catch (AmountOfWorkExceededException e) {
+            // the bucket is still empty
+        }
+        admission.admit(null);
+    }
+
+    @Test
+    public void fullBucketsAreSweptTest() {
+        AdmissionControl admission = new AdmissionControl(BURST, INTERVAL);
+        // as many buckets as the table holds before its first sweep
+        for (long id = 0; id < 4096; id++)
+            Assert.assertTrue(admission.tryAdmit(id, NOW));
+        Assert.assertTrue(admission.tryAdmit(0, NOW));
+
+        // every bucket but the one used twice is full again by then
+        Assert.assertTrue(admission.tryAdmit(4096, NOW + INTERVAL + 1));
+        Assert.assertTrue(admission.tryAdmit(4097, NOW + INTERVAL + 1));
+        Assert.assertEquals(3, admission.getBuckets());
+
+        // the kept bucket still counts the two tokens taken, one of them refilled since
+        for (int i = 1; i < BURST; i++)
+            Assert.assertTrue(admission.tryAdmit(0, NOW + INTERVAL + 1));
+        Assert.assertFalse(admission.tryAdmit(0, NOW + INTERVAL + 1));
+    }
+
+    @Test
+    public void concurrentWritersShareBurstTest() throws Exception {
+        int threads = 4;
+        int attempts = 50;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int round = 0; round < 20; round++) {
+            AdmissionControl admission = new AdmissionControl(BURST * 4, INTERVAL);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                writers.add(pool.submit(() -> {
+                    start.await();
+                    int admitted = 0;
+                    for (int i = 0; i < attempts; i++)
+                        if (admission.tryAdmit(1, NOW)) admitted++;
+                    return admitted;
+                }));
+            }
+            start.countDown();
+            int admitted = 0;
+            for (Future<Integer> writer : writers)
+                admitted += writer.get();
+            Assert.assertEquals(BURST * 4, admitted);
+        }
+        pool.shutdown();
+    }
+}
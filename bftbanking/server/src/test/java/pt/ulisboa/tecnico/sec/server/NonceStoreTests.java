@@ -0,0 +1,113 @@
+package pt.ulisboa.tecnico.sec.server;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+import pt.ulisboa.tecnico.sec.server.domain.KeyRegistry;
+
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class NonceStoreTests {
+    private static final int KEYS = 9;
+    private static final long TTL = 60_000;
+
+    private static KeyHandle[] keys;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        // only the fingerprints are used, small keys keep the setup fast
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        keys = new KeyHandle[KEYS];
+        for (int i = 0; i < KEYS; i++)
+            keys[i] = KeyRegistry.get(generator.generateKeyPair().getPublic());
+    }
+
+    @Test
+    public void nonceIsConsumedOnceTest() {
+        NonceStore nonces = new NonceStore(1024, 4, TTL);
+        long nonce = nonces.issue(keys[0], 16);
+
+        Assert.assertFalse(nonces.consume(keys[1], nonce));
+        Assert.assertFalse(nonces.consume(keys[0], nonce + 1));
+        Assert.assertTrue(nonces.consume(keys[0], nonce));
+        Assert.assertFalse(nonces.consume(keys[0], nonce));
+        Assert.assertEquals(-1, nonces.difficulty(keys[0], nonce));
+    }
+
+    @Test
+    public void difficultyTravelsWithNonceTest() {
+        NonceStore nonces = new NonceStore(1024, 4, TTL);
+        long easy = nonces.issue(keys[0], 12);
+        long hard = nonces.issue(keys[0], 20);
+
+        // looking does not consume
+        Assert.assertEquals(12, nonces.difficulty(keys[0], easy));
+        Assert.assertEquals(20, nonces.difficulty(keys[0], hard));
+        Assert.assertEquals(20, nonces.difficulty(keys[0], hard));
+        Assert.assertEquals(-1, nonces.difficulty(keys[1], hard));
+        Assert.assertTrue(nonces.consume(keys[0], hard));
+    }
+
+    @Test
+    public void windowReplacesOldestNonceTest() {
+        NonceStore nonces = new NonceStore(1024, 2, TTL);
+        long first = nonces.issue(keys[0], 16);
+        long second = nonces.issue(keys[0], 16);
+        long third = nonces.issue(keys[0], 16);
+
+        Assert.assertFalse(nonces.consume(keys[0], first));
+        Assert.assertTrue(nonces.consume(keys[0], second));
+        Assert.assertTrue(nonces.consume(keys[0], third));
+    }
+
+    @Test
+    public void expiredNonceIsRejectedTest() throws Exception {
+        NonceStore nonces = new NonceStore(1024, 4, 1);
+        long nonce = nonces.issue(keys[0], 16);
+        Thread.sleep(20);
+
+        Assert.assertEquals(-1, nonces.difficulty(keys[0], nonce));
+        Assert.assertFalse(nonces.consume(keys[0], nonce));
+    }
+
+    @Test
+    public void fullBucketEvictsClosestToExpiringTest() throws Exception {
+        // a single bucket, every key lands in it
+        NonceStore nonces = new NonceStore(8, 1, TTL);
+        long[] issued = new long[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            issued[i] = nonces.issue(keys[i], 16);
+            Thread.sleep(2);
+        }
+
+        Assert.assertFalse(nonces.consume(keys[0], issued[0]));
+        for (int i = 1; i < KEYS; i++)
+            Assert.assertTrue(nonces.consume(keys[i], issued[i]));
+        Assert.assertTrue(nonces.toString().startsWith(KEYS + " issued, 1 evicted"));
+    }
+
+    @Test
+    public void concurrentConsumersSpendNonceOnceTest() throws Exception {
+        NonceStore nonces = new NonceStore(1024, 4, TTL);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        for (int round = 0; round < 100; round++) {
+            long nonce = nonces.issue(keys[round % KEYS], 16);
+            KeyHandle key = keys[round % KEYS];
+            List<Future<Boolean>> consumers = new ArrayList<>();
+            for (int t = 0; t < 4; t++)
+                consumers.add(pool.submit(() -> nonces.consume(key, nonce)));
+            int spent = 0;
+            for (Future<Boolean> consumer : consumers)
+                if (consumer.get()) spent++;
+            Assert.assertEquals(1, spent);
+        }
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,88 @@
+package pt.ulisboa.tecnico.sec.server;
+
+import com.google.protobuf.ByteString;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import pt.ulisboa.tecnico.sec.crypto.SessionKeys;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+import pt.ulisboa.tecnico.sec.server.domain.KeyRegistry;
+import pt.ulisboa.tecnico.sec.server.exceptions.InvalidSessionException;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+public class SessionStoreTests {
+    private static final long TTL = 60_000;
+    private static final long NOW = 1_000_000;
+
+    private static KeyHandle[] keys;
+    private static SessionKeys sessionKeys;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        // only the handles are used, small keys keep the setup fast
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        keys = new KeyHandle[] { KeyRegistry.get(generator.generateKeyPair().getPublic()), KeyRegistry.get(generator.generateKeyPair().getPublic()) };
+
+        KeyPair client = SessionKeys.generateEphemeralKeyPair();
+        KeyPair server = SessionKeys.generateEphemeralKeyPair();
+        sessionKeys = SessionKeys.derive(server.getPrivate(), ByteString.copyFrom(client.getPublic().getEncoded()),
+                ByteString.copyFrom(server.getPublic().getEncoded()), false);
+    }
+
+    private static void assertRefused(SessionStore sessions, long id, KeyHandle key, long now) {
+        try {
+            sessions.get(id, key, now);
+            Assert.fail();
+        } catch (InvalidSessionException e) {
+            // refused
+        }
+    }
+
+    @Test
+    public void sessionBelongsToItsKeyTest() throws Exception {
+        SessionStore sessions = new SessionStore(16, TTL);
+        long id = sessions.open(keys[0], sessionKeys, NOW);
+
+        Assert.assertNotEquals(SessionStore.NONE, id);
+        Assert.assertSame(sessionKeys, sessions.get(id, keys[0], NOW));
+        assertRefused(sessions, id, keys[1], NOW);
+        assertRefused(sessions, id + 1, keys[0], NOW);
+        assertRefused(sessions, SessionStore.NONE, keys[0], NOW);
+    }
+
+    // the ttl counts from the last use, and an expired session stays gone
+    @Test
+    public void idleSessionExpiresTest() throws Exception {
+        SessionStore sessions = new SessionStore(16, TTL);
+        long id = sessions.open(keys[0], sessionKeys, NOW);
+
+        Assert.assertSame(sessionKeys, sessions.get(id, keys[0], NOW + TTL));
+        Assert.assertSame(sessionKeys, sessions.get(id, keys[0], NOW + 2 * TTL));
+        assertRefused(sessions, id, keys[0], NOW + 3 * TTL + 1);
+        assertRefused(sessions, id, keys[0], NOW + 2 * TTL);
+        Assert.assertEquals(0, sessions.size());
+    }
+
+    // a full store drops expired sessions before live ones
+    @Test
+    public void fullStoreDropsExpiredFirstTest() throws Exception {
+        SessionStore sessions = new SessionStore(10, TTL);
+        long[] old = new long[5];
+        long[] recent = new long[5];
+        for (int i = 0; i < 5; i++) {
+            old[i] = sessions.open(keys[0], sessionKeys, NOW);
+            recent[i] = sessions.open(keys[1], sessionKeys, NOW + TTL);
+        }
+        long last = sessions.open(keys[0], sessionKeys, NOW + TTL + 1);
+
+        Assert.assertEquals(6, sessions.size());
+        for (int i = 0; i < 5; i++) {
+            assertRefused(sessions, old[i], keys[0], NOW + TTL + 1);
+            Assert.assertSame(sessionKeys, sessions.get(recent[i], keys[1], NOW + TTL + 1));
+        }
+        Assert.assertSame(sessionKeys, sessions.get(last, keys[0], NOW + TTL + 1));
+    }
+}
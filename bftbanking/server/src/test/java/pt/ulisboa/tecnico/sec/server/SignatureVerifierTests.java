@@ -0,0 +1,103 @@
+package pt.ulisboa.tecnico.sec.server;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import pt.ulisboa.tecnico.sec.crypto.CryptoEngine;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+import pt.ulisboa.tecnico.sec.server.domain.KeyRegistry;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class SignatureVerifierTests {
+    private static final byte[] MESSAGE = "transfer 10".getBytes();
+
+    private static KeyPair pair;
+    private static KeyHandle key;
+    private static byte[] signature;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        pair = generator.generateKeyPair();
+        key = KeyRegistry.get(pair.getPublic());
+        signature = CryptoEngine.getDefault().sign(pair.getPrivate(), MESSAGE).toByteArray();
+    }
+
+    @Test
+    public void signaturesAreCheckedTest() throws Exception {
+        SignatureVerifier verifier = new SignatureVerifier(2, 2);
+        byte[] forged = signature.clone();
+        forged[0] ^= 1;
+
+        // more submissions than slots, each one waits for a slot to be given back
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            results.add(verifier.submit(key, i % 2 == 0 ? signature : forged, MESSAGE));
+        for (int i = 0; i < 8; i++)
+            Assert.assertEquals(i % 2 == 0, results.get(i).get());
+
+        verifier.close();
+        Assert.assertEquals(8, verifier.getVerified());
+        Assert.assertEquals(0, verifier.getQueueDepth());
+    }
+
+    @Test
+    public void submitAfterCloseGivesSlotBackTest() throws Exception {
+        SignatureVerifier verifier = new SignatureVerifier(1, 1);
+        verifier.close();
+
+        // with a single slot, a leaked one would block the second submission forever
+        for (int i = 0; i < 2; i++) {
+            try {
+                verifier.submit(key, signature, MESSAGE).get();
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof SignatureException);
+            }
+        }
+        Assert.assertEquals(0, verifier.getQueueDepth());
+    }
+
+    @Test
+    public void batchIsCheckedInOrderTest() throws Exception {
+        SignatureVerifier verifier = new SignatureVerifier(2, 4);
+        byte[] forged = signature.clone();
+        forged[forged.length - 1] ^= 1;
+
+        // a batch larger than the queue takes every slot and goes through alone
+        List<SignatureVerifier.Request> batch = new ArrayList<>();
+        for (int i = 0; i < 6; i++)
+            batch.add(new SignatureVerifier.Request(key, i % 3 == 0 ? forged : signature, MESSAGE));
+        List<CompletableFuture<Boolean>> results = verifier.submitAll(batch);
+        Assert.assertEquals(6, results.size());
+        for (int i = 0; i < 6; i++)
+            Assert.assertEquals(i % 3 != 0, results.get(i).get());
+
+        verifier.close();
+        Assert.assertEquals(6, verifier.getVerified());
+        Assert.assertEquals(0, verifier.getQueueDepth());
+    }
+
+    @Test
+    public void withdrawnSignaturesAreSkippedTest() throws Exception {
+        SignatureVerifier verifier = new SignatureVerifier(1, 64);
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 32; i++)
+            results.add(verifier.submit(key, signature, MESSAGE));
+        // the requests failed another check meanwhile, whatever the thread has not reached yet is not verified
+        for (CompletableFuture<Boolean> result : results)
+            result.cancel(false);
+
+        verifier.close();
+        Assert.assertEquals(32, verifier.getVerified() + verifier.getSkipped());
+        Assert.assertEquals(0, verifier.getQueueDepth());
+    }
+}
@@ -0,0 +1,70 @@
+package pt.ulisboa.tecnico.sec.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SolvedPuzzlesTests {
+    private static final long TTL = 60_000;
+
+    @Test
+    public void replayedSolutionIsRejectedTest() {
+        SolvedPuzzles puzzles = new SolvedPuzzles(1024, TTL);
+        Assert.assertFalse(puzzles.contains(42));
+        Assert.assertTrue(puzzles.add(42));
+
+        Assert.assertTrue(puzzles.contains(42));
+        Assert.assertFalse(puzzles.add(42));
+        Assert.assertTrue(puzzles.add(43));
+        Assert.assertTrue(puzzles.toString().startsWith("2 accepted, 0 evicted before expiring, 2 replays rejected"));
+    }
+
+    @Test
+    public void expiredSolutionIsForgottenTest() throws Exception {
+        SolvedPuzzles puzzles = new SolvedPuzzles(1024, 1);
+        Assert.assertTrue(puzzles.add(42));
+        Thread.sleep(20);
+
+        Assert.assertFalse(puzzles.contains(42));
+        Assert.assertTrue(puzzles.add(42));
+    }
+
+    @Test
+    public void fullBucketEvictsClosestToExpiringTest() throws Exception {
+        // a single bucket, every solution lands in it
+        SolvedPuzzles puzzles = new SolvedPuzzles(8, TTL);
+        for (long id = 1; id <= 9; id++) {
+            Assert.assertTrue(puzzles.add(id));
+            Thread.sleep(2);
+        }
+
+        Assert.assertFalse(puzzles.contains(1));
+        for (long id = 2; id <= 9; id++)
+            Assert.assertTrue(puzzles.contains(id));
+        // an evicted solution is accepted again, the price of a bounded table
+        Assert.assertTrue(puzzles.add(1));
+        Assert.assertFalse(puzzles.contains(2));
+    }
+
+    @Test
+    public void concurrentReplaysAcceptOneTest() throws Exception {
+        SolvedPuzzles puzzles = new SolvedPuzzles(1024, TTL);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        for (long id = 0; id < 100; id++) {
+            long solution = id * 0x9E3779B97F4A7C15L;
+            List<Future<Boolean>> senders = new ArrayList<>();
+            for (int t = 0; t < 4; t++)
+                senders.add(pool.submit(() -> puzzles.add(solution)));
+            int accepted = 0;
+            for (Future<Boolean> sender : senders)
+                if (sender.get()) accepted++;
+            Assert.assertEquals(1, accepted);
+        }
+        pool.shutdown();
+    }
+}
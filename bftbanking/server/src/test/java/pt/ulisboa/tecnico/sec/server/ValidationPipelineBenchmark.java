@@ -0,0 +1,126 @@
+package pt.ulisboa.tecnico.sec.server;
+
+import com.google.protobuf.ByteString;
+import pt.ulisboa.tecnico.sec.crypto.Crypto;
+import pt.ulisboa.tecnico.sec.crypto.CryptoEngine;
+import pt.ulisboa.tecnico.sec.crypto.ProofOfWork;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+import pt.ulisboa.tecnico.sec.server.domain.KeyRegistry;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.Random;
+
+/*
+ * Write requests rejected per second under a hostile mix, with the checks in the order
+ * Server used to run them (signature, proof of work, nonce, timestamp) and through
+ * Server.validateWriteRequest, run with
+ *
+ *   mvn test-compile exec:java -Dexec.mainClass=pt.ulisboa.tecnico.sec.server.ValidationPipelineBenchmark -Dexec.classpathScope=test
+ *
+ * The mix is 30% unknown nonces, 20% stale timestamps, 30% bad proofs of work and 20%
+ * forged signatures on otherwise valid requests; none of them changes any state, so the
+ * same requests are sent again and again. Each row is the best of several rounds.
+ */
+public class ValidationPipelineBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int REQUESTS = 1000;
+    private static final int DATA_SIZE = 600;
+    private static final long TIMESTAMP = 1;
+
+    interface Validator {
+        void validate(Request request) throws Exception;
+    }
+
+    static class Request {
+        final byte[] data = new byte[DATA_SIZE];
+        final byte[] puzzle = new byte[DATA_SIZE - 8];
+        byte[] signature;
+        long ts = TIMESTAMP;
+        long nonce;
+        long pow;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("bftb-bench");
+        System.setProperty("bftb.keystore", directory.resolve("identity.key").toString());
+        System.setProperty("bftb.pow.min", "12");
+        System.setProperty("bftb.pow.max", "12");
+        System.setProperty("bftb.work.burst", "0");
+        Server server = new Server(9999, 1, 0, 0);
+        int bits = server.getDifficulty();
+
+        KeyPair client = Crypto.generateKeyPair();
+        ByteString encodedKey = Crypto.getEncodedKey(client.getPublic());
+        KeyHandle key = KeyRegistry.get(encodedKey);
+        byte[] nonceRequest = encodedKey.toByteArray();
+        long live = server.generateNonce(encodedKey, SessionStore.NONE,
+                CryptoEngine.getDefault().sign(client.getPrivate(), nonceRequest).toByteArray(), nonceRequest, bits);
+
+        NonceStore legacyNonces = new NonceStore(1024, 4, 60_000);
+        long legacyLive = legacyNonces.issue(key, bits);
+
+        Random random = new Random(1);
+        Request[] requests = new Request[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            Request request = new Request();
+            random.nextBytes(request.data);
+            System.arraycopy(request.data, 0, request.puzzle, 0, request.puzzle.length);
+            request.signature = new byte[512];
+            random.nextBytes(request.signature);
+            request.nonce = live;
+            request.pow = ProofOfWork.getDefault().solve(request.puzzle, bits);
+
+            int kind = random.nextInt(10);
+            if (kind < 3) request.nonce = random.nextLong();
+            else if (kind < 5) request.ts = 0;
+            else if (kind < 8) request.pow = request.pow + 1 + random.nextInt(1000);
+            requests[i] = request;
+        }
+
+        System.out.println("order                        rejected/s   speedup");
+        double legacy = report("signature first", requests, request -> {
+            long nonce = request.nonce == live ? legacyLive : request.nonce;
+            legacyValidate(key, request, nonce, bits, legacyNonces);
+        }, 0);
+        report("ValidationPipeline", requests, request -> server.validateWriteRequest(key, SessionStore.NONE,
+                request.signature, request.data, request.ts, request.nonce, request.puzzle, request.pow), legacy);
+
+        System.out.println();
+        System.out.println("Validation: " + server.getValidation());
+    }
+
+    private static double report(String name, Request[] requests, Validator validator, double baseline) {
+        double best = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (Request request : requests) {
+                try {
+                    validator.validate(request);
+                    throw new IllegalStateException(name + " accepted a hostile request");
+                } catch (IllegalStateException e) {
+                    throw e;
+                } catch (Exception e) {
+                    // rejected, as expected
+                }
+            }
+            best = Math.max(best, requests.length / ((System.nanoTime() - start) / 1e9));
+        }
+        System.out.printf("%-28s %11.0f %9s%n", name, best, baseline == 0 ? "" : String.format("%.1fx", best / baseline));
+        return best;
+    }
+
+    /* ------ the order Server checked write requests in before ValidationPipeline ------ */
+
+    private static void legacyValidate(KeyHandle key, Request request, long nonce, int bits, NonceStore nonces) throws Exception {
+        if (!CryptoEngine.getDefault().verify(key.getPublicKey(), request.signature, request.data))
+            throw new SecurityException("invalid signature");
+        if (ProofOfWork.check(request.puzzle, request.pow, bits) == ProofOfWork.INVALID)
+            throw new SecurityException("invalid proof of work");
+        if (nonces.difficulty(key, nonce) < 0)
+            throw new SecurityException("invalid nonce");
+        if (request.ts <= 0)
+            throw new SecurityException("invalid timestamp");
+    }
+}
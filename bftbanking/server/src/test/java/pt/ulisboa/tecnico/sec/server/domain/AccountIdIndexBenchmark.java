@@ -0,0 +1,42 @@
+package pt.ulisboa.tecnico.sec.server.domain;
+
+import java.util.Random;
+
+/*
+ * Lookup time of the account id index as the bank grows, run with
+ *
+ *   mvn test-compile exec:java -Dexec.mainClass=pt.ulisboa.tecnico.sec.server.domain.AccountIdIndexBenchmark -Dexec.classpathScope=test
+ *
+ * Every slot holds the same account so that 10M accounts fit in a small heap; only the
+ * index itself grows, which is what a lookup pays for.
+ */
+public class AccountIdIndexBenchmark {
+    private static final int LOOKUPS = 5_000_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        Account account = new Account(null, 0, 50, 0);
+        long sink = 0;
+
+        for (int accounts : new int[] { 10_000, 100_000, 1_000_000, 10_000_000 }) {
+            AccountIdIndex index = new AccountIdIndex();
+            for (int id = 0; id < accounts; id++)
+                index.put(id, account);
+
+            Random random = new Random(accounts);
+            long[] ids = new long[LOOKUPS];
+            for (int i = 0; i < LOOKUPS; i++)
+                ids[i] = random.nextInt(accounts);
+
+            double best = Double.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < LOOKUPS; i++)
+                    sink += index.get(ids[i]).getBalance();
+                best = Math.min(best, (System.nanoTime() - start) / (double) LOOKUPS);
+            }
+            System.out.printf("%,12d accounts: %6.1f ns per lookup%n", accounts, best);
+        }
+        if (sink == 42) System.out.println();
+    }
+}
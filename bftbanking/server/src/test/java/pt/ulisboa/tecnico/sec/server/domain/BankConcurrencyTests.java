@@ -0,0 +1,241 @@
+package pt.ulisboa.tecnico.sec.server.domain;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import pt.ulisboa.tecnico.sec.server.exceptions.NonExistentTransactionException;
+import pt.ulisboa.tecnico.sec.server.persistence.JournalEntry;
+
+import java.io.IOException;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BankConcurrencyTests {
+    private static final int ACCOUNTS = 32;
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 20000;
+    private static final long INITIAL_BALANCE = 50;
+
+    private static KeyHandle[] keys;
+
+    @BeforeClass
+    public static void setup() throws NoSuchAlgorithmException {
+        // the bank never looks inside the keys, small ones keep the setup fast
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        keys = new KeyHandle[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++)
+            keys[i] = KeyRegistry.get(generator.generateKeyPair().getPublic());
+    }
+
+    // balances plus money withdrawn and not yet received
+    private static long totalMoney(Bank bank) throws Exception {
+        long total = 0;
+        for (KeyHandle key : keys) {
+            total += bank.checkAccountBalance(key);
+            for (Transaction t : bank.getPendingCredits(key))
+                total += t.getAmount();
+        }
+        return total;
+    }
+
+    private static void runConcurrently(int threads, Runnable task) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                task.run();
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures)
+            future.get();
+        pool.shutdown();
+    }
+
+    @Test
+    public void concurrentOpenAccountTest() throws Exception {
+        Bank bank = new Bank();
+        AtomicInteger opened = new AtomicInteger();
+        runConcurrently(THREADS, () -> {
+            for (KeyHandle key : keys) {
+                try {
+                    bank.openAccount(key);
+                    opened.incrementAndGet();
+                } catch (Exception e) {
+                    // opened by another thread
+                }
+            }
+        });
+
+        Assert.assertEquals(ACCOUNTS, opened.get());
+        Assert.assertEquals(ACCOUNTS, bank.getAccountCounter());
+        boolean[] ids = new boolean[ACCOUNTS];
+        for (KeyHandle key : keys)
+            ids[(int) bank.getAccount(key).getID()] = true;
+        for (boolean taken : ids)
+            Assert.assertTrue(taken);
+    }
+
+    @Test
+    public void moneyIsConservedTest() throws Exception {
+        Bank bank = new Bank();
+        for (KeyHandle key : keys)
+            bank.openAccount(key);
+        ConcurrentLinkedQueue<Long> sent = new ConcurrentLinkedQueue<>();
+        AtomicInteger received = new AtomicInteger();
+
+        runConcurrently(THREADS, () -> {
+            Random random = new Random(Thread.currentThread().getId());
+            for (int i = 0; i < OPERATIONS; i++) {
+                KeyHandle src = keys[random.nextInt(ACCOUNTS)];
+                KeyHandle dest = keys[random.nextInt(ACCOUNTS)];
+                try {
+                    if (random.nextBoolean()) {
+                        sent.add(bank.sendAmount(src, dest, 1 + random.nextInt(10)));
+                    } else {
+                        // receive any pending credit, racing with the other threads for it
+                        List<Transaction> credits = bank.getPendingCredits(dest);
+                        if (credits.isEmpty()) continue;
+                        bank.receiveAmount(dest, credits.get(0).getId());
+                        received.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    // equal accounts, insufficient balance or a credit already received
+                }
+            }
+        });
+
+        Assert.assertEquals(ACCOUNTS * INITIAL_BALANCE, totalMoney(bank));
+        for (KeyHandle key : keys)
+            Assert.assertTrue(bank.checkAccountBalance(key) >= 0);
+
+        // every transfer got its own id and was received at most once
+        List<Long> ids = new ArrayList<>(sent);
+        Collections.sort(ids);
+        for (int i = 1; i < ids.size(); i++)
+            Assert.assertNotEquals(ids.get(i - 1), ids.get(i));
+        Assert.assertEquals(ids.size(), bank.getTransactionCounter());
+        long pending = 0;
+        for (KeyHandle key : keys)
+            pending += bank.getPendingCredits(key).size();
+        Assert.assertEquals(ids.size(), pending + received.get());
+    }
+
+    @Test
+    public void concurrentReceiveTest() throws Exception {
+        Bank bank = new Bank();
+        bank.openAccount(keys[0]);
+        bank.openAccount(keys[1]);
+        long TID = bank.sendAmount(keys[0], keys[1], 10);
+        AtomicInteger received = new AtomicInteger();
+
+        runConcurrently(THREADS, () -> {
+            try {
+                bank.receiveAmount(keys[1], TID);
+                received.incrementAndGet();
+            } catch (NonExistentTransactionException e) {
+                // another thread got it first
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+
+        Assert.assertEquals(1, received.get());
+        Assert.assertEquals(40, bank.checkAccountBalance(keys[0]));
+        Assert.assertEquals(60, bank.checkAccountBalance(keys[1]));
+    }
+
+    @Test
+    public void recordedOperationsReplayTest() throws Exception {
+        Bank bank = new Bank();
+        List<JournalEntry> journal = Collections.synchronizedList(new ArrayList<>());
+        for (KeyHandle key : keys)
+            bank.openAccount(key, -1, id -> journal.add(JournalEntry.openAccount(0, key.getEncoded(), id)));
+
+        runConcurrently(THREADS, () -> {
+            Random random = new Random(Thread.currentThread().getId());
+            for (int i = 0; i < OPERATIONS / 4; i++) {
+                KeyHandle src = keys[random.nextInt(ACCOUNTS)];
+                KeyHandle dest = keys[random.nextInt(ACCOUNTS)];
+                int amount = 1 + random.nextInt(10);
+                try {
+                    bank.sendAmount(src, dest, amount, -1,
+                            TID -> journal.add(JournalEntry.sendAmount(0, src.getEncoded(), dest.getEncoded(), amount, TID)));
+                    List<Transaction> credits = bank.getPendingCredits(dest);
+                    if (credits.isEmpty()) continue;
+                    long TID = credits.get(0).getId();
+                    bank.receiveAmount(dest, TID, id -> journal.add(JournalEntry.receiveAmount(0, dest.getEncoded(), TID)));
+                } catch (Exception e) {
+                    // rejected operations are not recorded
+                }
+            }
+        });
+
+        // operations on a common account are recorded in the order they ran, so the replay cannot fail
+        Bank replayed = new Bank();
+        for (JournalEntry entry : journal)
+            entry.apply(replayed);
+        for (KeyHandle key : keys) {
+            Assert.assertEquals(bank.checkAccountBalance(key), replayed.checkAccountBalance(key));
+            Assert.assertEquals(bank.getPendingCredits(key).size(), replayed.getPendingCredits(key).size());
+            Assert.assertEquals(bank.audit(key).size(), replayed.audit(key).size());
+        }
+        Assert.assertEquals(bank.getTransactionCounter(), replayed.getTransactionCounter());
+    }
+
+    @Test
+    public void unrecordedOperationsAreNotAppliedTest() throws Exception {
+        Bank bank = new Bank();
+        bank.openAccount(keys[0]);
+        bank.openAccount(keys[1]);
+        long TID = bank.sendAmount(keys[0], keys[1], 10);
+        OperationLog failing = id -> { throw new IOException("disk full"); };
+
+        try {
+            bank.sendAmount(keys[0], keys[1], 5, -1, failing);
+            Assert.fail();
+        } catch (IOException e) {
+            // the journal did not take it
+        }
+        try {
+            bank.receiveAmount(keys[1], TID, failing);
+            Assert.fail();
+        } catch (IOException e) {
+            // the journal did not take it
+        }
+        Transaction written = new Transaction(100, keys[0], keys[1], 7);
+        try {
+            bank.writeBackTransactions(keys[1], Collections.singletonList(written), failing);
+            Assert.fail();
+        } catch (IOException e) {
+            // the journal did not take it
+        }
+        try {
+            bank.writeBackPendingTransactions(keys[1], Collections.singletonList(written), failing);
+            Assert.fail();
+        } catch (IOException e) {
+            // the journal did not take it
+        }
+
+        Assert.assertEquals(40, bank.checkAccountBalance(keys[0]));
+        Assert.assertEquals(50, bank.checkAccountBalance(keys[1]));
+        Assert.assertEquals(1, bank.getPendingCredits(keys[1]).size());
+        Assert.assertTrue(bank.getAccount(keys[1]).hasPendingCredit(TID));
+        Assert.assertEquals(0, bank.audit(keys[0]).size());
+        Assert.assertEquals(0, bank.audit(keys[1]).size());
+    }
+}
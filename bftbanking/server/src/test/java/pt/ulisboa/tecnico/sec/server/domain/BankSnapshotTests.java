@@ -0,0 +1,174 @@
+package pt.ulisboa.tecnico.sec.server.domain;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pt.ulisboa.tecnico.sec.server.persistence.Checkpointer;
+
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BankSnapshotTests {
+    private static final int ACCOUNTS = 16;
+    private static final int THREADS = 4;
+
+    private static KeyHandle[] keys;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        // the bank never looks inside the keys, small ones keep the setup fast
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        keys = new KeyHandle[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++)
+            keys[i] = KeyRegistry.get(generator.generateKeyPair().getPublic());
+    }
+
+    private static Bank openAll() throws Exception {
+        Bank bank = new Bank();
+        for (KeyHandle key : keys)
+            bank.openAccount(key);
+        return bank;
+    }
+
+    // a random transfer, and half of the time the destination receives all its pending credits, so money keeps flowing
+    private static void transfer(Bank bank, Random random) {
+        KeyHandle src = keys[random.nextInt(ACCOUNTS)];
+        KeyHandle dest = keys[random.nextInt(ACCOUNTS)];
+        try {
+            bank.sendAmount(src, dest, 1 + random.nextInt(5));
+        } catch (Exception e) {
+            // equal accounts or insufficient balance
+        }
+        if (random.nextBoolean()) return;
+        try {
+            for (Transaction t : bank.getPendingCredits(dest))
+                bank.receiveAmount(dest, t.getId());
+        } catch (Exception e) {
+            // received by another thread
+        }
+    }
+
+    private static Map<Long, Long> balances(Bank bank) throws Exception {
+        Map<Long, Long> balances = new HashMap<>();
+        for (KeyHandle key : keys)
+            balances.put(bank.getAccount(key).getID(), bank.checkAccountBalance(key));
+        return balances;
+    }
+
+    @Test
+    public void captureSeesAccountsAsOpenedTest() throws Exception {
+        Bank bank = openAll();
+        long TID = bank.sendAmount(keys[0], keys[1], 10);
+        bank.advanceTimestamp(7);
+        Map<Long, Long> before = balances(bank);
+
+        BankSnapshot view = bank.beginSnapshot(bank.drainDirtyAccounts());
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++)
+            transfer(bank, random);
+        if (bank.getAccount(keys[1]).hasPendingCredit(TID))
+            bank.receiveAmount(keys[1], TID);
+        bank.advanceTimestamp(8);
+
+        Assert.assertEquals(7, view.getTimestamp());
+        Assert.assertEquals(ACCOUNTS, view.getAccountCounter());
+        Assert.assertEquals(1, view.getTransactionCounter());
+        Assert.assertEquals(ACCOUNTS, view.getAccounts().size());
+        for (Account live : view.getAccounts()) {
+            Account copy = view.capture(live);
+            Assert.assertNotSame(live, copy);
+            Assert.assertEquals(before.get(live.getID()), (Long) copy.getBalance());
+            if (live.getKey().equals(keys[1])) {
+                Assert.assertTrue(copy.hasPendingCredit(TID));
+                Assert.assertTrue(copy.getRecentTransactions().isEmpty());
+            }
+        }
+        view.close();
+        Assert.assertFalse(bank.getAccount(keys[1]).hasPendingCredit(TID));
+    }
+
+    @Test
+    public void capturedAccountsAreNotCopiedAgainTest() throws Exception {
+        Bank bank = openAll();
+        bank.sendAmount(keys[0], keys[1], 10);
+        BankSnapshot view = bank.beginSnapshot(bank.drainDirtyAccounts());
+
+        // once the writer got to the account, later changes are none of the snapshot's business
+        Account live = bank.getAccount(keys[0]);
+        Assert.assertEquals(40, view.capture(live).getBalance());
+        Assert.assertEquals(0, live.getCaptureEpoch());
+        bank.sendAmount(keys[0], keys[2], 5);
+        Assert.assertEquals(35, live.getBalance());
+        view.close();
+
+        // a new snapshot can be opened once the previous one is closed, and only holds what changed since
+        BankSnapshot next = bank.beginSnapshot(bank.drainDirtyAccounts());
+        Assert.assertEquals(2, next.getAccounts().size());
+        next.close();
+    }
+
+    @Test
+    public void secondSnapshotIsRefusedTest() throws Exception {
+        Bank bank = openAll();
+        BankSnapshot view = bank.beginSnapshot(bank.drainDirtyAccounts());
+        try {
+            bank.beginSnapshot(new ArrayList<>());
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // only one checkpoint at a time
+        }
+        view.close();
+    }
+
+    @Test
+    public void checkpointWrittenWhileBankChangesTest() throws Exception {
+        Bank bank = openAll();
+        Random random = new Random(2);
+        for (int i = 0; i < 500; i++)
+            transfer(bank, random);
+        Map<Long, Long> atCut = balances(bank);
+        long transactionsAtCut = bank.getTransactionCounter();
+
+        // the cut runs with no operation in flight, the write runs while writers keep changing the accounts
+        Checkpointer checkpointer = new Checkpointer(this.folder.getRoot().getPath(), "test_checkpoint", 8);
+        Checkpointer.Cut cut = checkpointer.begin(bank, 1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            long seed = t;
+            writers.add(pool.submit(() -> {
+                Random mine = new Random(seed);
+                while (writing.get())
+                    transfer(bank, mine);
+            }));
+        }
+        // accounts changed before the writer gets to them are read from their copies
+        while (bank.getTransactionCounter() < transactionsAtCut + 100)
+            Thread.yield();
+        checkpointer.write(cut);
+        writing.set(false);
+        for (Future<?> writer : writers)
+            writer.get();
+        pool.shutdown();
+
+        Bank recovered = new Bank();
+        Assert.assertEquals(1, new Checkpointer(this.folder.getRoot().getPath(), "test_checkpoint", 8).recover(recovered));
+        Assert.assertEquals(atCut, balances(recovered));
+        Assert.assertEquals(transactionsAtCut, recovered.getTransactionCounter());
+    }
+}
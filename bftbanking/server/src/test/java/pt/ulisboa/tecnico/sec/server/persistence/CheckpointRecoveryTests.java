@@ -0,0 +1,184 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pt.ulisboa.tecnico.sec.server.domain.Bank;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+public class CheckpointRecoveryTests {
+    private static final int ACCOUNTS = 16;
+    private static final String PREFIX = "test_checkpoint";
+
+    private static KeyHandle[] keys;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        keys = RecoveryFixtures.keys(ACCOUNTS);
+    }
+
+    private Checkpointer checkpointer(int maxDeltas) {
+        return new Checkpointer(this.folder.getRoot().getPath(), PREFIX, maxDeltas);
+    }
+
+    private Path file(long index, String extension) {
+        return this.folder.getRoot().toPath().resolve(PREFIX + "_" + index + extension);
+    }
+
+    @Test
+    public void fullCheckpointRoundTripTest() throws Exception {
+        Bank bank = new Bank();
+        for (KeyHandle key : keys)
+            bank.openAccount(key);
+        RecoveryFixtures.transfers(bank, keys, new Random(1), 500, null);
+        this.checkpointer(8).checkpoint(bank, 42);
+        Assert.assertTrue(Files.exists(this.file(0, ".full")));
+
+        Bank recovered = new Bank();
+        Assert.assertEquals(42, this.checkpointer(8).recover(recovered));
+        RecoveryFixtures.assertSameBank(bank, recovered, keys);
+    }
+
+    @Test
+    public void deltaChainRoundTripTest() throws Exception {
+        Bank bank = new Bank();
+        Checkpointer checkpointer = this.checkpointer(8);
+        Random random = new Random(2);
+        for (int i = 0; i < ACCOUNTS / 2; i++)
+            bank.openAccount(keys[i]);
+        checkpointer.checkpoint(bank, 10);
+
+        // the deltas hold changed accounts only, and the keys of the accounts opened since the previous checkpoint
+        KeyHandle[] opened = Arrays.copyOf(keys, ACCOUNTS / 2);
+        RecoveryFixtures.transfers(bank, opened, random, 100, null);
+        checkpointer.checkpoint(bank, 20);
+        for (int i = ACCOUNTS / 2; i < ACCOUNTS; i++)
+            bank.openAccount(keys[i]);
+        RecoveryFixtures.transfers(bank, keys, random, 100, null);
+        checkpointer.checkpoint(bank, 30);
+        Assert.assertTrue(Files.exists(this.file(1, ".delta")));
+        Assert.assertTrue(Files.exists(this.file(2, ".delta")));
+
+        Bank recovered = new Bank();
+        Assert.assertEquals(30, this.checkpointer(8).recover(recovered));
+        RecoveryFixtures.assertSameBank(bank, recovered, keys);
+    }
+
+    @Test
+    public void fullCheckpointReplacesChainTest() throws Exception {
+        Bank bank = new Bank();
+        Checkpointer checkpointer = this.checkpointer(2);
+        for (KeyHandle key : keys)
+            bank.openAccount(key);
+        Random random = new Random(3);
+        for (int sequence = 1; sequence <= 4; sequence++) {
+            RecoveryFixtures.transfers(bank, keys, random, 50, null);
+            checkpointer.checkpoint(bank, sequence);
+        }
+
+        // full, delta, delta, then a full one that supersedes the three before it
+        Assert.assertTrue(Files.exists(this.file(3, ".full")));
+        Assert.assertFalse(Files.exists(this.file(0, ".full")));
+        Assert.assertFalse(Files.exists(this.file(1, ".delta")));
+        Bank recovered = new Bank();
+        Assert.assertEquals(4, this.checkpointer(2).recover(recovered));
+        RecoveryFixtures.assertSameBank(bank, recovered, keys);
+    }
+
+    @Test
+    public void truncatedCheckpointIsRejectedTest() throws Exception {
+        Bank bank = new Bank();
+        Checkpointer checkpointer = this.checkpointer(8);
+        for (KeyHandle key : keys)
+            bank.openAccount(key);
+        checkpointer.checkpoint(bank, 1);
+        RecoveryFixtures.transfers(bank, keys, new Random(4), 100, null);
+        checkpointer.checkpoint(bank, 2);
+
+        try (RandomAccessFile delta = new RandomAccessFile(this.file(1, ".delta").toFile(), "rw")) {
+            delta.setLength(delta.length() / 2);
+        }
+        Bank recovered = new Bank();
+        try {
+            this.checkpointer(8).recover(recovered);
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Truncated checkpoint"));
+        }
+    }
+
+    @Test
+    public void corruptedCheckpointIsRejectedTest() throws Exception {
+        Bank bank = new Bank();
+        for (KeyHandle key : keys)
+            bank.openAccount(key);
+        RecoveryFixtures.transfers(bank, keys, new Random(5), 100, null);
+        this.checkpointer(8).checkpoint(bank, 1);
+
+        try (RandomAccessFile full = new RandomAccessFile(this.file(0, ".full").toFile(), "rw")) {
+            long offset = full.length() - 16;
+            full.seek(offset);
+            int b = full.read();
+            full.seek(offset);
+            full.write(b ^ 0x01);
+        }
+        Bank recovered = new Bank();
+        try {
+            this.checkpointer(8).recover(recovered);
+            Assert.fail();
+        } catch (IOException e) {
+            // caught by the checksum, or earlier if the flipped bit lands in an account reference
+        }
+        // nothing is applied from a checkpoint that is not intact
+        Assert.assertEquals(0, recovered.getNumberAccounts());
+    }
+
+    // checkpoints of an older layout are refused rather than read with defaults for what they lack
+    @Test
+    public void olderCheckpointVersionIsRejectedTest() throws Exception {
+        Bank bank = new Bank();
+        for (KeyHandle key : keys)
+            bank.openAccount(key);
+        this.checkpointer(8).checkpoint(bank, 1);
+
+        try (RandomAccessFile full = new RandomAccessFile(this.file(0, ".full").toFile(), "rw")) {
+            full.seek(4);
+            full.write(1);
+        }
+        Bank recovered = new Bank();
+        try {
+            this.checkpointer(8).recover(recovered);
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Unsupported checkpoint version 1"));
+        }
+        Assert.assertEquals(0, recovered.getNumberAccounts());
+    }
+
+    @Test
+    public void unfinishedCheckpointIsIgnoredTest() throws Exception {
+        Bank bank = new Bank();
+        Checkpointer checkpointer = this.checkpointer(8);
+        for (KeyHandle key : keys)
+            bank.openAccount(key);
+        checkpointer.checkpoint(bank, 1);
+
+        // a crash while writing the next checkpoint leaves its temporary file behind
+        Files.write(this.file(1, ".delta.tmp"), new byte[]{0x42, 0x46, 0x54});
+        Bank recovered = new Bank();
+        Assert.assertEquals(1, this.checkpointer(8).recover(recovered));
+        RecoveryFixtures.assertSameBank(bank, recovered, keys);
+    }
+}
@@ -0,0 +1,210 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pt.ulisboa.tecnico.sec.server.domain.Account;
+import pt.ulisboa.tecnico.sec.server.domain.Bank;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DiskAccountStoreTests {
+    private static final int ACCOUNTS = 12;
+    private static final int CACHE = 4;
+    private static final String PREFIX = "test_accounts";
+
+    private static KeyHandle[] keys;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        keys = RecoveryFixtures.keys(ACCOUNTS);
+    }
+
+    private DiskAccountStore store;
+    private Checkpointer checkpointer;
+
+    // opens the store as Server.recoverState does, the checkpointer recovering it before anything else
+    private Bank open() throws Exception {
+        this.store = new DiskAccountStore(this.folder.getRoot().getPath(), PREFIX, CACHE);
+        this.checkpointer = new Checkpointer(this.folder.getRoot().getPath(), "test_checkpoint", 8);
+        Bank bank = new Bank(this.store);
+        this.checkpointer.recover(bank);
+        return bank;
+    }
+
+    private Path file(String extension) {
+        return this.folder.getRoot().toPath().resolve(PREFIX + extension);
+    }
+
+    private static void openAll(Bank bank) throws Exception {
+        for (KeyHandle key : keys)
+            bank.openAccount(key);
+    }
+
+    // the same workload on a bank that never leaves memory
+    private static Bank reference(long seed, int operations) throws Exception {
+        Bank bank = new Bank();
+        openAll(bank);
+        RecoveryFixtures.transfers(bank, keys, new Random(seed), operations, null);
+        return bank;
+    }
+
+    private Map<String, byte[]> saveTables() throws Exception {
+        Map<String, byte[]> tables = new HashMap<>();
+        for (String extension : new String[]{".loc", ".idx", ".meta"})
+            tables.put(extension, Files.readAllBytes(this.file(extension)));
+        return tables;
+    }
+
+    private void restoreTables(Map<String, byte[]> tables) throws Exception {
+        for (Map.Entry<String, byte[]> table : tables.entrySet())
+            Files.write(this.file(table.getKey()), table.getValue());
+    }
+
+    @Test
+    public void committedAccountsRoundTripTest() throws Exception {
+        Bank bank = this.open();
+        openAll(bank);
+        RecoveryFixtures.transfers(bank, keys, new Random(1), 300, null);
+        this.checkpointer.checkpoint(bank, 17);
+        this.store.close();
+
+        // far more accounts than the cache holds, every one of them is read back from disk
+        Bank recovered = this.open();
+        Assert.assertEquals(ACCOUNTS, recovered.getNumberAccounts());
+        Bank reference = reference(1, 300);
+        RecoveryFixtures.assertSameBank(reference, recovered, keys);
+        for (KeyHandle key : keys)
+            Assert.assertEquals(key, recovered.getAccountByID(reference.getAccount(key).getID()).getKey());
+        Assert.assertNull(recovered.getAccountByID(ACCOUNTS));
+        this.store.close();
+
+        // the journal sequence of the last commit is where replay resumes
+        this.store = new DiskAccountStore(this.folder.getRoot().getPath(), PREFIX, CACHE);
+        Assert.assertEquals(17, this.store.recover(new Bank(this.store)));
+        this.store.close();
+    }
+
+    @Test
+    public void changedAccountsStayResidentUntilCommittedTest() throws Exception {
+        Bank bank = this.open();
+        openAll(bank);
+        Account[] live = new Account[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++)
+            live[i] = bank.getAccount(keys[i]);
+
+        // nothing is committed yet, the live objects are the only copy of the accounts
+        Assert.assertEquals(ACCOUNTS, this.store.getUnsavedAccounts().size());
+        for (int i = 0; i < ACCOUNTS; i++)
+            Assert.assertSame(live[i], bank.getAccount(keys[i]));
+
+        this.checkpointer.checkpoint(bank, 1);
+        Assert.assertTrue(this.store.getUnsavedAccounts().isEmpty());
+        bank.sendAmount(keys[0], keys[1], 10);
+        Assert.assertEquals(2, this.store.getUnsavedAccounts().size());
+        this.store.close();
+    }
+
+    @Test
+    public void uncommittedRecordsAreDiscardedTest() throws Exception {
+        Random random = new Random(2);
+        Bank bank = this.open();
+        openAll(bank);
+        RecoveryFixtures.transfers(bank, keys, random, 100, null);
+        this.checkpointer.checkpoint(bank, 1);
+        long committedSize = Files.size(this.file(".dat"));
+        Map<String, byte[]> tables = this.saveTables();
+
+        // a crash while the next commit's block is being written: its records are there, the block is cut short
+        RecoveryFixtures.transfers(bank, keys, random, 100, null);
+        this.checkpointer.checkpoint(bank, 2);
+        this.store.close();
+        this.restoreTables(tables);
+        try (FileChannel data = FileChannel.open(this.file(".dat"), StandardOpenOption.WRITE)) {
+            data.truncate(data.size() - 1);
+        }
+
+        Bank recovered = this.open();
+        Assert.assertEquals(committedSize, Files.size(this.file(".dat")));
+        Bank reference = reference(2, 100);
+        RecoveryFixtures.assertSameBank(reference, recovered, keys);
+
+        // the next commit is written where the discarded records were
+        RecoveryFixtures.transfers(recovered, keys, new Random(3), 100, null);
+        RecoveryFixtures.transfers(reference, keys, new Random(3), 100, null);
+        this.checkpointer.checkpoint(recovered, 3);
+        this.store.close();
+        RecoveryFixtures.assertSameBank(reference, this.open(), keys);
+        this.store.close();
+    }
+
+    @Test
+    public void commitMissingFromTablesIsReappliedTest() throws Exception {
+        Bank bank = this.open();
+        openAll(bank);
+        this.checkpointer.checkpoint(bank, 1);
+        byte[] meta = Files.readAllBytes(this.file(".meta"));
+
+        // a crash after the commit block was forced but before .meta caught up with it
+        RecoveryFixtures.transfers(bank, keys, new Random(4), 200, null);
+        this.checkpointer.checkpoint(bank, 2);
+        this.store.close();
+        Files.write(this.file(".meta"), meta);
+
+        RecoveryFixtures.assertSameBank(reference(4, 200), this.open(), keys);
+        this.store.close();
+    }
+
+    @Test
+    public void concurrentMissesReadConsistentAccountsTest() throws Exception {
+        Bank bank = this.open();
+        openAll(bank);
+        RecoveryFixtures.transfers(bank, keys, new Random(5), 300, null);
+        this.checkpointer.checkpoint(bank, 1);
+        this.store.close();
+
+        // readers racing on a cache far smaller than the bank, every lookup misses now and then
+        Bank recovered = this.open();
+        Bank reference = reference(5, 300);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Random random = new Random(t);
+            readers.add(pool.submit(() -> {
+                for (int i = 0; i < 500; i++) {
+                    KeyHandle key = keys[random.nextInt(ACCOUNTS)];
+                    Account expected = reference.getAccount(key);
+                    Account byKey = this.store.get(key);
+                    Account byId = this.store.getByID(expected.getID());
+                    Assert.assertEquals(key, byKey.getKey());
+                    Assert.assertEquals(key, byId.getKey());
+                    Assert.assertEquals(expected.getBalance(), byKey.getBalance());
+                    Assert.assertEquals(expected.getBalance(), byId.getBalance());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> reader : readers)
+            reader.get();
+        pool.shutdown();
+        RecoveryFixtures.assertSameBank(reference, recovered, keys);
+        this.store.close();
+    }
+}
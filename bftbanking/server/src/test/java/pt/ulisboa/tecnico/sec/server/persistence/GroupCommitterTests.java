@@ -0,0 +1,82 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import com.google.protobuf.ByteString;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+public class GroupCommitterTests {
+    private static final String PREFIX = "test_journal";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // a journal whose next sync fails while failing is set
+    private static class FailingJournal extends FileJournal {
+        volatile boolean failing = false;
+
+        FailingJournal(String directory) throws IOException {
+            super(directory, PREFIX);
+        }
+
+        @Override
+        public void sync() throws IOException {
+            if (this.failing) throw new IOException("disk gone");
+            super.sync();
+        }
+    }
+
+    private static JournalEntry open(long ts) {
+        return JournalEntry.openAccount(ts, ByteString.copyFromUtf8("key" + ts), ts);
+    }
+
+    private interface Action {
+        void run() throws IOException;
+    }
+
+    private static void assertFails(Action action) {
+        try {
+            action.run();
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Journal commit failed: disk gone"));
+        }
+    }
+
+    @Test
+    public void batchIsDurableOnceSyncedTest() throws Exception {
+        FailingJournal journal = new FailingJournal(this.folder.getRoot().getPath());
+        GroupCommitter committer = new GroupCommitter(journal, 4, 1000);
+        long last = 0;
+        for (int i = 1; i <= 10; i++)
+            last = committer.append(open(i));
+        committer.awaitDurable(last);
+        committer.close();
+        journal.close();
+        Assert.assertEquals(10, last);
+    }
+
+    @Test
+    public void failedSyncStopsTheCommitterTest() throws Exception {
+        FailingJournal journal = new FailingJournal(this.folder.getRoot().getPath());
+        GroupCommitter committer = new GroupCommitter(journal, 1, 1000);
+        long first = committer.append(open(1));
+        committer.awaitDurable(first);
+
+        journal.failing = true;
+        long failed = committer.append(open(2));
+        assertFails(() -> committer.awaitDurable(failed));
+
+        // the disk coming back does not make anything after the failure durable
+        journal.failing = false;
+        assertFails(() -> committer.append(open(3)));
+        assertFails(() -> committer.awaitDurable(failed));
+        assertFails(committer::close);
+        // what was durable before stays durable
+        committer.awaitDurable(first);
+        journal.close();
+    }
+}
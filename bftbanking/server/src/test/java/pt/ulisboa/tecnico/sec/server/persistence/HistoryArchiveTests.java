@@ -0,0 +1,179 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pt.ulisboa.tecnico.sec.server.domain.Bank;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+import pt.ulisboa.tecnico.sec.server.domain.Transaction;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class HistoryArchiveTests {
+    private static final int ACCOUNTS = 8;
+    private static final int HOT = 4;
+    private static final String PREFIX = "test_history";
+
+    private static KeyHandle[] keys;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        keys = RecoveryFixtures.keys(ACCOUNTS);
+    }
+
+    private HistoryArchive archive(long segmentSize) throws IOException {
+        return new HistoryArchive(this.folder.getRoot().getPath(), PREFIX, segmentSize);
+    }
+
+    private Path segment(long index) {
+        return this.folder.getRoot().toPath().resolve(PREFIX + "_" + index + ".hist");
+    }
+
+    // the same workload on a bank that keeps its whole history in memory
+    private static Bank reference(long seed, int operations) throws Exception {
+        Bank bank = new Bank();
+        for (KeyHandle key : keys)
+            bank.openAccount(key);
+        RecoveryFixtures.transfers(bank, keys, new Random(seed), operations, null);
+        return bank;
+    }
+
+    private static Bank tiered(HistoryArchive archive, long seed, int operations) throws Exception {
+        Bank bank = new Bank();
+        bank.setHistoryStore(archive, HOT);
+        for (KeyHandle key : keys)
+            bank.openAccount(key);
+        RecoveryFixtures.transfers(bank, keys, new Random(seed), operations, null);
+        return bank;
+    }
+
+    private static List<Transaction> transactions(long first, int count) {
+        List<Transaction> transactions = new ArrayList<>();
+        for (long id = first; id < first + count; id++)
+            transactions.add(new Transaction(id, keys[0], keys[1], (int) id + 1));
+        return transactions;
+    }
+
+    private static List<Long> ids(List<Transaction> transactions) {
+        List<Long> ids = new ArrayList<>();
+        for (Transaction t : transactions)
+            ids.add(t.getId());
+        return ids;
+    }
+
+    @Test
+    public void spilledHistoryIsAuditedInOrderTest() throws Exception {
+        HistoryArchive archive = this.archive(1 << 20);
+        Bank bank = tiered(archive, 1, 400);
+
+        long spilled = 0;
+        for (KeyHandle key : keys) {
+            Assert.assertTrue(bank.getAccount(key).getRecentTransactions().size() <= HOT);
+            spilled += bank.getAccount(key).getColdCount();
+        }
+        Assert.assertTrue(spilled > 0);
+        RecoveryFixtures.assertSameBank(reference(1, 400), bank, keys);
+    }
+
+    @Test
+    public void historyRecoveredWithCheckpointTest() throws Exception {
+        HistoryArchive archive = this.archive(2048);
+        Bank bank = tiered(archive, 2, 400);
+        new Checkpointer(this.folder.getRoot().getPath(), "test_checkpoint", 8).checkpoint(bank, 1);
+        archive.close();
+        // small segments, so the history spans several files
+        Assert.assertTrue(Files.exists(this.segment(1)));
+
+        Bank recovered = new Bank();
+        archive = this.archive(2048);
+        recovered.setHistoryStore(archive, HOT);
+        new Checkpointer(this.folder.getRoot().getPath(), "test_checkpoint", 8).recover(recovered);
+        archive.restore(recovered);
+        RecoveryFixtures.assertSameBank(reference(2, 400), recovered, keys);
+    }
+
+    @Test
+    public void blocksAfterCheckpointAreDroppedTest() throws Exception {
+        HistoryArchive archive = this.archive(1 << 20);
+        Bank bank = new Bank();
+        bank.setHistoryStore(archive, HOT);
+        for (KeyHandle key : keys)
+            bank.openAccount(key);
+        Random random = new Random(3);
+        RecoveryFixtures.transfers(bank, keys, random, 200, null);
+        new Checkpointer(this.folder.getRoot().getPath(), "test_checkpoint", 8).checkpoint(bank, 1);
+
+        // spilled after the checkpoint, the last block torn by the crash
+        RecoveryFixtures.transfers(bank, keys, random, 200, null);
+        archive.close();
+        try (FileChannel channel = FileChannel.open(this.segment(0), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        Bank recovered = new Bank();
+        archive = this.archive(1 << 20);
+        recovered.setHistoryStore(archive, HOT);
+        new Checkpointer(this.folder.getRoot().getPath(), "test_checkpoint", 8).recover(recovered);
+        archive.restore(recovered);
+        RecoveryFixtures.assertSameBank(reference(3, 200), recovered, keys);
+    }
+
+    @Test
+    public void missingBlocksAreReportedTest() throws Exception {
+        HistoryArchive archive = this.archive(1 << 20);
+        Bank bank = tiered(archive, 4, 400);
+        new Checkpointer(this.folder.getRoot().getPath(), "test_checkpoint", 8).checkpoint(bank, 1);
+        archive.close();
+        // the checkpoint counts on blocks that are gone
+        try (FileChannel channel = FileChannel.open(this.segment(0), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        Bank recovered = new Bank();
+        archive = this.archive(1 << 20);
+        recovered.setHistoryStore(archive, HOT);
+        new Checkpointer(this.folder.getRoot().getPath(), "test_checkpoint", 8).recover(recovered);
+        try {
+            archive.restore(recovered);
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("is missing transactions"));
+        }
+    }
+
+    @Test
+    public void respilledBlockReplacesOverlapTest() throws Exception {
+        HistoryArchive archive = this.archive(1 << 20);
+        archive.append(7, 0, transactions(0, 3));
+        archive.append(7, 3, transactions(3, 2));
+        // a replayed operation spilling again from position 2, with different transactions
+        archive.append(7, 2, transactions(20, 3));
+
+        Assert.assertEquals(Arrays.asList(0L, 1L, 20L, 21L, 22L), ids(archive.read(7, 0, 5)));
+        Assert.assertEquals(Arrays.asList(1L, 20L), ids(archive.read(7, 1, 3)));
+        archive.close();
+
+        // the same index is rebuilt from the block headers
+        archive = this.archive(1 << 20);
+        Assert.assertEquals(Arrays.asList(0L, 1L, 20L, 21L, 22L), ids(archive.read(7, 0, 5)));
+        try {
+            archive.read(7, 0, 6);
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("is missing transactions"));
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pt.ulisboa.tecnico.sec.server.domain.Bank;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class JournalRecoveryTests {
+    private static final int ACCOUNTS = 8;
+    private static final String PREFIX = "test_journal";
+    private static final int SEGMENT_SIZE = 4096;
+
+    private static KeyHandle[] keys;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        keys = RecoveryFixtures.keys(ACCOUNTS);
+    }
+
+    private MappedJournal mapped() throws Exception {
+        return new MappedJournal(this.folder.getRoot().getPath(), PREFIX, SEGMENT_SIZE);
+    }
+
+    private FileJournal file() throws Exception {
+        return new FileJournal(this.folder.getRoot().getPath(), PREFIX);
+    }
+
+    private Path file(long index, String extension) {
+        return this.folder.getRoot().toPath().resolve(PREFIX + "_" + index + extension);
+    }
+
+    // a bank with every account open and a random workload, and the journal entries that rebuild it
+    private static Bank workload(List<JournalEntry> entries, long seed) throws Exception {
+        Bank bank = new Bank();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            int account = i;
+            bank.openAccount(keys[i], -1, id -> entries.add(JournalEntry.openAccount(account + 1, keys[account].getEncoded(), id)));
+            bank.advanceTimestamp(i + 1);
+        }
+        RecoveryFixtures.transfers(bank, keys, new Random(seed), 300, entries);
+        return bank;
+    }
+
+    private static JournalEntry open(int account) {
+        return JournalEntry.openAccount(account + 1, keys[account].getEncoded(), account);
+    }
+
+    // flips a byte in the payload of the record at offset, as if the write had been torn
+    private static void tear(Path file, long offset) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, offset + Journal.HEADER_SIZE + 2);
+            b.put(0, (byte) (b.get(0) ^ 0xff));
+            b.rewind();
+            channel.write(b, offset + Journal.HEADER_SIZE + 2);
+        }
+    }
+
+    @Test
+    public void mappedTornTailIsErasedTest() throws Exception {
+        MappedJournal journal = this.mapped();
+        long offset = 0;
+        for (int i = 0; i < 4; i++) {
+            journal.write(open(i));
+            offset += Journal.HEADER_SIZE + open(i).encodedSize();
+        }
+        // a long record torn at the tail of the segment
+        journal.write(JournalEntry.sendAmount(5, keys[0].getEncoded(), keys[1].getEncoded(), 10, 0));
+        journal.sync();
+        tear(this.file(0, ".seg"), offset);
+
+        journal = this.mapped();
+        Assert.assertEquals(4, journal.replay(new Bank(), 0));
+        Assert.assertEquals(4, journal.getLastSequence());
+
+        // a shorter record written over the torn one, then the segment is left behind
+        journal.write(open(4));
+        journal.roll();
+        journal.write(open(5));
+        journal.sync();
+
+        Bank bank = new Bank();
+        journal = this.mapped();
+        Assert.assertEquals(6, journal.replay(bank, 0));
+        Assert.assertEquals(6, journal.getLastSequence());
+        Assert.assertEquals(6, bank.getNumberAccounts());
+    }
+
+    @Test
+    public void mappedRoundTripAcrossSegmentsTest() throws Exception {
+        List<JournalEntry> entries = new ArrayList<>();
+        Bank bank = workload(entries, 1);
+        MappedJournal journal = this.mapped();
+        for (JournalEntry entry : entries)
+            journal.write(entry);
+        journal.sync();
+        journal.close();
+        // records that do not fit in what is left of a segment start the next one
+        Assert.assertTrue(Files.exists(this.file(2, ".seg")));
+
+        Bank replayed = new Bank();
+        journal = this.mapped();
+        Assert.assertEquals(entries.size(), journal.replay(replayed, 0));
+        Assert.assertEquals(entries.size(), journal.getLastSequence());
+        RecoveryFixtures.assertSameBank(bank, replayed, keys);
+
+        // and the journal carries on after the last record
+        Assert.assertEquals(entries.size() + 1, journal.write(JournalEntry.receiveAmount(0, keys[0].getEncoded(), -1)));
+    }
+
+    @Test
+    public void fileRoundTripTest() throws Exception {
+        List<JournalEntry> entries = new ArrayList<>();
+        Bank bank = workload(entries, 2);
+        FileJournal journal = this.file();
+        for (int i = 0; i < entries.size(); i++) {
+            journal.append(entries.get(i));
+            if (i == entries.size() / 2) journal.roll();
+        }
+        journal.close();
+
+        Bank replayed = new Bank();
+        journal = this.file();
+        Assert.assertEquals(entries.size(), journal.replay(replayed, 0));
+        Assert.assertEquals(entries.size(), journal.getLastSequence());
+        RecoveryFixtures.assertSameBank(bank, replayed, keys);
+    }
+
+    @Test
+    public void replaySkipsCheckpointedRecordsTest() throws Exception {
+        MappedJournal journal = this.mapped();
+        for (int i = 0; i < ACCOUNTS; i++)
+            journal.write(open(i));
+        journal.sync();
+
+        // the first three accounts are in the checkpoint already
+        Bank bank = new Bank();
+        for (int i = 0; i < 3; i++)
+            bank.openAccount(keys[i], i, id -> {});
+        journal = this.mapped();
+        Assert.assertEquals(ACCOUNTS - 3, journal.replay(bank, 3));
+        Assert.assertEquals(ACCOUNTS, bank.getNumberAccounts());
+        Assert.assertEquals(ACCOUNTS, journal.getLastSequence());
+    }
+
+    @Test
+    public void discardedSegmentsAreNotReplayedTest() throws Exception {
+        MappedJournal journal = this.mapped();
+        for (int i = 0; i < 3; i++)
+            journal.write(open(i));
+        long firstKept = journal.roll();
+        for (int i = 3; i < ACCOUNTS; i++)
+            journal.write(open(i));
+        journal.sync();
+        journal.discardBefore(firstKept);
+        Assert.assertFalse(Files.exists(this.file(0, ".seg")));
+
+        Bank bank = new Bank();
+        for (int i = 0; i < 3; i++)
+            bank.openAccount(keys[i], i, id -> {});
+        journal = this.mapped();
+        Assert.assertEquals(ACCOUNTS - 3, journal.replay(bank, 3));
+        Assert.assertEquals(ACCOUNTS, journal.getLastSequence());
+    }
+
+    @Test
+    public void fileTornTailIsTruncatedTest() throws Exception {
+        FileJournal journal = this.file();
+        long offset = 0;
+        for (int i = 0; i < 4; i++) {
+            journal.append(open(i));
+            offset += Journal.HEADER_SIZE + open(i).encodedSize();
+        }
+        journal.append(open(4));
+        journal.close();
+        tear(this.file(0, ".log"), offset);
+
+        Bank bank = new Bank();
+        journal = this.file();
+        Assert.assertEquals(4, journal.replay(bank, 0));
+        Assert.assertEquals(offset, Files.size(this.file(0, ".log")));
+        journal.append(open(4));
+        journal.close();
+
+        journal = this.file();
+        Assert.assertEquals(5, journal.replay(new Bank(), 0));
+    }
+
+    @Test
+    public void truncatedTailIsDroppedTest() throws Exception {
+        FileJournal journal = this.file();
+        for (int i = 0; i < 4; i++)
+            journal.append(open(i));
+        journal.close();
+        // a crash in the middle of the last write
+        try (FileChannel channel = FileChannel.open(this.file(0, ".log"), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+
+        journal = this.file();
+        Assert.assertEquals(3, journal.replay(new Bank(), 0));
+        Assert.assertEquals(3, journal.getLastSequence());
+    }
+
+    @Test
+    public void tornRecordInOlderFileIsReportedTest() throws Exception {
+        FileJournal journal = this.file();
+        journal.append(open(0));
+        journal.append(open(1));
+        journal.roll();
+        journal.append(open(2));
+        journal.close();
+        tear(this.file(0, ".log"), Journal.HEADER_SIZE + open(0).encodedSize());
+
+        journal = this.file();
+        try {
+            journal.replay(new Bank(), 0);
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupted journal file"));
+        }
+    }
+
+    // the entry types from before ids were recorded are no longer read
+    @Test
+    public void retiredEntryTypesAreRefusedTest() throws Exception {
+        for (byte type = 1; type <= 2; type++) {
+            byte[] encoded = open(0).encode();
+            encoded[0] = type;
+            try {
+                JournalEntry.decode(ByteBuffer.wrap(encoded));
+                Assert.fail();
+            } catch (IOException e) {
+                Assert.assertEquals("Unknown journal entry type " + type, e.getMessage());
+            }
+        }
+    }
+}
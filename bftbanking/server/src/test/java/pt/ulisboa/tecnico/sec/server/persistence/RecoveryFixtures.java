@@ -0,0 +1,89 @@
+package pt.ulisboa.tecnico.sec.server.persistence;
+
+import org.junit.Assert;
+import pt.ulisboa.tecnico.sec.server.domain.Bank;
+import pt.ulisboa.tecnico.sec.server.domain.KeyHandle;
+import pt.ulisboa.tecnico.sec.server.domain.KeyRegistry;
+import pt.ulisboa.tecnico.sec.server.domain.Transaction;
+
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+// shared by the recovery tests: client keys, a random workload and a comparison of two banks
+final class RecoveryFixtures {
+    private RecoveryFixtures() {
+    }
+
+    // the bank never looks inside the keys, small ones keep the setup fast
+    static KeyHandle[] keys(int count) throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        KeyHandle[] keys = new KeyHandle[count];
+        for (int i = 0; i < count; i++)
+            keys[i] = KeyRegistry.get(generator.generateKeyPair().getPublic());
+        return keys;
+    }
+
+    // random transfers between the accounts, about half of them received, each moving the bank timestamp like a
+    // replayed journal entry would; every operation is also recorded in journal if there is one
+    static void transfers(Bank bank, KeyHandle[] keys, Random random, int operations, List<JournalEntry> journal) throws Exception {
+        for (int i = 0; i < operations; i++) {
+            long ts = bank.getTimestamp() + 1;
+            KeyHandle src = keys[random.nextInt(keys.length)];
+            KeyHandle dest = keys[random.nextInt(keys.length)];
+            int amount = 1 + random.nextInt(5);
+            try {
+                bank.sendAmount(src, dest, amount, -1, TID -> {
+                    if (journal != null) journal.add(JournalEntry.sendAmount(ts, src.getEncoded(), dest.getEncoded(), amount, TID));
+                });
+                bank.advanceTimestamp(ts);
+            } catch (Exception e) {
+                // equal accounts or insufficient balance
+            }
+
+            List<Transaction> credits = bank.getPendingCredits(dest);
+            if (credits.isEmpty() || random.nextBoolean()) continue;
+            long TID = credits.get(0).getId();
+            long receivedTs = bank.getTimestamp() + 1;
+            bank.receiveAmount(dest, TID, id -> {
+                if (journal != null) journal.add(JournalEntry.receiveAmount(receivedTs, dest.getEncoded(), TID));
+            });
+            bank.advanceTimestamp(receivedTs);
+        }
+    }
+
+    static void assertSameBank(Bank expected, Bank actual, KeyHandle[] keys) throws Exception {
+        Assert.assertEquals(expected.getAccountCounter(), actual.getAccountCounter());
+        Assert.assertEquals(expected.getTransactionCounter(), actual.getTransactionCounter());
+        Assert.assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        for (KeyHandle key : keys) {
+            Assert.assertEquals(expected.hasAccount(key), actual.hasAccount(key));
+            if (!expected.hasAccount(key)) continue;
+            Assert.assertEquals(expected.getAccount(key).getID(), actual.getAccount(key).getID());
+            Assert.assertEquals(expected.checkAccountBalance(key), actual.checkAccountBalance(key));
+            Assert.assertEquals(ids(expected.getPendingCredits(key)), ids(actual.getPendingCredits(key)));
+            Assert.assertEquals(ids(expected.getAccount(key).getPendingWithdrawals()), ids(actual.getAccount(key).getPendingWithdrawals()));
+            Assert.assertEquals(describe(expected.audit(key)), describe(actual.audit(key)));
+        }
+    }
+
+    private static List<Long> ids(Iterable<Transaction> transactions) {
+        List<Long> ids = new ArrayList<>();
+        for (Transaction t : transactions)
+            ids.add(t.getId());
+        ids.sort(Comparator.naturalOrder());
+        return ids;
+    }
+
+    // history in order, with both ends and the amount of every transaction
+    private static List<String> describe(List<Transaction> history) {
+        List<String> described = new ArrayList<>();
+        for (Transaction t : history)
+            described.add(t.getId() + ":" + t.getSrcKey().hashCode() + ">" + t.getDestKey().hashCode() + ":" + t.getAmount());
+        return described;
+    }
+}